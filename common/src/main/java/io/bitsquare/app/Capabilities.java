@@ -3,8 +3,10 @@ package io.bitsquare.app;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class Capabilities {
     private static final Logger log = LoggerFactory.getLogger(Capabilities.class);
@@ -15,7 +17,13 @@ public class Capabilities {
     // We don't use the Enum in any serialized data, as changes in the enum would break backwards compatibility. We use the ordinal integer instead.
     // Sequence in the enum must not be changed (append only).
     public enum Capability {
-        TRADE_STATISTICS
+        TRADE_STATISTICS,
+        BINARY_FRAMES,
+        COMPRESSION,
+        CHUNKED_DATA_RESPONSE,
+        BLOOM_FILTER_DATA_REQUEST,
+        SNAPSHOT_SEGMENTS,
+        FILTERED_DATA_REQUEST
     }
 
     public static void setCapabilities(ArrayList<Integer> capabilities) {
@@ -23,7 +31,13 @@ public class Capabilities {
     }
 
     private static ArrayList<Integer> capabilities = new ArrayList<>(Arrays.asList(
-            Capability.TRADE_STATISTICS.ordinal()
+            Capability.TRADE_STATISTICS.ordinal(),
+            Capability.BINARY_FRAMES.ordinal(),
+            Capability.COMPRESSION.ordinal(),
+            Capability.CHUNKED_DATA_RESPONSE.ordinal(),
+            Capability.BLOOM_FILTER_DATA_REQUEST.ordinal(),
+            Capability.SNAPSHOT_SEGMENTS.ordinal(),
+            Capability.FILTERED_DATA_REQUEST.ordinal()
     ));
 
     /**
@@ -32,4 +46,13 @@ public class Capabilities {
     public static ArrayList<Integer> getCapabilities() {
         return capabilities;
     }
+
+    /**
+     * @return True if both our node and the peer (given by its reported capabilities) support the capability.
+     */
+    public static boolean isSupportedByBoth(Capability capability, @Nullable List<Integer> peersCapabilities) {
+        return peersCapabilities != null &&
+                peersCapabilities.contains(capability.ordinal()) &&
+                capabilities.contains(capability.ordinal());
+    }
 }
@@ -0,0 +1,370 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.storage;
+
+import io.bitsquare.common.util.Utilities;
+import io.bitsquare.io.LookAheadObjectInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Persists a map as a snapshot file written with Storage and an append-only journal of the changes since that
+ * snapshot. A change appends a small record to the journal instead of copying the map and rewriting the whole file.
+ * When the journal has more records than the map has entries (at least MIN_RECORDS_FOR_COMPACTION) we write a new
+ * snapshot and start a new journal, so the amount of data written is proportional to the number of changes.
+ * <p>
+ * The snapshot is written entry by entry as a sequence of records, so only one entry has to be on the heap at a time
+ * when writing it. It gets read as a HashMap. Snapshots written as a plain HashMap are still supported.
+ * <p>
+ * At startup the journal gets replayed on top of the snapshot. A record consists of its length, a CRC32 checksum and
+ * the Java serialized key and value. A record which was only partly written (e.g. at a crash) and all records after
+ * it get dropped.
+ * <p>
+ * The put and remove calls have to be done at the UserThread after the map got changed. The records get serialized
+ * at the calling thread and written on a background thread.
+ */
+public class JournaledMapStorage<K extends Serializable, V extends Serializable> {
+    private static final Logger log = LoggerFactory.getLogger(JournaledMapStorage.class);
+
+    /**
+     * The persisted data if it is not kept in a map.
+     */
+    public interface Source<K, V> {
+        int size();
+
+        /**
+         * Called at the calling thread of put and remove, so it has to be cheap (e.g. a copy of a few arrays).
+         * The returned supplier creates the iterator over the entries of the snapshot at the background thread. The
+         * entries get written one by one, so the values can be created while iterating.
+         */
+        Supplier<Iterator<Map.Entry<K, V>>> getSnapshot();
+    }
+
+    public static final String JOURNAL_FILE_SUFFIX = ".journal";
+    private static final int MIN_RECORDS_FOR_COMPACTION = 1000;
+    private static final long FLUSH_DELAY_MS = 300;
+    // Length and checksum
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 10 * 1024 * 1024;
+
+    private final File dir;
+    private final Source<K, V> source;
+    private final Storage<Serializable> snapshotStorage;
+    private final ScheduledThreadPoolExecutor executor;
+    private File journalFile;
+    // Number of records since the last snapshot, only accessed at the UserThread
+    private int numRecords;
+
+    // guarded by lock
+    private final Object lock = new Object();
+    private List<byte[]> pendingRecords = new ArrayList<>();
+    // Records which were pending when the snapshot was taken. They get written to the old journal before the
+    // snapshot, so we don't lose them if writing the snapshot fails.
+    private List<byte[]> recordsBeforeSnapshot = new ArrayList<>();
+    @Nullable
+    private Supplier<Iterator<Map.Entry<K, V>>> pendingSnapshot;
+    private boolean flushScheduled;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param mapSupplier Supplies the current map for writing a snapshot
+     */
+    public JournaledMapStorage(File dir, Supplier<? extends Map<K, V>> mapSupplier) {
+        this(dir, new Source<K, V>() {
+            @Override
+            public int size() {
+                return mapSupplier.get().size();
+            }
+
+            @Override
+            public Supplier<Iterator<Map.Entry<K, V>>> getSnapshot() {
+                HashMap<K, V> snapshot = new HashMap<>(mapSupplier.get());
+                return () -> snapshot.entrySet().iterator();
+            }
+        });
+    }
+
+    public JournaledMapStorage(File dir, Source<K, V> source) {
+        this.dir = dir;
+        this.source = source;
+        snapshotStorage = new Storage<>(dir);
+        executor = Utilities.getScheduledThreadPoolExecutor("JournaledMapStorage", 1, 1, 5);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public void setNumMaxBackupFiles(int numMaxBackupFiles) {
+        snapshotStorage.setNumMaxBackupFiles(numMaxBackupFiles);
+    }
+
+    // Returns the snapshot with the journal applied, or null if we have neither
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public HashMap<K, V> initAndGetPersistedWithFileName(String fileName) {
+        journalFile = new File(dir, fileName + JOURNAL_FILE_SUFFIX);
+        // The Snapshot resolves to a HashMap at reading
+        HashMap<K, V> persisted = (HashMap<K, V>) snapshotStorage.initAndGetPersistedWithFileName(fileName);
+        if (journalFile.exists()) {
+            long now = System.currentTimeMillis();
+            if (persisted == null)
+                persisted = new HashMap<>();
+            numRecords = replayJournal(persisted);
+            log.debug("Replayed {} records of {} in {} msec", numRecords, journalFile, System.currentTimeMillis() - now);
+        }
+        return persisted;
+    }
+
+    public void put(K key, V value) {
+        append(true, key, value);
+    }
+
+    public void remove(K key) {
+        append(false, key, null);
+    }
+
+    // Writes the remaining records at the calling thread, as the executor drops the scheduled tasks at shutdown
+    public void shutDown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void append(boolean isPut, K key, @Nullable V value) {
+        checkNotNull(journalFile, "journalFile = null. Call initAndGetPersistedWithFileName before put or remove.");
+        byte[] record = serializeRecord(isPut, key, value);
+        if (record == null)
+            return;
+
+        numRecords++;
+        if (numRecords > Math.max(MIN_RECORDS_FOR_COMPACTION, source.size())) {
+            // The snapshot contains that change already
+            numRecords = 0;
+            Supplier<Iterator<Map.Entry<K, V>>> snapshot = source.getSnapshot();
+            synchronized (lock) {
+                recordsBeforeSnapshot.addAll(pendingRecords);
+                recordsBeforeSnapshot.add(record);
+                pendingRecords = new ArrayList<>();
+                pendingSnapshot = snapshot;
+            }
+            executor.execute(this::flush);
+        } else {
+            synchronized (lock) {
+                pendingRecords.add(record);
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    executor.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    // Runs at the executor. We take the snapshot and the records at once, so the records get written in the order
+    // of the calls, independent of the order of the flush tasks.
+    private synchronized void flush() {
+        List<byte[]> records;
+        List<byte[]> recordsBefore;
+        Supplier<Iterator<Map.Entry<K, V>>> snapshot;
+        synchronized (lock) {
+            records = pendingRecords;
+            pendingRecords = new ArrayList<>();
+            recordsBefore = recordsBeforeSnapshot;
+            recordsBeforeSnapshot = new ArrayList<>();
+            snapshot = pendingSnapshot;
+            pendingSnapshot = null;
+            flushScheduled = false;
+        }
+
+        if (snapshot != null) {
+            appendToJournal(recordsBefore);
+            // If the snapshot could not be written we keep the journal
+            if (snapshotStorage.saveNow(new Snapshot(snapshot.get())))
+                truncateJournal(0);
+        }
+        appendToJournal(records);
+    }
+
+    private void appendToJournal(List<byte[]> records) {
+        if (records.isEmpty())
+            return;
+
+        try (FileOutputStream fileOutputStream = new FileOutputStream(journalFile, true);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream))) {
+            for (byte[] record : records) {
+                out.writeInt(record.length);
+                out.writeInt(getChecksum(record));
+                out.write(record);
+            }
+            out.flush();
+            fileOutputStream.getFD().sync();
+        } catch (Throwable t) {
+            log.error("Could not write to journal " + journalFile + ". " + t.getMessage());
+        }
+    }
+
+    private void truncateJournal(long length) {
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(length);
+        } catch (Throwable t) {
+            log.error("Could not truncate journal " + journalFile + ". " + t.getMessage());
+        }
+    }
+
+    // Returns the number of records applied to the map
+    private int replayJournal(HashMap<K, V> map) {
+        int numReplayedRecords = 0;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE)
+                    throw new IOException("Invalid record length. length=" + length);
+
+                byte[] record = new byte[length];
+                in.readFully(record);
+                if (getChecksum(record) != checksum)
+                    throw new IOException("Invalid checksum");
+
+                applyRecord(map, record);
+                numReplayedRecords++;
+                validLength += RECORD_HEADER_SIZE + length;
+            }
+        } catch (Throwable t) {
+            log.warn("We drop the rest of the journal {} as a record could not be read. {}", journalFile, t.getMessage());
+            truncateJournal(validLength);
+        }
+        return numReplayedRecords;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> void applyRecord(HashMap<K, V> map, byte[] record) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new LookAheadObjectInputStream(new ByteArrayInputStream(record), false)) {
+            boolean isPut = in.readBoolean();
+            K key = (K) in.readObject();
+            if (isPut)
+                map.put(key, (V) in.readObject());
+            else
+                map.remove(key);
+        }
+    }
+
+    @Nullable
+    private static byte[] serializeRecord(boolean isPut, Serializable key, @Nullable Serializable value) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(byteArrayOutputStream)) {
+            out.writeBoolean(isPut);
+            out.writeObject(key);
+            if (isPut)
+                out.writeObject(value);
+        } catch (IOException e) {
+            log.error("Could not serialize journal record. " + e.getMessage());
+            return null;
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static int getChecksum(byte[] record) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(record);
+        return (int) crc32.getValue();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Snapshot
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // The entries are written as records of raw bytes, so the stream does not keep a reference to the written
+    // objects. A record length of 0 marks the end. At reading we get the HashMap instead of the Snapshot.
+    private static final class Snapshot implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Nullable
+        private transient Iterator<? extends Map.Entry<? extends Serializable, ? extends Serializable>> entries;
+        @Nullable
+        private transient HashMap<Object, Object> map;
+
+        private Snapshot(Iterator<? extends Map.Entry<? extends Serializable, ? extends Serializable>> entries) {
+            this.entries = entries;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            checkNotNull(entries, "Snapshot can only be written once");
+            out.defaultWriteObject();
+            while (entries.hasNext()) {
+                Map.Entry<? extends Serializable, ? extends Serializable> entry = entries.next();
+                byte[] record = serializeRecord(true, entry.getKey(), entry.getValue());
+                if (record != null) {
+                    out.writeInt(record.length);
+                    out.write(record);
+                }
+            }
+            out.writeInt(0);
+            entries = null;
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            map = new HashMap<>();
+            int length;
+            while ((length = in.readInt()) != 0) {
+                if (length < 0 || length > MAX_RECORD_SIZE)
+                    throw new IOException("Invalid record length. length=" + length);
+
+                byte[] record = new byte[length];
+                in.readFully(record);
+                applyRecord(map, record);
+            }
+        }
+
+        private Object readResolve() {
+            return map;
+        }
+    }
+}
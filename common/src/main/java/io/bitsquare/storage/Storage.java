@@ -142,6 +142,12 @@ public class Storage<T extends Serializable> {
         }
     }
 
+    // Save at the current thread. Returns true if the file was written.
+    public boolean saveNow(T serializable) {
+        checkNotNull(storageFile, "storageFile = null. Call setupFileStorage before using read/write.");
+        return fileManager.saveNow(serializable);
+    }
+
     public void remove(String fileName) {
         fileManager.removeFile(fileName);
     }
@@ -0,0 +1,138 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JournaledMapStorageTest {
+    private static final String FILE_NAME = "TestMap";
+
+    private File dir;
+    private HashMap<String, Integer> map;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("JournaledMapStorageTest").toFile();
+        map = new HashMap<>();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.isDirectory())
+                    file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testReplay() {
+        JournaledMapStorage<String, Integer> storage = createStorage();
+        assertNull(storage.initAndGetPersistedWithFileName(FILE_NAME));
+        put(storage, "a", 1);
+        put(storage, "b", 2);
+        put(storage, "a", 3);
+        remove(storage, "b");
+        storage.shutDown();
+
+        HashMap<String, Integer> expected = new HashMap<>(map);
+        assertEquals(expected, createStorage().initAndGetPersistedWithFileName(FILE_NAME));
+    }
+
+    @Test
+    public void testCompaction() {
+        JournaledMapStorage<String, Integer> storage = createStorage();
+        storage.initAndGetPersistedWithFileName(FILE_NAME);
+        for (int i = 0; i < 2500; i++)
+            put(storage, "key" + (i % 100), i);
+        storage.shutDown();
+
+        // The journal got replaced by a snapshot twice, so it has less records than the changes we made
+        assertTrue(new File(dir, FILE_NAME).exists());
+        assertTrue(new File(dir, FILE_NAME + JournaledMapStorage.JOURNAL_FILE_SUFFIX).length() < 1000 * 50);
+        assertEquals(map, createStorage().initAndGetPersistedWithFileName(FILE_NAME));
+    }
+
+    @Test
+    public void testPartlyWrittenRecordGetsDropped() throws IOException {
+        JournaledMapStorage<String, Integer> storage = createStorage();
+        storage.initAndGetPersistedWithFileName(FILE_NAME);
+        put(storage, "a", 1);
+        storage.shutDown();
+
+        File journalFile = new File(dir, FILE_NAME + JournaledMapStorage.JOURNAL_FILE_SUFFIX);
+        long length = journalFile.length();
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        }
+
+        storage = createStorage();
+        assertEquals(map, storage.initAndGetPersistedWithFileName(FILE_NAME));
+        assertEquals(length, journalFile.length());
+
+        // New records are appended after the last valid one
+        put(storage, "b", 2);
+        storage.shutDown();
+        assertEquals(map, createStorage().initAndGetPersistedWithFileName(FILE_NAME));
+    }
+
+    @Test
+    public void testSnapshotWrittenAsHashMap() throws IOException {
+        map.put("a", 1);
+        map.put("b", 2);
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(dir, FILE_NAME)))) {
+            out.writeObject(new HashMap<>(map));
+        }
+
+        JournaledMapStorage<String, Integer> storage = createStorage();
+        assertEquals(map, storage.initAndGetPersistedWithFileName(FILE_NAME));
+        put(storage, "c", 3);
+        storage.shutDown();
+        assertEquals(map, createStorage().initAndGetPersistedWithFileName(FILE_NAME));
+    }
+
+    private JournaledMapStorage<String, Integer> createStorage() {
+        return new JournaledMapStorage<>(dir, () -> map);
+    }
+
+    private void put(JournaledMapStorage<String, Integer> storage, String key, int value) {
+        map.put(key, value);
+        storage.put(key, value);
+    }
+
+    private void remove(JournaledMapStorage<String, Integer> storage, String key) {
+        map.remove(key);
+        storage.remove(key);
+    }
+}
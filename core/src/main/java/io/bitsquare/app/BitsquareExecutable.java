@@ -86,6 +86,18 @@ public abstract class BitsquareExecutable {
         parser.accepts(NetworkOptionKeys.USE_LOCALHOST, description("Use localhost network for development", false))
                 .withRequiredArg()
                 .ofType(boolean.class);
+        parser.accepts(NetworkOptionKeys.USE_SELECTOR_TRANSPORT, description("Serve the p2p connections with a few shared selector threads instead of a thread per connection", false))
+                .withRequiredArg()
+                .ofType(boolean.class);
+        parser.accepts(NetworkOptionKeys.OFF_HEAP_STORAGE, description("Keep the p2p storage entries in direct memory instead of the heap (seed nodes only)", false))
+                .withRequiredArg()
+                .ofType(boolean.class);
+        parser.accepts(NetworkOptionKeys.SNAPSHOT_SEGMENTS, description("Serve the persisted p2p data of past periods from pre-encoded segments (seed nodes only)", false))
+                .withRequiredArg()
+                .ofType(boolean.class);
+        parser.accepts(NetworkOptionKeys.STATISTIC_EXPORT_INTERVAL, description("Interval in sec. for writing the network statistic to a file in the app data dir (seed nodes only, 0 = off)", 0))
+                .withRequiredArg()
+                .ofType(long.class);
         parser.accepts(NetworkOptionKeys.MAX_CONNECTIONS, description("Max. connections a peer will try to keep", P2PService.MAX_CONNECTIONS_DEFAULT))
                 .withRequiredArg()
                 .ofType(int.class);
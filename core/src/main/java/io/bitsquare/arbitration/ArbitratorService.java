@@ -27,9 +27,9 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Used to store arbitrators profile and load map of arbitrators
@@ -83,10 +83,7 @@ public class ArbitratorService {
     }
 
     public Map<NodeAddress, Arbitrator> getArbitrators() {
-        Set<Arbitrator> arbitratorSet = p2PService.getDataMap().values().stream()
-                .filter(data -> data.getStoragePayload() instanceof Arbitrator)
-                .map(data -> (Arbitrator) data.getStoragePayload())
-                .collect(Collectors.toSet());
+        Set<Arbitrator> arbitratorSet = new HashSet<>(p2PService.getPayloads(Arbitrator.class));
 
         Map<NodeAddress, Arbitrator> map = new HashMap<>();
         for (Arbitrator arbitrator : arbitratorSet) {
@@ -181,7 +181,8 @@ public class TradeManager {
             p2PService.addP2PServiceListener(new BootstrapListener() {
                 @Override
                 public void onBootstrapComplete() {
-                    // Get called after onMailboxMessageAdded from initial data request
+                    // The mailbox messages get decrypted asynchronously, so onMailboxMessageAdded might get called
+                    // before or after that. Trade.setMailboxMessage and Trade.init handle both orders.
                     // The mailbox message will be removed inside the tasks after they are processed successfully
                     initPendingTrades();
                 }
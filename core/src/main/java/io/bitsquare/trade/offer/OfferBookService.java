@@ -152,14 +152,9 @@ public class OfferBookService {
     }
 
     public List<Offer> getOffers() {
-        return p2PService.getDataMap().values().stream()
-                .filter(data -> data.getStoragePayload() instanceof Offer)
-                .map(data -> {
-                    Offer offer = (Offer) data.getStoragePayload();
-                    offer.setPriceFeedService(priceFeedService);
-                    return offer;
-                })
-                .collect(Collectors.toList());
+        List<Offer> offers = p2PService.getPayloads(Offer.class);
+        offers.stream().forEach(offer -> offer.setPriceFeedService(priceFeedService));
+        return offers;
     }
 
     public void removeOfferAtShutDown(Offer offer) {
@@ -88,11 +88,7 @@ public class TradeStatisticsManager {
         });
 
         // At startup the P2PDataStorage inits earlier, otherwise we ge the listener called.
-        p2PService.getP2PDataStorage().getMap().values().forEach(e -> {
-            final StoragePayload storagePayload = e.getStoragePayload();
-            if (storagePayload instanceof TradeStatistics)
-                add((TradeStatistics) storagePayload, false);
-        });
+        p2PService.getPayloads(TradeStatistics.class).forEach(tradeStatistics -> add(tradeStatistics, false));
     }
 
     public void add(TradeStatistics tradeStatistics, boolean storeLocally) {
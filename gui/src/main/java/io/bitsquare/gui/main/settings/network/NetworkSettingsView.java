@@ -79,6 +79,7 @@ public class NetworkSettingsView extends ActivatableViewAndModel<GridPane, Activ
     private final SortedList<P2pNetworkListItem> sortedList = new SortedList<>(networkListItems);
     private ChangeListener<Boolean> btcNodesFocusListener;
     private String btcNodesPreFocusText;
+    private Clock.Listener clockListener;
 
     @Inject
     public NetworkSettingsView(WalletService walletService, P2PService p2PService, Preferences preferences, Clock clock,
@@ -139,6 +140,23 @@ public class NetworkSettingsView extends ActivatableViewAndModel<GridPane, Activ
         nodeAddressSubscription = EasyBind.subscribe(p2PService.getNetworkNode().nodeAddressProperty(),
                 nodeAddress -> onionAddress.setText(nodeAddress == null ? "Not known yet..." : p2PService.getAddress().getFullAddress()));
         numP2PPeersSubscription = EasyBind.subscribe(p2PService.getNumConnectedPeers(), numPeers -> updateP2PTable());
+        // The properties of the statistic are only updated on request
+        Statistic.updateTotalProperties();
+        clockListener = new Clock.Listener() {
+            @Override
+            public void onSecondTick() {
+                Statistic.updateTotalProperties();
+            }
+
+            @Override
+            public void onMinuteTick() {
+            }
+
+            @Override
+            public void onMissedSecondTick(long missed) {
+            }
+        };
+        clock.addListener(clockListener);
         totalTraffic.textProperty().bind(EasyBind.combine(Statistic.totalSentBytesProperty(), Statistic.totalReceivedBytesProperty(),
                 (sent, received) -> "Sent: " + formatter.formatBytes((long) sent) + ", received: " + formatter.formatBytes((long) received)));
 
@@ -185,6 +203,7 @@ public class NetworkSettingsView extends ActivatableViewAndModel<GridPane, Activ
             numP2PPeersSubscription.unsubscribe();
 
         totalTraffic.textProperty().unbind();
+        clock.removeListener(clockListener);
 
         sortedList.comparatorProperty().unbind();
         tableView.getItems().forEach(P2pNetworkListItem::cleanup);
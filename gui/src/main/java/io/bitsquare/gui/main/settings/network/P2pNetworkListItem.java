@@ -53,6 +53,8 @@ public class P2pNetworkListItem {
         this.clock = clock;
         this.formatter = formatter;
         this.statistic = connection.getStatistic();
+        // The properties of the statistic are only updated on request
+        statistic.updateProperties();
 
         sentBytesSubscription = EasyBind.subscribe(statistic.sentBytesProperty(),
                 e -> sentBytes.set(formatter.formatBytes((long) e)));
@@ -66,6 +68,7 @@ public class P2pNetworkListItem {
         listener = new Clock.Listener() {
             @Override
             public void onSecondTick() {
+                statistic.updateProperties();
                 onLastActivityChanged(statistic.getLastActivityTimestamp());
                 updatePeerType();
                 updateConnectionType();
@@ -2,13 +2,19 @@ package io.nucleo.net;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 
 public class HiddenServiceDescriptor extends ServiceDescriptor {
 
     private final int localPort;
 
     public HiddenServiceDescriptor(String serviceName, int localPort, int servicePort) throws IOException {
-        super(serviceName, servicePort);
+        this(serviceName, localPort, servicePort, new ServerSocket());
+    }
+
+    public HiddenServiceDescriptor(String serviceName, int localPort, int servicePort, ServerSocket serverSocket)
+            throws IOException {
+        super(serviceName, servicePort, serverSocket);
         this.localPort = localPort;
         this.serverSocket.bind(new InetSocketAddress(TorNode.PROXY_LOCALHOST, localPort));
     }
@@ -10,9 +10,14 @@ public abstract class ServiceDescriptor {
     protected final ServerSocket serverSocket;
 
     public ServiceDescriptor(String hostname, int servicePort) throws IOException {
+        this(hostname, servicePort, new ServerSocket());
+    }
+
+    // The serverSocket must be unbound
+    public ServiceDescriptor(String hostname, int servicePort, ServerSocket serverSocket) {
         this.hostname = hostname;
         this.servicePort = servicePort;
-        this.serverSocket = new ServerSocket();
+        this.serverSocket = serverSocket;
     }
 
     public String getHostname() {
@@ -8,6 +8,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.GregorianCalendar;
@@ -84,15 +85,28 @@ public abstract class TorNode<M extends OnionProxyManager, C extends OnionProxyC
     }
 
     public HiddenServiceDescriptor createHiddenService(final int localPort, final int servicePort) throws IOException {
-        return createHiddenService(localPort, servicePort, null);
+        return createHiddenService(localPort, servicePort, new ServerSocket(), null);
     }
 
     public HiddenServiceDescriptor createHiddenService(final int localPort, final int servicePort,
                                                        final HiddenServiceReadyListener listener) throws IOException {
+        return createHiddenService(localPort, servicePort, new ServerSocket(), listener);
+    }
+
+    // Allows the caller to provide the unbound server socket for the hidden service (e.g. one created from a
+    // ServerSocketChannel)
+    public HiddenServiceDescriptor createHiddenService(final int localPort, final int servicePort,
+                                                       final ServerSocket serverSocket) throws IOException {
+        return createHiddenService(localPort, servicePort, serverSocket, null);
+    }
+
+    public HiddenServiceDescriptor createHiddenService(final int localPort, final int servicePort,
+                                                       final ServerSocket serverSocket,
+                                                       final HiddenServiceReadyListener listener) throws IOException {
         log.debug("Publishing Hidden Service. This will at least take half a minute...");
         final String hiddenServiceName = tor.publishHiddenService(servicePort, localPort);
         final HiddenServiceDescriptor hiddenServiceDescriptor = new HiddenServiceDescriptor(hiddenServiceName,
-                localPort, servicePort);
+                localPort, servicePort, serverSocket);
         if (listener != null)
             tor.attachHiddenServiceReadyListener(hiddenServiceDescriptor, listener);
         return hiddenServiceDescriptor;
@@ -12,5 +12,9 @@ public class NetworkOptionKeys {
     public static final String SOCKS_5_PROXY_BTC_ADDRESS = "socks5ProxyBtcAddress";
     public static final String SOCKS_5_PROXY_HTTP_ADDRESS = "socks5ProxyHttpAddress";
     public static final String SOCKS5_DISCOVER_MODE = "socks5DiscoverMode";
+    public static final String USE_SELECTOR_TRANSPORT = "useSelectorTransport";
+    public static final String STATISTIC_EXPORT_INTERVAL = "statisticExportInterval";
+    public static final String OFF_HEAP_STORAGE = "offHeapStorage";
+    public static final String SNAPSHOT_SEGMENTS = "snapshotSegments";
     
 }
@@ -0,0 +1,100 @@
+package io.bitsquare.p2p;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.bitsquare.common.UserThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Decrypts the mailbox entries in parallel at a thread pool, so many pending mailbox messages don't block the
+ * UserThread at startup. The results get handed over to the UserThread in the order the entries got added, even if
+ * a later entry got decrypted first.
+ * <p/>
+ * The decrypter returns null if the entry is not intended for us. Those entries and entries where the decrypter
+ * failed are skipped without delaying the following ones. After shutDown no results get handed over anymore.
+ * <p/>
+ * Add and shutDown are called at the UserThread.
+ *
+ * @param <E> The mailbox entry
+ * @param <R> The result of the decryption
+ */
+class MailboxDecryptionQueue<E, R> {
+    private static final Logger log = LoggerFactory.getLogger(MailboxDecryptionQueue.class);
+
+    private final Function<E, R> decrypter;
+    private final BiConsumer<R, E> resultHandler;
+    private final ExecutorService executor;
+    // Completes when the result of the last added entry got handed over to the UserThread. We chain the results to
+    // keep the order.
+    private CompletableFuture<Void> lastDecryption = CompletableFuture.completedFuture(null);
+    private volatile boolean stopped;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param decrypter     Runs at the thread pool
+     * @param resultHandler Gets called at the UserThread with the result and the entry
+     */
+    MailboxDecryptionQueue(int numThreads, Function<E, R> decrypter, BiConsumer<R, E> resultHandler) {
+        checkArgument(numThreads > 0, "numThreads must be positive");
+        this.decrypter = checkNotNull(decrypter, "decrypter must not be null");
+        this.resultHandler = checkNotNull(resultHandler, "resultHandler must not be null");
+        executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setNameFormat("MailboxDecryptionQueue-%d").setDaemon(true).build());
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    void add(E entry) {
+        if (stopped) {
+            log.debug("We are shutting down. We don't decrypt the mailbox entry.");
+            return;
+        }
+
+        CompletableFuture<R> decryptedFuture = CompletableFuture.supplyAsync(() -> decrypter.apply(entry), executor);
+        lastDecryption = lastDecryption
+                .thenCombine(decryptedFuture, (previous, result) -> result)
+                .thenAccept(result -> {
+                    if (result != null)
+                        UserThread.execute(() -> onDecrypted(result, entry));
+                })
+                .exceptionally(throwable -> {
+                    // E.g. if the decrypted payload could not be deserialized
+                    log.debug("Decryption of mailbox entry failed. " + throwable.getMessage());
+                    return null;
+                });
+    }
+
+    // Pending decryptions get interrupted and their results are ignored
+    void shutDown() {
+        stopped = true;
+        executor.shutdownNow();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void onDecrypted(R result, E entry) {
+        if (stopped)
+            log.debug("We are shutting down. We ignore the decrypted mailbox message.");
+        else
+            resultHandler.accept(result, entry);
+    }
+}
@@ -10,6 +10,7 @@ import io.bitsquare.app.Log;
 import io.bitsquare.common.Clock;
 import io.bitsquare.common.UserThread;
 import io.bitsquare.common.crypto.CryptoException;
+import io.bitsquare.common.crypto.Hash;
 import io.bitsquare.common.crypto.KeyRing;
 import io.bitsquare.common.crypto.PubKeyRing;
 import io.bitsquare.common.util.Utilities;
@@ -85,6 +86,9 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
     private final Set<DecryptedMailboxListener> decryptedMailboxListeners = new CopyOnWriteArraySet<>();
     private final Set<P2PServiceListener> p2pServiceListeners = new CopyOnWriteArraySet<>();
     private final Map<String, ProtectedMailboxStorageEntry> mailboxMap = new HashMap<>();
+    private final MailboxDecryptionQueue<ProtectedMailboxStorageEntry, DecryptedMsgWithPubKey> mailboxDecryptionQueue =
+            new MailboxDecryptionQueue<>(Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+                    this::decryptMailboxMessage, this::onMailboxMessageDecrypted);
     private final Set<Runnable> shutDownResultHandlers = new CopyOnWriteArraySet<>();
     private final BooleanProperty hiddenServicePublished = new SimpleBooleanProperty();
     private final BooleanProperty preliminaryDataReceived = new SimpleBooleanProperty();
@@ -184,7 +188,7 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
 
         networkNode = useLocalhost ? new LocalhostNetworkNode(port) : new TorNetworkNode(port, torDir);
         networkNode.addConnectionListener(this);
-        networkNode.addMessageListener(this);
+        networkNode.addMessageListener(this, PrefixedSealedAndSignedMessage.class);
 
         Set<NodeAddress> seedNodeAddresses;
         if (seedNodes != null && !seedNodes.isEmpty())
@@ -232,18 +236,11 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
     public void onAllServicesInitialized() {
         Log.traceCall();
         if (networkNode.getNodeAddress() != null) {
-            p2PDataStorage.getMap().values().stream().forEach(protectedStorageEntry -> {
-                if (protectedStorageEntry instanceof ProtectedMailboxStorageEntry)
-                    processProtectedMailboxStorageEntry((ProtectedMailboxStorageEntry) protectedStorageEntry);
-            });
+            processProtectedMailboxStorageEntries();
         } else {
             networkNode.nodeAddressProperty().addListener((observable, oldValue, newValue) -> {
-                if (newValue != null) {
-                    p2PDataStorage.getMap().values().stream().forEach(protectedStorageEntry -> {
-                        if (protectedStorageEntry instanceof ProtectedMailboxStorageEntry)
-                            processProtectedMailboxStorageEntry((ProtectedMailboxStorageEntry) protectedStorageEntry);
-                    });
-                }
+                if (newValue != null)
+                    processProtectedMailboxStorageEntries();
             });
         }
     }
@@ -258,6 +255,8 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
             if (p2PDataStorage != null)
                 p2PDataStorage.shutDown();
 
+            mailboxDecryptionQueue.shutDown();
+
             if (peerManager != null)
                 peerManager.shutDown();
 
@@ -525,43 +524,79 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
     // MailboxMessages
     ///////////////////////////////////////////////////////////////////////////////////////////
 
+    private void processProtectedMailboxStorageEntries() {
+        p2PDataStorage.getEntries(MailboxStoragePayload.class).stream().forEach(protectedStorageEntry -> {
+            if (protectedStorageEntry instanceof ProtectedMailboxStorageEntry)
+                processProtectedMailboxStorageEntry((ProtectedMailboxStorageEntry) protectedStorageEntry);
+        });
+    }
+
+    // The entries not intended for us get filtered at the UserThread, only the decryption is done at the
+    // mailboxDecryptionQueue. The successfully decrypted mailbox messages get handed over to the UserThread.
     private void processProtectedMailboxStorageEntry(ProtectedMailboxStorageEntry protectedMailboxStorageEntry) {
         Log.traceCall();
         final NodeAddress nodeAddress = networkNode.getNodeAddress();
         // Seed nodes don't receive mailbox messages
-        if (optionalEncryptionService.isPresent() && nodeAddress != null && !seedNodesRepository.isSeedNode(nodeAddress)) {
+        if (optionalEncryptionService.isPresent() && nodeAddress != null && !seedNodesRepository.isSeedNode(nodeAddress) &&
+                !shutDownInProgress) {
             Log.traceCall();
             MailboxStoragePayload mailboxStoragePayload = protectedMailboxStorageEntry.getMailboxStoragePayload();
             PrefixedSealedAndSignedMessage prefixedSealedAndSignedMessage = mailboxStoragePayload.prefixedSealedAndSignedMessage;
             if (verifyAddressPrefixHash(prefixedSealedAndSignedMessage)) {
-                try {
-                    DecryptedMsgWithPubKey decryptedMsgWithPubKey = optionalEncryptionService.get().decryptAndVerify(
-                            prefixedSealedAndSignedMessage.sealedAndSigned);
-                    if (decryptedMsgWithPubKey.message instanceof MailboxMessage) {
-                        MailboxMessage mailboxMessage = (MailboxMessage) decryptedMsgWithPubKey.message;
-                        NodeAddress senderNodeAddress = mailboxMessage.getSenderNodeAddress();
-                        checkNotNull(senderNodeAddress, "senderAddress must not be null for mailbox messages");
-
-                        mailboxMap.put(mailboxMessage.getUID(), protectedMailboxStorageEntry);
-                        log.trace("Decryption of SealedAndSignedMessage succeeded. senderAddress="
-                                + senderNodeAddress + " / my address=" + getAddress());
-                        decryptedMailboxListeners.stream().forEach(
-                                e -> e.onMailboxMessageAdded(decryptedMsgWithPubKey, senderNodeAddress));
-                    } else {
-                        log.warn("tryDecryptMailboxData: Expected MailboxMessage but got other type. " +
-                                "decryptedMsgWithPubKey.message=", decryptedMsgWithPubKey.message);
-                    }
-                } catch (CryptoException e) {
-                    log.debug(e.toString());
-                    log.debug("Decryption of prefixedSealedAndSignedMessage.sealedAndSigned failed. " +
-                            "That is expected if the message is not intended for us.");
-                }
+                mailboxDecryptionQueue.add(protectedMailboxStorageEntry);
             } else {
                 log.debug("Wrong blurredAddressHash. The message is not intended for us.");
             }
         }
     }
 
+    // Runs at the thread pool of the mailboxDecryptionQueue. Returns null if the message is not a mailbox message for us.
+    @Nullable
+    private DecryptedMsgWithPubKey decryptMailboxMessage(ProtectedMailboxStorageEntry protectedMailboxStorageEntry) {
+        PrefixedSealedAndSignedMessage prefixedSealedAndSignedMessage =
+                protectedMailboxStorageEntry.getMailboxStoragePayload().prefixedSealedAndSignedMessage;
+        try {
+            DecryptedMsgWithPubKey decryptedMsgWithPubKey = optionalEncryptionService.get().decryptAndVerify(
+                    prefixedSealedAndSignedMessage.sealedAndSigned);
+            if (decryptedMsgWithPubKey.message instanceof MailboxMessage) {
+                return decryptedMsgWithPubKey;
+            } else {
+                log.warn("tryDecryptMailboxData: Expected MailboxMessage but got other type. " +
+                        "decryptedMsgWithPubKey.message=", decryptedMsgWithPubKey.message);
+                return null;
+            }
+        } catch (CryptoException e) {
+            log.debug(e.toString());
+            log.debug("Decryption of prefixedSealedAndSignedMessage.sealedAndSigned failed. " +
+                    "That is expected if the message is not intended for us.");
+            return null;
+        }
+    }
+
+    private void onMailboxMessageDecrypted(DecryptedMsgWithPubKey decryptedMsgWithPubKey,
+                                           ProtectedMailboxStorageEntry protectedMailboxStorageEntry) {
+        // The entry might have been removed from the storage while it was waiting for the decryption
+        P2PDataStorage.ByteArray hashOfPayload = new P2PDataStorage.ByteArray(
+                Hash.getHash(protectedMailboxStorageEntry.getStoragePayload()));
+        if (!p2PDataStorage.getMap().containsKey(hashOfPayload)) {
+            log.debug("The mailbox entry got removed before we decrypted it. We ignore the mailbox message.");
+            return;
+        }
+
+        MailboxMessage mailboxMessage = (MailboxMessage) decryptedMsgWithPubKey.message;
+        NodeAddress senderNodeAddress = mailboxMessage.getSenderNodeAddress();
+        if (senderNodeAddress == null) {
+            log.warn("senderAddress must not be null for mailbox messages. mailboxMessage=" + mailboxMessage);
+            return;
+        }
+
+        mailboxMap.put(mailboxMessage.getUID(), protectedMailboxStorageEntry);
+        log.trace("Decryption of SealedAndSignedMessage succeeded. senderAddress="
+                + senderNodeAddress + " / my address=" + getAddress());
+        decryptedMailboxListeners.stream().forEach(
+                e -> e.onMailboxMessageAdded(decryptedMsgWithPubKey, senderNodeAddress));
+    }
+
     public void sendEncryptedMailboxMessage(NodeAddress peersNodeAddress, PubKeyRing peersPubKeyRing,
                                             MailboxMessage message,
                                             SendMailboxMessageListener sendMailboxMessageListener) {
@@ -858,6 +893,10 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
         return p2PDataStorage.getMap();
     }
 
+    public <T extends StoragePayload> List<T> getPayloads(Class<T> payloadClass) {
+        return p2PDataStorage.getPayloads(payloadClass);
+    }
+
     @VisibleForTesting
     public P2PDataStorage getP2PDataStorage() {
         return p2PDataStorage;
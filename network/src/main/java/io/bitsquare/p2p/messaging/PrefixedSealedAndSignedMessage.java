@@ -18,13 +18,19 @@ public final class PrefixedSealedAndSignedMessage implements MailboxMessage, Sen
     private final NodeAddress senderNodeAddress;
     public final SealedAndSigned sealedAndSigned;
     public final byte[] addressPrefixHash;
-    private final String uid = UUID.randomUUID().toString();
+    private final String uid;
 
     public PrefixedSealedAndSignedMessage(NodeAddress senderNodeAddress, SealedAndSigned sealedAndSigned, byte[] addressPrefixHash) {
+        this(senderNodeAddress, sealedAndSigned, addressPrefixHash, UUID.randomUUID().toString());
+    }
+
+    // Used when decoding a binary frame, where the uid is taken from the wire
+    public PrefixedSealedAndSignedMessage(NodeAddress senderNodeAddress, SealedAndSigned sealedAndSigned, byte[] addressPrefixHash, String uid) {
         checkNotNull(senderNodeAddress, "senderNodeAddress must not be null at PrefixedSealedAndSignedMessage");
         this.senderNodeAddress = senderNodeAddress;
         this.sealedAndSigned = sealedAndSigned;
         this.addressPrefixHash = addressPrefixHash;
+        this.uid = uid;
     }
 
     @Override
@@ -1,13 +1,15 @@
 package io.bitsquare.p2p.network;
 
+import com.google.common.io.CountingInputStream;
 import com.google.common.util.concurrent.CycleDetectingLockFactory;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.Uninterruptibles;
+import io.bitsquare.app.Capabilities;
 import io.bitsquare.app.Log;
 import io.bitsquare.app.Version;
-import io.bitsquare.common.ByteArrayUtils;
 import io.bitsquare.common.UserThread;
-import io.bitsquare.common.util.Tuple2;
+import io.bitsquare.common.util.Tuple3;
 import io.bitsquare.common.util.Utilities;
 import io.bitsquare.io.LookAheadObjectInputStream;
 import io.bitsquare.p2p.Message;
@@ -16,13 +18,20 @@ import io.bitsquare.p2p.messaging.PrefixedSealedAndSignedMessage;
 import io.bitsquare.p2p.messaging.SupportedCapabilitiesMessage;
 import io.bitsquare.p2p.network.messages.CloseConnectionMessage;
 import io.bitsquare.p2p.network.messages.SendersNodeAddressMessage;
+import io.bitsquare.p2p.network.messages.SwitchToFramesMessage;
+import io.bitsquare.p2p.network.wire.EncodedMessage;
+import io.bitsquare.p2p.network.wire.FrameCodec;
+import io.bitsquare.p2p.network.wire.MessageCodec;
 import io.bitsquare.p2p.peers.BanList;
 import io.bitsquare.p2p.peers.getdata.messages.GetDataRequest;
 import io.bitsquare.p2p.peers.getdata.messages.GetDataResponse;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponseChunk;
+import io.bitsquare.p2p.peers.getdata.messages.SnapshotSegment;
 import io.bitsquare.p2p.peers.keepalive.messages.KeepAliveMessage;
 import io.bitsquare.p2p.peers.keepalive.messages.Ping;
 import io.bitsquare.p2p.peers.keepalive.messages.Pong;
 import io.bitsquare.p2p.storage.messages.AddDataMessage;
+import io.bitsquare.p2p.storage.messages.BroadcastMessage;
 import io.bitsquare.p2p.storage.messages.RefreshTTLMessage;
 import io.bitsquare.p2p.storage.payload.CapabilityRequiringPayload;
 import io.bitsquare.p2p.storage.payload.StoragePayload;
@@ -42,8 +51,8 @@ import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -78,6 +87,10 @@ public class Connection implements MessageListener {
     static final int MSG_THROTTLE_PER_SEC = 200;              // With MAX_MSG_SIZE of 200kb results in bandwidth of 40MB/sec or 5 mbit/sec
     static final int MSG_THROTTLE_PER_10_SEC = 1000;          // With MAX_MSG_SIZE of 200kb results in bandwidth of 20MB/sec or 2.5 mbit/sec
     private static final int SOCKET_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(60);
+    // Our peer reports a THROTTLE_LIMIT_EXCEEDED rule violation if we exceed MSG_THROTTLE_PER_SEC or
+    // MSG_THROTTLE_PER_10_SEC, so we pace our messages at half of the sustained rate and allow short bursts.
+    static final int SEND_BURST_SIZE = MSG_THROTTLE_PER_SEC / 4;               // 50 messages
+    static final int SEND_MSG_PER_SEC = MSG_THROTTLE_PER_10_SEC / 20;          // 50 messages per sec
 
     public static int getMaxMsgSize() {
         return MAX_MSG_SIZE;
@@ -85,12 +98,24 @@ public class Connection implements MessageListener {
 
     private static final CycleDetectingLockFactory cycleDetectingLockFactory = CycleDetectingLockFactory.newInstance(CycleDetectingLockFactory.Policies.THROW);
 
+    // Triggers the drain of a send queue when the pacer of its connection has a token again
+    private static final ScheduledThreadPoolExecutor sendPacerTimer = Utilities.getScheduledThreadPoolExecutor(
+            "Connection.sendPacerTimer", 1, 1, 60);
+    // Drains the paced send queues. Writing can block on a slow peer, so we don't use the timer thread for it.
+    private static final ExecutorService sendQueueExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("Connection.sendQueue-%d")
+            .setDaemon(true)
+            .build());
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Class fields
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     private final Socket socket;
+    @Nullable
+    private final SelectorTransport selectorTransport;
+    private final SeenMessageCache seenMessageCache;
     // private final MessageListener messageListener;
     private final ConnectionListener connectionListener;
     private final String portInfo;
@@ -100,19 +125,34 @@ public class Connection implements MessageListener {
     // holder of state shared between InputHandler and Connection
     private final SharedModel sharedModel;
     private final Statistic statistic;
+    // The objectOutputStream writes into that buffer, so a message gets serialized only once and the size we count 
+    // is the size we write to the socket.
+    private final SerializedMessageBuffer serializedMessageBuffer = new SerializedMessageBuffer();
 
     // set in init
     private InputHandler inputHandler;
     private ObjectOutputStream objectOutputStream;
+    private DataOutputStream outputStream;
+    // Set if the socket channel is served by the selectorTransport
+    @Nullable
+    private SelectorChannel selectorChannel;
+    // Set once we have switched to binary frames (guarded by objectOutputStreamLock)
+    private boolean useFrames;
+
+    // Outbound messages get queued in priority lanes and written by the thread which drains the queue
+    // (guarded by sendQueue)
+    private final SendQueue sendQueue = new SendQueue();
+    private final TokenBucket sendPacer = new TokenBucket(SEND_BURST_SIZE, SEND_MSG_PER_SEC);
+    private final AtomicBoolean drainingSendQueue = new AtomicBoolean();
+    private boolean sendQueueDrainScheduled;
 
     // mutable data, set from other threads but not changed internally.
     private Optional<NodeAddress> peersNodeAddressOptional = Optional.empty();
     private volatile boolean stopped;
     private PeerType peerType;
     private final ObjectProperty<NodeAddress> peersNodeAddressProperty = new SimpleObjectProperty<>();
-    private final List<Tuple2<Long, Serializable>> messageTimeStamps = new ArrayList<>();
-    private final CopyOnWriteArraySet<MessageListener> messageListeners = new CopyOnWriteArraySet<>();
-    private volatile long lastSendTimeStamp = 0;
+    private final ThrottleLimiter throttleLimiter = new ThrottleLimiter();
+    private final MessageDispatcher messageDispatcher = new MessageDispatcher();
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -120,8 +160,11 @@ public class Connection implements MessageListener {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     Connection(Socket socket, MessageListener messageListener, ConnectionListener connectionListener,
-               @Nullable NodeAddress peersNodeAddress) {
+               @Nullable NodeAddress peersNodeAddress, @Nullable SelectorTransport selectorTransport,
+               SeenMessageCache seenMessageCache) {
         this.socket = socket;
+        this.selectorTransport = selectorTransport;
+        this.seenMessageCache = seenMessageCache;
         this.connectionListener = connectionListener;
         uid = UUID.randomUUID().toString();
         statistic = new Statistic();
@@ -146,10 +189,28 @@ public class Connection implements MessageListener {
             // When you construct an ObjectInputStream, in the constructor the class attempts to read a header that 
             // the associated ObjectOutputStream on the other end of the connection has written.
             // It will not return until that header has been read. 
-            objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream objectInputStream = new LookAheadObjectInputStream(socket.getInputStream(), true);
-            // We create a thread for handling inputStream data
-            inputHandler = new InputHandler(sharedModel, objectInputStream, portInfo, this);
+            InputStream socketInputStream;
+            OutputStream socketOutputStream;
+            if (selectorTransport != null && SelectorTransport.canServe(socket)) {
+                // The socket channel gets read and written by the selector threads of the transport
+                selectorChannel = selectorTransport.register(socket.getChannel(), SOCKET_TIMEOUT);
+                socketInputStream = selectorChannel.getInputStream();
+                socketOutputStream = selectorChannel.getOutputStream();
+            } else {
+                socketInputStream = socket.getInputStream();
+                socketOutputStream = socket.getOutputStream();
+            }
+            outputStream = new DataOutputStream(new BufferedOutputStream(socketOutputStream));
+            objectOutputStream = new ObjectOutputStream(serializedMessageBuffer);
+            // The stream header has been written to the buffer at construction
+            statistic.addSentBytes(writeSerializedMessageBuffer());
+            outputStream.flush();
+            CountingInputStream countingInputStream = new CountingInputStream(socketInputStream);
+            ObjectInputStream objectInputStream = new LookAheadObjectInputStream(countingInputStream, true);
+            // We create a thread for handling inputStream data. With a selectorChannel the thread is only used until
+            // the peer has switched to binary frames.
+            inputHandler = new InputHandler(sharedModel, objectInputStream, countingInputStream, selectorChannel,
+                    seenMessageCache, portInfo, this);
             singleThreadExecutor.submit(inputHandler);
 
             // Use Peer as default, in case of other types they will set it as soon as possible.
@@ -174,76 +235,201 @@ public class Connection implements MessageListener {
 
     // Called form various threads
     public void sendMessage(Message message) {
+        sendMessage(new EncodedMessage(message));
+    }
+
+    // Called form various threads. The frame of the encodedMessage is shared with other connections.
+    // The message gets queued and is written at once if the sendPacer has a token, otherwise as soon as it gets one.
+    public void sendMessage(EncodedMessage encodedMessage) {
+        Message message = encodedMessage.getMessage();
         if (!stopped) {
             if (!isCapabilityRequired(message) || isCapabilitySupported(message)) {
-                try {
-                    Log.traceCall();
-
-                    // Throttle outbound messages
-                    long now = System.currentTimeMillis();
-                    long elapsed = now - lastSendTimeStamp;
-                    if (elapsed < 20) {
-                        log.debug("We got 2 sendMessage requests in less than 20 ms. We set the thread to sleep " +
-                                        "for 50 ms to avoid flooding our peer. lastSendTimeStamp={}, now={}, elapsed={}",
-                                lastSendTimeStamp, now, elapsed);
-                        Thread.sleep(50);
-                    }
+                Log.traceCall();
+                synchronized (sendQueue) {
+                    sendQueue.add(encodedMessage);
+                }
+                drainSendQueue();
+            }
+        } else {
+            log.debug("called sendMessage but was already stopped");
+        }
+    }
 
-                    lastSendTimeStamp = now;
-                    String peersNodeAddress = peersNodeAddressOptional.isPresent() ? peersNodeAddressOptional.get().toString() : "null";
-                    int size = ByteArrayUtils.objectToByteArray(message).length;
-
-                    if (message instanceof Ping || message instanceof RefreshTTLMessage) {
-                        // pings and offer refresh msg we dont want to log in production
-                        log.trace("\n\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n" +
-                                        "Sending direct message to peer" +
-                                        "Write object to outputStream to peer: {} (uid={})\ntruncated message={} / size={}" +
-                                        "\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n",
-                                peersNodeAddress, uid, Utilities.toTruncatedString(message), size);
-                    } else if (message instanceof PrefixedSealedAndSignedMessage && peersNodeAddressOptional.isPresent()) {
-                        setPeerType(Connection.PeerType.DIRECT_MSG_PEER);
-
-                        log.debug("\n\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n" +
-                                        "Sending direct message to peer" +
-                                        "Write object to outputStream to peer: {} (uid={})\ntruncated message={} / size={}" +
-                                        "\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n",
-                                peersNodeAddress, uid, Utilities.toTruncatedString(message), size);
-                    } else if (message instanceof GetDataResponse && ((GetDataResponse) message).isGetUpdatedDataResponse) {
-                        setPeerType(Connection.PeerType.PEER);
-                    } else {
-                        log.debug("\n\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n" +
-                                        "Write object to outputStream to peer: {} (uid={})\ntruncated message={} / size={}" +
-                                        "\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n",
-                                peersNodeAddress, uid, Utilities.toTruncatedString(message), size);
-                    }
+    // Only one thread drains the queue at a time. Another thread which has queued a message while we have been
+    // writing finds the flag set, so we check the queue again after we have reset the flag.
+    private void drainSendQueue() {
+        do {
+            if (!drainingSendQueue.compareAndSet(false, true))
+                return;
 
-                    if (!stopped) {
-                        objectOutputStreamLock.lock();
-                        objectOutputStream.writeObject(message);
-                        objectOutputStream.flush();
+            try {
+                writeQueuedMessages();
+            } finally {
+                drainingSendQueue.set(false);
+            }
+        } while (hasMessagesToDrain());
+    }
 
-                        statistic.addSentBytes(size);
-                        statistic.addSentMessage(message);
+    private boolean hasMessagesToDrain() {
+        synchronized (sendQueue) {
+            return !sendQueue.isEmpty() && !sendQueueDrainScheduled;
+        }
+    }
 
-                        // We don't want to get the activity ts updated by ping/pong msg
-                        if (!(message instanceof KeepAliveMessage))
-                            statistic.updateLastActivityTimestamp();
+    // Writes the queued messages as long as the sendPacer has tokens. We flush only once after the last message,
+    // so messages queued together go out with one write to the socket. We pick the next message after each written
+    // one, so a message in a higher priority lane preempts the lower lanes between two frames.
+    private void writeQueuedMessages() {
+        List<Tuple3<Message, Integer, Integer>> sentMessages = new ArrayList<>();
+        try {
+            objectOutputStreamLock.lock();
+            while (true) {
+                EncodedMessage encodedMessage;
+                synchronized (sendQueue) {
+                    // The sendQueue decides which lane may use a token of the sendPacer. CONTROL messages like the
+                    // CloseConnectionMessage don't wait for a token.
+                    encodedMessage = sendQueue.poll(sendPacer);
+                    if (encodedMessage == null) {
+                        if (!sendQueue.isEmpty() && !sendQueueDrainScheduled) {
+                            sendQueueDrainScheduled = true;
+                            sendPacerTimer.schedule(this::onSendPacerRefilled,
+                                    sendQueue.getNanosUntilNextToken(sendPacer), TimeUnit.NANOSECONDS);
+                        }
+                        break;
                     }
-                } catch (IOException e) {
-                    // an exception lead to a shutdown
-                    sharedModel.handleConnectionException(e);
-                } catch (Throwable t) {
-                    log.error(t.getMessage());
-                    t.printStackTrace();
-                    sharedModel.handleConnectionException(t);
-                } finally {
-                    if (objectOutputStreamLock.isLocked())
-                        objectOutputStreamLock.unlock();
                 }
+
+                Message message = encodedMessage.getMessage();
+                if (stopped && !(message instanceof CloseConnectionMessage)) {
+                    log.debug("We don't send a queued message as the connection got stopped. message={}",
+                            Utilities.toTruncatedString(message));
+                    continue;
+                }
+
+                sentMessages.add(writeMessage(encodedMessage));
             }
+
+            if (!sentMessages.isEmpty())
+                outputStream.flush();
+        } catch (IOException e) {
+            clearSendQueue();
+            // an exception lead to a shutdown
+            sharedModel.handleConnectionException(e);
+        } catch (Throwable t) {
+            log.error(t.getMessage());
+            t.printStackTrace();
+            clearSendQueue();
+            sharedModel.handleConnectionException(t);
+        } finally {
+            if (objectOutputStreamLock.isHeldByCurrentThread())
+                objectOutputStreamLock.unlock();
+        }
+
+        sentMessages.stream().forEach(e -> onMessageSent(e.first, e.second, e.third));
+    }
+
+    private void onSendPacerRefilled() {
+        synchronized (sendQueue) {
+            sendQueueDrainScheduled = false;
+        }
+        sendQueueExecutor.execute(this::drainSendQueue);
+    }
+
+    private void clearSendQueue() {
+        synchronized (sendQueue) {
+            sendQueue.clear();
+        }
+    }
+
+    // Must be called while holding the objectOutputStreamLock. The caller flushes the outputStream.
+    // Returns the message with the number of bytes written and the size of the message before compression.
+    private Tuple3<Message, Integer, Integer> writeMessage(EncodedMessage encodedMessage) throws IOException {
+        if (!useFrames &&
+                Capabilities.isSupportedByBoth(Capabilities.Capability.BINARY_FRAMES, sharedModel.getSupportedCapabilities())) {
+            // The SwitchToFramesMessage is the last object we write with the objectOutputStream. 
+            // The peer switches its input to binary frames when it reads it.
+            statistic.addSentBytes(writeSerialized(new SwitchToFramesMessage()));
+            useFrames = true;
+            log.debug("We switched to binary frames for sending. connection={}", this);
+        }
+
+        // The message gets encoded (and compressed) only once and we write the encoded bytes to the socket
+        Message message = encodedMessage.getMessage();
+        if (useFrames) {
+            byte[] frame = encodedMessage.getFrame();
+            byte[] wireFrame = Capabilities.isSupportedByBoth(Capabilities.Capability.COMPRESSION,
+                    sharedModel.getSupportedCapabilities()) ? encodedMessage.getCompressedFrame() : frame;
+            FrameCodec.writeFrame(outputStream, wireFrame);
+            return new Tuple3<>(message, FrameCodec.LENGTH_PREFIX_SIZE + wireFrame.length,
+                    FrameCodec.LENGTH_PREFIX_SIZE + frame.length);
         } else {
-            log.debug("called sendMessage but was already stopped");
+            int size = writeSerialized(message);
+            return new Tuple3<>(message, size, size);
+        }
+    }
+
+    private void onMessageSent(Message message, int size, int logicalSize) {
+        String peersNodeAddress = peersNodeAddressOptional.isPresent() ? peersNodeAddressOptional.get().toString() : "null";
+        if (message instanceof Ping || message instanceof RefreshTTLMessage) {
+            // pings and offer refresh msg we dont want to log in production
+            log.trace("\n\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n" +
+                            "Sending direct message to peer" +
+                            "Write object to outputStream to peer: {} (uid={})\ntruncated message={} / size={}" +
+                            "\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n",
+                    peersNodeAddress, uid, Utilities.toTruncatedString(message), size);
+        } else if (message instanceof PrefixedSealedAndSignedMessage && peersNodeAddressOptional.isPresent()) {
+            setPeerType(Connection.PeerType.DIRECT_MSG_PEER);
+
+            log.debug("\n\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n" +
+                            "Sending direct message to peer" +
+                            "Write object to outputStream to peer: {} (uid={})\ntruncated message={} / size={}" +
+                            "\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n",
+                    peersNodeAddress, uid, Utilities.toTruncatedString(message), size);
+        } else if ((message instanceof GetDataResponse && ((GetDataResponse) message).isGetUpdatedDataResponse) ||
+                (message instanceof GetDataResponseChunk && ((GetDataResponseChunk) message).isGetUpdatedDataResponse)) {
+            setPeerType(Connection.PeerType.PEER);
+        } else {
+            log.debug("\n\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n" +
+                            "Write object to outputStream to peer: {} (uid={})\ntruncated message={} / size={}" +
+                            "\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n",
+                    peersNodeAddress, uid, Utilities.toTruncatedString(message), size);
         }
+
+        // The peer will report a rule violation if we exceed its limit. The limit applies to the size
+        // before compression.
+        if (exceedsMaxMsgSize(message, logicalSize))
+            log.warn("We sent a message which exceeds the max. message size. size={}; message={}",
+                    logicalSize, Utilities.toTruncatedString(message));
+
+        statistic.addSentBytes(size, logicalSize);
+        statistic.addSentMessage(message, size);
+
+        // We don't want to get the activity ts updated by ping/pong msg
+        if (!(message instanceof KeepAliveMessage))
+            statistic.updateLastActivityTimestamp();
+    }
+
+    // Serializes the object with our long-lived objectOutputStream and writes the serialized bytes to the outputStream.
+    // Must be called while holding the objectOutputStreamLock.
+    private int writeSerialized(Serializable serializable) throws IOException {
+        objectOutputStream.writeObject(serializable);
+        objectOutputStream.flush();
+        return writeSerializedMessageBuffer();
+    }
+
+    private int writeSerializedMessageBuffer() throws IOException {
+        int size = serializedMessageBuffer.size();
+        serializedMessageBuffer.writeTo(outputStream);
+        serializedMessageBuffer.clear();
+        return size;
+    }
+
+    private static boolean exceedsMaxMsgSize(Object object, int size) {
+        if (object instanceof GetDataResponse || object instanceof GetDataResponseChunk || object instanceof SnapshotSegment
+                || object instanceof GetDataRequest)
+            return size > MAX_MSG_SIZE_GET_DATA;
+        else
+            return size > MAX_MSG_SIZE;
     }
 
     public boolean isCapabilitySupported(Message message) {
@@ -288,14 +474,23 @@ public class Connection implements MessageListener {
         return sharedModel.getSupportedCapabilities();
     }
 
+    // Receives all messages. Prefer subscribing to the message types the listener handles.
     public void addMessageListener(MessageListener messageListener) {
-        boolean isNewEntry = messageListeners.add(messageListener);
+        boolean isNewEntry = messageDispatcher.add(messageListener);
         if (!isNewEntry)
             log.warn("Try to add a messageListener which was already added.");
     }
 
+    // Receives only messages of that type, which can also be a superclass or interface like BroadcastMessage
+    public void addMessageListener(MessageListener messageListener, Class<? extends Message> messageType) {
+        boolean isNewEntry = messageDispatcher.add(messageListener, messageType);
+        if (!isNewEntry)
+            log.warn("Try to add a messageListener which was already added for " + messageType.getSimpleName() + ".");
+    }
+
+    // Removes all subscriptions of that listener
     public void removeMessageListener(MessageListener messageListener) {
-        boolean contained = messageListeners.remove(messageListener);
+        boolean contained = messageDispatcher.remove(messageListener);
         if (!contained)
             log.debug("Try to remove a messageListener which was never added.\n\t" +
                     "That might happen because of async behaviour of CopyOnWriteArraySet");
@@ -306,45 +501,8 @@ public class Connection implements MessageListener {
         return sharedModel.reportInvalidRequest(ruleViolation);
     }
 
-    private boolean violatesThrottleLimit(Serializable serializable) {
-        long now = System.currentTimeMillis();
-        boolean violated = false;
-        //TODO remove serializable storage after network is tested stable
-        if (messageTimeStamps.size() >= MSG_THROTTLE_PER_SEC) {
-            // check if we got more than 70 (MSG_THROTTLE_PER_SEC) msg per sec.
-            long compareValue = messageTimeStamps.get(messageTimeStamps.size() - MSG_THROTTLE_PER_SEC).first;
-            // if duration < 1 sec we received too much messages
-            violated = now - compareValue < TimeUnit.SECONDS.toMillis(1);
-            if (violated) {
-                log.error("violatesThrottleLimit MSG_THROTTLE_PER_SEC ");
-                log.error("elapsed " + (now - compareValue));
-                log.error("messageTimeStamps: \n\t" + messageTimeStamps.stream()
-                        .map(e -> "\n\tts=" + e.first.toString() + " message=" + e.second.getClass().getName())
-                        .collect(Collectors.toList()).toString());
-            }
-        }
-
-        if (messageTimeStamps.size() >= MSG_THROTTLE_PER_10_SEC) {
-            if (!violated) {
-                // check if we got more than 50 msg per 10 sec.
-                long compareValue = messageTimeStamps.get(messageTimeStamps.size() - MSG_THROTTLE_PER_10_SEC).first;
-                // if duration < 10 sec we received too much messages
-                violated = now - compareValue < TimeUnit.SECONDS.toMillis(10);
-
-                if (violated) {
-                    log.error("violatesThrottleLimit MSG_THROTTLE_PER_10_SEC ");
-                    log.error("elapsed " + (now - compareValue));
-                    log.error("messageTimeStamps: \n\t" + messageTimeStamps.stream()
-                            .map(e -> "\n\tts=" + e.first.toString() + " message=" + e.second.getClass().getName())
-                            .collect(Collectors.toList()).toString());
-                }
-            }
-            // we limit to max 50 (MSG_THROTTLE_PER_10SEC) entries
-            messageTimeStamps.remove(0);
-        }
-
-        messageTimeStamps.add(new Tuple2<>(now, serializable));
-        return violated;
+    private boolean violatesThrottleLimit(Class<?> messageClass) {
+        return throttleLimiter.violatesThrottleLimit(messageClass, System.currentTimeMillis());
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -355,7 +513,7 @@ public class Connection implements MessageListener {
     @Override
     public void onMessage(Message message, Connection connection) {
         checkArgument(connection.equals(this));
-        UserThread.execute(() -> messageListeners.stream().forEach(e -> e.onMessage(message, connection)));
+        UserThread.execute(() -> messageDispatcher.dispatch(message, connection));
     }
 
 
@@ -426,6 +584,10 @@ public class Connection implements MessageListener {
         return statistic;
     }
 
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // ShutDown
@@ -495,6 +657,8 @@ public class Connection implements MessageListener {
             log.error("Exception at shutdown. " + e.getMessage());
             e.printStackTrace();
         } finally {
+            // Messages queued in between cannot be sent anymore. Clearing notifies the senders waiting for a drained lane.
+            clearSendQueue();
             MoreExecutors.shutdownAndAwaitTermination(singleThreadExecutor, 500, TimeUnit.MILLISECONDS);
 
             log.debug("Connection shutdown complete " + this.toString());
@@ -537,11 +701,36 @@ public class Connection implements MessageListener {
                 ", portInfo=" + portInfo +
                 ", uid='" + uid + '\'' +
                 ", sharedSpace=" + sharedModel.toString() +
+                ", sendQueue=" + sendQueue +
                 ", stopped=" + stopped +
                 '}';
     }
 
 
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // SerializedMessageBuffer
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Holds the bytes of the last message serialized by the objectOutputStream until they are written to the socket.
+     * We don't want to keep the memory of a large message (e.g. GetDataResponse) for the lifetime of the connection,
+     * so a grown buffer gets replaced at clear.
+     */
+    private static class SerializedMessageBuffer extends ByteArrayOutputStream {
+        private static final int INITIAL_SIZE = 1024;
+
+        public SerializedMessageBuffer() {
+            super(INITIAL_SIZE);
+        }
+
+        public synchronized void clear() {
+            reset();
+            if (buf.length > MAX_MSG_SIZE)
+                buf = new byte[INITIAL_SIZE];
+        }
+    }
+
+
     ///////////////////////////////////////////////////////////////////////////////////////////
     // SharedSpace
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -677,21 +866,36 @@ public class Connection implements MessageListener {
     // Runs in same thread as Connection, receives a message, performs several checks on it
     // (including throttling limits, validity and statistics)
     // and delivers it to the message listener given in the constructor.
-    private static class InputHandler implements Runnable {
+    private static class InputHandler implements Runnable, SelectorChannel.FrameListener {
         private static final Logger log = LoggerFactory.getLogger(InputHandler.class);
 
         private final SharedModel sharedModel;
         private final ObjectInputStream objectInputStream;
+        private final CountingInputStream countingInputStream;
+        @Nullable
+        private final SelectorChannel selectorChannel;
+        private final SeenMessageCache seenMessageCache;
         private final String portInfo;
         private final MessageListener messageListener;
 
         private volatile boolean stopped;
         private long lastReadTimeStamp;
         private boolean threadNameSet;
+        private long bytesReadUntilLastMessage;
+        // Set once the peer has switched to binary frames. We must not touch the objectInputStream after that.
+        @Nullable
+        private DataInputStream frameInputStream;
+        // Set once the peer has switched to binary frames and the selectorChannel delivers the frames to onFrame.
+        private boolean framesHandedOver;
 
-        public InputHandler(SharedModel sharedModel, ObjectInputStream objectInputStream, String portInfo, MessageListener messageListener) {
+        public InputHandler(SharedModel sharedModel, ObjectInputStream objectInputStream,
+                            CountingInputStream countingInputStream, @Nullable SelectorChannel selectorChannel,
+                            SeenMessageCache seenMessageCache, String portInfo, MessageListener messageListener) {
             this.sharedModel = sharedModel;
             this.objectInputStream = objectInputStream;
+            this.countingInputStream = countingInputStream;
+            this.selectorChannel = selectorChannel;
+            this.seenMessageCache = seenMessageCache;
             this.portInfo = portInfo;
             this.messageListener = messageListener;
         }
@@ -713,14 +917,15 @@ public class Connection implements MessageListener {
         public void run() {
             try {
                 Thread.currentThread().setName("InputHandler");
-                while (!stopped && !Thread.currentThread().isInterrupted()) {
+                while (!stopped && !framesHandedOver && !Thread.currentThread().isInterrupted()) {
                     if (!threadNameSet && sharedModel.connection.getPeersNodeAddressOptional().isPresent()) {
                         Thread.currentThread().setName("InputHandler-" + sharedModel.connection.getPeersNodeAddressOptional().get().getFullAddress());
                         threadNameSet = true;
                     }
                     try {
-                        if (sharedModel.getSocket().isClosed() || objectInputStream.available() < 0) {
-                            log.warn("Shutdown because objectInputStream.available() < 0. objectInputStream.available()=" + objectInputStream.available());
+                        if (sharedModel.getSocket().isClosed() ||
+                                (frameInputStream == null && objectInputStream.available() < 0)) {
+                            log.warn("Shutdown because socket is closed or objectInputStream.available() < 0.");
                             sharedModel.shutDown(CloseConnectionReason.TERMINATED);
                             return;
                         }
@@ -728,194 +933,299 @@ public class Connection implements MessageListener {
                         Connection connection = sharedModel.connection;
                         log.trace("InputHandler waiting for incoming messages.\n\tConnection=" + connection);
 
-                        Object rawInputObject = objectInputStream.readObject();
-
-                        // Throttle inbound messages
-                        long now = System.currentTimeMillis();
-                        long elapsed = now - lastReadTimeStamp;
-                        if (elapsed < 10) {
-                            log.debug("We got 2 messages received in less than 10 ms. We set the thread to sleep " +
-                                            "for 20 ms to avoid getting flooded by our peer. lastReadTimeStamp={}, now={}, elapsed={}",
-                                    lastReadTimeStamp, now, elapsed);
-                            Thread.sleep(20);
-                        }
-
-                        lastReadTimeStamp = now;
-                        int size = ByteArrayUtils.objectToByteArray(rawInputObject).length;
-
-                        if (rawInputObject instanceof Pong || rawInputObject instanceof RefreshTTLMessage) {
-                            // We only log Pong and RefreshTTLMessage when in dev environment (trace)
-                            log.trace("\n\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n" +
-                                            "New data arrived at inputHandler of connection {}.\n" +
-                                            "Received object (truncated)={} / size={}"
-                                            + "\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n",
-                                    connection,
-                                    Utilities.toTruncatedString(rawInputObject),
-                                    size);
-                        } else if (rawInputObject instanceof Message) {
-                            // We want to log all incoming messages (except Pong and RefreshTTLMessage) 
-                            // so we log before the data type checks
-                            //log.info("size={}; object={}", size, Utilities.toTruncatedString(rawInputObject.toString(), 100));
-                            log.debug("\n\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n" +
-                                            "New data arrived at inputHandler of connection {}.\n" +
-                                            "Received object (truncated)={} / size={}"
-                                            + "\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n",
-                                    connection,
-                                    Utilities.toTruncatedString(rawInputObject),
-                                    size);
+                        if (frameInputStream != null) {
+                            byte[] wireFrame = FrameCodec.readFrame(frameInputStream, MAX_MSG_SIZE_GET_DATA);
+                            throttleRead();
+                            if (!handleFrame(wireFrame))
+                                return;
                         } else {
-                            log.error("Invalid data arrived at inputHandler of connection {} Size={}", connection, size);
-                            try {
-                                // Don't call toString on rawInputObject
-                                log.error("rawInputObject.className=" + rawInputObject.getClass().getName());
-                            } catch (Throwable ignore) {
-                            }
+                            Object rawInputObject = objectInputStream.readObject();
+                            // The size is taken from the bytes we have read from the socket
+                            long bytesRead = countingInputStream.getCount();
+                            int size = (int) (bytesRead - bytesReadUntilLastMessage);
+                            bytesReadUntilLastMessage = bytesRead;
+                            throttleRead();
+                            if (!handleInput(rawInputObject, size, size, null))
+                                return;
                         }
+                    } catch (Throwable t) {
+                        handleInputException(t);
+                        return;
+                    }
+                }
+
+                if (framesHandedOver) {
+                    log.debug("Frames are delivered by the selector transport. We stop the InputHandler thread.");
+                    sharedModel.connection.singleThreadExecutor.shutdown();
+                }
+            } catch (Throwable t) {
+                if (!(t instanceof OptionalDataException))
+                    t.printStackTrace();
+                stop();
+                sharedModel.handleConnectionException(new Exception(t));
+            }
+        }
 
-                        // We want to track the size of each object even if it is invalid data
-                        connection.statistic.addReceivedBytes(size);
+        // Throttle inbound messages
+        private void throttleRead() throws InterruptedException {
+            long now = System.currentTimeMillis();
+            long elapsed = now - lastReadTimeStamp;
+            if (elapsed < 10) {
+                log.debug("We got 2 messages received in less than 10 ms. We set the thread to sleep " +
+                                "for 20 ms to avoid getting flooded by our peer. lastReadTimeStamp={}, now={}, elapsed={}",
+                        lastReadTimeStamp, now, elapsed);
+                Thread.sleep(20);
+            }
 
-                        // We want to track the messages also before the checks, so do it early...
-                        Message message = null;
-                        if (rawInputObject instanceof Message) {
-                            message = (Message) rawInputObject;
-                            connection.statistic.addReceivedMessage((Message) rawInputObject);
-                        }
+            lastReadTimeStamp = now;
+        }
 
+        // Returns false if we must not handle further messages
+        private boolean handleFrame(byte[] wireFrame) throws IOException, ClassNotFoundException {
+            int size = FrameCodec.LENGTH_PREFIX_SIZE + wireFrame.length;
+            byte[] frame = MessageCodec.decompress(wireFrame, MAX_MSG_SIZE_GET_DATA);
+            int logicalSize = FrameCodec.LENGTH_PREFIX_SIZE + frame.length;
+
+            // We drop a relayed message we have processed already before we decode it
+            Class<? extends BroadcastMessage> relayedMessageClass = MessageCodec.getRelayedMessageClass(frame);
+            if (relayedMessageClass != null && seenMessageCache.contains(frame))
+                return handleDuplicate(relayedMessageClass, size, logicalSize);
+
+            Object rawInputObject = MessageCodec.decode(frame);
+            retainReceivedFrame(rawInputObject, frame, wireFrame);
+            // Decoded binary messages carry our own message version, so we check the version from the frame
+            // header instead.
+            return handleInput(rawInputObject, size, logicalSize, MessageCodec.getMessageVersion(frame));
+        }
 
-                        // First we check the size
-                        boolean exceeds;
-                        if (rawInputObject instanceof GetDataResponse || rawInputObject instanceof GetDataRequest) {
-                            exceeds = size > MAX_MSG_SIZE_GET_DATA;
-                            log.info("size={}; object={}", size, Utilities.toTruncatedString(rawInputObject.toString(), 100));
-                        } else {
-                            exceeds = size > MAX_MSG_SIZE;
-                        }
-                        if (exceeds)
-                            log.warn("size > MAX_MSG_SIZE. size={}; object={}", size, message);
+        // A duplicate counts for the statistic and the throttle limit like any other message. The size and the
+        // message version have been checked with the first copy.
+        private boolean handleDuplicate(Class<? extends BroadcastMessage> messageClass, int size, int logicalSize) {
+            Connection connection = sharedModel.connection;
+            log.trace("We have processed that {} already. We drop it.\n\tconnection={}", messageClass.getSimpleName(),
+                    connection);
+            connection.statistic.addReceivedBytes(size, logicalSize);
+            connection.statistic.addReceivedMessage(messageClass, size);
+            return !(connection.violatesThrottleLimit(messageClass) &&
+                    reportInvalidRequest(RuleViolation.THROTTLE_LIMIT_EXCEEDED));
+        }
 
-                        if (exceeds && reportInvalidRequest(RuleViolation.MAX_MSG_SIZE_EXCEEDED))
-                            return;
+        // AddDataMessage and RefreshTTLMessage get relayed to our peers if they are valid. We keep the received
+        // frame with the message, so the relay sends the same bytes and the cost does not grow with the payload size.
+        private void retainReceivedFrame(Object rawInputObject, byte[] frame, byte[] wireFrame) {
+            if (rawInputObject instanceof AddDataMessage || rawInputObject instanceof RefreshTTLMessage) {
+                BroadcastMessage broadcastMessage = (BroadcastMessage) rawInputObject;
+                broadcastMessage.setReceivedEncodedMessage(new EncodedMessage(broadcastMessage, frame,
+                        wireFrame != frame ? wireFrame : null));
+            }
+        }
 
+        // Called from the InputHandler thread or, after the peer has switched to binary frames, from the
+        // SelectorTransport. Returns false if we must not handle further messages.
+        // The size is the number of bytes on the wire, the logicalSize the size before compression.
+        private boolean handleInput(Object rawInputObject, int size, int logicalSize,
+                                    @Nullable Integer frameMessageVersion) throws IOException {
+            Connection connection = sharedModel.connection;
+            if (rawInputObject instanceof Pong || rawInputObject instanceof RefreshTTLMessage) {
+                // We only log Pong and RefreshTTLMessage when in dev environment (trace)
+                log.trace("\n\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n" +
+                                "New data arrived at inputHandler of connection {}.\n" +
+                                "Received object (truncated)={} / size={}"
+                                + "\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n",
+                        connection,
+                        Utilities.toTruncatedString(rawInputObject),
+                        size);
+            } else if (rawInputObject instanceof Message) {
+                // We want to log all incoming messages (except Pong and RefreshTTLMessage) 
+                // so we log before the data type checks
+                //log.info("size={}; object={}", size, Utilities.toTruncatedString(rawInputObject.toString(), 100));
+                log.debug("\n\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n" +
+                                "New data arrived at inputHandler of connection {}.\n" +
+                                "Received object (truncated)={} / size={}"
+                                + "\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n",
+                        connection,
+                        Utilities.toTruncatedString(rawInputObject),
+                        size);
+            } else {
+                log.error("Invalid data arrived at inputHandler of connection {} Size={}", connection, size);
+                try {
+                    // Don't call toString on rawInputObject
+                    log.error("rawInputObject.className=" + rawInputObject.getClass().getName());
+                } catch (Throwable ignore) {
+                }
+            }
 
-                        // Then we check if data is of type Serializable (objectInputStream supports  
-                        // Externalizable objects as well)
-                        Serializable serializable;
-                        if (rawInputObject instanceof Serializable) {
-                            serializable = (Serializable) rawInputObject;
-                        } else {
-                            reportInvalidRequest(RuleViolation.INVALID_DATA_TYPE);
-                            // We return anyway here independent of the return value of reportInvalidRequest
-                            return;
-                        }
+            // We want to track the size of each object even if it is invalid data
+            connection.statistic.addReceivedBytes(size, logicalSize);
 
-                        // Then check data throttle limit. Do that for non-message type objects as well, 
-                        // so that's why we use serializable here.
-                        if (connection.violatesThrottleLimit(serializable) && reportInvalidRequest(RuleViolation.THROTTLE_LIMIT_EXCEEDED))
-                            return;
+            // We want to track the messages also before the checks, so do it early...
+            Message message = null;
+            if (rawInputObject instanceof Message) {
+                message = (Message) rawInputObject;
+                connection.statistic.addReceivedMessage(message, size);
+            }
 
-                        // We do the message type check after the size/throttle checks. 
-                        // The type check was done already earlier so we only check if message is not null.
-                        if (message == null) {
-                            reportInvalidRequest(RuleViolation.INVALID_DATA_TYPE);
-                            // We return anyway here independent of the return value of reportInvalidRequest
-                            return;
-                        }
 
-                        // Check P2P network ID
-                        int messageVersion = message.getMessageVersion();
-                        int p2PMessageVersion = Version.getP2PMessageVersion();
-                        if (messageVersion != p2PMessageVersion) {
-                            log.warn("message.getMessageVersion()=" + messageVersion);
-                            log.warn("Version.getP2PMessageVersion()=" + p2PMessageVersion);
-                            log.warn("message=" + message);
-                            reportInvalidRequest(RuleViolation.WRONG_NETWORK_ID);
-                            // We return anyway here independent of the return value of reportInvalidRequest
-                            return;
-                        }
+            // First we check the size. A compressed message must not exceed the limit after decompression.
+            boolean exceeds = exceedsMaxMsgSize(rawInputObject, logicalSize);
+            if (rawInputObject instanceof GetDataResponse || rawInputObject instanceof GetDataRequest)
+                log.info("size={}; logicalSize={}; object={}", size, logicalSize,
+                        Utilities.toTruncatedString(rawInputObject.toString(), 100));
+            if (exceeds)
+                log.warn("size > MAX_MSG_SIZE. size={}; object={}", logicalSize, message);
 
-                        if (sharedModel.getSupportedCapabilities() == null && message instanceof SupportedCapabilitiesMessage)
-                            sharedModel.setSupportedCapabilities(((SupportedCapabilitiesMessage) message).getSupportedCapabilities());
-
-                        if (message instanceof CloseConnectionMessage) {
-                            // If we get a CloseConnectionMessage we shut down
-                            log.debug("CloseConnectionMessage received. Reason={}\n\t" +
-                                    "connection={}", ((CloseConnectionMessage) message).reason, connection);
-                            stop();
-                            if (CloseConnectionReason.PEER_BANNED.name().equals(((CloseConnectionMessage) message).reason)) {
-                                log.warn("We got shut down because we are banned by the other peer. (InputHandler.run CloseConnectionMessage)");
-                                sharedModel.shutDown(CloseConnectionReason.PEER_BANNED);
-                            } else {
-                                sharedModel.shutDown(CloseConnectionReason.CLOSE_REQUESTED_BY_PEER);
-                            }
-                        } else if (!stopped) {
-                            // We don't want to get the activity ts updated by ping/pong msg
-                            if (!(message instanceof KeepAliveMessage))
-                                connection.statistic.updateLastActivityTimestamp();
-
-                            if (message instanceof GetDataRequest)
-                                connection.setPeerType(PeerType.INITIAL_DATA_REQUEST);
-
-                            // First a seed node gets a message from a peer (PreliminaryDataRequest using
-                            // AnonymousMessage interface) which does not have its hidden service
-                            // published, so it does not know its address. As the IncomingConnection does not have the
-                            // peersNodeAddress set that connection cannot be used for outgoing messages until we 
-                            // get the address set.
-                            // At the data update message (DataRequest using SendersNodeAddressMessage interface) 
-                            // after the HS is published we get the peer's address set.
-
-                            // There are only those messages used for new connections to a peer:
-                            // 1. PreliminaryDataRequest
-                            // 2. DataRequest (implements SendersNodeAddressMessage)
-                            // 3. GetPeersRequest (implements SendersNodeAddressMessage)
-                            // 4. DirectMessage (implements SendersNodeAddressMessage)
-                            if (message instanceof SendersNodeAddressMessage) {
-                                NodeAddress senderNodeAddress = ((SendersNodeAddressMessage) message).getSenderNodeAddress();
-                                // We must not shut down a banned peer at that moment as it would trigger a connection termination 
-                                // and we could not send the CloseConnectionMessage.
-                                // We shut down a banned peer at the next step at setPeersNodeAddress().
-
-                                Optional<NodeAddress> peersNodeAddressOptional = connection.getPeersNodeAddressOptional();
-                                if (peersNodeAddressOptional.isPresent()) {
-                                    // If we have already the peers address we check again if it matches our stored one
-                                    checkArgument(peersNodeAddressOptional.get().equals(senderNodeAddress),
-                                            "senderNodeAddress not matching connections peer address.\n\t" +
-                                                    "message=" + message);
-                                } else {
-                                    connection.setPeersNodeAddress(senderNodeAddress);
-                                }
-                            }
-
-                            if (message instanceof PrefixedSealedAndSignedMessage)
-                                connection.setPeerType(Connection.PeerType.DIRECT_MSG_PEER);
-
-                            messageListener.onMessage(message, connection);
-                        }
-                    } catch (InvalidClassException e) {
-                        log.error(e.getMessage());
-                        e.printStackTrace();
-                        reportInvalidRequest(RuleViolation.INVALID_CLASS);
-                        return;
-                    } catch (ClassNotFoundException | NoClassDefFoundError e) {
-                        log.warn(e.getMessage());
-                        e.printStackTrace();
-                        reportInvalidRequest(RuleViolation.INVALID_DATA_TYPE);
-                        return;
-                    } catch (IOException e) {
-                        stop();
-                        sharedModel.handleConnectionException(e);
-                    } catch (Throwable t) {
-                        t.printStackTrace();
-                        stop();
-                        if (sharedModel != null)
-                            sharedModel.handleConnectionException(new Exception(t));
+            if (exceeds && reportInvalidRequest(RuleViolation.MAX_MSG_SIZE_EXCEEDED))
+                return false;
+
+
+            // Then we check if data is of type Serializable (objectInputStream supports  
+            // Externalizable objects as well)
+            Serializable serializable;
+            if (rawInputObject instanceof Serializable) {
+                serializable = (Serializable) rawInputObject;
+            } else {
+                reportInvalidRequest(RuleViolation.INVALID_DATA_TYPE);
+                // We return anyway here independent of the return value of reportInvalidRequest
+                return false;
+            }
+
+            // Then check data throttle limit. Do that for non-message type objects as well, 
+            // so that's why we use serializable here.
+            if (connection.violatesThrottleLimit(serializable.getClass()) && reportInvalidRequest(RuleViolation.THROTTLE_LIMIT_EXCEEDED))
+                return false;
+
+            // We do the message type check after the size/throttle checks. 
+            // The type check was done already earlier so we only check if message is not null.
+            if (message == null) {
+                reportInvalidRequest(RuleViolation.INVALID_DATA_TYPE);
+                // We return anyway here independent of the return value of reportInvalidRequest
+                return false;
+            }
+
+            // Check P2P network ID
+            int messageVersion = frameMessageVersion != null ? frameMessageVersion : message.getMessageVersion();
+            int p2PMessageVersion = Version.getP2PMessageVersion();
+            if (messageVersion != p2PMessageVersion) {
+                log.warn("message.getMessageVersion()=" + messageVersion);
+                log.warn("Version.getP2PMessageVersion()=" + p2PMessageVersion);
+                log.warn("message=" + message);
+                reportInvalidRequest(RuleViolation.WRONG_NETWORK_ID);
+                // We return anyway here independent of the return value of reportInvalidRequest
+                return false;
+            }
+
+            if (sharedModel.getSupportedCapabilities() == null && message instanceof SupportedCapabilitiesMessage)
+                sharedModel.setSupportedCapabilities(((SupportedCapabilitiesMessage) message).getSupportedCapabilities());
+
+            if (message instanceof CloseConnectionMessage) {
+                // If we get a CloseConnectionMessage we shut down
+                log.debug("CloseConnectionMessage received. Reason={}\n\t" +
+                        "connection={}", ((CloseConnectionMessage) message).reason, connection);
+                stop();
+                if (CloseConnectionReason.PEER_BANNED.name().equals(((CloseConnectionMessage) message).reason)) {
+                    log.warn("We got shut down because we are banned by the other peer. (InputHandler.run CloseConnectionMessage)");
+                    sharedModel.shutDown(CloseConnectionReason.PEER_BANNED);
+                } else {
+                    sharedModel.shutDown(CloseConnectionReason.CLOSE_REQUESTED_BY_PEER);
+                }
+            } else if (message instanceof SwitchToFramesMessage) {
+                // The ObjectInputStream does not read ahead of the object, so the next bytes at the 
+                // socket are the first frame.
+                if (frameInputStream == null && !framesHandedOver) {
+                    log.debug("Peer switched to binary frames. connection={}", connection);
+                    if (selectorChannel != null) {
+                        // The selector thread reads the frames from now on, so we don't need our thread anymore
+                        framesHandedOver = true;
+                        selectorChannel.switchToFrames(this);
+                    } else {
+                        frameInputStream = new DataInputStream(new BufferedInputStream(sharedModel.getSocket().getInputStream()));
                     }
                 }
+            } else if (!stopped) {
+                // We don't want to get the activity ts updated by ping/pong msg
+                if (!(message instanceof KeepAliveMessage))
+                    connection.statistic.updateLastActivityTimestamp();
+
+                if (message instanceof GetDataRequest)
+                    connection.setPeerType(PeerType.INITIAL_DATA_REQUEST);
+
+                // First a seed node gets a message from a peer (PreliminaryDataRequest using
+                // AnonymousMessage interface) which does not have its hidden service
+                // published, so it does not know its address. As the IncomingConnection does not have the
+                // peersNodeAddress set that connection cannot be used for outgoing messages until we 
+                // get the address set.
+                // At the data update message (DataRequest using SendersNodeAddressMessage interface) 
+                // after the HS is published we get the peer's address set.
+
+                // There are only those messages used for new connections to a peer:
+                // 1. PreliminaryDataRequest
+                // 2. DataRequest (implements SendersNodeAddressMessage)
+                // 3. GetPeersRequest (implements SendersNodeAddressMessage)
+                // 4. DirectMessage (implements SendersNodeAddressMessage)
+                if (message instanceof SendersNodeAddressMessage) {
+                    NodeAddress senderNodeAddress = ((SendersNodeAddressMessage) message).getSenderNodeAddress();
+                    // We must not shut down a banned peer at that moment as it would trigger a connection termination 
+                    // and we could not send the CloseConnectionMessage.
+                    // We shut down a banned peer at the next step at setPeersNodeAddress().
+
+                    Optional<NodeAddress> peersNodeAddressOptional = connection.getPeersNodeAddressOptional();
+                    if (peersNodeAddressOptional.isPresent()) {
+                        // If we have already the peers address we check again if it matches our stored one
+                        checkArgument(peersNodeAddressOptional.get().equals(senderNodeAddress),
+                                "senderNodeAddress not matching connections peer address.\n\t" +
+                                        "message=" + message);
+                    } else {
+                        connection.setPeersNodeAddress(senderNodeAddress);
+                    }
+                }
+
+                if (message instanceof PrefixedSealedAndSignedMessage)
+                    connection.setPeerType(Connection.PeerType.DIRECT_MSG_PEER);
+
+                messageListener.onMessage(message, connection);
+            }
+
+            return true;
+        }
+
+        // Runs at the frame executor of the SelectorTransport
+        @Override
+        public void onFrame(byte[] frame) {
+            if (stopped)
+                return;
+
+            try {
+                if (!handleFrame(frame))
+                    stop();
             } catch (Throwable t) {
-                if (!(t instanceof OptionalDataException))
-                    t.printStackTrace();
+                handleInputException(t);
+                // Like the InputHandler thread we don't handle further messages after an exception
                 stop();
-                sharedModel.handleConnectionException(new Exception(t));
+            }
+        }
+
+        @Override
+        public void onFrameError(Throwable throwable) {
+            if (!stopped)
+                handleInputException(throwable);
+        }
+
+        private void handleInputException(Throwable throwable) {
+            if (throwable instanceof InvalidClassException) {
+                log.error(throwable.getMessage());
+                throwable.printStackTrace();
+                reportInvalidRequest(RuleViolation.INVALID_CLASS);
+            } else if (throwable instanceof ClassNotFoundException || throwable instanceof NoClassDefFoundError) {
+                log.warn(throwable.getMessage());
+                throwable.printStackTrace();
+                reportInvalidRequest(RuleViolation.INVALID_DATA_TYPE);
+            } else if (throwable instanceof IOException) {
+                stop();
+                sharedModel.handleConnectionException(throwable);
+            } else {
+                throwable.printStackTrace();
+                stop();
+                sharedModel.handleConnectionException(new Exception(throwable));
             }
         }
 
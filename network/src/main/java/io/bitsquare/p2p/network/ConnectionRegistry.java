@@ -0,0 +1,124 @@
+package io.bitsquare.p2p.network;
+
+import io.bitsquare.p2p.NodeAddress;
+import javafx.beans.value.ChangeListener;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inbound and outbound connections of a NetworkNode, indexed by the peers node address.
+ * The peers node address of a connection is often set after we have added the connection (e.g. at an inbound
+ * connection with the first message of the peer), so we observe the peersNodeAddressProperty of the connections.
+ * <p/>
+ * Lookups and the views are not blocking. Changes are synchronized, so the index and the views stay consistent.
+ */
+class ConnectionRegistry {
+    private static final Logger log = LoggerFactory.getLogger(ConnectionRegistry.class);
+
+    private final Set<Connection> allConnections = ConcurrentHashMap.newKeySet();
+    private final Set<Connection> confirmedConnections = ConcurrentHashMap.newKeySet();
+    private final Map<NodeAddress, Connection> inboundConnectionsByAddress = new ConcurrentHashMap<>();
+    private final Map<NodeAddress, Connection> outboundConnectionsByAddress = new ConcurrentHashMap<>();
+    // The address under which we have indexed a connection and the listener for address changes
+    private final Map<Connection, NodeAddress> indexedAddresses = new ConcurrentHashMap<>();
+    private final Map<Connection, ChangeListener<NodeAddress>> addressListeners = new ConcurrentHashMap<>();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    synchronized void add(Connection connection) {
+        if (allConnections.add(connection)) {
+            ChangeListener<NodeAddress> addressListener = (observable, oldValue, newValue) -> onAddressChanged(connection);
+            addressListeners.put(connection, addressListener);
+            connection.peersNodeAddressProperty().addListener(addressListener);
+            // The address might have been set already
+            onAddressChanged(connection);
+        }
+    }
+
+    synchronized void remove(Connection connection) {
+        if (allConnections.remove(connection)) {
+            ChangeListener<NodeAddress> addressListener = addressListeners.remove(connection);
+            if (addressListener != null)
+                connection.peersNodeAddressProperty().removeListener(addressListener);
+            removeFromIndex(connection);
+        }
+    }
+
+    @Nullable
+    Connection getInboundConnection(NodeAddress peersNodeAddress) {
+        return inboundConnectionsByAddress.get(peersNodeAddress);
+    }
+
+    @Nullable
+    Connection getOutboundConnection(NodeAddress peersNodeAddress) {
+        return outboundConnectionsByAddress.get(peersNodeAddress);
+    }
+
+    // Unmodifiable view, not a copy
+    Set<Connection> getAllConnections() {
+        return Collections.unmodifiableSet(allConnections);
+    }
+
+    // Unmodifiable view of the connections with a known peers node address, not a copy
+    Set<Connection> getConfirmedConnections() {
+        return Collections.unmodifiableSet(confirmedConnections);
+    }
+
+    // A copy of the confirmed connections without those to the given peer. We check the address against our index, so
+    // we don't need to look up the address at each connection.
+    List<Connection> getConfirmedConnectionsExcept(@Nullable NodeAddress excludedNodeAddress) {
+        List<Connection> connections = new ArrayList<>(confirmedConnections);
+        if (excludedNodeAddress != null)
+            connections.removeIf(connection -> excludedNodeAddress.equals(indexedAddresses.get(connection)));
+        return connections;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private synchronized void onAddressChanged(Connection connection) {
+        if (!allConnections.contains(connection))
+            return;
+
+        Optional<NodeAddress> peersNodeAddressOptional = connection.getPeersNodeAddressOptional();
+        if (!peersNodeAddressOptional.isPresent() || peersNodeAddressOptional.get().equals(indexedAddresses.get(connection)))
+            return;
+
+        removeFromIndex(connection);
+        NodeAddress peersNodeAddress = peersNodeAddressOptional.get();
+        indexedAddresses.put(connection, peersNodeAddress);
+        confirmedConnections.add(connection);
+        Connection previous = getIndex(connection).put(peersNodeAddress, connection);
+        if (previous != null && previous != connection)
+            log.debug("We have 2 connections in the same direction to peer {}. We use the newer one for lookups.\n\t" +
+                    "previous connection={}", peersNodeAddress, previous);
+    }
+
+    private void removeFromIndex(Connection connection) {
+        confirmedConnections.remove(connection);
+        NodeAddress peersNodeAddress = indexedAddresses.remove(connection);
+        if (peersNodeAddress != null) {
+            Map<NodeAddress, Connection> index = getIndex(connection);
+            if (index.remove(peersNodeAddress, connection)) {
+                // Rare case that we have another connection in the same direction to that peer
+                indexedAddresses.entrySet().stream()
+                        .filter(e -> e.getValue().equals(peersNodeAddress) && getIndex(e.getKey()) == index)
+                        .findAny()
+                        .ifPresent(e -> index.put(peersNodeAddress, e.getKey()));
+            }
+        }
+    }
+
+    private Map<NodeAddress, Connection> getIndex(Connection connection) {
+        return connection instanceof InboundConnection ? inboundConnectionsByAddress : outboundConnectionsByAddress;
+    }
+}
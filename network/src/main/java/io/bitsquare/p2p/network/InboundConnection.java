@@ -1,9 +1,12 @@
 package io.bitsquare.p2p.network;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.net.Socket;
 
 public class InboundConnection extends Connection {
-    public InboundConnection(Socket socket, MessageListener messageListener, ConnectionListener connectionListener) {
-        super(socket, messageListener, connectionListener, null);
+    public InboundConnection(Socket socket, MessageListener messageListener, ConnectionListener connectionListener,
+                             @Nullable SelectorTransport selectorTransport, SeenMessageCache seenMessageCache) {
+        super(socket, messageListener, connectionListener, null, selectorTransport, seenMessageCache);
     }
 }
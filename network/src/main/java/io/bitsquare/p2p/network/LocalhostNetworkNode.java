@@ -18,8 +18,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
@@ -53,6 +55,7 @@ public class LocalhostNetworkNode extends NetworkNode {
             addSetupListener(setupListener);
 
         createExecutorService();
+        createSelectorTransport();
 
         //Tor delay simulation
         createTorNode(torNode -> {
@@ -63,7 +66,9 @@ public class LocalhostNetworkNode extends NetworkNode {
             createHiddenService(hiddenServiceDescriptor -> {
                 Log.traceCall("hiddenService created");
                 try {
-                    startServer(new ServerSocket(servicePort));
+                    ServerSocket serverSocket = createServerSocket();
+                    serverSocket.bind(new InetSocketAddress(servicePort));
+                    startServer(serverSocket);
                 } catch (IOException e) {
                     e.printStackTrace();
                     log.error("Exception at startServer: " + e.getMessage());
@@ -78,7 +83,10 @@ public class LocalhostNetworkNode extends NetworkNode {
     // Called from NetworkNode thread
     @Override
     protected Socket createSocket(NodeAddress peerNodeAddress) throws IOException {
-        return new Socket(peerNodeAddress.hostName, peerNodeAddress.port);
+        if (selectorTransport != null)
+            return SocketChannel.open(new InetSocketAddress(peerNodeAddress.hostName, peerNodeAddress.port)).socket();
+        else
+            return new Socket(peerNodeAddress.hostName, peerNodeAddress.port);
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////
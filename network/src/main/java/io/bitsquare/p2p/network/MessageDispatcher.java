@@ -0,0 +1,84 @@
+package io.bitsquare.p2p.network;
+
+import io.bitsquare.p2p.Message;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Delivers a message only to the listeners which have subscribed to its type (the message class or one of its
+ * superclasses or interfaces, e.g. BroadcastMessage or GetDataRequest) and to the listeners for all messages.
+ * The subscribable types of a message class are resolved once and cached, so dispatching costs a few map lookups
+ * and we don't call every listener for every message.
+ */
+class MessageDispatcher {
+    private final Set<MessageListener> allMessagesListeners = new CopyOnWriteArraySet<>();
+    private final Map<Class<? extends Message>, Set<MessageListener>> listenersByType = new ConcurrentHashMap<>();
+    // Message class -> the message class and all its supertypes which are messages
+    private final Map<Class<?>, List<Class<?>>> typesByMessageClass = new ConcurrentHashMap<>();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Returns false if the listener was already added
+    boolean add(MessageListener messageListener) {
+        return allMessagesListeners.add(messageListener);
+    }
+
+    // Returns false if the listener was already added for that type
+    boolean add(MessageListener messageListener, Class<? extends Message> messageType) {
+        return listenersByType.computeIfAbsent(messageType, k -> new CopyOnWriteArraySet<>()).add(messageListener);
+    }
+
+    // Removes all subscriptions of the listener. Returns false if the listener was not added.
+    boolean remove(MessageListener messageListener) {
+        boolean contained = allMessagesListeners.remove(messageListener);
+        for (Set<MessageListener> listeners : listenersByType.values()) {
+            contained |= listeners.remove(messageListener);
+        }
+        return contained;
+    }
+
+    void dispatch(Message message, Connection connection) {
+        List<Class<?>> types = typesByMessageClass.computeIfAbsent(message.getClass(), MessageDispatcher::getMessageTypes);
+        Set<MessageListener> interestedListeners = null;
+        for (Class<?> type : types) {
+            Set<MessageListener> listeners = listenersByType.get(type);
+            if (listeners != null && !listeners.isEmpty()) {
+                if (interestedListeners == null)
+                    interestedListeners = new LinkedHashSet<>(allMessagesListeners);
+                // A listener subscribed to several matching types gets called only once
+                interestedListeners.addAll(listeners);
+            }
+        }
+
+        if (interestedListeners == null)
+            allMessagesListeners.stream().forEach(e -> e.onMessage(message, connection));
+        else
+            interestedListeners.stream().forEach(e -> e.onMessage(message, connection));
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static List<Class<?>> getMessageTypes(Class<?> messageClass) {
+        Set<Class<?>> types = new LinkedHashSet<>();
+        addMessageTypes(messageClass, types);
+        return new ArrayList<>(types);
+    }
+
+    private static void addMessageTypes(Class<?> type, Set<Class<?>> types) {
+        if (type == null || !Message.class.isAssignableFrom(type) || !types.add(type))
+            return;
+
+        addMessageTypes(type.getSuperclass(), types);
+        for (Class<?> interfaceType : type.getInterfaces()) {
+            addMessageTypes(interfaceType, types);
+        }
+    }
+}
@@ -7,6 +7,7 @@ import io.bitsquare.common.UserThread;
 import io.bitsquare.common.util.Utilities;
 import io.bitsquare.p2p.Message;
 import io.bitsquare.p2p.NodeAddress;
+import io.bitsquare.p2p.network.wire.EncodedMessage;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.ReadOnlyObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
@@ -19,8 +20,9 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashSet;
-import java.util.Optional;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeoutException;
@@ -33,18 +35,28 @@ public abstract class NetworkNode implements MessageListener {
     private static final Logger log = LoggerFactory.getLogger(NetworkNode.class);
     private static final int CREATE_SOCKET_TIMEOUT_MILLIS = 10000;
 
+    private static volatile boolean useSelectorTransport;
+
+    // If set, sockets created from channels get served by a few shared selector threads instead of a thread per
+    // connection. Must be set before the node is started.
+    public static void setUseSelectorTransport(boolean useSelectorTransport) {
+        NetworkNode.useSelectorTransport = useSelectorTransport;
+    }
+
     final int servicePort;
 
-    private final CopyOnWriteArraySet<InboundConnection> inBoundConnections = new CopyOnWriteArraySet<>();
-    private final CopyOnWriteArraySet<MessageListener> messageListeners = new CopyOnWriteArraySet<>();
+    // accessed from different threads
+    private final ConnectionRegistry connectionRegistry = new ConnectionRegistry();
+    private final SeenMessageCache seenMessageCache = new SeenMessageCache(SeenMessageCache.DEFAULT_CAPACITY);
+    private final MessageDispatcher messageDispatcher = new MessageDispatcher();
     private final CopyOnWriteArraySet<ConnectionListener> connectionListeners = new CopyOnWriteArraySet<>();
     final CopyOnWriteArraySet<SetupListener> setupListeners = new CopyOnWriteArraySet<>();
     ListeningExecutorService executorService;
     private Server server;
+    @Nullable
+    SelectorTransport selectorTransport;
 
     private volatile boolean shutDownInProgress;
-    // accessed from different threads
-    private final CopyOnWriteArraySet<OutboundConnection> outBoundConnections = new CopyOnWriteArraySet<>();
     protected final ObjectProperty<NodeAddress> nodeAddressProperty = new SimpleObjectProperty<>();
 
 
@@ -120,7 +132,7 @@ public abstract class NetworkNode implements MessageListener {
                                     @Override
                                     public void onConnection(Connection connection) {
                                         if (!connection.isStopped()) {
-                                            outBoundConnections.add((OutboundConnection) connection);
+                                            connectionRegistry.add(connection);
                                             printOutBoundConnections();
                                             connectionListeners.stream().forEach(e -> e.onConnection(connection));
                                         }
@@ -129,7 +141,7 @@ public abstract class NetworkNode implements MessageListener {
                                     @Override
                                     public void onDisconnect(CloseConnectionReason closeConnectionReason, Connection connection) {
                                         log.trace("onDisconnect connectionListener\n\tconnection={}" + connection);
-                                        outBoundConnections.remove(connection);
+                                        connectionRegistry.remove(connection);
                                         printOutBoundConnections();
                                         connectionListeners.stream().forEach(e -> e.onDisconnect(closeConnectionReason, connection));
                                     }
@@ -139,7 +151,7 @@ public abstract class NetworkNode implements MessageListener {
                                         log.error("new OutboundConnection.ConnectionListener.onError " + throwable.getMessage());
                                         connectionListeners.stream().forEach(e -> e.onError(throwable));
                                     }
-                                }, peersNodeAddress);
+                                }, peersNodeAddress, selectorTransport, seenMessageCache);
 
                         log.debug("\n\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n" +
                                 "NetworkNode created new outbound connection:"
@@ -178,14 +190,13 @@ public abstract class NetworkNode implements MessageListener {
     }
 
     @Nullable
-    private InboundConnection getInboundConnection(@NotNull NodeAddress peersNodeAddress) {
-        Optional<InboundConnection> inboundConnectionOptional = lookupInBoundConnection(peersNodeAddress);
-        if (inboundConnectionOptional.isPresent()) {
-            InboundConnection connection = inboundConnectionOptional.get();
+    private Connection getInboundConnection(@NotNull NodeAddress peersNodeAddress) {
+        Connection connection = connectionRegistry.getInboundConnection(peersNodeAddress);
+        if (connection != null) {
             log.trace("We have found a connection in inBoundConnections. Connection.uid=" + connection.getUid());
             if (connection.isStopped()) {
                 log.warn("We have a connection which is already stopped in inBoundConnections. Connection.uid=" + connection.getUid());
-                inBoundConnections.remove(connection);
+                connectionRegistry.remove(connection);
                 return null;
             } else {
                 return connection;
@@ -196,14 +207,13 @@ public abstract class NetworkNode implements MessageListener {
     }
 
     @Nullable
-    private OutboundConnection getOutboundConnection(@NotNull NodeAddress peersNodeAddress) {
-        Optional<OutboundConnection> outboundConnectionOptional = lookupOutBoundConnection(peersNodeAddress);
-        if (outboundConnectionOptional.isPresent()) {
-            OutboundConnection connection = outboundConnectionOptional.get();
+    private Connection getOutboundConnection(@NotNull NodeAddress peersNodeAddress) {
+        Connection connection = connectionRegistry.getOutboundConnection(peersNodeAddress);
+        if (connection != null) {
             log.trace("We have found a connection in outBoundConnections. Connection.uid=" + connection.getUid());
             if (connection.isStopped()) {
                 log.warn("We have a connection which is already stopped in outBoundConnections. Connection.uid=" + connection.getUid());
-                outBoundConnections.remove(connection);
+                connectionRegistry.remove(connection);
                 return null;
             } else {
                 return connection;
@@ -220,11 +230,16 @@ public abstract class NetworkNode implements MessageListener {
 
 
     public SettableFuture<Connection> sendMessage(Connection connection, Message message) {
-        Log.traceCall("\n\tmessage=" + Utilities.toTruncatedString(message) + "\n\tconnection=" + connection);
+        return sendMessage(connection, new EncodedMessage(message));
+    }
+
+    // Used for sending the same message to multiple connections, the encodedMessage is encoded only once.
+    public SettableFuture<Connection> sendMessage(Connection connection, EncodedMessage encodedMessage) {
+        Log.traceCall("\n\tmessage=" + Utilities.toTruncatedString(encodedMessage.getMessage()) + "\n\tconnection=" + connection);
         // connection.sendMessage might take a bit (compression, write to stream), so we use a thread to not block
         ListenableFuture<Connection> future = executorService.submit(() -> {
             Thread.currentThread().setName("NetworkNode:SendMessage-to-" + connection.getUid());
-            connection.sendMessage(message);
+            connection.sendMessage(encodedMessage);
             return connection;
         });
         final SettableFuture<Connection> resultFuture = SettableFuture.create();
@@ -244,20 +259,28 @@ public abstract class NetworkNode implements MessageListener {
         return nodeAddressProperty;
     }
 
+    // Returns an unmodifiable view which reflects later changes, callers which need a stable set have to copy it.
     public Set<Connection> getAllConnections() {
         // Can contain inbound and outbound connections with the same peer node address, 
         // as connection hashcode is using uid and port info
-        Set<Connection> set = new HashSet<>(inBoundConnections);
-        set.addAll(outBoundConnections);
-        return set;
+        return connectionRegistry.getAllConnections();
     }
 
+    // Returns an unmodifiable view which reflects later changes, callers which need a stable set have to copy it.
     public Set<Connection> getConfirmedConnections() {
         // Can contain inbound and outbound connections with the same peer node address, 
         // as connection hashcode is using uid and port info
-        return getAllConnections().stream()
-                .filter(Connection::hasPeersNodeAddress)
-                .collect(Collectors.toSet());
+        return connectionRegistry.getConfirmedConnections();
+    }
+
+    // Returns a copy of the confirmed connections without the connections to excludedNodeAddress.
+    public List<Connection> getConfirmedConnectionsExcept(@Nullable NodeAddress excludedNodeAddress) {
+        return connectionRegistry.getConfirmedConnectionsExcept(excludedNodeAddress);
+    }
+
+    // Relayed messages we have processed already. Shared by all connections of that node.
+    public SeenMessageCache getSeenMessageCache() {
+        return seenMessageCache;
     }
 
     public Set<NodeAddress> getNodeAddressesOfConfirmedConnections() {
@@ -277,7 +300,14 @@ public abstract class NetworkNode implements MessageListener {
                 server = null;
             }
 
-            getAllConnections().stream().forEach(c -> c.shutDown(CloseConnectionReason.APP_SHUT_DOWN));
+            new HashSet<>(getAllConnections()).stream().forEach(c -> c.shutDown(CloseConnectionReason.APP_SHUT_DOWN));
+
+            if (selectorTransport != null) {
+                // The connections send the CloseConnectionMessage from their own thread, so we give them a bit of
+                // time before we stop the selector threads.
+                SelectorTransport transport = selectorTransport;
+                UserThread.runAfter(transport::shutDown, 1);
+            }
             log.debug("NetworkNode shutdown complete");
         }
         if (shutDownCompleteHandler != null) shutDownCompleteHandler.run();
@@ -301,7 +331,7 @@ public abstract class NetworkNode implements MessageListener {
 
     @Override
     public void onMessage(Message message, Connection connection) {
-        messageListeners.stream().forEach(e -> e.onMessage(message, connection));
+        messageDispatcher.dispatch(message, connection);
     }
 
 
@@ -323,14 +353,23 @@ public abstract class NetworkNode implements MessageListener {
                     "That might happen because of async behaviour of CopyOnWriteArraySet");
     }
 
+    // Receives all messages. Prefer subscribing to the message types the listener handles.
     public void addMessageListener(MessageListener messageListener) {
-        boolean isNewEntry = messageListeners.add(messageListener);
+        boolean isNewEntry = messageDispatcher.add(messageListener);
         if (!isNewEntry)
             log.warn("Try to add a messageListener which was already added.");
     }
 
+    // Receives only messages of that type, which can also be a superclass or interface like BroadcastMessage
+    public void addMessageListener(MessageListener messageListener, Class<? extends Message> messageType) {
+        boolean isNewEntry = messageDispatcher.add(messageListener, messageType);
+        if (!isNewEntry)
+            log.warn("Try to add a messageListener which was already added for " + messageType.getSimpleName() + ".");
+    }
+
+    // Removes all subscriptions of that listener
     public void removeMessageListener(MessageListener messageListener) {
-        boolean contained = messageListeners.remove(messageListener);
+        boolean contained = messageDispatcher.remove(messageListener);
         if (!contained)
             log.debug("Try to remove a messageListener which was never added.\n\t" +
                     "That might happen because of async behaviour of CopyOnWriteArraySet");
@@ -345,6 +384,22 @@ public abstract class NetworkNode implements MessageListener {
         executorService = Utilities.getListeningExecutorService("NetworkNode-" + servicePort, 15, 30, 60);
     }
 
+    void createSelectorTransport() {
+        if (useSelectorTransport && selectorTransport == null) {
+            try {
+                selectorTransport = new SelectorTransport("NetworkNode-" + servicePort);
+            } catch (IOException e) {
+                log.error("Could not create the selector transport. We use blocking sockets. " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // The selector transport can only serve sockets accepted by a ServerSocketChannel
+    ServerSocket createServerSocket() throws IOException {
+        return selectorTransport != null ? ServerSocketChannel.open().socket() : new ServerSocket();
+    }
+
     void startServer(ServerSocket serverSocket) {
         server = new Server(serverSocket,
                 NetworkNode.this,
@@ -352,7 +407,7 @@ public abstract class NetworkNode implements MessageListener {
                     @Override
                     public void onConnection(Connection connection) {
                         if (!connection.isStopped()) {
-                            inBoundConnections.add((InboundConnection) connection);
+                            connectionRegistry.add(connection);
                             printInboundConnections();
                             connectionListeners.stream().forEach(e -> e.onConnection(connection));
                         }
@@ -361,7 +416,7 @@ public abstract class NetworkNode implements MessageListener {
                     @Override
                     public void onDisconnect(CloseConnectionReason closeConnectionReason, Connection connection) {
                         log.trace("onDisconnect at server socket connectionListener\n\tconnection={}" + connection);
-                        inBoundConnections.remove(connection);
+                        connectionRegistry.remove(connection);
                         printInboundConnections();
                         connectionListeners.stream().forEach(e -> e.onDisconnect(closeConnectionReason, connection));
                     }
@@ -371,38 +426,51 @@ public abstract class NetworkNode implements MessageListener {
                         log.error("server.ConnectionListener.onError " + throwable.getMessage());
                         connectionListeners.stream().forEach(e -> e.onError(throwable));
                     }
-                });
-        executorService.submit(server);
-    }
-
-    private Optional<OutboundConnection> lookupOutBoundConnection(NodeAddress peersNodeAddress) {
-        log.trace("lookupOutboundConnection for peersNodeAddress={}", peersNodeAddress.getFullAddress());
-        printOutBoundConnections();
-        return outBoundConnections.stream()
-                .filter(connection -> connection.hasPeersNodeAddress() &&
-                        peersNodeAddress.equals(connection.getPeersNodeAddressOptional().get())).findAny();
+                }, selectorTransport, seenMessageCache);
+
+        ServerSocketChannel serverSocketChannel = serverSocket.getChannel();
+        if (selectorTransport != null && serverSocketChannel != null) {
+            Server acceptingServer = server;
+            try {
+                // The selector thread accepts the sockets. As the new connection blocks until the peer has sent
+                // the stream header we create it in its own thread.
+                selectorTransport.registerServer(serverSocketChannel, socketChannel -> new Thread(() -> {
+                    Thread.currentThread().setName("Server-" + servicePort + ":CreateInboundConnection");
+                    acceptingServer.onSocketAccepted(socketChannel.socket());
+                }).start());
+            } catch (IOException e) {
+                log.error("Could not register the server socket at the selector transport. " +
+                        "We use a blocking server socket. " + e.getMessage());
+                e.printStackTrace();
+                executorService.submit(server);
+            }
+        } else {
+            executorService.submit(server);
+        }
     }
 
     private void printOutBoundConnections() {
-        StringBuilder sb = new StringBuilder("outBoundConnections size()=")
-                .append(outBoundConnections.size()).append("\n\toutBoundConnections=");
-        outBoundConnections.stream().forEach(e -> sb.append(e).append("\n\t"));
-        log.debug(sb.toString());
-    }
-
-    private Optional<InboundConnection> lookupInBoundConnection(NodeAddress peersNodeAddress) {
-        log.trace("lookupInboundConnection for peersNodeAddress={}", peersNodeAddress.getFullAddress());
-        printInboundConnections();
-        return inBoundConnections.stream()
-                .filter(connection -> connection.hasPeersNodeAddress() &&
-                        peersNodeAddress.equals(connection.getPeersNodeAddressOptional().get())).findAny();
+        if (log.isDebugEnabled()) {
+            List<Connection> outBoundConnections = getAllConnections().stream()
+                    .filter(e -> e instanceof OutboundConnection)
+                    .collect(Collectors.toList());
+            StringBuilder sb = new StringBuilder("outBoundConnections size()=")
+                    .append(outBoundConnections.size()).append("\n\toutBoundConnections=");
+            outBoundConnections.stream().forEach(e -> sb.append(e).append("\n\t"));
+            log.debug(sb.toString());
+        }
     }
 
     private void printInboundConnections() {
-        StringBuilder sb = new StringBuilder("inBoundConnections size()=")
-                .append(inBoundConnections.size()).append("\n\tinBoundConnections=");
-        inBoundConnections.stream().forEach(e -> sb.append(e).append("\n\t"));
-        log.debug(sb.toString());
+        if (log.isDebugEnabled()) {
+            List<Connection> inBoundConnections = getAllConnections().stream()
+                    .filter(e -> e instanceof InboundConnection)
+                    .collect(Collectors.toList());
+            StringBuilder sb = new StringBuilder("inBoundConnections size()=")
+                    .append(inBoundConnections.size()).append("\n\tinBoundConnections=");
+            inBoundConnections.stream().forEach(e -> sb.append(e).append("\n\t"));
+            log.debug(sb.toString());
+        }
     }
 
     abstract protected Socket createSocket(NodeAddress peersNodeAddress) throws IOException;
@@ -1,11 +1,14 @@
 package io.bitsquare.p2p.network;
 
 import io.bitsquare.p2p.NodeAddress;
+import org.jetbrains.annotations.Nullable;
 
 import java.net.Socket;
 
 public class OutboundConnection extends Connection {
-    public OutboundConnection(Socket socket, MessageListener messageListener, ConnectionListener connectionListener, NodeAddress peersNodeAddress) {
-        super(socket, messageListener, connectionListener, peersNodeAddress);
+    public OutboundConnection(Socket socket, MessageListener messageListener, ConnectionListener connectionListener,
+                              NodeAddress peersNodeAddress, @Nullable SelectorTransport selectorTransport,
+                              SeenMessageCache seenMessageCache) {
+        super(socket, messageListener, connectionListener, peersNodeAddress, selectorTransport, seenMessageCache);
     }
 }
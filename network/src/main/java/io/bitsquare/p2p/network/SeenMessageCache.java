@@ -0,0 +1,167 @@
+package io.bitsquare.p2p.network;
+
+import io.bitsquare.p2p.network.wire.EncodedMessage;
+import io.bitsquare.p2p.storage.messages.BroadcastMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Hashes of the frames of relayed messages (AddDataMessage, RefreshTTLMessage) we have processed already. We receive
+ * each of those messages from several peers, so a connection checks the frame against the cache and drops an exact
+ * duplicate before it gets decoded and its signature verified.
+ * <p/>
+ * The storage only adds a message after it got accepted, as a message which was rejected might be valid later (e.g.
+ * a RefreshTTLMessage received before the data).
+ * <p/>
+ * The cache has a fixed size and does not allocate at lookups. The keys are the first 128 bits of the SHA-256 hash
+ * of the frame, which contains the sequence number, and get stored in sets of WAYS entries. If a set is full we
+ * replace the least recently used entry.
+ */
+public class SeenMessageCache {
+    private static final Logger log = LoggerFactory.getLogger(SeenMessageCache.class);
+
+    public static final int DEFAULT_CAPACITY = 16384;
+    private static final int WAYS = 4;
+
+    private static final ThreadLocal<MessageDigest> messageDigest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final int setMask;
+    // guarded by this
+    private final long[] keysHigh;
+    private final long[] keysLow;
+    // 0 for an empty entry
+    private final long[] lastUsed;
+    private long tick;
+    private int size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // The capacity must be a power of 2 and at least WAYS
+    public SeenMessageCache(int capacity) {
+        checkArgument(capacity >= WAYS && Integer.bitCount(capacity) == 1, "capacity must be a power of 2 and >= " + WAYS);
+        setMask = capacity / WAYS - 1;
+        keysHigh = new long[capacity];
+        keysLow = new long[capacity];
+        lastUsed = new long[capacity];
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Counts a hit or a miss
+    public boolean contains(byte[] frame) {
+        ByteBuffer hash = hash(frame);
+        boolean contains = contains(hash.getLong(0), hash.getLong(8));
+        if (contains)
+            hits.increment();
+        else
+            misses.increment();
+        return contains;
+    }
+
+    // Only messages received as binary frame get added
+    public void add(BroadcastMessage message) {
+        EncodedMessage receivedEncodedMessage = message.getReceivedEncodedMessage();
+        if (receivedEncodedMessage != null) {
+            try {
+                ByteBuffer hash = hash(receivedEncodedMessage.getFrame());
+                add(hash.getLong(0), hash.getLong(8));
+            } catch (Throwable t) {
+                // Cannot happen as the frame of a received message is set already
+                log.error("Could not add message to the cache. " + t.getMessage());
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "SeenMessageCache{" +
+                "size=" + getSize() +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                '}';
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private synchronized boolean contains(long high, long low) {
+        int index = indexOf(high, low);
+        if (index >= 0) {
+            lastUsed[index] = ++tick;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private synchronized void add(long high, long low) {
+        int index = indexOf(high, low);
+        if (index < 0) {
+            // We use an empty entry or replace the least recently used one of the set
+            int setStart = getSetStart(low);
+            index = setStart;
+            for (int i = setStart; i < setStart + WAYS; i++) {
+                if (lastUsed[i] < lastUsed[index])
+                    index = i;
+            }
+            if (lastUsed[index] == 0)
+                size++;
+            keysHigh[index] = high;
+            keysLow[index] = low;
+        }
+        lastUsed[index] = ++tick;
+    }
+
+    private int indexOf(long high, long low) {
+        int setStart = getSetStart(low);
+        for (int i = setStart; i < setStart + WAYS; i++) {
+            if (lastUsed[i] != 0 && keysHigh[i] == high && keysLow[i] == low)
+                return i;
+        }
+        return -1;
+    }
+
+    private int getSetStart(long low) {
+        return ((int) low & setMask) * WAYS;
+    }
+
+    private static ByteBuffer hash(byte[] frame) {
+        return ByteBuffer.wrap(messageDigest.get().digest(frame));
+    }
+}
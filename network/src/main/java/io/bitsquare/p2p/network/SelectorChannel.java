@@ -0,0 +1,459 @@
+package io.bitsquare.p2p.network;
+
+import io.bitsquare.p2p.network.wire.FrameCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per connection state of a socket channel served by the SelectorTransport.
+ * <p/>
+ * Inbound: Before the peer has switched to binary frames the bytes read by the selector thread are buffered for the
+ * blocking reads of the InputHandler (see {@link #getInputStream()}). After the switch the selector thread parses the
+ * frames and they get delivered to the FrameListener in order, one frame at a time.
+ * If the not yet consumed bytes exceed INBOUND_BUFFER_LIMIT we stop reading from the socket until they got consumed.
+ * <p/>
+ * Outbound: Bytes written to the {@link #getOutputStream()} are queued and written by the selector thread. A flush
+ * blocks as long as more than OUTBOUND_BUFFER_LIMIT bytes are queued, so a slow peer slows down the sender like at a
+ * blocking socket.
+ */
+class SelectorChannel {
+    private static final Logger log = LoggerFactory.getLogger(SelectorChannel.class);
+
+    private static final int INBOUND_BUFFER_LIMIT = 1024 * 1024;                   // 1 MB
+    private static final int OUTBOUND_BUFFER_LIMIT = Connection.MAX_MSG_SIZE_GET_DATA;
+
+    interface FrameListener {
+        // Called from the pool of the SelectorTransport, never concurrently for the same channel
+        void onFrame(byte[] frame);
+
+        void onFrameError(Throwable throwable);
+    }
+
+    private final SocketChannel socketChannel;
+    private final SelectorTransport.SelectorLoop selectorLoop;
+    private final Executor frameExecutor;
+    private final int socketTimeout;
+    private final InputStream inputStream = new ChannelInputStream();
+    private final OutputStream outputStream = new ChannelOutputStream();
+
+    // Inbound buffer of the legacy stream, guarded by inboundLock. The inboundBytes count the frames as well.
+    private final Object inboundLock = new Object();
+    private final ArrayDeque<ByteBuffer> inboundChunks = new ArrayDeque<>();
+    private int inboundBytes;
+
+    // Outbound queue, guarded by outboundLock
+    private final Object outboundLock = new Object();
+    private final ArrayDeque<ByteBuffer> outboundChunks = new ArrayDeque<>();
+    private long outboundBytes;
+
+    // Frame parsing, only accessed at the selector thread
+    private final ByteBuffer lengthPrefixBuffer = ByteBuffer.allocate(FrameCodec.LENGTH_PREFIX_SIZE);
+    private ByteBuffer frameBuffer;
+    private SelectionKey selectionKey;
+    private boolean readPaused;
+
+    // Frame delivery
+    private final ConcurrentLinkedQueue<byte[]> frames = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+    private volatile FrameListener frameListener;
+    private volatile boolean failureDelivered;
+
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    SelectorChannel(SocketChannel socketChannel, SelectorTransport.SelectorLoop selectorLoop, Executor frameExecutor,
+                    int socketTimeout) {
+        this.socketChannel = socketChannel;
+        this.selectorLoop = selectorLoop;
+        this.frameExecutor = frameExecutor;
+        this.socketTimeout = socketTimeout;
+
+        selectorLoop.execute(selector -> {
+            try {
+                selectionKey = socketChannel.register(selector, SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException e) {
+                onFailure(e);
+            }
+        });
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    // Called from the InputHandler after it has read the last object of the legacy stream. Bytes we have buffered
+    // already belong to the first frames.
+    void switchToFrames(FrameListener frameListener) {
+        selectorLoop.execute(selector -> {
+            this.frameListener = frameListener;
+            ByteBuffer chunk;
+            while ((chunk = pollInboundChunk()) != null && failure == null) {
+                parseFrames(chunk);
+            }
+            if (failure != null)
+                scheduleFrameDelivery();
+            updateReadInterest();
+        });
+    }
+
+    void close() {
+        if (!closed) {
+            closed = true;
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                log.debug("Exception at closing the socket channel. " + e.getMessage());
+            }
+            synchronized (inboundLock) {
+                inboundLock.notifyAll();
+            }
+            synchronized (outboundLock) {
+                outboundLock.notifyAll();
+            }
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Called from the selector thread
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    void onReadable(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = socketChannel.read(readBuffer);
+        } catch (IOException e) {
+            onFailure(e);
+            return;
+        }
+
+        if (read < 0) {
+            onFailure(new EOFException("Peer has closed the connection"));
+        } else if (read > 0) {
+            readBuffer.flip();
+            if (frameListener == null) {
+                ByteBuffer chunk = ByteBuffer.allocate(read);
+                chunk.put(readBuffer);
+                chunk.flip();
+                synchronized (inboundLock) {
+                    inboundChunks.add(chunk);
+                    inboundBytes += read;
+                    inboundLock.notifyAll();
+                }
+            } else {
+                parseFrames(readBuffer);
+            }
+            updateReadInterest();
+        }
+    }
+
+    void onWritable() {
+        synchronized (outboundLock) {
+            try {
+                while (!outboundChunks.isEmpty()) {
+                    ByteBuffer chunk = outboundChunks.peek();
+                    outboundBytes -= socketChannel.write(chunk);
+                    if (chunk.hasRemaining())
+                        break;
+                    outboundChunks.poll();
+                }
+            } catch (IOException e) {
+                onFailure(e);
+            } finally {
+                outboundLock.notifyAll();
+            }
+
+            if (outboundChunks.isEmpty() && selectionKey.isValid())
+                selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Selector thread
+    private void parseFrames(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (frameBuffer == null) {
+                while (lengthPrefixBuffer.hasRemaining() && buffer.hasRemaining()) {
+                    lengthPrefixBuffer.put(buffer.get());
+                }
+                if (lengthPrefixBuffer.hasRemaining())
+                    return;
+
+                lengthPrefixBuffer.flip();
+                int length = lengthPrefixBuffer.getInt();
+                lengthPrefixBuffer.clear();
+                try {
+                    FrameCodec.checkFrameLength(length, Connection.MAX_MSG_SIZE_GET_DATA);
+                } catch (StreamCorruptedException e) {
+                    onFailure(e);
+                    return;
+                }
+                frameBuffer = ByteBuffer.allocate(length);
+            }
+
+            int numBytes = Math.min(frameBuffer.remaining(), buffer.remaining());
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(slice.position() + numBytes);
+            frameBuffer.put(slice);
+            buffer.position(buffer.position() + numBytes);
+
+            if (!frameBuffer.hasRemaining()) {
+                byte[] frame = frameBuffer.array();
+                frameBuffer = null;
+                synchronized (inboundLock) {
+                    inboundBytes += frame.length;
+                }
+                frames.add(frame);
+                scheduleFrameDelivery();
+            }
+        }
+    }
+
+    // Selector thread. We stop reading if the consumer cannot keep up with the peer.
+    private void updateReadInterest() {
+        if (selectionKey == null || !selectionKey.isValid() || failure != null)
+            return;
+
+        boolean exceedsLimit;
+        synchronized (inboundLock) {
+            exceedsLimit = inboundBytes > INBOUND_BUFFER_LIMIT;
+        }
+        if (exceedsLimit && !readPaused) {
+            readPaused = true;
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+        } else if (!exceedsLimit && readPaused) {
+            readPaused = false;
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private ByteBuffer pollInboundChunk() {
+        synchronized (inboundLock) {
+            ByteBuffer chunk = inboundChunks.poll();
+            if (chunk != null)
+                inboundBytes -= chunk.remaining();
+            return chunk;
+        }
+    }
+
+    private void onConsumed(int numBytes) {
+        boolean resumeReading;
+        synchronized (inboundLock) {
+            int previousInboundBytes = inboundBytes;
+            inboundBytes -= numBytes;
+            resumeReading = previousInboundBytes > INBOUND_BUFFER_LIMIT && inboundBytes <= INBOUND_BUFFER_LIMIT;
+        }
+        if (resumeReading)
+            selectorLoop.execute(selector -> updateReadInterest());
+    }
+
+    private void onFailure(IOException exception) {
+        if (failure == null) {
+            failure = exception;
+            if (selectionKey != null && selectionKey.isValid())
+                selectionKey.interestOps(0);
+
+            synchronized (inboundLock) {
+                inboundLock.notifyAll();
+            }
+            synchronized (outboundLock) {
+                outboundLock.notifyAll();
+            }
+
+            if (frameListener != null)
+                scheduleFrameDelivery();
+        }
+    }
+
+    private void scheduleFrameDelivery() {
+        if (deliveryScheduled.compareAndSet(false, true)) {
+            try {
+                frameExecutor.execute(this::deliverFrames);
+            } catch (RejectedExecutionException e) {
+                log.debug("Frame delivery rejected as the SelectorTransport is shut down.");
+            }
+        }
+    }
+
+    // Runs at the frame executor, only one delivery task is scheduled at a time
+    private void deliverFrames() {
+        do {
+            byte[] frame;
+            while ((frame = frames.poll()) != null) {
+                onConsumed(frame.length);
+                frameListener.onFrame(frame);
+            }
+
+            if (hasUndeliveredFailure()) {
+                failureDelivered = true;
+                frameListener.onFrameError(failure);
+            }
+
+            deliveryScheduled.set(false);
+        } while ((!frames.isEmpty() || hasUndeliveredFailure()) && deliveryScheduled.compareAndSet(false, true));
+    }
+
+    // We don't report failures caused by our own close
+    private boolean hasUndeliveredFailure() {
+        return failure != null && !failureDelivered && !closed;
+    }
+
+    private void checkWritable() throws IOException {
+        if (closed)
+            throw new SocketException("Socket is closed");
+        if (failure != null)
+            throw failure;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Streams
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Blocking reads of the buffered legacy stream with the semantics of a socket input stream
+    private class ChannelInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            int read = read(buffer, 0, 1);
+            return read < 0 ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+
+            int read = 0;
+            synchronized (inboundLock) {
+                long deadline = System.currentTimeMillis() + socketTimeout;
+                while (inboundChunks.isEmpty()) {
+                    if (closed)
+                        throw new SocketException("Socket is closed");
+                    if (failure instanceof EOFException)
+                        return -1;
+                    if (failure != null)
+                        throw failure;
+
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        throw new SocketTimeoutException("Read timed out");
+                    try {
+                        inboundLock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Read interrupted");
+                    }
+                }
+
+                while (read < length && !inboundChunks.isEmpty()) {
+                    ByteBuffer chunk = inboundChunks.peek();
+                    int numBytes = Math.min(length - read, chunk.remaining());
+                    chunk.get(bytes, offset + read, numBytes);
+                    read += numBytes;
+                    if (!chunk.hasRemaining())
+                        inboundChunks.poll();
+                }
+            }
+            onConsumed(read);
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (inboundLock) {
+                return frameListener == null ? Math.max(0, inboundBytes) : 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            SelectorChannel.this.close();
+        }
+    }
+
+    // Queues the written bytes, the selector thread writes them when the socket is writable
+    private class ChannelOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            checkWritable();
+            if (length == 0)
+                return;
+
+            ByteBuffer chunk = ByteBuffer.allocate(length);
+            chunk.put(bytes, offset, length);
+            chunk.flip();
+            synchronized (outboundLock) {
+                outboundChunks.add(chunk);
+                outboundBytes += length;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkWritable();
+            selectorLoop.execute(selector -> {
+                if (selectionKey != null && selectionKey.isValid())
+                    selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+            });
+
+            synchronized (outboundLock) {
+                long deadline = System.currentTimeMillis() + socketTimeout;
+                while (outboundBytes > OUTBOUND_BUFFER_LIMIT) {
+                    checkWritable();
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        throw new SocketTimeoutException("Write timed out");
+                    try {
+                        outboundLock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Write interrupted");
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            SelectorChannel.this.close();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package io.bitsquare.p2p.network;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.bitsquare.app.Log;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Multiplexes the socket channels of all connections of a NetworkNode over a few selector threads.
+ * <p/>
+ * As long as a peer sends the legacy Java serialization stream the InputHandler of the connection reads the bytes
+ * buffered by the selector thread. Once the peer has switched to binary frames the frames are parsed at the selector
+ * thread and handed to a small shared pool, so the connection does not need a thread of its own anymore.
+ * Writes are queued at the channel and written by the selector thread when the socket is writable.
+ * <p/>
+ * Only sockets created from a SocketChannel can be served (sockets to Tor hidden services are created by the SOCKS
+ * library and stay on the blocking path).
+ */
+class SelectorTransport {
+    private static final Logger log = LoggerFactory.getLogger(SelectorTransport.class);
+
+    private static final int MAX_SELECTOR_THREADS = 4;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final SelectorLoop[] selectorLoops;
+    private final ExecutorService frameExecutor;
+    private final AtomicInteger nextSelectorLoop = new AtomicInteger();
+    private volatile boolean stopped;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    SelectorTransport(String name) throws IOException {
+        int numSelectorThreads = Math.max(1, Math.min(MAX_SELECTOR_THREADS, Runtime.getRuntime().availableProcessors() / 2));
+        selectorLoops = new SelectorLoop[numSelectorThreads];
+        for (int i = 0; i < numSelectorThreads; i++) {
+            selectorLoops[i] = new SelectorLoop(name + "-Selector-" + i);
+            selectorLoops[i].start();
+        }
+
+        // We must not drop any task as the frames of a connection are delivered by a single task at a time,
+        // so we don't use the bounded executors from Utilities here.
+        frameExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat(name + "-FrameHandler-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Sockets created by a SOCKS library or with new Socket() have no channel, those stay on blocking streams
+    static boolean canServe(Socket socket) {
+        return socket.getChannel() != null;
+    }
+
+    // Called from the thread creating the connection
+    SelectorChannel register(SocketChannel socketChannel, int socketTimeout) throws IOException {
+        if (stopped)
+            throw new IOException("SelectorTransport is already shut down");
+
+        socketChannel.configureBlocking(false);
+        return new SelectorChannel(socketChannel, getSelectorLoop(), frameExecutor, socketTimeout);
+    }
+
+    // The acceptHandler is called at the selector thread so it must not block
+    void registerServer(ServerSocketChannel serverSocketChannel, Consumer<SocketChannel> acceptHandler) throws IOException {
+        if (stopped)
+            throw new IOException("SelectorTransport is already shut down");
+
+        serverSocketChannel.configureBlocking(false);
+        getSelectorLoop().execute(selector -> {
+            try {
+                serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT, acceptHandler);
+            } catch (ClosedChannelException e) {
+                log.debug("Server socket was closed before we could register it. " + e.getMessage());
+            }
+        });
+    }
+
+    void shutDown() {
+        Log.traceCall();
+        if (!stopped) {
+            stopped = true;
+            for (SelectorLoop selectorLoop : selectorLoops) {
+                selectorLoop.shutDown();
+            }
+            frameExecutor.shutdownNow();
+            log.debug("SelectorTransport shutdown complete");
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private SelectorLoop getSelectorLoop() {
+        return selectorLoops[Math.abs(nextSelectorLoop.getAndIncrement() % selectorLoops.length)];
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // SelectorLoop
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    interface SelectorTask {
+        void run(Selector selector) throws IOException;
+    }
+
+    /**
+     * One selector with its thread. Interest ops are only changed at the selector thread, other threads queue a task.
+     */
+    static class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<SelectorTask> tasks = new ConcurrentLinkedQueue<>();
+        // Only used at the selector thread
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile boolean stopped;
+
+        SelectorLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        // Called from any thread
+        void execute(SelectorTask task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutDown() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    selector.select();
+                    runTasks();
+
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        try {
+                            handleKey(key);
+                        } catch (CancelledKeyException ignore) {
+                            // The channel got closed by another thread
+                        }
+                    }
+                }
+            } catch (Throwable t) {
+                log.error("Selector thread failed. " + t.getMessage());
+                t.printStackTrace();
+            } finally {
+                try {
+                    selector.keys().stream().forEach(key -> closeQuietly(key.channel()));
+                    selector.close();
+                } catch (Throwable t) {
+                    log.debug("Exception at closing the selector. " + t.getMessage());
+                }
+            }
+        }
+
+        private void runTasks() {
+            SelectorTask task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run(selector);
+                } catch (Throwable t) {
+                    log.error("Selector task failed. " + t.getMessage());
+                    t.printStackTrace();
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void handleKey(SelectionKey key) {
+            if (!key.isValid())
+                return;
+
+            Object attachment = key.attachment();
+            if (attachment instanceof SelectorChannel) {
+                SelectorChannel selectorChannel = (SelectorChannel) attachment;
+                if (key.isReadable())
+                    selectorChannel.onReadable(readBuffer);
+                if (key.isValid() && key.isWritable())
+                    selectorChannel.onWritable();
+            } else if (key.isAcceptable()) {
+                ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+                Consumer<SocketChannel> acceptHandler = (Consumer<SocketChannel>) attachment;
+                try {
+                    SocketChannel socketChannel;
+                    while ((socketChannel = serverSocketChannel.accept()) != null) {
+                        acceptHandler.accept(socketChannel);
+                    }
+                } catch (IOException e) {
+                    log.debug("Exception at accept. " + e.getMessage());
+                }
+            }
+        }
+
+        private static void closeQuietly(Channel channel) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
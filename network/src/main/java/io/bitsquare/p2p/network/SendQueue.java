@@ -0,0 +1,246 @@
+package io.bitsquare.p2p.network;
+
+import io.bitsquare.common.UserThread;
+import io.bitsquare.p2p.Message;
+import io.bitsquare.p2p.messaging.PrefixedSealedAndSignedMessage;
+import io.bitsquare.p2p.network.messages.CloseConnectionMessage;
+import io.bitsquare.p2p.network.wire.EncodedMessage;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponse;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponseChunk;
+import io.bitsquare.p2p.peers.getdata.messages.SnapshotSegment;
+import io.bitsquare.p2p.peers.keepalive.messages.KeepAliveMessage;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound messages of a connection, queued in priority lanes. The connection sends the head of the highest
+ * non-empty lane next, so a message in a higher lane only waits for the message currently written (e.g. a trade
+ * message does not wait for a large GetDataResponse queued before it). Within a lane the order is kept.
+ * <p/>
+ * All lanes share the pacer of the connection, but not equally:
+ * <ul>
+ * <li>CONTROL messages are not paced, so a keep alive or close message never waits for a token.</li>
+ * <li>GOSSIP and BULK leave RESERVED_TOKENS in the pacer, so a burst of broadcasts cannot use up the tokens a
+ * DIRECT message needs.</li>
+ * <li>BULK gets at least every BULK_SHARE_INTERVAL-th paced message while it has messages queued, so the higher
+ * lanes cannot starve a data response.</li>
+ * </ul>
+ * For monitoring we keep the queue depth and the time the messages have waited in the queue per lane.
+ * <p/>
+ * A sender of many messages in one lane (e.g. the chunks of a data response) can wait for the lane to be drained
+ * before it queues the next message, instead of polling the depth of the lane.
+ */
+public class SendQueue {
+    // Tokens of the pacer only the DIRECT lane can use
+    static final int RESERVED_TOKENS = 5;
+    // At most that many messages of the DIRECT and GOSSIP lanes are sent while a BULK message is waiting
+    static final int BULK_SHARE_INTERVAL = 4;
+
+    // Ordered by priority
+    public enum Lane {
+        CONTROL,    // KeepAliveMessage, CloseConnectionMessage
+        DIRECT,     // PrefixedSealedAndSignedMessage (trade, dispute and other direct messages)
+        GOSSIP,     // Broadcast, peer exchange and data requests
+        BULK        // GetDataResponse, GetDataResponseChunk, SnapshotSegment
+    }
+
+    public static Lane getLane(Message message) {
+        if (message instanceof KeepAliveMessage || message instanceof CloseConnectionMessage)
+            return Lane.CONTROL;
+        else if (message instanceof PrefixedSealedAndSignedMessage)
+            return Lane.DIRECT;
+        else if (message instanceof GetDataResponse || message instanceof GetDataResponseChunk
+                || message instanceof SnapshotSegment)
+            return Lane.BULK;
+        else
+            return Lane.GOSSIP;
+    }
+
+    private final Map<Lane, LaneQueue> laneQueues = new EnumMap<>(Lane.class);
+    // Number of paced messages sent since the last BULK message while BULK messages have been waiting
+    private int numSentWhileBulkWaiting;
+    private final Map<Lane, List<Runnable>> drainListeners = new EnumMap<>(Lane.class);
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    SendQueue() {
+        for (Lane lane : Lane.values()) {
+            laneQueues.put(lane, new LaneQueue());
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Queue
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    synchronized void add(EncodedMessage encodedMessage) {
+        laneQueues.get(getLane(encodedMessage.getMessage())).add(encodedMessage);
+    }
+
+    /**
+     * @return The next message to send or null if the queue is empty or the pacer has no token for the next message.
+     * In the latter case getNanosUntilNextToken tells when to try again.
+     */
+    @Nullable
+    synchronized EncodedMessage poll(TokenBucket pacer) {
+        Lane lane = getNextLane();
+        if (lane == null)
+            return null;
+
+        if (lane != Lane.CONTROL && !pacer.tryConsume(getReservedTokens(lane)))
+            return null;
+
+        if (lane == Lane.BULK)
+            numSentWhileBulkWaiting = 0;
+        else if (lane != Lane.CONTROL && !isEmpty(Lane.BULK))
+            numSentWhileBulkWaiting++;
+
+        EncodedMessage encodedMessage = laneQueues.get(lane).poll();
+        if (isEmpty(lane))
+            notifyDrainListeners(lane);
+        return encodedMessage;
+    }
+
+    // 0 if the queue is empty or the next message can be sent
+    synchronized long getNanosUntilNextToken(TokenBucket pacer) {
+        Lane lane = getNextLane();
+        return lane == null || lane == Lane.CONTROL ? 0 : pacer.getNanosUntilNextToken(getReservedTokens(lane));
+    }
+
+    synchronized boolean isEmpty() {
+        return getNextLane() == null;
+    }
+
+    // Called if the connection fails or got closed. The drain listeners get notified, so they detect the closed connection.
+    synchronized void clear() {
+        laneQueues.values().stream().forEach(LaneQueue::clear);
+        numSentWhileBulkWaiting = 0;
+        for (Lane lane : Lane.values()) {
+            notifyDrainListeners(lane);
+        }
+    }
+
+    /**
+     * The listener gets called once at the UserThread as soon as the last message of the lane has been taken for
+     * sending or the queue got cleared. If the lane is empty already it gets called at once.
+     */
+    public synchronized void runWhenDrained(Lane lane, Runnable listener) {
+        if (isEmpty(lane))
+            UserThread.execute(listener);
+        else
+            drainListeners.computeIfAbsent(lane, e -> new ArrayList<>()).add(listener);
+    }
+
+    private void notifyDrainListeners(Lane lane) {
+        List<Runnable> listeners = drainListeners.remove(lane);
+        if (listeners != null)
+            listeners.stream().forEach(UserThread::execute);
+    }
+
+    @Nullable
+    private Lane getNextLane() {
+        if (!isEmpty(Lane.BULK) && numSentWhileBulkWaiting >= BULK_SHARE_INTERVAL && isEmpty(Lane.CONTROL))
+            return Lane.BULK;
+
+        for (Lane lane : Lane.values()) {
+            if (!isEmpty(lane))
+                return lane;
+        }
+        return null;
+    }
+
+    private boolean isEmpty(Lane lane) {
+        return laneQueues.get(lane).entries.isEmpty();
+    }
+
+    private static int getReservedTokens(Lane lane) {
+        return lane == Lane.GOSSIP || lane == Lane.BULK ? RESERVED_TOKENS : 0;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Getters
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public synchronized int getDepth(Lane lane) {
+        return laneQueues.get(lane).entries.size();
+    }
+
+    // Wait time of the oldest message still in the queue
+    public synchronized long getCurrentWaitTime(Lane lane) {
+        LaneQueue laneQueue = laneQueues.get(lane);
+        return laneQueue.entries.isEmpty() ? 0 : toMillis(System.nanoTime() - laneQueue.entries.peek().queuedAt);
+    }
+
+    public synchronized long getAverageWaitTime(Lane lane) {
+        LaneQueue laneQueue = laneQueues.get(lane);
+        return laneQueue.numSent == 0 ? 0 : toMillis(laneQueue.totalWaitTime / laneQueue.numSent);
+    }
+
+    public synchronized long getMaxWaitTime(Lane lane) {
+        return toMillis(laneQueues.get(lane).maxWaitTime);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("SendQueue{");
+        for (Lane lane : Lane.values()) {
+            sb.append(lane).append("=[depth=").append(getDepth(lane))
+                    .append(", avgWait=").append(getAverageWaitTime(lane))
+                    .append(" ms, maxWait=").append(getMaxWaitTime(lane))
+                    .append(" ms]");
+            if (lane.ordinal() < Lane.values().length - 1)
+                sb.append(", ");
+        }
+        return sb.append('}').toString();
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // LaneQueue
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static class LaneQueue {
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        private long numSent;
+        private long totalWaitTime;
+        private long maxWaitTime;
+
+        void add(EncodedMessage encodedMessage) {
+            entries.add(new Entry(encodedMessage, System.nanoTime()));
+        }
+
+        EncodedMessage poll() {
+            Entry entry = entries.poll();
+            long waitTime = System.nanoTime() - entry.queuedAt;
+            numSent++;
+            totalWaitTime += waitTime;
+            maxWaitTime = Math.max(maxWaitTime, waitTime);
+            return entry.encodedMessage;
+        }
+
+        void clear() {
+            entries.clear();
+        }
+    }
+
+    private static class Entry {
+        private final EncodedMessage encodedMessage;
+        private final long queuedAt;
+
+        Entry(EncodedMessage encodedMessage, long queuedAt) {
+            this.encodedMessage = encodedMessage;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package io.bitsquare.p2p.network;
 
 import io.bitsquare.app.Log;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,6 +18,9 @@ class Server implements Runnable {
 
     private final MessageListener messageListener;
     private final ConnectionListener connectionListener;
+    @Nullable
+    private final SelectorTransport selectorTransport;
+    private final SeenMessageCache seenMessageCache;
 
     // accessed from different threads
     private final ServerSocket serverSocket;
@@ -24,11 +28,14 @@ class Server implements Runnable {
     private volatile boolean stopped;
 
 
-    public Server(ServerSocket serverSocket, MessageListener messageListener, ConnectionListener connectionListener) {
+    public Server(ServerSocket serverSocket, MessageListener messageListener, ConnectionListener connectionListener,
+                  @Nullable SelectorTransport selectorTransport, SeenMessageCache seenMessageCache) {
         Log.traceCall();
         this.serverSocket = serverSocket;
         this.messageListener = messageListener;
         this.connectionListener = connectionListener;
+        this.selectorTransport = selectorTransport;
+        this.seenMessageCache = seenMessageCache;
     }
 
     @Override
@@ -41,22 +48,8 @@ class Server implements Runnable {
                 while (!stopped && !Thread.currentThread().isInterrupted()) {
                     log.debug("Ready to accept new clients on port " + serverSocket.getLocalPort());
                     final Socket socket = serverSocket.accept();
-                    if (!stopped && !Thread.currentThread().isInterrupted()) {
-                        log.debug("Accepted new client on localPort/port " + socket.getLocalPort() + "/" + socket.getPort());
-                        InboundConnection connection = new InboundConnection(socket, messageListener, connectionListener);
-
-                        log.debug("\n\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n" +
-                                "Server created new inbound connection:"
-                                + "\nlocalPort/port=" + serverSocket.getLocalPort()
-                                + "/" + socket.getPort()
-                                + "\nconnection.uid=" + connection.getUid()
-                                + "\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n");
-
-                        if (!stopped)
-                            connections.add(connection);
-                        else
-                            connection.shutDown(CloseConnectionReason.APP_SHUT_DOWN);
-                    }
+                    if (!stopped && !Thread.currentThread().isInterrupted())
+                        onSocketAccepted(socket);
                 }
             } catch (IOException e) {
                 if (!stopped)
@@ -68,6 +61,26 @@ class Server implements Runnable {
         }
     }
 
+    // Called from the server thread or, if the server socket channel is served by the selectorTransport, from a
+    // NetworkNode thread. The connection blocks until it has read the stream header of the peer.
+    void onSocketAccepted(Socket socket) {
+        log.debug("Accepted new client on localPort/port " + socket.getLocalPort() + "/" + socket.getPort());
+        InboundConnection connection = new InboundConnection(socket, messageListener, connectionListener, selectorTransport,
+                seenMessageCache);
+
+        log.debug("\n\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n" +
+                "Server created new inbound connection:"
+                + "\nlocalPort/port=" + serverSocket.getLocalPort()
+                + "/" + socket.getPort()
+                + "\nconnection.uid=" + connection.getUid()
+                + "\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n");
+
+        if (!stopped)
+            connections.add(connection);
+        else
+            connection.shutDown(CloseConnectionReason.APP_SHUT_DOWN);
+    }
+
     public void shutDown() {
         Log.traceCall();
         if (!stopped) {
@@ -1,6 +1,5 @@
 package io.bitsquare.p2p.network;
 
-import io.bitsquare.common.UserThread;
 import io.bitsquare.p2p.Message;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.LongProperty;
@@ -9,23 +8,85 @@ import javafx.beans.property.SimpleLongProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic statistic of a connection and of all connections.
+ * The counters are updated without locks at the thread handling the connection. The JavaFX properties are only
+ * snapshots of the counters for the UI, updated by calling {@link #updateProperties()} and
+ * {@link #updateTotalProperties()} at the UserThread.
+ */
 public class Statistic {
     private static final Logger log = LoggerFactory.getLogger(Statistic.class);
 
+    /**
+     * Message count and bytes on the wire of one message type.
+     */
+    public static final class MessageCounter {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        private void add(int numBytes) {
+            count.increment();
+            bytes.add(numBytes);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "[count=" + getCount() + ", bytes=" + getBytes() + "]";
+        }
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Static
     ///////////////////////////////////////////////////////////////////////////////////////////
 
+    // Upper bounds in ms of the round trip time histogram buckets. The last bucket holds the larger values.
+    public static final int[] ROUND_TRIP_TIME_BUCKETS = {50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private final static LongAdder totalSentBytesCounter = new LongAdder();
+    private final static LongAdder totalReceivedBytesCounter = new LongAdder();
+    // Logical bytes are the size of the messages before compression, sent and received bytes are the bytes on the wire
+    private final static LongAdder totalSentLogicalBytesCounter = new LongAdder();
+    private final static LongAdder totalReceivedLogicalBytesCounter = new LongAdder();
+    private final static Map<String, MessageCounter> totalSentMessages = new ConcurrentHashMap<>();
+    private final static Map<String, MessageCounter> totalReceivedMessages = new ConcurrentHashMap<>();
+    private final static LongAdder[] roundTripTimeHistogram = new LongAdder[ROUND_TRIP_TIME_BUCKETS.length + 1];
+
+    static {
+        for (int i = 0; i < roundTripTimeHistogram.length; i++) {
+            roundTripTimeHistogram[i] = new LongAdder();
+        }
+    }
+
     private final static LongProperty totalSentBytes = new SimpleLongProperty(0);
     private final static LongProperty totalReceivedBytes = new SimpleLongProperty(0);
+    private final static LongProperty totalSentLogicalBytes = new SimpleLongProperty(0);
+    private final static LongProperty totalReceivedLogicalBytes = new SimpleLongProperty(0);
+
+    // Must be called at the UserThread
+    public static void updateTotalProperties() {
+        totalSentBytes.set(getTotalSentBytes());
+        totalReceivedBytes.set(getTotalReceivedBytes());
+        totalSentLogicalBytes.set(getTotalSentLogicalBytes());
+        totalReceivedLogicalBytes.set(getTotalReceivedLogicalBytes());
+    }
 
     public static long getTotalSentBytes() {
-        return totalSentBytes.get();
+        return totalSentBytesCounter.sum();
     }
 
     public static LongProperty totalSentBytesProperty() {
@@ -33,25 +94,79 @@ public class Statistic {
     }
 
     public static long getTotalReceivedBytes() {
-        return totalReceivedBytes.get();
+        return totalReceivedBytesCounter.sum();
     }
 
     public static LongProperty totalReceivedBytesProperty() {
         return totalReceivedBytes;
     }
 
+    public static long getTotalSentLogicalBytes() {
+        return totalSentLogicalBytesCounter.sum();
+    }
+
+    public static LongProperty totalSentLogicalBytesProperty() {
+        return totalSentLogicalBytes;
+    }
+
+    public static long getTotalReceivedLogicalBytes() {
+        return totalReceivedLogicalBytesCounter.sum();
+    }
+
+    public static LongProperty totalReceivedLogicalBytesProperty() {
+        return totalReceivedLogicalBytes;
+    }
+
+    // Message class name -> counter, unmodifiable view
+    public static Map<String, MessageCounter> getTotalSentMessages() {
+        return Collections.unmodifiableMap(totalSentMessages);
+    }
+
+    // Message class name -> counter, unmodifiable view
+    public static Map<String, MessageCounter> getTotalReceivedMessages() {
+        return Collections.unmodifiableMap(totalReceivedMessages);
+    }
+
+    // Number of round trip times per bucket of ROUND_TRIP_TIME_BUCKETS
+    public static long[] getRoundTripTimeHistogram() {
+        long[] histogram = new long[roundTripTimeHistogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = roundTripTimeHistogram[i].sum();
+        }
+        return histogram;
+    }
+
+    private static void addToRoundTripTimeHistogram(int roundTripTime) {
+        int bucket = 0;
+        while (bucket < ROUND_TRIP_TIME_BUCKETS.length && roundTripTime > ROUND_TRIP_TIME_BUCKETS[bucket])
+            bucket++;
+        roundTripTimeHistogram[bucket].increment();
+    }
+
+    private static void addMessage(Map<String, MessageCounter> map, Class<?> messageClass, int numBytes) {
+        map.computeIfAbsent(messageClass.getSimpleName(), k -> new MessageCounter()).add(numBytes);
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Instance fields
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     private final Date creationDate;
-    private long lastActivityTimestamp = System.currentTimeMillis();
+    private volatile long lastActivityTimestamp = System.currentTimeMillis();
+    private final LongAdder sentBytesCounter = new LongAdder();
+    private final LongAdder receivedBytesCounter = new LongAdder();
+    private final LongAdder sentLogicalBytesCounter = new LongAdder();
+    private final LongAdder receivedLogicalBytesCounter = new LongAdder();
+    private final Map<String, MessageCounter> receivedMessages = new ConcurrentHashMap<>();
+    private final Map<String, MessageCounter> sentMessages = new ConcurrentHashMap<>();
+    private volatile int roundTripTime;
+
     private final LongProperty sentBytes = new SimpleLongProperty(0);
     private final LongProperty receivedBytes = new SimpleLongProperty(0);
-    private final Map<String, Integer> receivedMessages = new ConcurrentHashMap<>();
-    private final Map<String, Integer> sentMessages = new ConcurrentHashMap<>();
-    private final IntegerProperty roundTripTime = new SimpleIntegerProperty(0);
+    private final LongProperty sentLogicalBytes = new SimpleLongProperty(0);
+    private final LongProperty receivedLogicalBytes = new SimpleLongProperty(0);
+    private final IntegerProperty roundTripTimeProperty = new SimpleIntegerProperty(0);
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -67,44 +182,60 @@ public class Statistic {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     public void updateLastActivityTimestamp() {
-        UserThread.execute(() -> lastActivityTimestamp = System.currentTimeMillis());
+        lastActivityTimestamp = System.currentTimeMillis();
     }
 
     public void addSentBytes(int value) {
-        UserThread.execute(() -> {
-            sentBytes.set(sentBytes.get() + value);
-            totalSentBytes.set(totalSentBytes.get() + value);
-        });
+        addSentBytes(value, value);
+    }
+
+    public void addSentBytes(int wireBytes, int logicalBytes) {
+        sentBytesCounter.add(wireBytes);
+        totalSentBytesCounter.add(wireBytes);
+        sentLogicalBytesCounter.add(logicalBytes);
+        totalSentLogicalBytesCounter.add(logicalBytes);
     }
 
     public void addReceivedBytes(int value) {
-        UserThread.execute(() -> {
-            receivedBytes.set(receivedBytes.get() + value);
-            totalReceivedBytes.set(totalReceivedBytes.get() + value);
-        });
+        addReceivedBytes(value, value);
     }
 
-    // TODO would need msg inspection to get useful information...
-    public void addReceivedMessage(Message message) {
-        String messageClassName = message.getClass().getSimpleName();
-        int counter = 1;
-        if (receivedMessages.containsKey(messageClassName))
-            counter = receivedMessages.get(messageClassName) + 1;
+    public void addReceivedBytes(int wireBytes, int logicalBytes) {
+        receivedBytesCounter.add(wireBytes);
+        totalReceivedBytesCounter.add(wireBytes);
+        receivedLogicalBytesCounter.add(logicalBytes);
+        totalReceivedLogicalBytesCounter.add(logicalBytes);
+    }
 
-        receivedMessages.put(messageClassName, counter);
+    // The wireBytes are counted per message type
+    public void addReceivedMessage(Message message, int wireBytes) {
+        addReceivedMessage(message.getClass(), wireBytes);
     }
 
-    public void addSentMessage(Message message) {
-        String messageClassName = message.getClass().getSimpleName();
-        int counter = 1;
-        if (sentMessages.containsKey(messageClassName))
-            counter = sentMessages.get(messageClassName) + 1;
+    // Used if we have not decoded the message
+    public void addReceivedMessage(Class<? extends Message> messageClass, int wireBytes) {
+        addMessage(receivedMessages, messageClass, wireBytes);
+        addMessage(totalReceivedMessages, messageClass, wireBytes);
+    }
 
-        sentMessages.put(messageClassName, counter);
+    public void addSentMessage(Message message, int wireBytes) {
+        addMessage(sentMessages, message.getClass(), wireBytes);
+        addMessage(totalSentMessages, message.getClass(), wireBytes);
     }
 
     public void setRoundTripTime(int roundTripTime) {
-        this.roundTripTime.set(roundTripTime);
+        this.roundTripTime = roundTripTime;
+        if (roundTripTime > 0)
+            addToRoundTripTimeHistogram(roundTripTime);
+    }
+
+    // Must be called at the UserThread
+    public void updateProperties() {
+        sentBytes.set(getSentBytes());
+        receivedBytes.set(getReceivedBytes());
+        sentLogicalBytes.set(getSentLogicalBytes());
+        receivedLogicalBytes.set(getReceivedLogicalBytes());
+        roundTripTimeProperty.set(roundTripTime);
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -120,7 +251,7 @@ public class Statistic {
     }
 
     public long getSentBytes() {
-        return sentBytes.get();
+        return sentBytesCounter.sum();
     }
 
     public LongProperty sentBytesProperty() {
@@ -128,28 +259,61 @@ public class Statistic {
     }
 
     public long getReceivedBytes() {
-        return receivedBytes.get();
+        return receivedBytesCounter.sum();
     }
 
     public LongProperty receivedBytesProperty() {
         return receivedBytes;
     }
 
+    public long getSentLogicalBytes() {
+        return sentLogicalBytesCounter.sum();
+    }
+
+    public LongProperty sentLogicalBytesProperty() {
+        return sentLogicalBytes;
+    }
+
+    public long getReceivedLogicalBytes() {
+        return receivedLogicalBytesCounter.sum();
+    }
+
+    public LongProperty receivedLogicalBytesProperty() {
+        return receivedLogicalBytes;
+    }
+
+    // Message class name -> counter, unmodifiable view
+    public Map<String, MessageCounter> getSentMessages() {
+        return Collections.unmodifiableMap(sentMessages);
+    }
+
+    // Message class name -> counter, unmodifiable view
+    public Map<String, MessageCounter> getReceivedMessages() {
+        return Collections.unmodifiableMap(receivedMessages);
+    }
+
     public Date getCreationDate() {
         return creationDate;
     }
 
-    public IntegerProperty roundTripTimeProperty() {
+    public int getRoundTripTime() {
         return roundTripTime;
     }
 
+    public IntegerProperty roundTripTimeProperty() {
+        return roundTripTimeProperty;
+    }
+
     @Override
     public String toString() {
         return "Statistic{" +
                 "creationDate=" + creationDate +
                 ", lastActivityTimestamp=" + lastActivityTimestamp +
-                ", sentBytes=" + sentBytes +
-                ", receivedBytes=" + receivedBytes +
+                ", sentBytes=" + getSentBytes() +
+                ", receivedBytes=" + getReceivedBytes() +
+                ", sentLogicalBytes=" + getSentLogicalBytes() +
+                ", receivedLogicalBytes=" + getReceivedLogicalBytes() +
+                ", roundTripTime=" + roundTripTime +
                 '}';
     }
 
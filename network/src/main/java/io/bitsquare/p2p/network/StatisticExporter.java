@@ -0,0 +1,143 @@
+package io.bitsquare.p2p.network;
+
+import io.bitsquare.common.util.Utilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Writes a text snapshot of the network statistic to a file in a fixed interval, so the operator of a headless node
+ * (e.g. a seed node) can see the traffic and rates per message type, the round trip times and the connections.
+ * The file gets replaced at each snapshot. Reading the counters does not block the network threads.
+ */
+public class StatisticExporter {
+    private static final Logger log = LoggerFactory.getLogger(StatisticExporter.class);
+
+    private final NetworkNode networkNode;
+    private final File file;
+    private final long intervalSec;
+    private ScheduledThreadPoolExecutor executor;
+
+    // Message counts at the last snapshot for calculating the rates
+    private final Map<String, Long> lastSentCounts = new HashMap<>();
+    private final Map<String, Long> lastReceivedCounts = new HashMap<>();
+    private long lastSnapshotTimestamp = System.currentTimeMillis();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public StatisticExporter(NetworkNode networkNode, File file, long intervalSec) {
+        checkArgument(intervalSec > 0, "intervalSec must be positive");
+        this.networkNode = networkNode;
+        this.file = file;
+        this.intervalSec = intervalSec;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public void start() {
+        if (executor == null) {
+            log.info("We write the network statistic every {} sec. to {}", intervalSec, file.getAbsolutePath());
+            executor = Utilities.getScheduledThreadPoolExecutor("StatisticExporter", 1, 1, 60);
+            executor.scheduleWithFixedDelay(this::writeSnapshot, intervalSec, intervalSec, TimeUnit.SECONDS);
+        }
+    }
+
+    public void shutDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void writeSnapshot() {
+        try {
+            File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            Files.write(tempFile.toPath(), getSnapshot(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (Throwable t) {
+            // We don't want to stop the scheduled snapshots
+            log.warn("Writing the network statistic failed. " + t.getMessage());
+        }
+    }
+
+    String getSnapshot(long now) {
+        long elapsed = Math.max(1, now - lastSnapshotTimestamp);
+        lastSnapshotTimestamp = now;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Network statistic at ").append(new Date(now)).append("\n\n");
+        sb.append("Traffic:\n");
+        sb.append("  sent: ").append(Statistic.getTotalSentBytes()).append(" bytes (")
+                .append(Statistic.getTotalSentLogicalBytes()).append(" bytes before compression)\n");
+        sb.append("  received: ").append(Statistic.getTotalReceivedBytes()).append(" bytes (")
+                .append(Statistic.getTotalReceivedLogicalBytes()).append(" bytes before compression)\n\n");
+
+        appendMessages(sb, "Sent messages", Statistic.getTotalSentMessages(), lastSentCounts, elapsed);
+        appendMessages(sb, "Received messages", Statistic.getTotalReceivedMessages(), lastReceivedCounts, elapsed);
+
+        SeenMessageCache seenMessageCache = networkNode.getSeenMessageCache();
+        sb.append("Dropped duplicates of relayed messages:\n");
+        sb.append("  cache hits: ").append(seenMessageCache.getHits())
+                .append(", misses: ").append(seenMessageCache.getMisses())
+                .append(", cache size: ").append(seenMessageCache.getSize()).append("\n\n");
+
+        sb.append("Round trip times:\n");
+        long[] histogram = Statistic.getRoundTripTimeHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            String bucket = i < Statistic.ROUND_TRIP_TIME_BUCKETS.length ?
+                    "<= " + Statistic.ROUND_TRIP_TIME_BUCKETS[i] + " ms" :
+                    "> " + Statistic.ROUND_TRIP_TIME_BUCKETS[i - 1] + " ms";
+            sb.append(String.format("  %-12s %10d%n", bucket, histogram[i]));
+        }
+        sb.append("\n");
+
+        sb.append("Connections (").append(networkNode.getAllConnections().size()).append("):\n");
+        networkNode.getAllConnections().stream().forEach(connection -> {
+            Statistic statistic = connection.getStatistic();
+            sb.append("  ").append(connection.getPeersNodeAddressOptional().map(Object::toString).orElse("Not known yet"))
+                    .append(connection instanceof InboundConnection ? " inbound" : " outbound")
+                    .append(", peerType=").append(connection.getPeerType())
+                    .append(", sent=").append(statistic.getSentBytes())
+                    .append(", received=").append(statistic.getReceivedBytes())
+                    .append(", roundTripTime=").append(statistic.getRoundTripTime()).append(" ms")
+                    .append(", lastActivityAge=").append(statistic.getLastActivityAge()).append(" ms\n");
+        });
+        return sb.toString();
+    }
+
+    private static void appendMessages(StringBuilder sb, String title, Map<String, Statistic.MessageCounter> counters,
+                                       Map<String, Long> lastCounts, long elapsed) {
+        sb.append(title).append(":\n");
+        sb.append(String.format("  %-32s %12s %16s %12s%n", "type", "count", "bytes", "msg/min"));
+        new TreeMap<>(counters).entrySet().stream().forEach(e -> {
+            long count = e.getValue().getCount();
+            Long lastCount = lastCounts.put(e.getKey(), count);
+            double perMin = (count - (lastCount != null ? lastCount : 0)) * TimeUnit.MINUTES.toMillis(1) / (double) elapsed;
+            sb.append(String.format("  %-32s %12d %16d %12.1f%n", e.getKey(), count, e.getValue().getBytes(), perMin));
+        });
+        sb.append("\n");
+    }
+}
@@ -0,0 +1,146 @@
+package io.bitsquare.p2p.network;
+
+import io.bitsquare.p2p.storage.messages.AddDataMessage;
+import io.bitsquare.p2p.storage.messages.RefreshTTLMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Checks the inbound messages of a connection against the global throttle limits (MSG_THROTTLE_PER_SEC and
+ * MSG_THROTTLE_PER_10_SEC) and against the quotas per message class, so a peer cannot use the whole global limit
+ * with one message type.
+ * We only keep the timestamps of the last messages in ring buffers, so a check is O(1) and we don't hold
+ * references to the received messages.
+ */
+public class ThrottleLimiter {
+    private static final Logger log = LoggerFactory.getLogger(ThrottleLimiter.class);
+
+    public static class Quota {
+        public final int maxMessages;
+        public final long windowMillis;
+
+        public Quota(int maxMessages, long windowMillis) {
+            checkArgument(maxMessages > 0, "maxMessages must be positive");
+            checkArgument(windowMillis > 0, "windowMillis must be positive");
+            this.maxMessages = maxMessages;
+            this.windowMillis = windowMillis;
+        }
+
+        @Override
+        public String toString() {
+            return maxMessages + " msg per " + windowMillis + " ms";
+        }
+    }
+
+    // Quotas per message class. A message class without quota is only limited by the global limits.
+    private static final Map<Class<?>, Quota> quotas = new ConcurrentHashMap<>();
+
+    static {
+        setQuota(RefreshTTLMessage.class, new Quota(Connection.MSG_THROTTLE_PER_10_SEC / 2, TimeUnit.SECONDS.toMillis(10)));
+        setQuota(AddDataMessage.class, new Quota(Connection.MSG_THROTTLE_PER_10_SEC / 2, TimeUnit.SECONDS.toMillis(10)));
+    }
+
+    // Applies to connections created after the call
+    public static void setQuota(Class<?> messageClass, Quota quota) {
+        quotas.put(messageClass, quota);
+    }
+
+    public static void removeQuota(Class<?> messageClass) {
+        quotas.remove(messageClass);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Instance fields
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private final SlidingWindow perSecWindow = new SlidingWindow(
+            new Quota(Connection.MSG_THROTTLE_PER_SEC, TimeUnit.SECONDS.toMillis(1)));
+    private final SlidingWindow per10SecWindow = new SlidingWindow(
+            new Quota(Connection.MSG_THROTTLE_PER_10_SEC, TimeUnit.SECONDS.toMillis(10)));
+    private final Map<Class<?>, SlidingWindow> windowsByClass = new HashMap<>();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    ThrottleLimiter() {
+        quotas.entrySet().stream().forEach(e -> windowsByClass.put(e.getKey(), new SlidingWindow(e.getValue())));
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Records a message of that class and checks if it exceeds one of the limits.
+     *
+     * @return True if the limit was exceeded
+     */
+    synchronized boolean violatesThrottleLimit(Class<?> messageClass, long now) {
+        // We record the message in all windows, also if one is violated already
+        boolean violatesPerSec = perSecWindow.add(now);
+        boolean violatesPer10Sec = per10SecWindow.add(now);
+        SlidingWindow classWindow = windowsByClass.get(messageClass);
+        boolean violatesQuota = classWindow != null && classWindow.add(now);
+
+        if (violatesPerSec)
+            log.error("violatesThrottleLimit MSG_THROTTLE_PER_SEC. elapsed=" + perSecWindow.getElapsed());
+        else if (violatesPer10Sec)
+            log.error("violatesThrottleLimit MSG_THROTTLE_PER_10_SEC. elapsed=" + per10SecWindow.getElapsed());
+
+        if (violatesQuota)
+            log.error("violatesThrottleLimit quota for " + messageClass.getSimpleName() + " (" +
+                    classWindow.quota + "). elapsed=" + classWindow.getElapsed());
+
+        return violatesPerSec || violatesPer10Sec || violatesQuota;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // SlidingWindow
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Timestamps of the last maxMessages messages in a ring buffer
+    private static class SlidingWindow {
+        private final Quota quota;
+        private final long[] timestamps;
+        private int next;
+        private int count;
+        private long elapsed;
+
+        SlidingWindow(Quota quota) {
+            this.quota = quota;
+            timestamps = new long[quota.maxMessages];
+        }
+
+        // Returns true if we got more than maxMessages messages within the window
+        boolean add(long now) {
+            // next points to the oldest timestamp once the buffer is full
+            boolean violated = false;
+            if (count == timestamps.length) {
+                elapsed = now - timestamps[next];
+                violated = elapsed < quota.windowMillis;
+            }
+            timestamps[next] = now;
+            next = (next + 1) % timestamps.length;
+            if (count < timestamps.length)
+                count++;
+            return violated;
+        }
+
+        // Time between the oldest and the newest message at the last check
+        long getElapsed() {
+            return elapsed;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.bitsquare.p2p.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Token bucket used for pacing the messages we send to a peer. It holds up to capacity tokens and gets refilled
+ * with tokensPerSec. Each message consumes one token, so we allow short bursts up to the capacity but never exceed
+ * the rate over a longer period.
+ */
+class TokenBucket {
+    private final int capacity;
+    private final double tokensPerNano;
+    private final LongSupplier nanoTime;
+
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(int capacity, int tokensPerSec) {
+        this(capacity, tokensPerSec, System::nanoTime);
+    }
+
+    // For tests
+    TokenBucket(int capacity, int tokensPerSec, LongSupplier nanoTime) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        checkArgument(tokensPerSec > 0, "tokensPerSec must be positive");
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSec / (double) TimeUnit.SECONDS.toNanos(1);
+        this.nanoTime = nanoTime;
+        tokens = capacity;
+        lastRefill = nanoTime.getAsLong();
+    }
+
+    synchronized boolean tryConsume() {
+        return tryConsume(0);
+    }
+
+    // Consumes a token only if reservedTokens tokens are left afterwards
+    synchronized boolean tryConsume(int reservedTokens) {
+        refill();
+        if (tokens >= 1 + reservedTokens) {
+            tokens--;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    // 0 if a token is available
+    synchronized long getNanosUntilNextToken() {
+        return getNanosUntilNextToken(0);
+    }
+
+    synchronized long getNanosUntilNextToken(int reservedTokens) {
+        refill();
+        double missing = 1 + reservedTokens - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / tokensPerNano);
+    }
+
+    private void refill() {
+        long now = nanoTime.getAsLong();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
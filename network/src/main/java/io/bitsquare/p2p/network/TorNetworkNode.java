@@ -68,6 +68,7 @@ public class TorNetworkNode extends NetworkNode {
             addSetupListener(setupListener);
 
         createExecutorService();
+        createSelectorTransport();
 
         // Create the tor node (takes about 6 sec.)
         createTorNode(torDir,
@@ -222,7 +223,10 @@ public class TorNetworkNode extends NetworkNode {
             Utilities.setThreadName("TorNetworkNode:CreateHiddenService");
             {
                 long ts = System.currentTimeMillis();
-                HiddenServiceDescriptor hiddenServiceDescriptor = torNode.createHiddenService(localPort, servicePort);
+                // Inbound connections from Tor come from the local proxy, so they can be served by the selector
+                // transport. Our outbound sockets are created by the SOCKS library and stay blocking.
+                HiddenServiceDescriptor hiddenServiceDescriptor = torNode.createHiddenService(localPort, servicePort,
+                        createServerSocket());
                 torNode.addHiddenServiceReadyListener(hiddenServiceDescriptor, descriptor -> {
                     log.debug("\n\n############################################################\n" +
                             "Hidden service published:" +
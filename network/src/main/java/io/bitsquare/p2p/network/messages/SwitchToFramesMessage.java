@@ -0,0 +1,27 @@
+package io.bitsquare.p2p.network.messages;
+
+import io.bitsquare.app.Version;
+import io.bitsquare.p2p.Message;
+
+/**
+ * Last object written to the ObjectOutputStream of a connection. All following messages in that direction are sent
+ * as length prefixed binary frames. Only sent to peers which support the BINARY_FRAMES capability.
+ */
+public final class SwitchToFramesMessage implements Message {
+    // That object is sent over the wire, so we need to take care of version compatibility.
+    private static final long serialVersionUID = Version.P2P_NETWORK_VERSION;
+
+    private final int messageVersion = Version.getP2PMessageVersion();
+
+    @Override
+    public int getMessageVersion() {
+        return messageVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "SwitchToFramesMessage{" +
+                "messageVersion=" + messageVersion +
+                '}';
+    }
+}
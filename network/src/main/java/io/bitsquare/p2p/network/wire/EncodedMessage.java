@@ -0,0 +1,67 @@
+package io.bitsquare.p2p.network.wire;
+
+import io.bitsquare.p2p.Message;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Message together with its binary frame. The frame gets encoded at the first send to a connection in binary frame
+ * mode and is reused for all other connections (e.g. at a broadcast), so we don't encode the same message for each
+ * peer. The frame must not be modified after encoding.
+ * Connections using the legacy Java serialization stream serialize the message themselves as the serialized bytes
+ * depend on the state of their ObjectOutputStream.
+ * <p/>
+ * A message we have received in a binary frame can carry that frame, so a relay forwards the received bytes instead
+ * of encoding the message again.
+ */
+public final class EncodedMessage {
+    private final Message message;
+    private byte[] frame;
+    private byte[] compressedFrame;
+
+    public EncodedMessage(Message message) {
+        this.message = checkNotNull(message, "message must not be null");
+    }
+
+    /**
+     * @param frame           The received frame, decompressed
+     * @param compressedFrame The received frame if it was compressed, otherwise null
+     */
+    public EncodedMessage(Message message, byte[] frame, @Nullable byte[] compressedFrame) {
+        this(message);
+        this.frame = checkNotNull(frame, "frame must not be null");
+        this.compressedFrame = compressedFrame;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public synchronized byte[] getFrame() throws IOException {
+        if (frame == null)
+            frame = MessageCodec.encode(message);
+        return frame;
+    }
+
+    /**
+     * @return The frame compressed by {@link MessageCodec#compress(byte[])}, used for peers supporting compression.
+     * Like the frame it gets compressed only once.
+     */
+    public synchronized byte[] getCompressedFrame() throws IOException {
+        if (compressedFrame == null)
+            compressedFrame = MessageCodec.compress(getFrame());
+        return compressedFrame;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedMessage{" +
+                "message=" + message +
+                ", frameSize=" + (frame != null ? frame.length : "not encoded") +
+                ", compressedFrameSize=" + (compressedFrame != null ? compressedFrame.length : "not compressed") +
+                '}';
+    }
+}
@@ -0,0 +1,47 @@
+package io.bitsquare.p2p.network.wire;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/**
+ * Length prefixed framing used for the binary wire mode of a connection.
+ * Each frame is written as a 4 byte big endian length followed by the encoded message
+ * (see {@link MessageCodec} for the layout of the frame content).
+ */
+public class FrameCodec {
+    public static final int LENGTH_PREFIX_SIZE = 4;
+
+    /**
+     * Writes the frame with its length prefix. The caller flushes the stream, so several frames can be written
+     * with one flush.
+     */
+    public static void writeFrame(DataOutputStream outputStream, byte[] frame) throws IOException {
+        outputStream.writeInt(frame.length);
+        outputStream.write(frame);
+    }
+
+    /**
+     * Blocks until a full frame has been read.
+     *
+     * @param maxFrameSize Frames larger than that are rejected before we allocate a buffer for them.
+     * @return The frame content without the length prefix
+     */
+    public static byte[] readFrame(DataInputStream inputStream, int maxFrameSize) throws IOException {
+        int length = inputStream.readInt();
+        checkFrameLength(length, maxFrameSize);
+
+        byte[] frame = new byte[length];
+        inputStream.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * Validates the length prefix of a frame.
+     */
+    public static void checkFrameLength(int length, int maxFrameSize) throws StreamCorruptedException {
+        if (length < MessageCodec.HEADER_SIZE || length > maxFrameSize)
+            throw new StreamCorruptedException("Invalid frame length. length=" + length + ", maxFrameSize=" + maxFrameSize);
+    }
+}
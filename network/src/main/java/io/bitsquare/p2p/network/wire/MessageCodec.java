@@ -0,0 +1,703 @@
+package io.bitsquare.p2p.network.wire;
+
+import io.bitsquare.common.crypto.SealedAndSigned;
+import io.bitsquare.common.crypto.Sig;
+import io.bitsquare.io.LookAheadObjectInputStream;
+import io.bitsquare.p2p.Message;
+import io.bitsquare.p2p.NodeAddress;
+import io.bitsquare.p2p.messaging.PrefixedSealedAndSignedMessage;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponse;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponseChunk;
+import io.bitsquare.p2p.peers.getdata.messages.GetUpdatedDataRequest;
+import io.bitsquare.p2p.peers.getdata.messages.KeysBloomFilter;
+import io.bitsquare.p2p.peers.getdata.messages.PreliminaryGetDataRequest;
+import io.bitsquare.p2p.peers.getdata.messages.SnapshotSegment;
+import io.bitsquare.p2p.peers.keepalive.messages.Ping;
+import io.bitsquare.p2p.peers.keepalive.messages.Pong;
+import io.bitsquare.p2p.storage.messages.AddDataMessage;
+import io.bitsquare.p2p.storage.messages.BroadcastMessage;
+import io.bitsquare.p2p.storage.messages.RefreshTTLMessage;
+import io.bitsquare.p2p.storage.payload.MailboxStoragePayload;
+import io.bitsquare.p2p.storage.payload.StoragePayload;
+import io.bitsquare.p2p.storage.storageentry.ProtectedMailboxStorageEntry;
+import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of the messages sent in the binary wire mode of a connection.
+ * <p>
+ * Frame content layout: 1 byte type tag, 4 bytes message version, message body.
+ * The most frequent messages of the p2p network (keep alive, storage and get data messages and the sealed
+ * direct/mailbox messages) have a field by field encoding. All other messages and the storage payloads which are
+ * defined outside of the p2p module (offers, trade statistics,...) are embedded with Java serialization.
+ * <p>
+ * If both peers support the COMPRESSION capability larger frames get sent compressed (see {@link #compress(byte[])}).
+ */
+public class MessageCodec {
+    private static final Logger log = LoggerFactory.getLogger(MessageCodec.class);
+
+    public static final int HEADER_SIZE = 5;
+
+    // Type tags are sent over the wire, so they must never be changed (append only).
+    private static final byte SERIALIZED = 0;
+    private static final byte PING = 1;
+    private static final byte PONG = 2;
+    private static final byte REFRESH_TTL = 3;
+    private static final byte ADD_DATA = 4;
+    private static final byte PRELIMINARY_GET_DATA_REQUEST = 5;
+    private static final byte GET_UPDATED_DATA_REQUEST = 6;
+    private static final byte GET_DATA_RESPONSE = 7;
+    private static final byte PREFIXED_SEALED_AND_SIGNED = 8;
+    private static final byte COMPRESSED = 9;
+    private static final byte GET_DATA_RESPONSE_CHUNK = 10;
+    // Get data requests with a KeysBloomFilter, only sent to peers supporting the BLOOM_FILTER_DATA_REQUEST capability
+    private static final byte PRELIMINARY_GET_DATA_REQUEST_WITH_FILTER = 11;
+    private static final byte GET_UPDATED_DATA_REQUEST_WITH_FILTER = 12;
+    // Contains a compressed data set, see encodeCompressedDataSet
+    private static final byte SNAPSHOT_SEGMENT = 13;
+
+    // Smaller frames are not worth the cpu time for compressing
+    public static final int COMPRESSION_THRESHOLD = 1024;
+    // Max. size of the encoded data set of a SnapshotSegment before compression
+    public static final int MAX_SNAPSHOT_SEGMENT_SIZE = 5 * 1024 * 1024;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public static byte[] encode(Message message) throws IOException {
+        byte tag = getTag(message);
+        if (tag != SERIALIZED) {
+            try {
+                return encode(tag, message);
+            } catch (Throwable t) {
+                // Can happen if a public key could not be restored at Java deserialization, we still want to relay
+                // the message the same way as before.
+                log.warn("Binary encoding of " + message.getClass().getSimpleName() + " failed. " +
+                        "We use Java serialization instead. " + t.getMessage());
+            }
+        }
+        return encode(SERIALIZED, message);
+    }
+
+    public static Message decode(byte[] frame) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, HEADER_SIZE, frame.length - HEADER_SIZE));
+        Message message;
+        switch (frame[0]) {
+            case SERIALIZED:
+                Object object = deserialize(in);
+                if (!(object instanceof Message))
+                    throw new StreamCorruptedException("Frame does not contain a message. class=" + object.getClass().getName());
+                message = (Message) object;
+                break;
+            case PING:
+                message = new Ping(in.readInt(), in.readInt());
+                break;
+            case PONG:
+                message = new Pong(in.readInt());
+                break;
+            case REFRESH_TTL:
+                message = new RefreshTTLMessage(readByteArray(in), readByteArray(in), readByteArray(in), in.readInt());
+                break;
+            case ADD_DATA:
+                message = new AddDataMessage(readProtectedStorageEntry(in));
+                break;
+            case PRELIMINARY_GET_DATA_REQUEST:
+                message = new PreliminaryGetDataRequest(in.readInt(), readByteArraySet(in), null, readCapabilities(in));
+                break;
+            case GET_UPDATED_DATA_REQUEST:
+                message = new GetUpdatedDataRequest(readNodeAddress(in), in.readInt(), readByteArraySet(in));
+                break;
+            case PRELIMINARY_GET_DATA_REQUEST_WITH_FILTER:
+                message = new PreliminaryGetDataRequest(in.readInt(), readByteArraySet(in), readKeysBloomFilter(in),
+                        readCapabilities(in));
+                break;
+            case GET_UPDATED_DATA_REQUEST_WITH_FILTER:
+                message = new GetUpdatedDataRequest(readNodeAddress(in), in.readInt(), readByteArraySet(in),
+                        readKeysBloomFilter(in));
+                break;
+            case GET_DATA_RESPONSE:
+                message = new GetDataResponse(readDataSet(in), in.readInt(), in.readBoolean(), readCapabilities(in));
+                break;
+            case GET_DATA_RESPONSE_CHUNK:
+                message = new GetDataResponseChunk(readDataSet(in), in.readInt(), in.readBoolean(), in.readInt(),
+                        in.readBoolean(), readCapabilities(in));
+                break;
+            case PREFIXED_SEALED_AND_SIGNED:
+                message = readPrefixedSealedAndSignedMessage(in);
+                break;
+            case SNAPSHOT_SEGMENT:
+                int requestNonce = in.readInt();
+                long periodStart = in.readLong();
+                byte[] compressedDataSet = readByteArray(in);
+                if (compressedDataSet == null)
+                    throw new StreamCorruptedException("SnapshotSegment without data.");
+                message = new SnapshotSegment(requestNonce, periodStart, compressedDataSet,
+                        decodeCompressedDataSet(compressedDataSet));
+                break;
+            case COMPRESSED:
+                throw new StreamCorruptedException("Compressed frame must be decompressed before decoding.");
+            default:
+                throw new StreamCorruptedException("Unknown frame type. tag=" + frame[0]);
+        }
+
+        if (in.available() > 0)
+            throw new StreamCorruptedException("Frame has unexpected trailing data. message=" + message.getClass().getSimpleName());
+
+        return message;
+    }
+
+    /**
+     * Compresses a frame with Deflater if it is larger than COMPRESSION_THRESHOLD. The compressed frame keeps the
+     * header layout (tag COMPRESSED, message version of the inner frame) followed by the length of the inner frame
+     * and the deflated inner frame.
+     *
+     * @return The compressed frame or the given frame if it is too small or does not get smaller by compression
+     */
+    public static byte[] compress(byte[] frame) throws IOException {
+        // The data of a SnapshotSegment is compressed already
+        if (frame.length <= COMPRESSION_THRESHOLD || frame[0] == COMPRESSED || frame[0] == SNAPSHOT_SEGMENT)
+            return frame;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(frame.length / 2);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(COMPRESSED);
+        out.writeInt(getMessageVersion(frame));
+        out.writeInt(frame.length);
+        deflate(out, frame, Deflater.BEST_SPEED);
+        byte[] compressed = bos.toByteArray();
+        return compressed.length < frame.length ? compressed : frame;
+    }
+
+    /**
+     * @param maxFrameSize Compressed frames which would inflate to more than that are rejected.
+     * @return The inflated inner frame if the frame is compressed, otherwise the given frame
+     */
+    public static byte[] decompress(byte[] frame, int maxFrameSize) throws IOException {
+        if (!isCompressed(frame))
+            return frame;
+
+        ByteBuffer header = ByteBuffer.wrap(frame, HEADER_SIZE, frame.length - HEADER_SIZE);
+        if (header.remaining() < 4)
+            throw new StreamCorruptedException("Compressed frame is too short. length=" + frame.length);
+
+        int length = header.getInt();
+        FrameCodec.checkFrameLength(length, maxFrameSize);
+
+        byte[] inflated = inflate(frame, HEADER_SIZE + 4, frame.length - HEADER_SIZE - 4, length);
+        if (inflated[0] == COMPRESSED || getMessageVersion(inflated) != getMessageVersion(frame))
+            throw new StreamCorruptedException("Invalid inner frame of compressed frame.");
+
+        return inflated;
+    }
+
+    public static boolean isCompressed(byte[] frame) {
+        return frame[0] == COMPRESSED;
+    }
+
+    /**
+     * @return The class of the message if the frame contains a binary encoded AddDataMessage or RefreshTTLMessage,
+     * otherwise null. We receive those relayed messages from several peers and can drop duplicates before decoding.
+     */
+    @Nullable
+    public static Class<? extends BroadcastMessage> getRelayedMessageClass(byte[] frame) {
+        if (frame[0] == ADD_DATA)
+            return AddDataMessage.class;
+        else if (frame[0] == REFRESH_TTL)
+            return RefreshTTLMessage.class;
+        else
+            return null;
+    }
+
+    /**
+     * @return The message version of the sender as written to the frame header. It can be checked before the
+     * frame gets decoded.
+     */
+    public static int getMessageVersion(byte[] frame) {
+        return ByteBuffer.wrap(frame, 1, 4).getInt();
+    }
+
+    /**
+     * Encodes a single entry with the same layout as the entries of a data set. Used for keeping entries in
+     * serialized form (see OffHeapEntryMap).
+     */
+    public static byte[] encodeProtectedStorageEntry(ProtectedStorageEntry protectedStorageEntry) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        writeProtectedStorageEntry(out, protectedStorageEntry);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Encodes the entries with the layout of a data set and compresses them with the best compression, as the result
+     * gets stored and sent many times (see SnapshotSegment). Layout: length of the encoded data set, deflated data.
+     */
+    public static byte[] encodeCompressedDataSet(Collection<ProtectedStorageEntry> dataSet) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        writeDataSet(out, dataSet);
+        out.flush();
+        byte[] encoded = bos.toByteArray();
+        if (encoded.length > MAX_SNAPSHOT_SEGMENT_SIZE)
+            throw new IOException("Encoded data set exceeds MAX_SNAPSHOT_SEGMENT_SIZE. length=" + encoded.length);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(encoded.length / 4);
+        DataOutputStream compressedOut = new DataOutputStream(compressed);
+        compressedOut.writeInt(encoded.length);
+        deflate(compressedOut, encoded, Deflater.BEST_COMPRESSION);
+        return compressed.toByteArray();
+    }
+
+    public static HashSet<ProtectedStorageEntry> decodeCompressedDataSet(byte[] bytes)
+            throws IOException, ClassNotFoundException {
+        if (bytes.length < 4)
+            throw new StreamCorruptedException("Compressed data set is too short. length=" + bytes.length);
+
+        int length = ByteBuffer.wrap(bytes).getInt();
+        if (length < 0 || length > MAX_SNAPSHOT_SEGMENT_SIZE)
+            throw new StreamCorruptedException("Invalid length of compressed data set. length=" + length);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflate(bytes, 4, bytes.length - 4, length)));
+        HashSet<ProtectedStorageEntry> dataSet = readDataSet(in);
+        if (in.available() > 0)
+            throw new StreamCorruptedException("Data set has unexpected trailing data.");
+        return dataSet;
+    }
+
+    public static ProtectedStorageEntry decodeProtectedStorageEntry(byte[] bytes)
+            throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        ProtectedStorageEntry protectedStorageEntry = readProtectedStorageEntry(in);
+        if (in.available() > 0)
+            throw new StreamCorruptedException("Entry has unexpected trailing data.");
+        return protectedStorageEntry;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Encode
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static byte getTag(Message message) {
+        if (message instanceof Ping)
+            return PING;
+        else if (message instanceof Pong)
+            return PONG;
+        else if (message instanceof RefreshTTLMessage)
+            return REFRESH_TTL;
+        else if (message instanceof AddDataMessage)
+            return ADD_DATA;
+        else if (message instanceof PreliminaryGetDataRequest)
+            return ((PreliminaryGetDataRequest) message).getExcludedKeysFilter() != null ?
+                    PRELIMINARY_GET_DATA_REQUEST_WITH_FILTER : PRELIMINARY_GET_DATA_REQUEST;
+        else if (message instanceof GetUpdatedDataRequest)
+            return ((GetUpdatedDataRequest) message).getExcludedKeysFilter() != null ?
+                    GET_UPDATED_DATA_REQUEST_WITH_FILTER : GET_UPDATED_DATA_REQUEST;
+        else if (message instanceof GetDataResponse)
+            return GET_DATA_RESPONSE;
+        else if (message instanceof GetDataResponseChunk)
+            return GET_DATA_RESPONSE_CHUNK;
+        else if (message instanceof PrefixedSealedAndSignedMessage)
+            return PREFIXED_SEALED_AND_SIGNED;
+        else if (message instanceof SnapshotSegment)
+            return SNAPSHOT_SEGMENT;
+        else
+            return SERIALIZED;
+    }
+
+    private static byte[] encode(byte tag, Message message) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(tag);
+        out.writeInt(message.getMessageVersion());
+        switch (tag) {
+            case SERIALIZED:
+                serialize(out, message);
+                break;
+            case PING:
+                Ping ping = (Ping) message;
+                out.writeInt(ping.nonce);
+                out.writeInt(ping.lastRoundTripTime);
+                break;
+            case PONG:
+                out.writeInt(((Pong) message).requestNonce);
+                break;
+            case REFRESH_TTL:
+                RefreshTTLMessage refreshTTLMessage = (RefreshTTLMessage) message;
+                writeByteArray(out, refreshTTLMessage.hashOfDataAndSeqNr);
+                writeByteArray(out, refreshTTLMessage.signature);
+                writeByteArray(out, refreshTTLMessage.hashOfPayload);
+                out.writeInt(refreshTTLMessage.sequenceNumber);
+                break;
+            case ADD_DATA:
+                writeProtectedStorageEntry(out, ((AddDataMessage) message).protectedStorageEntry);
+                break;
+            case PRELIMINARY_GET_DATA_REQUEST:
+                PreliminaryGetDataRequest preliminaryGetDataRequest = (PreliminaryGetDataRequest) message;
+                out.writeInt(preliminaryGetDataRequest.getNonce());
+                writeByteArraySet(out, preliminaryGetDataRequest.getExcludedKeys());
+                writeCapabilities(out, preliminaryGetDataRequest.getSupportedCapabilities());
+                break;
+            case GET_UPDATED_DATA_REQUEST:
+                GetUpdatedDataRequest getUpdatedDataRequest = (GetUpdatedDataRequest) message;
+                writeNodeAddress(out, getUpdatedDataRequest.getSenderNodeAddress());
+                out.writeInt(getUpdatedDataRequest.getNonce());
+                writeByteArraySet(out, getUpdatedDataRequest.getExcludedKeys());
+                break;
+            case PRELIMINARY_GET_DATA_REQUEST_WITH_FILTER:
+                PreliminaryGetDataRequest preliminaryGetDataRequestWithFilter = (PreliminaryGetDataRequest) message;
+                out.writeInt(preliminaryGetDataRequestWithFilter.getNonce());
+                writeByteArraySet(out, preliminaryGetDataRequestWithFilter.getExcludedKeys());
+                writeKeysBloomFilter(out, preliminaryGetDataRequestWithFilter.getExcludedKeysFilter());
+                writeCapabilities(out, preliminaryGetDataRequestWithFilter.getSupportedCapabilities());
+                break;
+            case GET_UPDATED_DATA_REQUEST_WITH_FILTER:
+                GetUpdatedDataRequest getUpdatedDataRequestWithFilter = (GetUpdatedDataRequest) message;
+                writeNodeAddress(out, getUpdatedDataRequestWithFilter.getSenderNodeAddress());
+                out.writeInt(getUpdatedDataRequestWithFilter.getNonce());
+                writeByteArraySet(out, getUpdatedDataRequestWithFilter.getExcludedKeys());
+                writeKeysBloomFilter(out, getUpdatedDataRequestWithFilter.getExcludedKeysFilter());
+                break;
+            case GET_DATA_RESPONSE:
+                GetDataResponse getDataResponse = (GetDataResponse) message;
+                writeDataSet(out, getDataResponse.dataSet);
+                out.writeInt(getDataResponse.requestNonce);
+                out.writeBoolean(getDataResponse.isGetUpdatedDataResponse);
+                writeCapabilities(out, getDataResponse.getSupportedCapabilities());
+                break;
+            case GET_DATA_RESPONSE_CHUNK:
+                GetDataResponseChunk getDataResponseChunk = (GetDataResponseChunk) message;
+                writeDataSet(out, getDataResponseChunk.dataSet);
+                out.writeInt(getDataResponseChunk.requestNonce);
+                out.writeBoolean(getDataResponseChunk.isGetUpdatedDataResponse);
+                out.writeInt(getDataResponseChunk.continuationToken);
+                out.writeBoolean(getDataResponseChunk.isLastChunk);
+                writeCapabilities(out, getDataResponseChunk.getSupportedCapabilities());
+                break;
+            case PREFIXED_SEALED_AND_SIGNED:
+                writePrefixedSealedAndSignedMessage(out, (PrefixedSealedAndSignedMessage) message);
+                break;
+            case SNAPSHOT_SEGMENT:
+                SnapshotSegment snapshotSegment = (SnapshotSegment) message;
+                out.writeInt(snapshotSegment.requestNonce);
+                out.writeLong(snapshotSegment.periodStart);
+                writeByteArray(out, snapshotSegment.compressedDataSet);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown frame type. tag=" + tag);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static void writeDataSet(DataOutputStream out, Collection<ProtectedStorageEntry> dataSet) throws IOException {
+        out.writeInt(dataSet.size());
+        for (ProtectedStorageEntry protectedStorageEntry : dataSet) {
+            writeProtectedStorageEntry(out, protectedStorageEntry);
+        }
+    }
+
+    private static void writeProtectedStorageEntry(DataOutputStream out, ProtectedStorageEntry protectedStorageEntry)
+            throws IOException {
+        boolean isMailboxEntry = protectedStorageEntry instanceof ProtectedMailboxStorageEntry;
+        out.writeBoolean(isMailboxEntry);
+        StoragePayload storagePayload = protectedStorageEntry.getStoragePayload();
+        if (storagePayload instanceof MailboxStoragePayload) {
+            MailboxStoragePayload mailboxStoragePayload = (MailboxStoragePayload) storagePayload;
+            out.writeBoolean(true);
+            writePrefixedSealedAndSignedMessage(out, mailboxStoragePayload.prefixedSealedAndSignedMessage);
+            writePublicKey(out, mailboxStoragePayload.senderPubKeyForAddOperation);
+            writePublicKey(out, mailboxStoragePayload.receiverPubKeyForRemoveOperation);
+        } else {
+            out.writeBoolean(false);
+            serialize(out, storagePayload);
+        }
+        writePublicKey(out, protectedStorageEntry.ownerPubKey);
+        out.writeInt(protectedStorageEntry.sequenceNumber);
+        writeByteArray(out, protectedStorageEntry.signature);
+        out.writeLong(protectedStorageEntry.creationTimeStamp);
+        if (isMailboxEntry)
+            writePublicKey(out, ((ProtectedMailboxStorageEntry) protectedStorageEntry).receiversPubKey);
+    }
+
+    private static void writePrefixedSealedAndSignedMessage(DataOutputStream out, PrefixedSealedAndSignedMessage message)
+            throws IOException {
+        writeNodeAddress(out, message.getSenderNodeAddress());
+        SealedAndSigned sealedAndSigned = message.sealedAndSigned;
+        writeByteArray(out, sealedAndSigned.encryptedSecretKey);
+        writeByteArray(out, sealedAndSigned.encryptedPayloadWithHmac);
+        writeByteArray(out, sealedAndSigned.signature);
+        writePublicKey(out, sealedAndSigned.sigPublicKey);
+        writeByteArray(out, message.addressPrefixHash);
+        out.writeUTF(message.getUID());
+    }
+
+    private static void writePublicKey(DataOutputStream out, PublicKey publicKey) throws IOException {
+        writeByteArray(out, new X509EncodedKeySpec(publicKey.getEncoded()).getEncoded());
+    }
+
+    private static void writeNodeAddress(DataOutputStream out, @Nullable NodeAddress nodeAddress) throws IOException {
+        out.writeBoolean(nodeAddress != null);
+        if (nodeAddress != null)
+            out.writeUTF(nodeAddress.getFullAddress());
+    }
+
+    private static void writeCapabilities(DataOutputStream out, @Nullable ArrayList<Integer> capabilities) throws IOException {
+        out.writeInt(capabilities != null ? capabilities.size() : -1);
+        if (capabilities != null) {
+            for (Integer capability : capabilities) {
+                out.writeInt(capability);
+            }
+        }
+    }
+
+    private static void writeByteArraySet(DataOutputStream out, @Nullable Set<byte[]> set) throws IOException {
+        out.writeInt(set != null ? set.size() : -1);
+        if (set != null) {
+            for (byte[] bytes : set) {
+                writeByteArray(out, bytes);
+            }
+        }
+    }
+
+    private static void writeKeysBloomFilter(DataOutputStream out, KeysBloomFilter keysBloomFilter) throws IOException {
+        out.writeInt(keysBloomFilter.getSalt());
+        out.writeInt(keysBloomFilter.getNumHashFunctions());
+        writeByteArray(out, keysBloomFilter.getBits());
+    }
+
+    private static void writeByteArray(DataOutputStream out, @Nullable byte[] bytes) throws IOException {
+        out.writeInt(bytes != null ? bytes.length : -1);
+        if (bytes != null)
+            out.write(bytes);
+    }
+
+    private static void serialize(DataOutputStream out, Serializable serializable) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(bos)) {
+            objectOutputStream.writeObject(serializable);
+        }
+        writeByteArray(out, bos.toByteArray());
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Decode
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static HashSet<ProtectedStorageEntry> readDataSet(DataInputStream in)
+            throws IOException, ClassNotFoundException {
+        int size = readCount(in);
+        HashSet<ProtectedStorageEntry> dataSet = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            dataSet.add(readProtectedStorageEntry(in));
+        }
+        return dataSet;
+    }
+
+    private static ProtectedStorageEntry readProtectedStorageEntry(DataInputStream in)
+            throws IOException, ClassNotFoundException {
+        boolean isMailboxEntry = in.readBoolean();
+        StoragePayload storagePayload;
+        if (in.readBoolean()) {
+            storagePayload = new MailboxStoragePayload(readPrefixedSealedAndSignedMessage(in),
+                    readPublicKey(in),
+                    readPublicKey(in));
+        } else {
+            Object object = deserialize(in);
+            if (!(object instanceof StoragePayload))
+                throw new StreamCorruptedException("Entry does not contain a storage payload. class=" + object.getClass().getName());
+            storagePayload = (StoragePayload) object;
+        }
+        PublicKey ownerPubKey = readPublicKey(in);
+        int sequenceNumber = in.readInt();
+        byte[] signature = readByteArray(in);
+        long creationTimeStamp = in.readLong();
+
+        ProtectedStorageEntry protectedStorageEntry;
+        if (isMailboxEntry) {
+            if (!(storagePayload instanceof MailboxStoragePayload))
+                throw new StreamCorruptedException("Mailbox entry does not contain a MailboxStoragePayload.");
+
+            protectedStorageEntry = new ProtectedMailboxStorageEntry((MailboxStoragePayload) storagePayload,
+                    ownerPubKey, sequenceNumber, signature, readPublicKey(in));
+        } else {
+            protectedStorageEntry = new ProtectedStorageEntry(storagePayload, ownerPubKey, sequenceNumber, signature);
+        }
+        protectedStorageEntry.creationTimeStamp = creationTimeStamp;
+        protectedStorageEntry.checkCreationTimeStamp();
+        return protectedStorageEntry;
+    }
+
+    private static PrefixedSealedAndSignedMessage readPrefixedSealedAndSignedMessage(DataInputStream in) throws IOException {
+        NodeAddress senderNodeAddress = readNodeAddress(in);
+        SealedAndSigned sealedAndSigned = new SealedAndSigned(readByteArray(in),
+                readByteArray(in),
+                readByteArray(in),
+                readPublicKey(in));
+        byte[] addressPrefixHash = readByteArray(in);
+        String uid = in.readUTF();
+        try {
+            return new PrefixedSealedAndSignedMessage(senderNodeAddress, sealedAndSigned, addressPrefixHash, uid);
+        } catch (NullPointerException e) {
+            throw new StreamCorruptedException("Invalid PrefixedSealedAndSignedMessage. " + e.getMessage());
+        }
+    }
+
+    private static PublicKey readPublicKey(DataInputStream in) throws IOException {
+        byte[] bytes = readByteArray(in);
+        if (bytes == null)
+            throw new StreamCorruptedException("Public key must not be null.");
+
+        try {
+            return KeyFactory.getInstance(Sig.KEY_ALGO, "BC").generatePublic(new X509EncodedKeySpec(bytes));
+        } catch (InvalidKeySpecException e) {
+            throw new StreamCorruptedException("Invalid public key. " + e.getMessage());
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            throw new IOException("Could not create KeyFactory. " + e.getMessage(), e);
+        }
+    }
+
+    @Nullable
+    private static NodeAddress readNodeAddress(DataInputStream in) throws IOException {
+        if (!in.readBoolean())
+            return null;
+
+        try {
+            return new NodeAddress(in.readUTF());
+        } catch (RuntimeException e) {
+            throw new StreamCorruptedException("Invalid node address. " + e.getMessage());
+        }
+    }
+
+    @Nullable
+    private static ArrayList<Integer> readCapabilities(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size == -1)
+            return null;
+
+        checkCount(in, size, 4);
+        ArrayList<Integer> capabilities = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            capabilities.add(in.readInt());
+        }
+        return capabilities;
+    }
+
+    @Nullable
+    private static Set<byte[]> readByteArraySet(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size == -1)
+            return null;
+
+        checkCount(in, size, 4);
+        Set<byte[]> set = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            set.add(readByteArray(in));
+        }
+        return set;
+    }
+
+    private static KeysBloomFilter readKeysBloomFilter(DataInputStream in) throws IOException {
+        int salt = in.readInt();
+        int numHashFunctions = in.readInt();
+        byte[] bits = readByteArray(in);
+        if (bits == null || bits.length == 0 || bits.length > KeysBloomFilter.MAX_NUM_BYTES ||
+                numHashFunctions <= 0 || numHashFunctions > KeysBloomFilter.MAX_NUM_HASH_FUNCTIONS)
+            throw new StreamCorruptedException("Invalid KeysBloomFilter in frame. numHashFunctions=" + numHashFunctions);
+        return new KeysBloomFilter(salt, numHashFunctions, bits);
+    }
+
+    @Nullable
+    private static byte[] readByteArray(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1)
+            return null;
+
+        checkCount(in, length, 1);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static Object deserialize(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte[] bytes = readByteArray(in);
+        if (bytes == null)
+            throw new StreamCorruptedException("Serialized object must not be null.");
+
+        try (ObjectInputStream objectInputStream = new LookAheadObjectInputStream(new ByteArrayInputStream(bytes), true)) {
+            return objectInputStream.readObject();
+        }
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        checkCount(in, count, 1);
+        return count;
+    }
+
+    // We don't allocate anything based on a count which cannot be backed by the remaining frame data
+    private static void checkCount(DataInputStream in, int count, int minBytesPerItem) throws IOException {
+        if (count < 0 || (long) count * minBytesPerItem > in.available())
+            throw new StreamCorruptedException("Invalid count in frame. count=" + count + ", remaining=" + in.available());
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Compression
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static void deflate(OutputStream out, byte[] data, int level) throws IOException {
+        Deflater deflater = new Deflater(level);
+        try (DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(out, deflater)) {
+            deflaterOutputStream.write(data);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // The deflated data must inflate to exactly length bytes
+    private static byte[] inflate(byte[] input, int offset, int inputLength, int length) throws IOException {
+        byte[] inflated = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input, offset, inputLength);
+            int count = 0;
+            while (!inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary()) {
+                if (count < length) {
+                    count += inflater.inflate(inflated, count, length - count);
+                } else if (inflater.inflate(new byte[1]) > 0) {
+                    // Only the end of the deflate stream may follow the announced length
+                    throw new StreamCorruptedException("Compressed data exceeds its length. length=" + length);
+                }
+            }
+            if (count != length || !inflater.finished() || inflater.getRemaining() > 0)
+                throw new StreamCorruptedException("Compressed data does not match its length. length=" + length);
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Invalid compressed data. " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return inflated;
+    }
+}
@@ -10,6 +10,7 @@ import io.bitsquare.common.util.Utilities;
 import io.bitsquare.p2p.NodeAddress;
 import io.bitsquare.p2p.network.Connection;
 import io.bitsquare.p2p.network.NetworkNode;
+import io.bitsquare.p2p.network.wire.EncodedMessage;
 import io.bitsquare.p2p.storage.messages.BroadcastMessage;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -18,7 +19,6 @@ import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 public class BroadcastHandler implements PeerManager.Listener {
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -61,6 +61,8 @@ public class BroadcastHandler implements PeerManager.Listener {
     private int numOfCompletedBroadcasts = 0;
     private int numOfFailedBroadcasts = 0;
     private BroadcastMessage message;
+    // Shared by all connections, so the message gets encoded only once for all peers
+    private EncodedMessage encodedMessage;
     private ResultHandler resultHandler;
     @Nullable
     private Listener listener;
@@ -92,19 +94,16 @@ public class BroadcastHandler implements PeerManager.Listener {
     public void broadcast(BroadcastMessage message, @Nullable NodeAddress sender, ResultHandler resultHandler,
                           @Nullable Listener listener, boolean isDataOwner) {
         this.message = message;
+        this.encodedMessage = message.getEncodedMessage();
         this.resultHandler = resultHandler;
         this.listener = listener;
 
         Log.traceCall("Sender=" + sender + "\n\t" +
                 "Message=" + Utilities.toTruncatedString(message));
-        Set<Connection> connectedPeersSet = networkNode.getConfirmedConnections()
-                .stream()
-                .filter(connection -> !connection.getPeersNodeAddressOptional().get().equals(sender))
-                .collect(Collectors.toSet());
-        if (!connectedPeersSet.isEmpty()) {
+        List<Connection> connectedPeersList = networkNode.getConfirmedConnectionsExcept(sender);
+        if (!connectedPeersList.isEmpty()) {
             numOfCompletedBroadcasts = 0;
 
-            List<Connection> connectedPeersList = new ArrayList<>(connectedPeersSet);
             Collections.shuffle(connectedPeersList);
             numOfPeers = connectedPeersList.size();
             int delay = 50;
@@ -126,7 +125,7 @@ public class BroadcastHandler implements PeerManager.Listener {
                 onFault(errorMessage, false);
             }, timeoutDelay);
 
-            log.debug("Broadcast message to {} peers out of {} total connected peers.", numOfPeers, connectedPeersSet.size());
+            log.debug("Broadcast message to {} peers out of {} total connected peers.", numOfPeers, connectedPeersList.size());
             for (int i = 0; i < numOfPeers; i++) {
                 if (stopped)
                     break;  // do not continue sending after a timeout or a cancellation
@@ -150,7 +149,7 @@ public class BroadcastHandler implements PeerManager.Listener {
                 if (!connection.isCapabilityRequired(message) || connection.isCapabilitySupported(message)) {
                     NodeAddress nodeAddress = connection.getPeersNodeAddressOptional().get();
                     log.trace("Broadcast message to " + nodeAddress + ".");
-                    SettableFuture<Connection> future = networkNode.sendMessage(connection, message);
+                    SettableFuture<Connection> future = networkNode.sendMessage(connection, encodedMessage);
                     Futures.addCallback(future, new FutureCallback<Connection>() {
                         @Override
                         public void onSuccess(Connection connection) {
@@ -614,7 +614,8 @@ public class PeerManager implements ConnectionListener {
             StringBuilder result = new StringBuilder("\n\n------------------------------------------------------------\n" +
                     "Connected peers for node " + networkNode.getNodeAddress() + ":");
             networkNode.getConfirmedConnections().stream().forEach(e -> result.append("\n")
-                    .append(e.getPeersNodeAddressOptional().get()).append(" ").append(e.getPeerType()));
+                    .append(e.getPeersNodeAddressOptional().get()).append(" ").append(e.getPeerType())
+                    .append(" ").append(e.getSendQueue()));
             result.append("\n------------------------------------------------------------\n");
             log.debug(result.toString());
         }
@@ -3,34 +3,46 @@ package io.bitsquare.p2p.peers.getdata;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
+import io.bitsquare.app.Capabilities;
 import io.bitsquare.app.Log;
 import io.bitsquare.common.Timer;
 import io.bitsquare.common.UserThread;
+import io.bitsquare.common.handlers.ResultHandler;
 import io.bitsquare.common.util.Utilities;
+import io.bitsquare.p2p.Message;
 import io.bitsquare.p2p.network.CloseConnectionReason;
 import io.bitsquare.p2p.network.Connection;
 import io.bitsquare.p2p.network.NetworkNode;
+import io.bitsquare.p2p.network.SendQueue;
 import io.bitsquare.p2p.peers.getdata.messages.GetDataRequest;
 import io.bitsquare.p2p.peers.getdata.messages.GetDataResponse;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponseChunk;
+import io.bitsquare.p2p.peers.getdata.messages.GetFilteredDataRequest;
 import io.bitsquare.p2p.peers.getdata.messages.GetUpdatedDataRequest;
+import io.bitsquare.p2p.peers.getdata.messages.KeysBloomFilter;
+import io.bitsquare.p2p.peers.getdata.messages.SnapshotSegment;
 import io.bitsquare.p2p.storage.P2PDataStorage;
+import io.bitsquare.p2p.storage.SnapshotSegmentStore;
 import io.bitsquare.p2p.storage.payload.CapabilityRequiringPayload;
+import io.bitsquare.p2p.storage.payload.PersistedStoragePayload;
 import io.bitsquare.p2p.storage.payload.StoragePayload;
 import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.io.IOException;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class GetDataRequestHandler {
     private static final Logger log = LoggerFactory.getLogger(GetDataRequestHandler.class);
 
     private static final long TIME_OUT_SEC = 40;
+    private static final int MAX_ENTRIES_PER_CHUNK = 50;
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -73,7 +85,6 @@ public class GetDataRequestHandler {
     public void handle(GetDataRequest getDataRequest, final Connection connection) {
         Log.traceCall(getDataRequest + "\n\tconnection=" + connection);
 
-        final HashSet<ProtectedStorageEntry> filteredDataSet = new HashSet<>();
         final Set<Integer> lookupSet = new HashSet<>();
 
         Set<P2PDataStorage.ByteArray> excludedItems = getDataRequest.getExcludedKeys() != null ?
@@ -82,7 +93,168 @@ public class GetDataRequestHandler {
                         .collect(Collectors.toSet())
                 : new HashSet<>();
 
-        for (ProtectedStorageEntry protectedStorageEntry : dataStorage.getFilteredValues(excludedItems)) {
+        // The filter is only sent by peers supporting the BLOOM_FILTER_DATA_REQUEST capability. We don't send the
+        // items the peer has probably already. The peer fills the filter only with the keys of its
+        // PersistedStoragePayload items, so we apply it only to those.
+        KeysBloomFilter excludedKeysFilter = getDataRequest.getExcludedKeysFilter();
+        Set<P2PDataStorage.ByteArray> filteredKeys = excludedKeysFilter != null ?
+                getFilteredKeys(excludedKeysFilter) : new HashSet<>();
+        Predicate<P2PDataStorage.ByteArray> isExcludedKey = key -> excludedItems.contains(key) || filteredKeys.contains(key);
+
+        boolean isGetUpdatedDataResponse = getDataRequest instanceof GetUpdatedDataRequest;
+        if (Capabilities.isSupportedByBoth(Capabilities.Capability.CHUNKED_DATA_RESPONSE, connection.getSupportedCapabilities())) {
+            // The entries of the segments we send are not sent again as single entries
+            List<SnapshotSegmentStore.Segment> segments = getSegmentsToSend(isExcludedKey, connection);
+            Set<P2PDataStorage.ByteArray> keysOfSegments = new HashSet<>();
+            segments.stream().forEach(segment -> keysOfSegments.addAll(segment.keys));
+            Predicate<P2PDataStorage.ByteArray> isExcludedOrInSegment = isExcludedKey.or(keysOfSegments::contains);
+
+            Iterator<P2PDataStorage.ByteArray> keys = getKeys(isExcludedOrInSegment);
+            int nonce = getDataRequest.getNonce();
+            sendNextSegment(segments.iterator(), nonce, connection,
+                    () -> sendNextChunk(keys, lookupSet, nonce, isGetUpdatedDataResponse, 0, connection));
+        } else {
+            Iterator<P2PDataStorage.ByteArray> keys = getKeys(isExcludedKey);
+            HashSet<ProtectedStorageEntry> filteredDataSet = getNextDataSet(keys, lookupSet, Integer.MAX_VALUE, connection);
+            GetDataResponse getDataResponse = new GetDataResponse(filteredDataSet, getDataRequest.getNonce(),
+                    isGetUpdatedDataResponse);
+            sendResponse(getDataResponse, connection, this::onComplete);
+        }
+    }
+
+    // Second round of a request with a KeysBloomFilter. The peer sends a filter of the persisted items it has got by
+    // now, we send the ones it does not contain (the false positives of the first filter) in a single response.
+    public void handle(GetFilteredDataRequest getFilteredDataRequest, final Connection connection) {
+        Log.traceCall(getFilteredDataRequest + "\n\tconnection=" + connection);
+
+        Iterator<P2PDataStorage.ByteArray> keys = getKeysNotInFilter(getFilteredDataRequest.getKnownKeysFilter()).iterator();
+        HashSet<ProtectedStorageEntry> dataSet = getNextDataSet(keys, new HashSet<>(), Integer.MAX_VALUE, connection);
+        GetDataResponse getDataResponse = new GetDataResponse(dataSet, getFilteredDataRequest.getNonce(),
+                getFilteredDataRequest.isGetUpdatedDataRequest());
+        sendResponse(getDataResponse, connection, this::onComplete);
+    }
+
+    public void stop() {
+        cleanup();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Segments are only sent to peers which receive a chunked response, as they precede the chunks. We send a segment
+    // if the peer is missing most of its entries and if none of its entries got removed from our storage.
+    private List<SnapshotSegmentStore.Segment> getSegmentsToSend(Predicate<P2PDataStorage.ByteArray> isExcludedKey,
+                                                                 Connection connection) {
+        SnapshotSegmentStore snapshotSegmentStore = dataStorage.getSnapshotSegmentStore();
+        List<Integer> supportedCapabilities = connection.getSupportedCapabilities();
+        if (snapshotSegmentStore == null ||
+                !Capabilities.isSupportedByBoth(Capabilities.Capability.BINARY_FRAMES, supportedCapabilities) ||
+                !Capabilities.isSupportedByBoth(Capabilities.Capability.SNAPSHOT_SEGMENTS, supportedCapabilities))
+            return new ArrayList<>();
+
+        return snapshotSegmentStore.getSegments().stream()
+                .filter(SnapshotSegmentStore.Segment::isComplete)
+                .filter(segment -> supportedCapabilities.containsAll(segment.requiredCapabilities))
+                .filter(segment -> segment.keys.stream().filter(key -> !isExcludedKey.test(key)).count() * 2 > segment.keys.size())
+                .collect(Collectors.toList());
+    }
+
+    private Set<P2PDataStorage.ByteArray> getFilteredKeys(KeysBloomFilter excludedKeysFilter) {
+        return dataStorage.getKeys(PersistedStoragePayload.class).stream()
+                .filter(key -> excludedKeysFilter.mightContain(key.bytes))
+                .collect(Collectors.toSet());
+    }
+
+    private List<P2PDataStorage.ByteArray> getKeysNotInFilter(KeysBloomFilter knownKeysFilter) {
+        return dataStorage.getKeys(PersistedStoragePayload.class).stream()
+                .filter(key -> !knownKeysFilter.mightContain(key.bytes))
+                .collect(Collectors.toList());
+    }
+
+    // We copy only the keys and look up the entries when we fill a chunk, so we hold the entries of a single chunk
+    // only (entries of an OffHeapEntryMap get decoded when we send them).
+    private Iterator<P2PDataStorage.ByteArray> getKeys(Predicate<P2PDataStorage.ByteArray> isExcludedKey) {
+        return dataStorage.getMap().keySet().stream()
+                .filter(key -> !isExcludedKey.test(key))
+                .collect(Collectors.toList())
+                .iterator();
+    }
+
+    // Same pacing as for the chunks. The data of a segment is read from disk only when we send it.
+    private void sendNextSegment(Iterator<SnapshotSegmentStore.Segment> iterator, int nonce, Connection connection,
+                                 ResultHandler resultHandler) {
+        if (stopped) {
+            log.trace("We have stopped already. We ignore that sendNextSegment call.");
+            return;
+        }
+
+        if (connection.isStopped()) {
+            handleFault("Connection got closed while sending snapshot segments.", CloseConnectionReason.SEND_MSG_FAILURE,
+                    connection);
+            return;
+        }
+
+        if (!iterator.hasNext()) {
+            resultHandler.handleResult();
+            return;
+        }
+
+        SnapshotSegmentStore.Segment segment = iterator.next();
+        byte[] compressedDataSet;
+        try {
+            compressedDataSet = segment.readCompressedDataSet();
+        } catch (IOException e) {
+            // We have excluded the entries of the segment from the chunks already
+            handleFault("Could not read snapshot segment " + segment + ". " + e.getMessage(),
+                    CloseConnectionReason.UNKNOWN_EXCEPTION, connection);
+            return;
+        }
+        sendResponse(new SnapshotSegment(nonce, segment.periodStart, compressedDataSet), connection,
+                () -> whenBulkLaneDrained(connection, () -> sendNextSegment(iterator, nonce, connection, resultHandler)));
+    }
+
+    // We send the next chunk only after the previous one has been taken from the send queue of the connection, so we
+    // never hold more than two chunks in memory and the peer can process the first chunks while we are still sending.
+    private void sendNextChunk(Iterator<P2PDataStorage.ByteArray> keys, Set<Integer> lookupSet, int nonce,
+                               boolean isGetUpdatedDataResponse, int continuationToken, Connection connection) {
+        if (stopped) {
+            log.trace("We have stopped already. We ignore that sendNextChunk call.");
+            return;
+        }
+
+        if (connection.isStopped()) {
+            handleFault("Connection got closed while sending chunks. continuationToken=" + continuationToken,
+                    CloseConnectionReason.SEND_MSG_FAILURE, connection);
+            return;
+        }
+
+        HashSet<ProtectedStorageEntry> dataSet = getNextDataSet(keys, lookupSet, MAX_ENTRIES_PER_CHUNK, connection);
+        boolean isLastChunk = !keys.hasNext();
+        GetDataResponseChunk getDataResponseChunk = new GetDataResponseChunk(dataSet, nonce, isGetUpdatedDataResponse,
+                continuationToken, isLastChunk);
+        if (isLastChunk)
+            sendResponse(getDataResponseChunk, connection, this::onComplete);
+        else
+            sendResponse(getDataResponseChunk, connection, () -> whenBulkLaneDrained(connection,
+                    () -> sendNextChunk(keys, lookupSet, nonce, isGetUpdatedDataResponse, continuationToken + 1,
+                            connection)));
+    }
+
+    private void whenBulkLaneDrained(Connection connection, Runnable runnable) {
+        connection.getSendQueue().runWhenDrained(SendQueue.Lane.BULK, runnable);
+    }
+
+    private HashSet<ProtectedStorageEntry> getNextDataSet(Iterator<P2PDataStorage.ByteArray> keys, Set<Integer> lookupSet,
+                                                          int maxEntries, Connection connection) {
+        final HashSet<ProtectedStorageEntry> filteredDataSet = new HashSet<>();
+        Map<P2PDataStorage.ByteArray, ProtectedStorageEntry> map = dataStorage.getMap();
+        while (keys.hasNext() && filteredDataSet.size() < maxEntries) {
+            ProtectedStorageEntry protectedStorageEntry = map.get(keys.next());
+            // Got removed since we have started
+            if (protectedStorageEntry == null)
+                continue;
+
             final StoragePayload storagePayload = protectedStorageEntry.getStoragePayload();
             boolean doAdd = false;
             if (storagePayload instanceof CapabilityRequiringPayload) {
@@ -121,26 +293,27 @@ public class GetDataRequestHandler {
             }
         }
 
-        GetDataResponse getDataResponse = new GetDataResponse(filteredDataSet, getDataRequest.getNonce(), getDataRequest instanceof GetUpdatedDataRequest);
+        return filteredDataSet;
+    }
 
-        if (timeoutTimer == null) {
-            timeoutTimer = UserThread.runAfter(() -> {  // setup before sending to avoid race conditions
-                        String errorMessage = "A timeout occurred for getDataResponse:" + getDataResponse +
-                                " on connection:" + connection;
-                        handleFault(errorMessage, CloseConnectionReason.SEND_MSG_TIMEOUT, connection);
-                    },
-                    TIME_OUT_SEC, TimeUnit.SECONDS);
-        }
+    private void sendResponse(Message response, Connection connection, ResultHandler resultHandler) {
+        // A new timeout for each response, with a chunked response the peer gets TIME_OUT_SEC for each chunk
+        stopTimeoutTimer();
+        timeoutTimer = UserThread.runAfter(() -> {  // setup before sending to avoid race conditions
+                    String errorMessage = "A timeout occurred for getDataResponse:" + response +
+                            " on connection:" + connection;
+                    handleFault(errorMessage, CloseConnectionReason.SEND_MSG_TIMEOUT, connection);
+                },
+                TIME_OUT_SEC, TimeUnit.SECONDS);
 
-        SettableFuture<Connection> future = networkNode.sendMessage(connection, getDataResponse);
+        SettableFuture<Connection> future = networkNode.sendMessage(connection, response);
         Futures.addCallback(future, new FutureCallback<Connection>() {
             @Override
             public void onSuccess(Connection connection) {
                 if (!stopped) {
                     log.trace("Send DataResponse to {} succeeded. getDataResponse={}",
-                            connection.getPeersNodeAddressOptional(), getDataResponse);
-                    cleanup();
-                    listener.onComplete();
+                            connection.getPeersNodeAddressOptional(), response);
+                    resultHandler.handleResult();
                 } else {
                     log.trace("We have stopped already. We ignore that networkNode.sendMessage.onSuccess call.");
                 }
@@ -150,7 +323,7 @@ public class GetDataRequestHandler {
             public void onFailure(@NotNull Throwable throwable) {
                 if (!stopped) {
                     String errorMessage = "Sending getDataRequest to " + connection +
-                            " failed. That is expected if the peer is offline. getDataResponse=" + getDataResponse + "." +
+                            " failed. That is expected if the peer is offline. getDataResponse=" + response + "." +
                             "Exception: " + throwable.getMessage();
                     handleFault(errorMessage, CloseConnectionReason.SEND_MSG_FAILURE, connection);
                 } else {
@@ -160,14 +333,11 @@ public class GetDataRequestHandler {
         });
     }
 
-    public void stop() {
+    private void onComplete() {
         cleanup();
+        listener.onComplete();
     }
 
-    ///////////////////////////////////////////////////////////////////////////////////////////
-    // Private
-    ///////////////////////////////////////////////////////////////////////////////////////////
-
     private void handleFault(String errorMessage, CloseConnectionReason closeConnectionReason, Connection connection) {
         if (!stopped) {
             log.debug(errorMessage + "\n\tcloseConnectionReason=" + closeConnectionReason);
@@ -180,6 +350,10 @@ public class GetDataRequestHandler {
 
     private void cleanup() {
         stopped = true;
+        stopTimeoutTimer();
+    }
+
+    private void stopTimeoutTimer() {
         if (timeoutTimer != null) {
             timeoutTimer.stop();
             timeoutTimer = null;
@@ -3,9 +3,11 @@ package io.bitsquare.p2p.peers.getdata;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
+import io.bitsquare.app.Capabilities;
 import io.bitsquare.app.Log;
 import io.bitsquare.common.Timer;
 import io.bitsquare.common.UserThread;
+import io.bitsquare.common.handlers.ResultHandler;
 import io.bitsquare.p2p.Message;
 import io.bitsquare.p2p.NodeAddress;
 import io.bitsquare.p2p.network.CloseConnectionReason;
@@ -15,8 +17,12 @@ import io.bitsquare.p2p.network.NetworkNode;
 import io.bitsquare.p2p.peers.PeerManager;
 import io.bitsquare.p2p.peers.getdata.messages.GetDataRequest;
 import io.bitsquare.p2p.peers.getdata.messages.GetDataResponse;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponseChunk;
+import io.bitsquare.p2p.peers.getdata.messages.GetFilteredDataRequest;
 import io.bitsquare.p2p.peers.getdata.messages.GetUpdatedDataRequest;
+import io.bitsquare.p2p.peers.getdata.messages.KeysBloomFilter;
 import io.bitsquare.p2p.peers.getdata.messages.PreliminaryGetDataRequest;
+import io.bitsquare.p2p.peers.getdata.messages.SnapshotSegment;
 import io.bitsquare.p2p.storage.P2PDataStorage;
 import io.bitsquare.p2p.storage.payload.LazyProcessedStoragePayload;
 import io.bitsquare.p2p.storage.payload.PersistedStoragePayload;
@@ -28,7 +34,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -37,6 +42,9 @@ public class RequestDataHandler implements MessageListener {
     private static final Logger log = LoggerFactory.getLogger(RequestDataHandler.class);
 
     private static final long TIME_OUT_SEC = 40;
+    // We send the second filter of a GetFilteredDataRequest only if we expect at least that many false positives of
+    // the first filter. Otherwise a missed item gets sent at a later request, as each request uses another salt.
+    private static final double MIN_EXPECTED_FALSE_POSITIVES = 0.1;
     private NodeAddress peersNodeAddress;
 
 
@@ -63,6 +71,14 @@ public class RequestDataHandler implements MessageListener {
     private final int nonce = new Random().nextInt();
     private boolean stopped;
     private Connection connection;
+    // Index of the next GetDataResponseChunk we expect if the peer streams its response
+    private int expectedContinuationToken;
+    private boolean isPreliminaryDataRequest;
+    // Set if we have sent a KeysBloomFilter, the number of keys is the number of persisted items we had then
+    private boolean excludedKeysFilterSent;
+    private int numPersistedKeysAtRequest;
+    // Set if we have handled the false positives of our KeysBloomFilter (see onLastResponse)
+    private boolean filteredDataRequested;
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -89,6 +105,7 @@ public class RequestDataHandler implements MessageListener {
     public void requestData(NodeAddress nodeAddress, boolean isPreliminaryDataRequest) {
         Log.traceCall("nodeAddress=" + nodeAddress);
         peersNodeAddress = nodeAddress;
+        this.isPreliminaryDataRequest = isPreliminaryDataRequest;
         if (!stopped) {
             GetDataRequest getDataRequest;
 
@@ -96,15 +113,29 @@ public class RequestDataHandler implements MessageListener {
             // PersistedStoragePayload items don't get removed, so we don't have an issue with the case that
             // an object gets removed in between PreliminaryGetDataRequest and the GetUpdatedDataRequest and we would 
             // miss that event if we do not load the full set or use some delta handling.
-            Set<byte[]> excludedKeys = dataStorage.getMap().entrySet().stream()
-                    .filter(e -> e.getValue().getStoragePayload() instanceof PersistedStoragePayload)
-                    .map(e -> e.getKey().bytes)
+            Set<byte[]> excludedKeys = dataStorage.getKeys(PersistedStoragePayload.class).stream()
+                    .map(e -> e.bytes)
                     .collect(Collectors.toSet());
 
-            if (isPreliminaryDataRequest)
-                getDataRequest = new PreliminaryGetDataRequest(nonce, excludedKeys);
-            else
-                getDataRequest = new GetUpdatedDataRequest(networkNode.getNodeAddress(), nonce, excludedKeys);
+            // If we know already that the peer supports it (e.g. at the GetUpdatedDataRequest to the seed node we got
+            // the preliminary data from) we send a bloom filter of the keys instead of the keys.
+            // The nonce is the salt of the filter, so each request has other false positives.
+            if (isBloomFilterSupported(nodeAddress)) {
+                KeysBloomFilter excludedKeysFilter = KeysBloomFilter.create(excludedKeys, nonce);
+                excludedKeysFilterSent = true;
+                numPersistedKeysAtRequest = excludedKeys.size();
+                log.debug("We send a bloom filter of {} keys. Filter size={} bytes", excludedKeys.size(),
+                        excludedKeysFilter.getBits().length);
+                if (isPreliminaryDataRequest)
+                    getDataRequest = new PreliminaryGetDataRequest(nonce, excludedKeysFilter);
+                else
+                    getDataRequest = new GetUpdatedDataRequest(networkNode.getNodeAddress(), nonce, excludedKeysFilter);
+            } else {
+                if (isPreliminaryDataRequest)
+                    getDataRequest = new PreliminaryGetDataRequest(nonce, excludedKeys);
+                else
+                    getDataRequest = new GetUpdatedDataRequest(networkNode.getNodeAddress(), nonce, excludedKeys);
+            }
 
             if (timeoutTimer == null) {
                 timeoutTimer = UserThread.runAfter(() -> {  // setup before sending to avoid race conditions
@@ -122,7 +153,9 @@ public class RequestDataHandler implements MessageListener {
             }
 
             log.debug("We send a {} to peer {}. ", getDataRequest.getClass().getSimpleName(), nodeAddress);
-            networkNode.addMessageListener(this);
+            networkNode.addMessageListener(this, GetDataResponse.class);
+            networkNode.addMessageListener(this, GetDataResponseChunk.class);
+            networkNode.addMessageListener(this, SnapshotSegment.class);
             SettableFuture<Connection> future = networkNode.sendMessage(nodeAddress, getDataRequest);
             Futures.addCallback(future, new FutureCallback<Connection>() {
                 @Override
@@ -168,72 +201,68 @@ public class RequestDataHandler implements MessageListener {
                 Log.traceCall(message.toString() + "\n\tconnection=" + connection);
                 if (!stopped) {
                     GetDataResponse getDataResponse = (GetDataResponse) message;
-                    Map<String, Set<StoragePayload>> payloadByClassName = new HashMap<>();
-                    final HashSet<ProtectedStorageEntry> dataSet = getDataResponse.dataSet;
-                    dataSet.stream().forEach(e -> {
-                        final StoragePayload storagePayload = e.getStoragePayload();
-                        String className = storagePayload.getClass().getSimpleName();
-                        if (!payloadByClassName.containsKey(className))
-                            payloadByClassName.put(className, new HashSet<>());
-
-                        payloadByClassName.get(className).add(storagePayload);
-                    });
-                    StringBuilder sb = new StringBuilder("Received data size: ").append(dataSet.size()).append(", data items: ");
-                    payloadByClassName.entrySet().stream().forEach(e -> sb.append(e.getValue().size()).append(" items of ").append(e.getKey()).append("; "));
-                    log.info(sb.toString());
-
+                    logReceivedData(getDataResponse.dataSet);
                     if (getDataResponse.requestNonce == nonce) {
+                        onLastResponse(getDataResponse.dataSet, connection);
+                    } else {
+                        logNonceNotMatching(getDataResponse.requestNonce);
+                    }
+                } else {
+                    log.warn("We have stopped already. We ignore that onDataRequest call.");
+                }
+            } else if (message instanceof GetDataResponseChunk) {
+                Log.traceCall(message.toString() + "\n\tconnection=" + connection);
+                if (!stopped) {
+                    GetDataResponseChunk getDataResponseChunk = (GetDataResponseChunk) message;
+                    logReceivedData(getDataResponseChunk.dataSet);
+                    if (getDataResponseChunk.requestNonce == nonce) {
                         stopTimeoutTimer();
-                        checkArgument(connection.getPeersNodeAddressOptional().isPresent(),
-                                "RequestDataHandler.onMessage: connection.getPeersNodeAddressOptional() must be present " +
-                                        "at that moment");
-
-                        final NodeAddress sender = connection.getPeersNodeAddressOptional().get();
-
-                        List<ProtectedStorageEntry> processDelayedItems = new ArrayList<>();
-                        dataSet.stream().forEach(e -> {
-                            if (e.getStoragePayload() instanceof LazyProcessedStoragePayload)
-                                processDelayedItems.add(e);
-                            else {
-                                // We dont broadcast here (last param) as we are only connected to the seed node and would be pointless
-                                dataStorage.add(e, sender, null, false, false);
-                            }
-                        });
+                        if (getDataResponseChunk.continuationToken != expectedContinuationToken) {
+                            String errorMessage = "We received a GetDataResponseChunk out of order. " +
+                                    "expectedContinuationToken=" + expectedContinuationToken +
+                                    ", getDataResponseChunk=" + getDataResponseChunk;
+                            log.warn(errorMessage);
+                            handleFault(errorMessage, peersNodeAddress, CloseConnectionReason.RULE_VIOLATION);
+                            return;
+                        }
 
-                        // We process the LazyProcessedStoragePayload items (TradeStatistics) in batches with a delay in between.
-                        // We want avoid that the UI get stuck when processing many entries.
-                        // The dataStorage.add call is a bit expensive as sig checks is done there.
-
-                        // Using a background thread might be an alternative but it would require much more effort and 
-                        // it would also decrease user experience if the app gets under heavy load (like at startup with wallet sync).
-                        // Beside that we mitigated the problem already as we will not get the whole TradeStatistics as we 
-                        // pass the excludeKeys and we pack the latest data dump 
-                        // into the resources, so a new user do not need to request all data.
-
-                        // In future we will probably limit by date or load on demand from user intent to not get too much data.
-
-                        // We split the list into sub lists with max 50 items and delay each batch with 200 ms.
-                        int size = processDelayedItems.size();
-                        int chunkSize = 50;
-                        int chunks = 1 + size / chunkSize;
-                        int startIndex = 0;
-                        for (int i = 0; i < chunks && startIndex < size; i++, startIndex += chunkSize) {
-                            long delay = (i + 1) * 200;
-                            int endIndex = Math.min(size, startIndex + chunkSize);
-                            List<ProtectedStorageEntry> subList = processDelayedItems.subList(startIndex, endIndex);
-                            UserThread.runAfter(() -> {
-                                subList.stream().forEach(protectedStorageEntry -> dataStorage.add(protectedStorageEntry, sender, null, false, false));
-                            }, delay, TimeUnit.MILLISECONDS);
+                        // We apply each chunk when it arrives, so we don't need to wait for the whole data
+                        if (getDataResponseChunk.isLastChunk) {
+                            log.info("We received the last chunk of the data response. chunks={}", expectedContinuationToken + 1);
+                            onLastResponse(getDataResponseChunk.dataSet, connection);
+                        } else {
+                            processDataSet(getDataResponseChunk.dataSet, connection, () -> {
+                            });
+                            expectedContinuationToken++;
+                            startChunkTimeoutTimer();
+                        }
+                    } else {
+                        logNonceNotMatching(getDataResponseChunk.requestNonce);
+                    }
+                } else {
+                    log.warn("We have stopped already. We ignore that onDataRequest call.");
+                }
+            } else if (message instanceof SnapshotSegment) {
+                Log.traceCall(message.toString() + "\n\tconnection=" + connection);
+                if (!stopped) {
+                    // Segments are sent before the first chunk
+                    SnapshotSegment snapshotSegment = (SnapshotSegment) message;
+                    if (snapshotSegment.requestNonce == nonce) {
+                        stopTimeoutTimer();
+                        if (expectedContinuationToken != 0) {
+                            String errorMessage = "We received a SnapshotSegment after the first GetDataResponseChunk. " +
+                                    "snapshotSegment=" + snapshotSegment;
+                            log.warn(errorMessage);
+                            handleFault(errorMessage, peersNodeAddress, CloseConnectionReason.RULE_VIOLATION);
+                            return;
                         }
 
-                        cleanup();
-                        listener.onComplete();
+                        logReceivedData(snapshotSegment.getDataSet());
+                        processDataSet(snapshotSegment.getDataSet(), connection, () -> {
+                        });
+                        startChunkTimeoutTimer();
                     } else {
-                        log.debug("Nonce not matching. That can happen rarely if we get a response after a canceled " +
-                                        "handshake (timeout causes connection close but peer might have sent a msg before " +
-                                        "connection was closed).\n\t" +
-                                        "We drop that message. nonce={} / requestNonce={}",
-                                nonce, getDataResponse.requestNonce);
+                        logNonceNotMatching(snapshotSegment.requestNonce);
                     }
                 } else {
                     log.warn("We have stopped already. We ignore that onDataRequest call.");
@@ -253,6 +282,153 @@ public class RequestDataHandler implements MessageListener {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
 
+    private boolean isBloomFilterSupported(NodeAddress nodeAddress) {
+        return networkNode.getConfirmedConnections().stream()
+                .filter(connection -> nodeAddress.equals(connection.getPeersNodeAddressOptional().orElse(null)))
+                .anyMatch(connection -> Capabilities.isSupportedByBoth(Capabilities.Capability.BLOOM_FILTER_DATA_REQUEST,
+                        connection.getSupportedCapabilities()));
+    }
+
+    // If we have sent a KeysBloomFilter to a peer supporting the FILTERED_DATA_REQUEST capability, we might request
+    // the false positives of the filter before we complete (see requestFilteredDataIfNeeded). We do that only once
+    // per request.
+    private void onLastResponse(HashSet<ProtectedStorageEntry> dataSet, Connection connection) {
+        if (!excludedKeysFilterSent || filteredDataRequested ||
+                !Capabilities.isSupportedByBoth(Capabilities.Capability.FILTERED_DATA_REQUEST,
+                        connection.getSupportedCapabilities())) {
+            cleanup();
+            // The entries of the previous responses are added before the ones of the last response
+            processDataSet(dataSet, connection, listener::onComplete);
+        } else {
+            filteredDataRequested = true;
+            // Adding the entries can take a while, we start the timer again when we send the request
+            stopTimeoutTimer();
+            // Our second filter has to contain the items we got, so we wait until all of them got added
+            processDataSet(dataSet, connection, () -> {
+            }, () -> {
+                if (!stopped)
+                    requestFilteredDataIfNeeded(connection);
+            });
+        }
+    }
+
+    // The peer does not tell us which items it has filtered, so we don't know about the false positives of our filter.
+    // The expected number of false positives is FALSE_POSITIVE_RATE times the number of persisted items the peer has
+    // and we didn't have, which we estimate by the number of items we got. Only if that is worth it, we send a filter
+    // of the persisted items we have by now with another salt. The peer sends us the items it does not contain.
+    private void requestFilteredDataIfNeeded(Connection connection) {
+        Set<byte[]> knownKeys = dataStorage.getKeys(PersistedStoragePayload.class).stream()
+                .map(e -> e.bytes)
+                .collect(Collectors.toSet());
+        int numNewKeys = knownKeys.size() - numPersistedKeysAtRequest;
+        if (numNewKeys * KeysBloomFilter.FALSE_POSITIVE_RATE < MIN_EXPECTED_FALSE_POSITIVES) {
+            log.debug("We got {} new persisted items, we don't expect false positives of our filter.", numNewKeys);
+            cleanup();
+            listener.onComplete();
+            return;
+        }
+
+        KeysBloomFilter knownKeysFilter = KeysBloomFilter.create(knownKeys, new Random().nextInt(),
+                KeysBloomFilter.FILTERED_DATA_RATE);
+        log.debug("We got {} new persisted items, we request the false positives of our filter with a filter of {} keys. " +
+                "Filter size={} bytes", numNewKeys, knownKeys.size(), knownKeysFilter.getBits().length);
+        GetFilteredDataRequest getFilteredDataRequest = new GetFilteredDataRequest(nonce, !isPreliminaryDataRequest,
+                knownKeysFilter);
+        timeoutTimer = UserThread.runAfter(() -> {  // setup before sending to avoid race conditions
+                    if (!stopped) {
+                        String errorMessage = "A timeout occurred at sending getFilteredDataRequest:" +
+                                getFilteredDataRequest + " on nodeAddress:" + peersNodeAddress;
+                        log.debug(errorMessage + " / RequestDataHandler=" + RequestDataHandler.this);
+                        handleFault(errorMessage, peersNodeAddress, CloseConnectionReason.SEND_MSG_TIMEOUT);
+                    } else {
+                        log.trace("We have stopped already. We ignore that timeoutTimer.run call.");
+                    }
+                },
+                TIME_OUT_SEC);
+
+        SettableFuture<Connection> future = networkNode.sendMessage(connection, getFilteredDataRequest);
+        Futures.addCallback(future, new FutureCallback<Connection>() {
+            @Override
+            public void onSuccess(Connection connection) {
+                log.trace("Send " + getFilteredDataRequest + " to " + peersNodeAddress + " succeeded.");
+            }
+
+            @Override
+            public void onFailure(@NotNull Throwable throwable) {
+                if (!stopped) {
+                    String errorMessage = "Sending getFilteredDataRequest to " + peersNodeAddress + " failed." +
+                            "\n\tException=" + throwable.getMessage();
+                    log.debug(errorMessage);
+                    handleFault(errorMessage, peersNodeAddress, CloseConnectionReason.SEND_MSG_FAILURE);
+                } else {
+                    log.trace("We have stopped already. We ignore that networkNode.sendMessage.onFailure call.");
+                }
+            }
+        });
+    }
+
+    // The resultHandler gets called when the entries have been added, except the LazyProcessedStoragePayload items
+    private void processDataSet(HashSet<ProtectedStorageEntry> dataSet, Connection connection, ResultHandler resultHandler) {
+        processDataSet(dataSet, connection, resultHandler, () -> {
+        });
+    }
+
+    // The allAddedHandler gets called when the LazyProcessedStoragePayload items have been added as well
+    private void processDataSet(HashSet<ProtectedStorageEntry> dataSet, Connection connection, ResultHandler resultHandler,
+                                ResultHandler allAddedHandler) {
+        checkArgument(connection.getPeersNodeAddressOptional().isPresent(),
+                "RequestDataHandler.onMessage: connection.getPeersNodeAddressOptional() must be present " +
+                        "at that moment");
+
+        final NodeAddress sender = connection.getPeersNodeAddressOptional().get();
+
+        // The signature checks are done in parallel off the UserThread and the dataStorage adds the entries in
+        // batches, so the UI does not get stuck when processing many entries.
+        // We add the LazyProcessedStoragePayload items (TradeStatistics) after the other items.
+        Map<Boolean, List<ProtectedStorageEntry>> entriesByIsLazyProcessed = dataSet.stream()
+                .collect(Collectors.partitioningBy(e -> e.getStoragePayload() instanceof LazyProcessedStoragePayload));
+        dataStorage.addAll(entriesByIsLazyProcessed.get(false), sender, resultHandler);
+        dataStorage.addAll(entriesByIsLazyProcessed.get(true), sender, allAddedHandler);
+    }
+
+    private void logReceivedData(HashSet<ProtectedStorageEntry> dataSet) {
+        Map<String, Set<StoragePayload>> payloadByClassName = new HashMap<>();
+        dataSet.stream().forEach(e -> {
+            final StoragePayload storagePayload = e.getStoragePayload();
+            String className = storagePayload.getClass().getSimpleName();
+            if (!payloadByClassName.containsKey(className))
+                payloadByClassName.put(className, new HashSet<>());
+
+            payloadByClassName.get(className).add(storagePayload);
+        });
+        StringBuilder sb = new StringBuilder("Received data size: ").append(dataSet.size()).append(", data items: ");
+        payloadByClassName.entrySet().stream().forEach(e -> sb.append(e.getValue().size()).append(" items of ").append(e.getKey()).append("; "));
+        log.info(sb.toString());
+    }
+
+    private void logNonceNotMatching(int requestNonce) {
+        log.debug("Nonce not matching. That can happen rarely if we get a response after a canceled " +
+                        "handshake (timeout causes connection close but peer might have sent a msg before " +
+                        "connection was closed).\n\t" +
+                        "We drop that message. nonce={} / requestNonce={}",
+                nonce, requestNonce);
+    }
+
+    private void startChunkTimeoutTimer() {
+        timeoutTimer = UserThread.runAfter(() -> {
+                    if (!stopped) {
+                        String errorMessage = "A timeout occurred at waiting for the next GetDataResponseChunk. " +
+                                "expectedContinuationToken=" + expectedContinuationToken +
+                                " nodeAddress:" + peersNodeAddress;
+                        log.debug(errorMessage + " / RequestDataHandler=" + RequestDataHandler.this);
+                        handleFault(errorMessage, peersNodeAddress, CloseConnectionReason.SEND_MSG_TIMEOUT);
+                    } else {
+                        log.trace("We have stopped already. We ignore that timeoutTimer.run call.");
+                    }
+                },
+                TIME_OUT_SEC);
+    }
+
     private void handleFault(String errorMessage, NodeAddress nodeAddress, CloseConnectionReason closeConnectionReason) {
         cleanup();
         //peerManager.shutDownConnection(nodeAddress, closeConnectionReason);
@@ -8,6 +8,7 @@ import io.bitsquare.p2p.NodeAddress;
 import io.bitsquare.p2p.network.*;
 import io.bitsquare.p2p.peers.PeerManager;
 import io.bitsquare.p2p.peers.getdata.messages.GetDataRequest;
+import io.bitsquare.p2p.peers.getdata.messages.GetFilteredDataRequest;
 import io.bitsquare.p2p.peers.peerexchange.Peer;
 import io.bitsquare.p2p.storage.P2PDataStorage;
 import org.jetbrains.annotations.Nullable;
@@ -75,7 +76,8 @@ public class RequestDataManager implements MessageListener, ConnectionListener,
         this.seedNodeAddresses = new HashSet<>(seedNodeAddresses);
         this.listener = listener;
 
-        networkNode.addMessageListener(this);
+        networkNode.addMessageListener(this, GetDataRequest.class);
+        networkNode.addMessageListener(this, GetFilteredDataRequest.class);
         networkNode.addConnectionListener(this);
         peerManager.addListener(this);
     }
@@ -140,6 +142,11 @@ public class RequestDataManager implements MessageListener, ConnectionListener,
         Log.traceCall();
         closeHandler(connection);
 
+        // A chunked response still in progress cannot be completed anymore
+        GetDataRequestHandler getDataRequestHandler = getDataRequestHandlers.remove(connection.getUid());
+        if (getDataRequestHandler != null)
+            getDataRequestHandler.stop();
+
         if (peerManager.isNodeBanned(closeConnectionReason, connection)) {
             final NodeAddress nodeAddress = connection.getPeersNodeAddressOptional().get();
             seedNodeAddresses.remove(nodeAddress);
@@ -189,7 +196,7 @@ public class RequestDataManager implements MessageListener, ConnectionListener,
 
     @Override
     public void onMessage(Message message, Connection connection) {
-        if (message instanceof GetDataRequest) {
+        if (message instanceof GetDataRequest || message instanceof GetFilteredDataRequest) {
             Log.traceCall(message.toString() + "\n\tconnection=" + connection);
             if (!stopped) {
                 if (peerManager.isSeedNode(connection))
@@ -218,7 +225,10 @@ public class RequestDataManager implements MessageListener, ConnectionListener,
                                 }
                             });
                     getDataRequestHandlers.put(uid, getDataRequestHandler);
-                    getDataRequestHandler.handle((GetDataRequest) message, connection);
+                    if (message instanceof GetDataRequest)
+                        getDataRequestHandler.handle((GetDataRequest) message, connection);
+                    else
+                        getDataRequestHandler.handle((GetFilteredDataRequest) message, connection);
                 } else {
                     log.warn("We have already a GetDataRequestHandler for that connection started. " +
                             "We start a cleanup timer if the handler has not closed by itself in between 2 minutes.");
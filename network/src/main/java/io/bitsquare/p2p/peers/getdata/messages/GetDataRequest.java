@@ -2,10 +2,15 @@ package io.bitsquare.p2p.peers.getdata.messages;
 
 import io.bitsquare.p2p.Message;
 
+import javax.annotation.Nullable;
 import java.util.Set;
 
 public interface GetDataRequest extends Message {
     int getNonce();
 
     Set<byte[]> getExcludedKeys();
+
+    // Set instead of the excludedKeys if the peer supports the BLOOM_FILTER_DATA_REQUEST capability
+    @Nullable
+    KeysBloomFilter getExcludedKeysFilter();
 }
@@ -19,12 +19,19 @@ public final class GetDataResponse implements SupportedCapabilitiesMessage {
     public final boolean isGetUpdatedDataResponse;
 
     @Nullable
-    private ArrayList<Integer> supportedCapabilities = Capabilities.getCapabilities();
+    private final ArrayList<Integer> supportedCapabilities;
 
     public GetDataResponse(HashSet<ProtectedStorageEntry> dataSet, int requestNonce, boolean isGetUpdatedDataResponse) {
+        this(dataSet, requestNonce, isGetUpdatedDataResponse, Capabilities.getCapabilities());
+    }
+
+    // Used when decoding a binary frame, where the capabilities are the ones of the sending peer
+    public GetDataResponse(HashSet<ProtectedStorageEntry> dataSet, int requestNonce, boolean isGetUpdatedDataResponse,
+                           @Nullable ArrayList<Integer> supportedCapabilities) {
         this.dataSet = dataSet;
         this.requestNonce = requestNonce;
         this.isGetUpdatedDataResponse = isGetUpdatedDataResponse;
+        this.supportedCapabilities = supportedCapabilities;
     }
 
     @Override
@@ -0,0 +1,73 @@
+package io.bitsquare.p2p.peers.getdata.messages;
+
+import io.bitsquare.app.Capabilities;
+import io.bitsquare.app.Version;
+import io.bitsquare.p2p.messaging.SupportedCapabilitiesMessage;
+import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Part of a streamed response to a GetDataRequest. Only sent to peers supporting the CHUNKED_DATA_RESPONSE
+ * capability, others get the whole data in one GetDataResponse.
+ * The continuationToken is the index of the chunk, so the receiver can detect a missing chunk. The last chunk
+ * of a response has isLastChunk set.
+ */
+public final class GetDataResponseChunk implements SupportedCapabilitiesMessage {
+    // That object is sent over the wire, so we need to take care of version compatibility.
+    private static final long serialVersionUID = Version.P2P_NETWORK_VERSION;
+    private final int messageVersion = Version.getP2PMessageVersion();
+
+    public final HashSet<ProtectedStorageEntry> dataSet;
+    public final int requestNonce;
+    public final boolean isGetUpdatedDataResponse;
+    public final int continuationToken;
+    public final boolean isLastChunk;
+
+    @Nullable
+    private final ArrayList<Integer> supportedCapabilities;
+
+    public GetDataResponseChunk(HashSet<ProtectedStorageEntry> dataSet, int requestNonce, boolean isGetUpdatedDataResponse,
+                                int continuationToken, boolean isLastChunk) {
+        this(dataSet, requestNonce, isGetUpdatedDataResponse, continuationToken, isLastChunk,
+                Capabilities.getCapabilities());
+    }
+
+    // Used when decoding a binary frame, where the capabilities are the ones of the sending peer
+    public GetDataResponseChunk(HashSet<ProtectedStorageEntry> dataSet, int requestNonce, boolean isGetUpdatedDataResponse,
+                                int continuationToken, boolean isLastChunk,
+                                @Nullable ArrayList<Integer> supportedCapabilities) {
+        this.dataSet = dataSet;
+        this.requestNonce = requestNonce;
+        this.isGetUpdatedDataResponse = isGetUpdatedDataResponse;
+        this.continuationToken = continuationToken;
+        this.isLastChunk = isLastChunk;
+        this.supportedCapabilities = supportedCapabilities;
+    }
+
+    @Override
+    @Nullable
+    public ArrayList<Integer> getSupportedCapabilities() {
+        return supportedCapabilities;
+    }
+
+    @Override
+    public int getMessageVersion() {
+        return messageVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "GetDataResponseChunk{" +
+                "dataSet.size()=" + dataSet.size() +
+                ", isGetUpdatedDataResponse=" + isGetUpdatedDataResponse +
+                ", requestNonce=" + requestNonce +
+                ", continuationToken=" + continuationToken +
+                ", isLastChunk=" + isLastChunk +
+                ", supportedCapabilities=" + supportedCapabilities +
+                ", messageVersion=" + messageVersion +
+                '}';
+    }
+}
@@ -0,0 +1,54 @@
+package io.bitsquare.p2p.peers.getdata.messages;
+
+import io.bitsquare.app.Version;
+import io.bitsquare.p2p.network.messages.AnonymousMessage;
+
+/**
+ * Second round of a GetDataRequest with a KeysBloomFilter. It contains a filter of the keys of the
+ * PersistedStoragePayload items we have after the first round, with another salt than the filter of the first round.
+ * The peer sends us the persisted items the filter does not contain, which are mainly the false positives of the
+ * first filter. The peer responds with a GetDataResponse with our nonce.
+ * Only sent to peers supporting the FILTERED_DATA_REQUEST capability on the connection of the first round.
+ */
+public final class GetFilteredDataRequest implements AnonymousMessage {
+    // That object is sent over the wire, so we need to take care of version compatibility.
+    private static final long serialVersionUID = Version.P2P_NETWORK_VERSION;
+
+    private final int messageVersion = Version.getP2PMessageVersion();
+    private final int nonce;
+    private final boolean isGetUpdatedDataRequest;
+    private final KeysBloomFilter knownKeysFilter;
+
+    public GetFilteredDataRequest(int nonce, boolean isGetUpdatedDataRequest, KeysBloomFilter knownKeysFilter) {
+        this.nonce = nonce;
+        this.isGetUpdatedDataRequest = isGetUpdatedDataRequest;
+        this.knownKeysFilter = knownKeysFilter;
+    }
+
+    public int getNonce() {
+        return nonce;
+    }
+
+    public boolean isGetUpdatedDataRequest() {
+        return isGetUpdatedDataRequest;
+    }
+
+    public KeysBloomFilter getKnownKeysFilter() {
+        return knownKeysFilter;
+    }
+
+    @Override
+    public int getMessageVersion() {
+        return messageVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "GetFilteredDataRequest{" +
+                "nonce=" + nonce +
+                ", isGetUpdatedDataRequest=" + isGetUpdatedDataRequest +
+                ", knownKeysFilter=" + knownKeysFilter +
+                ", messageVersion=" + messageVersion +
+                '}';
+    }
+}
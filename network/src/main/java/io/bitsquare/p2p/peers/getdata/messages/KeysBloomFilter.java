@@ -0,0 +1,139 @@
+package io.bitsquare.p2p.peers.getdata.messages;
+
+import io.bitsquare.app.Version;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.Serializable;
+import java.util.Collection;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Bloom filter of the keys (hash of the payload) of the data we have already, sent in a GetDataRequest instead of
+ * the keys themselves to peers supporting the BLOOM_FILTER_DATA_REQUEST capability. With FALSE_POSITIVE_RATE it
+ * needs about 1.8 bytes per key instead of 32 bytes.
+ * <p/>
+ * The peer does not send us the data of the keys the filter might contain. A false positive means we miss an item
+ * at that request. The hash functions depend on the salt, which is the nonce of the request, so the filter of the
+ * next request has other false positives and we get the missed item then.
+ * <p/>
+ * If the peer supports the FILTERED_DATA_REQUEST capability and we expect false positives because we got many new
+ * items, we send a second filter of the keys we have then with an independent salt and FILTERED_DATA_RATE in a
+ * GetFilteredDataRequest. An item we missed is only missed again if it is a false positive of both filters.
+ */
+public final class KeysBloomFilter implements Serializable {
+    // That object is sent over the wire, so we need to take care of version compatibility.
+    private static final long serialVersionUID = Version.P2P_NETWORK_VERSION;
+
+    public static final double FALSE_POSITIVE_RATE = 0.001;
+    // The second filter only has to catch the few false positives of the first one, so it can be smaller. It needs
+    // about 1 byte per key.
+    public static final double FILTERED_DATA_RATE = 0.02;
+    // Limits for filters received from peers. 8 MB would be the filter for 36 million keys.
+    public static final int MAX_NUM_BYTES = 8 * 1024 * 1024;
+    public static final int MAX_NUM_HASH_FUNCTIONS = 16;
+
+    private final int salt;
+    private final int numHashFunctions;
+    private final byte[] bits;
+
+    public static KeysBloomFilter create(Collection<byte[]> keys, int salt) {
+        return create(keys, salt, FALSE_POSITIVE_RATE);
+    }
+
+    public static KeysBloomFilter create(Collection<byte[]> keys, int salt, double falsePositiveRate) {
+        checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1,
+                "Invalid false positive rate. falsePositiveRate=" + falsePositiveRate);
+        int numKeys = Math.max(1, keys.size());
+        // Optimal number of bits and hash functions for the given number of keys and false positive rate
+        long numBits = (long) Math.ceil(-numKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int numBytes = (int) Math.min(MAX_NUM_BYTES, Math.max(8, (numBits + 7) / 8));
+        int numHashFunctions = (int) Math.round((double) numBytes * 8 / numKeys * Math.log(2));
+        numHashFunctions = Math.max(1, Math.min(MAX_NUM_HASH_FUNCTIONS, numHashFunctions));
+
+        KeysBloomFilter keysBloomFilter = new KeysBloomFilter(salt, numHashFunctions, new byte[numBytes]);
+        keys.stream().forEach(keysBloomFilter::put);
+        return keysBloomFilter;
+    }
+
+    // Used when decoding a binary frame
+    public KeysBloomFilter(int salt, int numHashFunctions, byte[] bits) {
+        checkArgument(numHashFunctions > 0 && numHashFunctions <= MAX_NUM_HASH_FUNCTIONS,
+                "Invalid number of hash functions. numHashFunctions=" + numHashFunctions);
+        checkArgument(bits.length > 0 && bits.length <= MAX_NUM_BYTES, "Invalid filter size. size=" + bits.length);
+        this.salt = salt;
+        this.numHashFunctions = numHashFunctions;
+        this.bits = bits;
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (bits == null || bits.length == 0 || bits.length > MAX_NUM_BYTES ||
+                numHashFunctions <= 0 || numHashFunctions > MAX_NUM_HASH_FUNCTIONS)
+            throw new InvalidObjectException("Invalid KeysBloomFilter. numHashFunctions=" + numHashFunctions);
+    }
+
+    public boolean mightContain(byte[] key) {
+        long numBits = (long) bits.length * 8;
+        long hash1 = hash(key, salt);
+        long hash2 = hash(key, ~salt) | 1;
+        for (int i = 0; i < numHashFunctions; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numBits);
+            if ((bits[(int) (bit >>> 3)] & (1 << (bit & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public int getSalt() {
+        return salt;
+    }
+
+    public int getNumHashFunctions() {
+        return numHashFunctions;
+    }
+
+    public byte[] getBits() {
+        return bits;
+    }
+
+    @Override
+    public String toString() {
+        return "KeysBloomFilter{" +
+                "salt=" + salt +
+                ", numHashFunctions=" + numHashFunctions +
+                ", bits.length=" + bits.length +
+                '}';
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void put(byte[] key) {
+        long numBits = (long) bits.length * 8;
+        long hash1 = hash(key, salt);
+        long hash2 = hash(key, ~salt) | 1;
+        for (int i = 0; i < numHashFunctions; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numBits);
+            bits[(int) (bit >>> 3)] |= 1 << (bit & 7);
+        }
+    }
+
+    // FNV-1a with the salt as offset, followed by the 64 bit finalizer of MurmurHash3 for a good bit distribution
+    private static long hash(byte[] key, int salt) {
+        long hash = 0xcbf29ce484222325L ^ salt;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -7,6 +7,7 @@ import io.bitsquare.p2p.network.messages.AnonymousMessage;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Set;
 
 public final class PreliminaryGetDataRequest implements AnonymousMessage, GetDataRequest, SupportedCapabilitiesMessage {
@@ -17,11 +18,25 @@ public final class PreliminaryGetDataRequest implements AnonymousMessage, GetDat
     private final int nonce;
     private final Set<byte[]> excludedKeys;
     @Nullable
-    private ArrayList<Integer> supportedCapabilities = Capabilities.getCapabilities();
+    private final KeysBloomFilter excludedKeysFilter;
+    @Nullable
+    private final ArrayList<Integer> supportedCapabilities;
 
     public PreliminaryGetDataRequest(int nonce, Set<byte[]> excludedKeys) {
+        this(nonce, excludedKeys, null, Capabilities.getCapabilities());
+    }
+
+    public PreliminaryGetDataRequest(int nonce, KeysBloomFilter excludedKeysFilter) {
+        this(nonce, new HashSet<>(), excludedKeysFilter, Capabilities.getCapabilities());
+    }
+
+    // Used when decoding a binary frame, where the capabilities are the ones of the sending peer
+    public PreliminaryGetDataRequest(int nonce, Set<byte[]> excludedKeys, @Nullable KeysBloomFilter excludedKeysFilter,
+                                     @Nullable ArrayList<Integer> supportedCapabilities) {
         this.nonce = nonce;
         this.excludedKeys = excludedKeys;
+        this.excludedKeysFilter = excludedKeysFilter;
+        this.supportedCapabilities = supportedCapabilities;
     }
 
     @Override
@@ -40,6 +55,12 @@ public final class PreliminaryGetDataRequest implements AnonymousMessage, GetDat
         return excludedKeys;
     }
 
+    @Override
+    @Nullable
+    public KeysBloomFilter getExcludedKeysFilter() {
+        return excludedKeysFilter;
+    }
+
     @Override
     public int getMessageVersion() {
         return messageVersion;
@@ -49,6 +70,7 @@ public final class PreliminaryGetDataRequest implements AnonymousMessage, GetDat
     public String toString() {
         return "PreliminaryGetDataRequest{" +
                 "nonce=" + nonce +
+                ", excludedKeysFilter=" + excludedKeysFilter +
                 ", supportedCapabilities=" + supportedCapabilities +
                 ", messageVersion=" + messageVersion +
                 '}';
@@ -0,0 +1,68 @@
+package io.bitsquare.p2p.peers.getdata.messages;
+
+import io.bitsquare.app.Version;
+import io.bitsquare.p2p.Message;
+import io.bitsquare.p2p.network.wire.MessageCodec;
+import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.HashSet;
+
+/**
+ * A sealed segment of the persisted data of a seed node (see SnapshotSegmentStore), sent before the chunks of a
+ * GetDataResponseChunk stream. Only sent to peers supporting the SNAPSHOT_SEGMENTS capability.
+ * The data set is sent as stored by the seed node, compressed with MessageCodec.encodeCompressedDataSet. It gets
+ * decoded when the message is received.
+ */
+public final class SnapshotSegment implements Message {
+    // That object is sent over the wire, so we need to take care of version compatibility.
+    private static final long serialVersionUID = Version.P2P_NETWORK_VERSION;
+    private final int messageVersion = Version.getP2PMessageVersion();
+
+    public final int requestNonce;
+    // Start of the period of the creation dates of the entries
+    public final long periodStart;
+    public final byte[] compressedDataSet;
+    // Only set at the receiver
+    @Nullable
+    private transient HashSet<ProtectedStorageEntry> dataSet;
+
+    public SnapshotSegment(int requestNonce, long periodStart, byte[] compressedDataSet) {
+        this(requestNonce, periodStart, compressedDataSet, null);
+    }
+
+    // Used when decoding a binary frame
+    public SnapshotSegment(int requestNonce, long periodStart, byte[] compressedDataSet,
+                           @Nullable HashSet<ProtectedStorageEntry> dataSet) {
+        this.requestNonce = requestNonce;
+        this.periodStart = periodStart;
+        this.compressedDataSet = compressedDataSet;
+        this.dataSet = dataSet;
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        dataSet = MessageCodec.decodeCompressedDataSet(compressedDataSet);
+    }
+
+    public HashSet<ProtectedStorageEntry> getDataSet() {
+        return dataSet != null ? dataSet : new HashSet<>();
+    }
+
+    @Override
+    public int getMessageVersion() {
+        return messageVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotSegment{" +
+                "requestNonce=" + requestNonce +
+                ", periodStart=" + periodStart +
+                ", compressedDataSet.length=" + compressedDataSet.length +
+                ", dataSet.size()=" + (dataSet != null ? dataSet.size() : "null") +
+                ", messageVersion=" + messageVersion +
+                '}';
+    }
+}
@@ -79,7 +79,7 @@ class KeepAliveHandler implements MessageListener {
     private void sendPing(Connection connection) {
         Log.traceCall("connection=" + connection + " / this=" + this);
         if (!stopped) {
-            Ping ping = new Ping(nonce, connection.getStatistic().roundTripTimeProperty().get());
+            Ping ping = new Ping(nonce, connection.getStatistic().getRoundTripTime());
             sendTs = System.currentTimeMillis();
             SettableFuture<Connection> future = networkNode.sendMessage(connection, ping);
             Futures.addCallback(future, new FutureCallback<Connection>() {
@@ -88,7 +88,7 @@ class KeepAliveHandler implements MessageListener {
                     if (!stopped) {
                         log.trace("Send " + ping + " to " + connection + " succeeded.");
                         KeepAliveHandler.this.connection = connection;
-                        connection.addMessageListener(KeepAliveHandler.this);
+                        connection.addMessageListener(KeepAliveHandler.this, Pong.class);
                     } else {
                         log.trace("We have stopped already. We ignore that networkNode.sendMessage.onSuccess call.");
                     }
@@ -40,7 +40,7 @@ public class KeepAliveManager implements MessageListener, ConnectionListener, Pe
         this.networkNode = networkNode;
         this.peerManager = peerManager;
 
-        networkNode.addMessageListener(this);
+        networkNode.addMessageListener(this, Ping.class);
         networkNode.addConnectionListener(this);
         peerManager.addListener(this);
     }
@@ -112,7 +112,7 @@ class PeerExchangeHandler implements MessageListener {
                             }*/
 
                             PeerExchangeHandler.this.connection = connection;
-                            connection.addMessageListener(PeerExchangeHandler.this);
+                            connection.addMessageListener(PeerExchangeHandler.this, GetPeersResponse.class);
                             log.trace("Send " + getPeersRequest + " to " + nodeAddress + " succeeded.");
                         } else {
                             log.trace("We have stopped that handler already. We ignore that sendGetPeersRequest.onSuccess call.");
@@ -43,7 +43,7 @@ public class PeerExchangeManager implements MessageListener, ConnectionListener,
         // seedNodeAddresses can be empty (in case there is only 1 seed node, the seed node starting up has no other seed nodes)
         this.seedNodeAddresses = new HashSet<>(seedNodeAddresses);
 
-        networkNode.addMessageListener(this);
+        networkNode.addMessageListener(this, GetPeersRequest.class);
         networkNode.addConnectionListener(this);
         peerManager.addListener(this);
     }
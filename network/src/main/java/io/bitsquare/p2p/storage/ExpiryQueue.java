@@ -0,0 +1,88 @@
+package io.bitsquare.p2p.storage;
+
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keys of the storage entries ordered by their expiry time, in buckets of bucketMs. Polling returns the keys of the
+ * buckets which are due, so the periodic expiry check only touches entries which might have expired instead of
+ * iterating over the whole map.
+ * <p/>
+ * A refresh of the TTL only moves the expiry time of an entry to a later time. We don't reschedule at a refresh but
+ * the caller checks the polled entries and schedules those again which are not expired yet. Only an earlier expiry
+ * time (e.g. after backDate) has to be scheduled, which moves the key to the earlier bucket.
+ * <p/>
+ * Not thread safe. It is used at the UserThread.
+ */
+class ExpiryQueue {
+    private final long bucketMs;
+    private final TreeMap<Long, Set<P2PDataStorage.ByteArray>> keysByBucket = new TreeMap<>();
+    private final Map<P2PDataStorage.ByteArray, Long> bucketByKey = new HashMap<>();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    ExpiryQueue(long bucketMs) {
+        checkArgument(bucketMs > 0, "bucketMs must be positive");
+        this.bucketMs = bucketMs;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // If the key is scheduled already it is only moved if the new expiry time is in an earlier bucket
+    void schedule(P2PDataStorage.ByteArray key, long expiryTime) {
+        long bucket = Math.floorDiv(expiryTime, bucketMs);
+        Long scheduledBucket = bucketByKey.get(key);
+        if (scheduledBucket == null || bucket < scheduledBucket) {
+            if (scheduledBucket != null)
+                removeFromBucket(key, scheduledBucket);
+            bucketByKey.put(key, bucket);
+            keysByBucket.computeIfAbsent(bucket, k -> new HashSet<>()).add(key);
+        }
+    }
+
+    void unschedule(P2PDataStorage.ByteArray key) {
+        Long scheduledBucket = bucketByKey.remove(key);
+        if (scheduledBucket != null)
+            removeFromBucket(key, scheduledBucket);
+    }
+
+    // Removes and returns the keys with an expiry time before now (with the granularity of the buckets)
+    List<P2PDataStorage.ByteArray> pollDue(long now) {
+        List<P2PDataStorage.ByteArray> dueKeys = new ArrayList<>();
+        // A bucket is due if all expiry times of that bucket are before now
+        long lastDueBucket = Math.floorDiv(now, bucketMs) - 1;
+        Iterator<Set<P2PDataStorage.ByteArray>> iterator = keysByBucket.headMap(lastDueBucket, true).values().iterator();
+        while (iterator.hasNext()) {
+            Set<P2PDataStorage.ByteArray> keys = iterator.next();
+            keys.stream().forEach(bucketByKey::remove);
+            dueKeys.addAll(keys);
+            iterator.remove();
+        }
+        return dueKeys;
+    }
+
+    int size() {
+        return bucketByKey.size();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void removeFromBucket(P2PDataStorage.ByteArray key, long bucket) {
+        Set<P2PDataStorage.ByteArray> keys = keysByBucket.get(bucket);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty())
+                keysByBucket.remove(bucket);
+        }
+    }
+}
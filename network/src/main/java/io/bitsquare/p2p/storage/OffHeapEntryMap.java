@@ -0,0 +1,333 @@
+package io.bitsquare.p2p.storage;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.bitsquare.p2p.network.wire.MessageCodec;
+import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
+import io.bitsquare.storage.JournaledMapStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Map of the storage entries which keeps the entries binary encoded (see MessageCodec) in direct memory, so they
+ * don't count to the heap of a seed node. Only the keys and the locations of the encoded entries are on the heap.
+ * <p/>
+ * The encoded entries are appended to segments of segmentSize (larger entries get a segment of their own). Removed
+ * and replaced entries leave garbage in the segments. If there is more garbage than live data we copy the live
+ * entries to new segments and the old segments get released when their buffers got garbage collected.
+ * <p/>
+ * The entries are decoded on each access, so we get a new instance at each get. Changes of a returned entry have
+ * to be written back with put. The iterators work on a snapshot of the locations and decode the values lazily.
+ * <p/>
+ * As JournaledMapStorage.Source the snapshot of the locations gets taken at the calling thread and the entries get
+ * decoded one by one at the writing thread, so the whole map is never on the heap.
+ * <p/>
+ * Thread safe.
+ */
+class OffHeapEntryMap extends AbstractMap<P2PDataStorage.ByteArray, ProtectedStorageEntry>
+        implements JournaledMapStorage.Source<P2PDataStorage.ByteArray, ProtectedStorageEntry> {
+    private static final Logger log = LoggerFactory.getLogger(OffHeapEntryMap.class);
+
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final class Location {
+        private final ByteBuffer segment;
+        private final int offset;
+        private final int length;
+
+        private Location(ByteBuffer segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final int segmentSize;
+    // guarded by this
+    private final Map<P2PDataStorage.ByteArray, Location> locations = new HashMap<>();
+    @Nullable
+    private ByteBuffer currentSegment;
+    private long liveBytes;
+    private long garbageBytes;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    OffHeapEntryMap() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    @VisibleForTesting
+    OffHeapEntryMap(int segmentSize) {
+        checkArgument(segmentSize > 0, "segmentSize must be positive");
+        this.segmentSize = segmentSize;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Map implementation
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public synchronized int size() {
+        return locations.size();
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return locations.containsKey(key);
+    }
+
+    @Override
+    public ProtectedStorageEntry get(Object key) {
+        byte[] bytes;
+        synchronized (this) {
+            Location location = locations.get(key);
+            if (location == null)
+                return null;
+            bytes = read(location);
+        }
+        return decode(bytes);
+    }
+
+    // Entries which cannot be encoded are rejected with an IllegalArgumentException, the map is not changed then
+    @Override
+    public ProtectedStorageEntry put(P2PDataStorage.ByteArray key, ProtectedStorageEntry protectedStorageEntry) {
+        checkNotNull(key, "key must not be null");
+        checkNotNull(protectedStorageEntry, "protectedStorageEntry must not be null");
+        byte[] bytes;
+        try {
+            bytes = MessageCodec.encodeProtectedStorageEntry(protectedStorageEntry);
+        } catch (Throwable t) {
+            throw new IllegalArgumentException("Could not encode storage entry. " + t.getMessage(), t);
+        }
+
+        byte[] previousBytes = null;
+        synchronized (this) {
+            Location previous = locations.put(key, write(bytes));
+            liveBytes += bytes.length;
+            if (previous != null) {
+                previousBytes = read(previous);
+                release(previous);
+            }
+        }
+        return previousBytes != null ? decode(previousBytes) : null;
+    }
+
+    @Override
+    public ProtectedStorageEntry remove(Object key) {
+        byte[] bytes;
+        synchronized (this) {
+            Location location = locations.remove(key);
+            if (location == null)
+                return null;
+            bytes = read(location);
+            release(location);
+        }
+        return decode(bytes);
+    }
+
+    @Override
+    public synchronized void clear() {
+        locations.clear();
+        currentSegment = null;
+        liveBytes = 0;
+        garbageBytes = 0;
+    }
+
+    @Override
+    public Set<Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>> entrySet() {
+        return new EntrySet();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // JournaledMapStorage.Source implementation
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Entries which cannot be decoded are not written to the snapshot
+    @Override
+    public Supplier<Iterator<Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>>> getSnapshot() {
+        List<Entry<P2PDataStorage.ByteArray, Location>> snapshot = getLocationsSnapshot();
+        return () -> snapshot.stream()
+                .map(e -> (Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>) new LazyEntry(e.getKey(), e.getValue()))
+                .filter(e -> e.getValue() != null)
+                .iterator();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Getters
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    synchronized long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private synchronized List<Entry<P2PDataStorage.ByteArray, Location>> getLocationsSnapshot() {
+        List<Entry<P2PDataStorage.ByteArray, Location>> snapshot = new ArrayList<>(locations.size());
+        locations.entrySet().stream().forEach(e -> snapshot.add(new SimpleImmutableEntry<>(e.getKey(), e.getValue())));
+        return snapshot;
+    }
+
+    // guarded by this
+    private Location write(byte[] bytes) {
+        if (bytes.length > segmentSize) {
+            ByteBuffer segment = ByteBuffer.allocateDirect(bytes.length);
+            segment.put(bytes);
+            return new Location(segment, 0, bytes.length);
+        }
+
+        if (currentSegment == null || currentSegment.remaining() < bytes.length)
+            currentSegment = ByteBuffer.allocateDirect(segmentSize);
+
+        int offset = currentSegment.position();
+        currentSegment.put(bytes);
+        return new Location(currentSegment, offset, bytes.length);
+    }
+
+    // guarded by this. The position of the current segment is used for writing, so we read from a duplicate.
+    private static byte[] read(Location location) {
+        byte[] bytes = new byte[location.length];
+        ByteBuffer buffer = location.segment.duplicate();
+        buffer.position(location.offset);
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    // guarded by this
+    private void release(Location location) {
+        liveBytes -= location.length;
+        garbageBytes += location.length;
+        if (garbageBytes > liveBytes && garbageBytes >= segmentSize)
+            compact();
+    }
+
+    // guarded by this. We copy the live entries to new segments, the old segments are not referenced anymore.
+    private void compact() {
+        long ts = System.currentTimeMillis();
+        long previousGarbageBytes = garbageBytes;
+        currentSegment = null;
+        locations.entrySet().stream().forEach(e -> e.setValue(write(read(e.getValue()))));
+        garbageBytes = 0;
+        log.debug("Compacted storage entries. Released {} bytes, {} bytes in use, took {} ms",
+                previousGarbageBytes, liveBytes, System.currentTimeMillis() - ts);
+    }
+
+    @Nullable
+    private static ProtectedStorageEntry decode(byte[] bytes) {
+        try {
+            return MessageCodec.decodeProtectedStorageEntry(bytes);
+        } catch (Throwable t) {
+            log.error("Could not decode storage entry. " + t.getMessage());
+            return null;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private final class EntrySet extends AbstractSet<Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>> {
+        @Override
+        public Iterator<Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>> iterator() {
+            Iterator<Entry<P2PDataStorage.ByteArray, Location>> iterator = getLocationsSnapshot().iterator();
+            return new Iterator<Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>>() {
+                @Nullable
+                private P2PDataStorage.ByteArray lastKey;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry> next() {
+                    Entry<P2PDataStorage.ByteArray, Location> next = iterator.next();
+                    lastKey = next.getKey();
+                    return new LazyEntry(next.getKey(), next.getValue());
+                }
+
+                @Override
+                public void remove() {
+                    if (lastKey == null)
+                        throw new IllegalStateException();
+                    OffHeapEntryMap.this.remove(lastKey);
+                    lastKey = null;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return OffHeapEntryMap.this.size();
+        }
+    }
+
+    // Segments are never overwritten, so the location of a snapshot stays readable after the entry got removed
+    private final class LazyEntry implements Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry> {
+        private final P2PDataStorage.ByteArray key;
+        private final Location location;
+        @Nullable
+        private ProtectedStorageEntry value;
+
+        private LazyEntry(P2PDataStorage.ByteArray key, Location location) {
+            this.key = key;
+            this.location = location;
+        }
+
+        @Override
+        public P2PDataStorage.ByteArray getKey() {
+            return key;
+        }
+
+        @Override
+        public ProtectedStorageEntry getValue() {
+            if (value == null) {
+                byte[] bytes;
+                synchronized (OffHeapEntryMap.this) {
+                    bytes = read(location);
+                }
+                value = decode(bytes);
+            }
+            return value;
+        }
+
+        @Override
+        public ProtectedStorageEntry setValue(ProtectedStorageEntry value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?, ?> entry = (Entry<?, ?>) o;
+            return key.equals(entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Objects.hashCode(getValue());
+        }
+    }
+}
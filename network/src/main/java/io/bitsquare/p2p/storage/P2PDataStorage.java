@@ -8,6 +8,7 @@ import io.bitsquare.common.UserThread;
 import io.bitsquare.common.crypto.CryptoException;
 import io.bitsquare.common.crypto.Hash;
 import io.bitsquare.common.crypto.Sig;
+import io.bitsquare.common.handlers.ResultHandler;
 import io.bitsquare.common.persistance.Persistable;
 import io.bitsquare.common.util.Tuple2;
 import io.bitsquare.common.util.Utilities;
@@ -22,8 +23,8 @@ import io.bitsquare.p2p.storage.payload.*;
 import io.bitsquare.p2p.storage.storageentry.ProtectedMailboxStorageEntry;
 import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
 import io.bitsquare.storage.FileUtil;
+import io.bitsquare.storage.JournaledMapStorage;
 import io.bitsquare.storage.ResourceNotFoundException;
-import io.bitsquare.storage.Storage;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,9 +38,8 @@ import java.nio.file.Paths;
 import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 // Run in UserThread
@@ -54,14 +54,50 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
     @VisibleForTesting
     public static int CHECK_TTL_INTERVAL_SEC = 60;
 
+    // Entries of a bulk add get added to the map in batches of that size, so the UserThread does not get blocked
+    // by the listeners of a large data response
+    private static final int BULK_ADD_BATCH_SIZE = 50;
+
+    // Granularity of the expiry times in the expiryQueue
+    private static final long EXPIRY_BUCKET_MS = 1000;
+
+    // Keeps the entries encoded in direct memory instead of the heap. Only used by seed nodes, as the entries get
+    // decoded to new instances at each access (see OffHeapEntryMap).
+    private static boolean useOffHeapStorage = false;
+
+    public static void setUseOffHeapStorage(boolean useOffHeapStorage) {
+        P2PDataStorage.useOffHeapStorage = useOffHeapStorage;
+    }
+
+    // Seed nodes serve the persisted entries of the past periods from pre-encoded segments (see SnapshotSegmentStore)
+    private static boolean useSnapshotSegments = false;
+
+    public static void setUseSnapshotSegments(boolean useSnapshotSegments) {
+        P2PDataStorage.useSnapshotSegments = useSnapshotSegments;
+    }
+
     private final Broadcaster broadcaster;
-    private final Map<ByteArray, ProtectedStorageEntry> map = new ConcurrentHashMap<>();
+    private final SeenMessageCache seenMessageCache;
+    private final Map<ByteArray, ProtectedStorageEntry> map;
+    // Secondary indexes of the map, updated at putEntry and removeEntry
+    private final StorageEntryIndex index = new StorageEntryIndex();
+    // Keys of the entries which can expire, ordered by their expiry time
+    private final ExpiryQueue expiryQueue = new ExpiryQueue(EXPIRY_BUCKET_MS);
+    // Not used with the OffHeapEntryMap, as the payloads we get from the map are new instances at each access
+    @Nullable
+    private final PayloadHashCache payloadHashCache;
     private final CopyOnWriteArraySet<HashMapChangedListener> hashMapChangedListeners = new CopyOnWriteArraySet<>();
     private Timer removeExpiredEntriesTimer;
-    private HashMap<ByteArray, MapValue> sequenceNumberMap = new HashMap<>();
-    private final Storage<HashMap<ByteArray, MapValue>> sequenceNumberMapStorage;
-    private HashMap<ByteArray, ProtectedStorageEntry> persistedMap = new HashMap<>();
-    private final Storage<HashMap<ByteArray, ProtectedStorageEntry>> persistedEntryMapStorage;
+    private final SequenceNumberMap sequenceNumberMap = new SequenceNumberMap();
+    private final JournaledMapStorage<ByteArray, MapValue> sequenceNumberMapStorage;
+    private Map<ByteArray, ProtectedStorageEntry> persistedMap;
+    private final JournaledMapStorage<ByteArray, ProtectedStorageEntry> persistedEntryMapStorage;
+    // Signature checks and payload hashes of bulk adds are done in parallel at that pool
+    private final ForkJoinPool verificationPool;
+    // Completes when all entries of the last bulk add have been added, the next bulk add starts only then
+    private CompletableFuture<Void> lastBulkAdd = CompletableFuture.completedFuture(null);
+    @Nullable
+    private final SnapshotSegmentStore snapshotSegmentStore;
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -70,23 +106,64 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
 
     public P2PDataStorage(Broadcaster broadcaster, NetworkNode networkNode, File storageDir) {
         this.broadcaster = broadcaster;
+        seenMessageCache = networkNode.getSeenMessageCache();
 
-        networkNode.addMessageListener(this);
+        networkNode.addMessageListener(this, BroadcastMessage.class);
         networkNode.addConnectionListener(this);
 
-        sequenceNumberMapStorage = new Storage<>(storageDir);
-        persistedEntryMapStorage = new Storage<>(storageDir);
+        if (useOffHeapStorage) {
+            log.info("We keep the storage entries in direct memory.");
+            map = new OffHeapEntryMap();
+            persistedMap = new OffHeapEntryMap();
+            payloadHashCache = null;
+        } else {
+            map = new ConcurrentHashMap<>();
+            persistedMap = new HashMap<>();
+            payloadHashCache = new PayloadHashCache();
+        }
+
+        // Only the changes get written to the journals of the maps
+        sequenceNumberMapStorage = new JournaledMapStorage<>(storageDir, new JournaledMapStorage.Source<ByteArray, MapValue>() {
+            @Override
+            public int size() {
+                return sequenceNumberMap.size();
+            }
+
+            @Override
+            public Supplier<Iterator<Map.Entry<ByteArray, MapValue>>> getSnapshot() {
+                SequenceNumberMap snapshot = sequenceNumberMap.copy();
+                return () -> toPersistedSequenceNumberMap(snapshot).entrySet().iterator();
+            }
+        });
+        // The off-heap map gets decoded entry by entry when writing the snapshot
+        persistedEntryMapStorage = useOffHeapStorage ?
+                new JournaledMapStorage<>(storageDir, (OffHeapEntryMap) persistedMap) :
+                new JournaledMapStorage<>(storageDir, () -> persistedMap);
+
+        verificationPool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("P2PDataStorage-verification-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
 
         init(storageDir);
+
+        snapshotSegmentStore = useSnapshotSegments ?
+                new SnapshotSegmentStore(new File(storageDir, "SnapshotSegments"), this::getPersistedEntries,
+                        map::containsKey) : null;
     }
 
     private void init(File storageDir) {
         sequenceNumberMapStorage.setNumMaxBackupFiles(5);
         persistedEntryMapStorage.setNumMaxBackupFiles(1);
         
-        HashMap<ByteArray, MapValue> persistedSequenceNumberMap = sequenceNumberMapStorage.<HashMap<ByteArray, MapValue>>initAndGetPersistedWithFileName("SequenceNumberMap");
-        if (persistedSequenceNumberMap != null)
-            sequenceNumberMap = getPurgedSequenceNumberMap(persistedSequenceNumberMap);
+        HashMap<ByteArray, MapValue> persistedSequenceNumberMap = sequenceNumberMapStorage.initAndGetPersistedWithFileName("SequenceNumberMap");
+        if (persistedSequenceNumberMap != null) {
+            persistedSequenceNumberMap.entrySet().stream()
+                    .filter(e -> e.getKey().bytes != null && e.getKey().bytes.length == SequenceNumberMap.KEY_LENGTH)
+                    .forEach(e -> sequenceNumberMap.put(e.getKey(), e.getValue().sequenceNr, e.getValue().timeStamp));
+            purgeSequenceNumberMap();
+        }
 
         final String storageFileName = "PersistedP2PStorageData";
 
@@ -106,23 +183,34 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
             log.debug(storageFileName + " file exists already.");
         }
 
-        HashMap<ByteArray, ProtectedStorageEntry> persisted = persistedEntryMapStorage.<HashMap<ByteArray, MapValue>>initAndGetPersistedWithFileName(storageFileName);
+        HashMap<ByteArray, ProtectedStorageEntry> persisted = persistedEntryMapStorage.initAndGetPersistedWithFileName(storageFileName);
         if (persisted != null) {
-            persistedMap = persisted;
-            map.putAll(persistedMap);
+            persisted.entrySet().stream().forEach(e -> {
+                if (putEntry(e.getKey(), e.getValue()))
+                    persistedMap.put(e.getKey(), e.getValue());
+            });
 
             // In case another object is already listening...
-            map.values().stream()
-                    .forEach(protectedStorageEntry -> hashMapChangedListeners.stream().forEach(e -> e.onAdded(protectedStorageEntry)));
+            if (!hashMapChangedListeners.isEmpty())
+                map.values().stream()
+                        .forEach(protectedStorageEntry -> hashMapChangedListeners.stream().forEach(e -> e.onAdded(protectedStorageEntry)));
         }
     }
 
     public void shutDown() {
         if (removeExpiredEntriesTimer != null)
             removeExpiredEntriesTimer.stop();
+        verificationPool.shutdownNow();
+        sequenceNumberMapStorage.shutDown();
+        persistedEntryMapStorage.shutDown();
+        if (snapshotSegmentStore != null)
+            snapshotSegmentStore.shutDown();
     }
 
     public void onBootstrapComplete() {
+        if (snapshotSegmentStore != null)
+            snapshotSegmentStore.start();
+
         removeExpiredEntriesTimer = UserThread.runPeriodically(() -> {
             log.trace("removeExpiredEntries");
             // The moment when an object becomes expired will not be synchronous in the network and we could 
@@ -130,17 +218,20 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
             // object when we get it sent from new peers, we don’t remove the sequence number from the map. 
             // That way an ADD message for an already expired data will fail because the sequence number 
             // is equal and not larger as expected. 
-            Map<ByteArray, ProtectedStorageEntry> temp = new HashMap<>(map);
+            // We only check the entries which were due at their scheduled expiry time. Entries which got their TTL
+            // refreshed in the meantime are not expired and get scheduled again.
             Set<ProtectedStorageEntry> toRemoveSet = new HashSet<>();
-            temp.entrySet().stream()
-                    .filter(entry -> entry.getValue().isExpired())
-                    .forEach(entry -> {
-                        ByteArray hashOfPayload = entry.getKey();
+            expiryQueue.pollDue(System.currentTimeMillis()).stream()
+                    .forEach(hashOfPayload -> {
                         ProtectedStorageEntry protectedStorageEntry = map.get(hashOfPayload);
-                        if (!(protectedStorageEntry.getStoragePayload() instanceof PersistedStoragePayload)) {
-                            toRemoveSet.add(protectedStorageEntry);
-                            log.debug("We found an expired data entry. We remove the protectedData:\n\t" + Utilities.toTruncatedString(protectedStorageEntry));
-                            map.remove(hashOfPayload);
+                        if (protectedStorageEntry != null) {
+                            if (protectedStorageEntry.isExpired()) {
+                                toRemoveSet.add(protectedStorageEntry);
+                                log.debug("We found an expired data entry. We remove the protectedData:\n\t" + Utilities.toTruncatedString(protectedStorageEntry));
+                                removeEntry(hashOfPayload);
+                            } else {
+                                scheduleExpiry(hashOfPayload, protectedStorageEntry);
+                            }
                         }
                     });
 
@@ -149,7 +240,7 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
                             listener -> listener.onRemoved(protectedDataToRemove)));
 
             if (sequenceNumberMap.size() > 1000)
-                sequenceNumberMap = getPurgedSequenceNumberMap(sequenceNumberMap);
+                purgeSequenceNumberMap();
         }, CHECK_TTL_INTERVAL_SEC);
     }
 
@@ -164,13 +255,16 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
             Log.traceCall(Utilities.toTruncatedString(message) + "\n\tconnection=" + connection);
             connection.getPeersNodeAddressOptional().ifPresent(peersNodeAddress -> {
                 if (message instanceof AddDataMessage) {
-                    add(((AddDataMessage) message).protectedStorageEntry, peersNodeAddress, null, false);
+                    AddDataMessage addDataMessage = (AddDataMessage) message;
+                    if (add(addDataMessage.protectedStorageEntry, peersNodeAddress, null, false, true, addDataMessage))
+                        seenMessageCache.add(addDataMessage);
                 } else if (message instanceof RemoveDataMessage) {
                     remove(((RemoveDataMessage) message).protectedStorageEntry, peersNodeAddress, false);
                 } else if (message instanceof RemoveMailboxDataMessage) {
                     removeMailboxData(((RemoveMailboxDataMessage) message).protectedMailboxStorageEntry, peersNodeAddress, false);
                 } else if (message instanceof RefreshTTLMessage) {
-                    refreshTTL((RefreshTTLMessage) message, peersNodeAddress, false);
+                    if (refreshTTL((RefreshTTLMessage) message, peersNodeAddress, false))
+                        seenMessageCache.add((RefreshTTLMessage) message);
                 }
             });
         }
@@ -188,44 +282,40 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
     @Override
     public void onDisconnect(CloseConnectionReason closeConnectionReason, Connection connection) {
         if (connection.hasPeersNodeAddress() && !closeConnectionReason.isIntended) {
-            map.values().stream()
-                    .forEach(protectedData -> {
-                        ExpirablePayload expirablePayload = protectedData.getStoragePayload();
-                        if (expirablePayload instanceof RequiresOwnerIsOnlinePayload) {
-                            RequiresOwnerIsOnlinePayload requiresOwnerIsOnlinePayload = (RequiresOwnerIsOnlinePayload) expirablePayload;
-                            NodeAddress ownerNodeAddress = requiresOwnerIsOnlinePayload.getOwnerNodeAddress();
-                            if (ownerNodeAddress.equals(connection.getPeersNodeAddressOptional().get())) {
-                                // We have a RequiresLiveOwnerData data object with the node address of the 
-                                // disconnected peer. We remove that data from our map.
-
-                                // Check if we have the data (e.g. Offer)
-                                ByteArray hashOfPayload = getHashAsByteArray(expirablePayload);
-                                boolean containsKey = map.containsKey(hashOfPayload);
-                                if (containsKey) {
-                                    log.debug("We remove the data as the data owner got disconnected with " +
-                                            "closeConnectionReason=" + closeConnectionReason);
-
-                                    Log.logIfStressTests("We remove the data as the data owner got disconnected with " +
-                                            "closeConnectionReason=" + closeConnectionReason +
-                                            " / isIntended=" + closeConnectionReason.isIntended +
-                                            " / peer=" + (connection.getPeersNodeAddressOptional().isPresent() ? connection.getPeersNodeAddressOptional().get() : "PeersNode unknown"));
-
-                                    // We only set the data back by half of the TTL and remove the data only if is has 
-                                    // expired after tha back dating. 
-                                    // We might get connection drops which are not caused by the node going offline, so 
-                                    // we give more tolerance with that approach, giving the node the change to 
-                                    // refresh the TTL with a refresh message.
-                                    // We observed those issues during stress tests, but it might have been caused by the 
-                                    // test set up (many nodes/connections over 1 router)
-                                    // TODO investigate what causes the disconnections. 
-                                    // Usually the are: SOCKET_TIMEOUT ,TERMINATED (EOFException) 
-                                    protectedData.backDate();
-                                    if (protectedData.isExpired())
-                                        doRemoveProtectedExpirableData(protectedData, hashOfPayload);
-                                } else {
-                                    log.debug("Remove data ignored as we don't have an entry for that data.");
-                                }
+            NodeAddress peersNodeAddress = connection.getPeersNodeAddressOptional().get();
+            // We have RequiresOwnerIsOnlinePayload data objects with the node address of the disconnected peer.
+            // We remove that data from our map.
+            index.getKeysByOwner(peersNodeAddress).stream()
+                    .forEach(hashOfPayload -> {
+                        // Check if we have the data (e.g. Offer)
+                        ProtectedStorageEntry protectedData = map.get(hashOfPayload);
+                        if (protectedData != null) {
+                            log.debug("We remove the data as the data owner got disconnected with " +
+                                    "closeConnectionReason=" + closeConnectionReason);
+
+                            Log.logIfStressTests("We remove the data as the data owner got disconnected with " +
+                                    "closeConnectionReason=" + closeConnectionReason +
+                                    " / isIntended=" + closeConnectionReason.isIntended +
+                                    " / peer=" + peersNodeAddress);
+
+                            // We only set the data back by half of the TTL and remove the data only if is has 
+                            // expired after tha back dating. 
+                            // We might get connection drops which are not caused by the node going offline, so 
+                            // we give more tolerance with that approach, giving the node the change to 
+                            // refresh the TTL with a refresh message.
+                            // We observed those issues during stress tests, but it might have been caused by the 
+                            // test set up (many nodes/connections over 1 router)
+                            // TODO investigate what causes the disconnections. 
+                            // Usually the are: SOCKET_TIMEOUT ,TERMINATED (EOFException) 
+                            protectedData.backDate();
+                            if (protectedData.isExpired()) {
+                                doRemoveProtectedExpirableData(protectedData, hashOfPayload);
+                            } else {
+                                // The map might hold a copy of the entry (OffHeapEntryMap)
+                                putEntry(hashOfPayload, protectedData);
                             }
+                        } else {
+                            log.debug("Remove data ignored as we don't have an entry for that data.");
                         }
                     });
         }
@@ -249,14 +339,70 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
 
     public boolean add(ProtectedStorageEntry protectedStorageEntry, @Nullable NodeAddress sender,
                        @Nullable BroadcastHandler.Listener listener, boolean isDataOwner, boolean allowBroadcast) {
+        return add(protectedStorageEntry, sender, listener, isDataOwner, allowBroadcast, null);
+    }
+
+    /**
+     * Adds the entries of a data response without broadcasting them. The signatures and the payload hashes get
+     * checked in parallel at the verificationPool and only the map changes and the listener calls are done at the
+     * UserThread, in batches of BULK_ADD_BATCH_SIZE entries.
+     * The entries of consecutive calls get added in the order of the calls, the batches of a call start after
+     * the last batch of the previous call.
+     * An entry whose checks throw counts as not verified. After shutDown the entries are ignored.
+     *
+     * @param resultHandler Called at the UserThread after all entries of that call have been processed
+     */
+    public void addAll(Collection<ProtectedStorageEntry> protectedStorageEntries, @Nullable NodeAddress sender,
+                       ResultHandler resultHandler) {
+        List<ProtectedStorageEntry> entries = new ArrayList<>(protectedStorageEntries);
+        // A parallel stream started at a thread of the verificationPool forks its tasks to that pool
+        CompletableFuture<List<Tuple2<ByteArray, Boolean>>> verifiedFuture;
+        try {
+            verifiedFuture = CompletableFuture.supplyAsync(() ->
+                    entries.parallelStream().map(this::verifyOfBulkAdd).collect(Collectors.toList()), verificationPool);
+        } catch (RejectedExecutionException e) {
+            log.debug("The verificationPool has been shut down. We ignore the entries.");
+            return;
+        }
+
+        lastBulkAdd = lastBulkAdd
+                .thenCombine(verifiedFuture, (previous, verified) -> verified)
+                .thenCompose(verified -> {
+                    CompletableFuture<Void> added = new CompletableFuture<>();
+                    UserThread.execute(() -> addBatch(entries, verified, 0, sender, () -> {
+                        try {
+                            resultHandler.handleResult();
+                        } finally {
+                            added.complete(null);
+                        }
+                    }));
+                    return added;
+                })
+                .exceptionally(throwable -> {
+                    log.error("Verification of entries failed. " + throwable.getMessage());
+                    UserThread.execute(resultHandler::handleResult);
+                    return null;
+                });
+    }
+
+    // If we got the entry with an AddDataMessage from a peer we relay that message, so the received frame gets
+    // forwarded as it is
+    private boolean add(ProtectedStorageEntry protectedStorageEntry, @Nullable NodeAddress sender,
+                        @Nullable BroadcastHandler.Listener listener, boolean isDataOwner, boolean allowBroadcast,
+                        @Nullable AddDataMessage receivedAddDataMessage) {
         Log.traceCall("with allowBroadcast=" + allowBroadcast);
+        Tuple2<ByteArray, Boolean> verified = verify(protectedStorageEntry);
+        return add(protectedStorageEntry, verified.first, verified.second, sender, listener, isDataOwner,
+                allowBroadcast, receivedAddDataMessage);
+    }
 
+    // isVerified is the result of the checks which don't depend on the stored data (see verify)
+    private boolean add(ProtectedStorageEntry protectedStorageEntry, ByteArray hashOfPayload, boolean isVerified,
+                        @Nullable NodeAddress sender, @Nullable BroadcastHandler.Listener listener, boolean isDataOwner,
+                        boolean allowBroadcast, @Nullable AddDataMessage receivedAddDataMessage) {
         final StoragePayload storagePayload = protectedStorageEntry.getStoragePayload();
-        ByteArray hashOfPayload = getHashAsByteArray(storagePayload);
         boolean sequenceNrValid = isSequenceNrValid(protectedStorageEntry.sequenceNumber, hashOfPayload);
-        boolean result = checkPublicKeys(protectedStorageEntry, true)
-                && checkSignature(protectedStorageEntry)
-                && sequenceNrValid;
+        boolean result = isVerified && sequenceNrValid;
 
         boolean containsKey = map.containsKey(hashOfPayload);
         if (containsKey)
@@ -267,27 +413,28 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
             final boolean hasSequenceNrIncreased = hasSequenceNrIncreased(protectedStorageEntry.sequenceNumber, hashOfPayload);
             if (!containsKey || hasSequenceNrIncreased) {
                 // At startup we don't have the item so we store it. At updates of the seq nr we store as well.
-                map.put(hashOfPayload, protectedStorageEntry);
-
-                // If we get a PersistedStoragePayload we save to disc
-                if (storagePayload instanceof PersistedStoragePayload) {
-                    persistedMap.put(hashOfPayload, protectedStorageEntry);
-                    persistedEntryMapStorage.queueUpForSave(new HashMap<>(persistedMap), 5000);
+                if (putEntry(hashOfPayload, protectedStorageEntry)) {
+                    // If we get a PersistedStoragePayload we save to disc
+                    if (storagePayload instanceof PersistedStoragePayload) {
+                        persistedMap.put(hashOfPayload, protectedStorageEntry);
+                        persistedEntryMapStorage.put(hashOfPayload, protectedStorageEntry);
+                    }
+
+                    hashMapChangedListeners.stream().forEach(e -> e.onAdded(protectedStorageEntry));
+                    // printData("after add");
+                } else {
+                    result = false;
                 }
-
-                hashMapChangedListeners.stream().forEach(e -> e.onAdded(protectedStorageEntry));
-                // printData("after add");
             } else {
                 log.trace("We got that version of the data already, so we don't store it.");
             }
 
-            if (hasSequenceNrIncreased) {
-                sequenceNumberMap.put(hashOfPayload, new MapValue(protectedStorageEntry.sequenceNumber, System.currentTimeMillis()));
-                // We set the delay higher as we might receive a batch of items
-                sequenceNumberMapStorage.queueUpForSave(new HashMap<>(sequenceNumberMap), 2000);
+            if (result && hasSequenceNrIncreased) {
+                putSequenceNumber(hashOfPayload, protectedStorageEntry.sequenceNumber);
 
                 if (allowBroadcast)
-                    broadcast(new AddDataMessage(protectedStorageEntry), sender, listener, isDataOwner);
+                    broadcast(receivedAddDataMessage != null ? receivedAddDataMessage : new AddDataMessage(protectedStorageEntry),
+                            sender, listener, isDataOwner);
             } else {
                 log.trace("We got that version of the data already, so we don't broadcast it.");
             }
@@ -308,7 +455,7 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
         if (map.containsKey(hashOfPayload)) {
             ProtectedStorageEntry storedData = map.get(hashOfPayload);
 
-            if (sequenceNumberMap.containsKey(hashOfPayload) && sequenceNumberMap.get(hashOfPayload).sequenceNr == sequenceNumber) {
+            if (sequenceNumberMap.containsKey(hashOfPayload) && sequenceNumberMap.getSequenceNr(hashOfPayload) == sequenceNumber) {
                 log.trace("We got that message with that seq nr already from another peer. We ignore that message.");
                 return true;
             } else {
@@ -323,14 +470,19 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
                 // printData("before refreshTTL");
                 if (allValid) {
                     log.debug("refreshDate called for storedData:\n\t" + StringUtils.abbreviate(storedData.toString(), 100));
+                    // The expiryQueue schedules the entry again when its previous expiry time is due
                     storedData.refreshTTL();
                     storedData.updateSequenceNumber(sequenceNumber);
                     storedData.updateSignature(signature);
-                    printData("after refreshTTL");
-                    sequenceNumberMap.put(hashOfPayload, new MapValue(sequenceNumber, System.currentTimeMillis()));
-                    sequenceNumberMapStorage.queueUpForSave(new HashMap<>(sequenceNumberMap), 1000);
-
-                    broadcast(refreshTTLMessage, sender, null, isDataOwner);
+                    // The map might hold a copy of the entry (OffHeapEntryMap)
+                    if (putEntry(hashOfPayload, storedData)) {
+                        printData("after refreshTTL");
+                        putSequenceNumber(hashOfPayload, sequenceNumber);
+
+                        broadcast(refreshTTLMessage, sender, null, isDataOwner);
+                    } else {
+                        return false;
+                    }
                 }
                 return allValid;
             }
@@ -356,8 +508,7 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
         if (result) {
             doRemoveProtectedExpirableData(protectedStorageEntry, hashOfPayload);
             printData("after remove");
-            sequenceNumberMap.put(hashOfPayload, new MapValue(protectedStorageEntry.sequenceNumber, System.currentTimeMillis()));
-            sequenceNumberMapStorage.queueUpForSave(new HashMap<>(sequenceNumberMap), 300);
+            putSequenceNumber(hashOfPayload, protectedStorageEntry.sequenceNumber);
 
             broadcast(new RemoveDataMessage(protectedStorageEntry), sender, null, isDataOwner);
         } else {
@@ -383,8 +534,7 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
         if (result) {
             doRemoveProtectedExpirableData(protectedMailboxStorageEntry, hashOfData);
             printData("after removeMailboxData");
-            sequenceNumberMap.put(hashOfData, new MapValue(protectedMailboxStorageEntry.sequenceNumber, System.currentTimeMillis()));
-            sequenceNumberMapStorage.queueUpForSave(new HashMap<>(sequenceNumberMap), 300);
+            putSequenceNumber(hashOfData, protectedMailboxStorageEntry.sequenceNumber);
 
             broadcast(new RemoveMailboxDataMessage(protectedMailboxStorageEntry), sender, null, isDataOwner);
         } else {
@@ -398,16 +548,42 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
         return map;
     }
 
+    // Entries with a payload of the given class, of a subclass or of an implementation of the given interface
+    public List<ProtectedStorageEntry> getEntries(Class<? extends StoragePayload> payloadClass) {
+        return getEntries(index.getKeys(payloadClass));
+    }
+
+    // Keys (hash of the payload) of the entries with a payload of the given class. Does not access the entries.
+    public List<ByteArray> getKeys(Class<? extends StoragePayload> payloadClass) {
+        return index.getKeys(payloadClass);
+    }
+
+    @Nullable
+    public SnapshotSegmentStore getSnapshotSegmentStore() {
+        return snapshotSegmentStore;
+    }
+
+    public <T extends StoragePayload> List<T> getPayloads(Class<T> payloadClass) {
+        return getEntries(payloadClass).stream()
+                .map(e -> payloadClass.cast(e.getStoragePayload()))
+                .collect(Collectors.toList());
+    }
+
+    // Entries with a RequiresOwnerIsOnlinePayload of the given owner
+    public List<ProtectedStorageEntry> getEntriesByOwner(NodeAddress ownerNodeAddress) {
+        return getEntries(index.getKeysByOwner(ownerNodeAddress));
+    }
+
     public ProtectedStorageEntry getProtectedData(StoragePayload storagePayload, KeyPair ownerStoragePubKey)
             throws CryptoException {
         ByteArray hashOfData = getHashAsByteArray(storagePayload);
         int sequenceNumber;
         if (sequenceNumberMap.containsKey(hashOfData))
-            sequenceNumber = sequenceNumberMap.get(hashOfData).sequenceNr + 1;
+            sequenceNumber = sequenceNumberMap.getSequenceNr(hashOfData) + 1;
         else
             sequenceNumber = 0;
 
-        byte[] hashOfDataAndSeqNr = Hash.getHash(new DataAndSeqNrPair(storagePayload, sequenceNumber));
+        byte[] hashOfDataAndSeqNr = getHashOfDataAndSeqNr(storagePayload, sequenceNumber);
         byte[] signature = Sig.sign(ownerStoragePubKey.getPrivate(), hashOfDataAndSeqNr);
         return new ProtectedStorageEntry(storagePayload, ownerStoragePubKey.getPublic(), sequenceNumber, signature);
     }
@@ -417,11 +593,11 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
         ByteArray hashOfPayload = getHashAsByteArray(storagePayload);
         int sequenceNumber;
         if (sequenceNumberMap.containsKey(hashOfPayload))
-            sequenceNumber = sequenceNumberMap.get(hashOfPayload).sequenceNr + 1;
+            sequenceNumber = sequenceNumberMap.getSequenceNr(hashOfPayload) + 1;
         else
             sequenceNumber = 0;
 
-        byte[] hashOfDataAndSeqNr = Hash.getHash(new DataAndSeqNrPair(storagePayload, sequenceNumber));
+        byte[] hashOfDataAndSeqNr = getHashOfDataAndSeqNr(storagePayload, sequenceNumber);
         byte[] signature = Sig.sign(ownerStoragePubKey.getPrivate(), hashOfDataAndSeqNr);
         return new RefreshTTLMessage(hashOfDataAndSeqNr, signature, hashOfPayload.bytes, sequenceNumber);
     }
@@ -432,11 +608,11 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
         ByteArray hashOfData = getHashAsByteArray(expirableMailboxStoragePayload);
         int sequenceNumber;
         if (sequenceNumberMap.containsKey(hashOfData))
-            sequenceNumber = sequenceNumberMap.get(hashOfData).sequenceNr + 1;
+            sequenceNumber = sequenceNumberMap.getSequenceNr(hashOfData) + 1;
         else
             sequenceNumber = 0;
 
-        byte[] hashOfDataAndSeqNr = Hash.getHash(new DataAndSeqNrPair(expirableMailboxStoragePayload, sequenceNumber));
+        byte[] hashOfDataAndSeqNr = getHashOfDataAndSeqNr(expirableMailboxStoragePayload, sequenceNumber);
         byte[] signature = Sig.sign(storageSignaturePubKey.getPrivate(), hashOfDataAndSeqNr);
         return new ProtectedMailboxStorageEntry(expirableMailboxStoragePayload,
                 storageSignaturePubKey.getPublic(), sequenceNumber, signature, receiversPublicKey);
@@ -463,14 +639,70 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     private void doRemoveProtectedExpirableData(ProtectedStorageEntry protectedStorageEntry, ByteArray hashOfPayload) {
-        map.remove(hashOfPayload);
+        removeEntry(hashOfPayload);
         log.trace("Data removed from our map. We broadcast the message to our peers.");
         hashMapChangedListeners.stream().forEach(e -> e.onRemoved(protectedStorageEntry));
     }
 
+    // Entries which got removed since we got the keys from the index are skipped
+    private Map<ByteArray, ProtectedStorageEntry> getPersistedEntries() {
+        Map<ByteArray, ProtectedStorageEntry> entries = new HashMap<>();
+        index.getKeys(PersistedStoragePayload.class).stream().forEach(key -> {
+            ProtectedStorageEntry protectedStorageEntry = map.get(key);
+            if (protectedStorageEntry != null)
+                entries.put(key, protectedStorageEntry);
+        });
+        return entries;
+    }
+
+    private List<ProtectedStorageEntry> getEntries(List<ByteArray> keys) {
+        List<ProtectedStorageEntry> entries = new ArrayList<>(keys.size());
+        keys.stream().forEach(key -> {
+            ProtectedStorageEntry protectedStorageEntry = map.get(key);
+            if (protectedStorageEntry != null)
+                entries.add(protectedStorageEntry);
+        });
+        return entries;
+    }
+
+    // All changes of the map have to be done with putEntry and removeEntry to keep the index in sync. Changes of a
+    // stored entry have to be written back with putEntry (see OffHeapEntryMap).
+    // The OffHeapEntryMap rejects entries it cannot encode. We don't keep a previous version of the entry then, as it
+    // would not match the sequence number and the TTL we have accepted. Returns false if the entry was not stored.
+    private boolean putEntry(ByteArray hashOfPayload, ProtectedStorageEntry protectedStorageEntry) {
+        try {
+            map.put(hashOfPayload, protectedStorageEntry);
+        } catch (IllegalArgumentException e) {
+            log.error("Could not store the entry. We remove the previous version if we have one. " + e.getMessage());
+            if (map.containsKey(hashOfPayload))
+                doRemoveProtectedExpirableData(protectedStorageEntry, hashOfPayload);
+            return false;
+        }
+        index.put(hashOfPayload, protectedStorageEntry);
+        scheduleExpiry(hashOfPayload, protectedStorageEntry);
+        return true;
+    }
+
+    private void removeEntry(ByteArray hashOfPayload) {
+        ProtectedStorageEntry removed = map.remove(hashOfPayload);
+        if (removed != null) {
+            index.remove(hashOfPayload, removed);
+            if (snapshotSegmentStore != null)
+                snapshotSegmentStore.onRemoved(hashOfPayload);
+        }
+        expiryQueue.unschedule(hashOfPayload);
+    }
+
+    // PersistedStoragePayload entries don't get removed when they expire
+    private void scheduleExpiry(ByteArray hashOfPayload, ProtectedStorageEntry protectedStorageEntry) {
+        StoragePayload storagePayload = protectedStorageEntry.getStoragePayload();
+        if (!(storagePayload instanceof PersistedStoragePayload))
+            expiryQueue.schedule(hashOfPayload, protectedStorageEntry.creationTimeStamp + storagePayload.getTTL());
+    }
+
     private boolean isSequenceNrValid(int newSequenceNumber, ByteArray hashOfData) {
         if (sequenceNumberMap.containsKey(hashOfData)) {
-            int storedSequenceNumber = sequenceNumberMap.get(hashOfData).sequenceNr;
+            int storedSequenceNumber = sequenceNumberMap.getSequenceNr(hashOfData);
             if (newSequenceNumber >= storedSequenceNumber) {
                 log.trace("Sequence number is valid (>=). sequenceNumber = "
                         + newSequenceNumber + " / storedSequenceNumber=" + storedSequenceNumber);
@@ -489,7 +721,7 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
 
     private boolean hasSequenceNrIncreased(int newSequenceNumber, ByteArray hashOfData) {
         if (sequenceNumberMap.containsKey(hashOfData)) {
-            int storedSequenceNumber = sequenceNumberMap.get(hashOfData).sequenceNr;
+            int storedSequenceNumber = sequenceNumberMap.getSequenceNr(hashOfData);
             if (newSequenceNumber > storedSequenceNumber) {
                 log.trace("Sequence number has increased (>). sequenceNumber = "
                         + newSequenceNumber + " / storedSequenceNumber=" + storedSequenceNumber + " / hashOfData=" + hashOfData.toString());
@@ -517,6 +749,44 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
         }
     }
 
+    // The checks of an added entry which don't depend on the stored data, so they can run at any thread.
+    // Returns the hash of the payload and whether the checks succeeded.
+    private Tuple2<ByteArray, Boolean> verify(ProtectedStorageEntry protectedStorageEntry) {
+        ByteArray hashOfPayload = getHashAsByteArray(protectedStorageEntry.getStoragePayload());
+        return new Tuple2<>(hashOfPayload, checkPublicKeys(protectedStorageEntry, true) && checkSignature(protectedStorageEntry));
+    }
+
+    // A throwing check must not fail the other entries of a bulk add. If we could not get the hash of the payload
+    // it is null and the entry gets skipped (see addBatch).
+    private Tuple2<ByteArray, Boolean> verifyOfBulkAdd(ProtectedStorageEntry protectedStorageEntry) {
+        try {
+            return verify(protectedStorageEntry);
+        } catch (Throwable t) {
+            log.warn("Verification of entry of bulk add failed. " + t.getMessage());
+            return new Tuple2<>(null, false);
+        }
+    }
+
+    private void addBatch(List<ProtectedStorageEntry> entries, List<Tuple2<ByteArray, Boolean>> verified, int startIndex,
+                          @Nullable NodeAddress sender, ResultHandler resultHandler) {
+        int endIndex = Math.min(entries.size(), startIndex + BULK_ADD_BATCH_SIZE);
+        for (int i = startIndex; i < endIndex; i++) {
+            // We dont broadcast as we got the entries from a data response.
+            // A failing entry must not stop the batches, the next bulk add waits for the last one.
+            try {
+                if (verified.get(i).first != null)
+                    add(entries.get(i), verified.get(i).first, verified.get(i).second, sender, null, false, false, null);
+            } catch (Throwable t) {
+                log.error("Adding entry of bulk add failed. " + t.getMessage());
+            }
+        }
+
+        if (endIndex < entries.size())
+            UserThread.execute(() -> addBatch(entries, verified, endIndex, sender, resultHandler));
+        else
+            resultHandler.handleResult();
+    }
+
     private boolean checkSignature(PublicKey ownerPubKey, byte[] hashOfDataAndSeqNr, byte[] signature) {
         try {
             boolean result = Sig.verify(ownerPubKey, hashOfDataAndSeqNr, signature);
@@ -532,7 +802,7 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
     }
 
     private boolean checkSignature(ProtectedStorageEntry protectedStorageEntry) {
-        byte[] hashOfDataAndSeqNr = Hash.getHash(new DataAndSeqNrPair(protectedStorageEntry.getStoragePayload(), protectedStorageEntry.sequenceNumber));
+        byte[] hashOfDataAndSeqNr = getHashOfDataAndSeqNr(protectedStorageEntry.getStoragePayload(), protectedStorageEntry.sequenceNumber);
         return checkSignature(protectedStorageEntry.ownerPubKey, hashOfDataAndSeqNr, protectedStorageEntry.signature);
     }
 
@@ -606,22 +876,44 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
     }
 
     private ByteArray getHashAsByteArray(ExpirablePayload data) {
-        return new ByteArray(Hash.getHash(data));
+        if (payloadHashCache != null)
+            return payloadHashCache.getHashOfPayload(data);
+        else
+            return new ByteArray(Hash.getHash(data));
+    }
+
+    private byte[] getHashOfDataAndSeqNr(ExpirablePayload data, int sequenceNumber) {
+        if (payloadHashCache != null)
+            return payloadHashCache.getHashOfDataAndSeqNr(data, sequenceNumber);
+        else
+            return Hash.getHash(new DataAndSeqNrPair(data, sequenceNumber));
     }
 
-    // Get a new map with entries older than PURGE_AGE_DAYS purged from the given map.
-    private HashMap<ByteArray, MapValue> getPurgedSequenceNumberMap(HashMap<ByteArray, MapValue> persisted) {
-        HashMap<ByteArray, MapValue> purged = new HashMap<>();
+    private void putSequenceNumber(ByteArray hashOfPayload, int sequenceNumber) {
+        long timeStamp = System.currentTimeMillis();
+        sequenceNumberMap.put(hashOfPayload, sequenceNumber, timeStamp);
+        sequenceNumberMapStorage.put(hashOfPayload, new MapValue(sequenceNumber, timeStamp));
+    }
+
+    // Removes the entries older than PURGE_AGE_DAYS from the sequenceNumberMap.
+    private void purgeSequenceNumberMap() {
         long maxAgeTs = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(PURGE_AGE_DAYS);
-        persisted.entrySet().stream().forEach(entry -> {
-            if (entry.getValue().timeStamp > maxAgeTs)
-                purged.put(entry.getKey(), entry.getValue());
-        });
-        return purged;
+        sequenceNumberMap.purgeOlderThan(maxAgeTs).stream().forEach(sequenceNumberMapStorage::remove);
+    }
+
+    // The persisted format of the sequenceNumberMap
+    private static HashMap<ByteArray, MapValue> toPersistedSequenceNumberMap(SequenceNumberMap sequenceNumberMap) {
+        HashMap<ByteArray, MapValue> persisted = new HashMap<>();
+        sequenceNumberMap.forEach((key, sequenceNr, timeStamp) ->
+                persisted.put(new ByteArray(key), new MapValue(sequenceNr, timeStamp)));
+        return persisted;
     }
 
     private void printData(String info) {
-        if (LoggerFactory.getLogger(Log.class).isInfoEnabled() || LoggerFactory.getLogger(Log.class).isDebugEnabled()) {
+        // The result is only logged at debug level, so we don't iterate (and with OffHeapEntryMap decode) the map
+        // otherwise
+        if (log.isDebugEnabled() &&
+                (LoggerFactory.getLogger(Log.class).isInfoEnabled() || LoggerFactory.getLogger(Log.class).isDebugEnabled())) {
             StringBuilder sb = new StringBuilder("\n\n------------------------------------------------------------\n");
             sb.append("Data set ").append(info).append(" operation");
             // We print the items sorted by hash with the payload class name and id
@@ -632,7 +924,8 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
             tempList.stream().forEach(e -> {
                 final ProtectedStorageEntry storageEntry = e.second;
                 final StoragePayload storagePayload = storageEntry.getStoragePayload();
-                final MapValue mapValue = sequenceNumberMap.get(getHashAsByteArray(storagePayload));
+                final ByteArray hashOfPayload = getHashAsByteArray(storagePayload);
+                final boolean hasSequenceNr = sequenceNumberMap.containsKey(hashOfPayload);
                 sb.append("\n")
                         .append("Hash=")
                         .append(e.first)
@@ -641,11 +934,11 @@ public class P2PDataStorage implements MessageListener, ConnectionListener {
                         .append("; SequenceNumbers (Object/Stored)=")
                         .append(storageEntry.sequenceNumber)
                         .append(" / ")
-                        .append(mapValue != null ? mapValue.sequenceNr : "null")
+                        .append(hasSequenceNr ? sequenceNumberMap.getSequenceNr(hashOfPayload) : "null")
                         .append("; TimeStamp (Object/Stored)=")
                         .append(storageEntry.creationTimeStamp)
                         .append(" / ")
-                        .append(mapValue != null ? mapValue.timeStamp : "null")
+                        .append(hasSequenceNr ? sequenceNumberMap.getTimeStamp(hashOfPayload) : "null")
                         .append("; Payload=")
                         .append(Utilities.toTruncatedString(storagePayload));
             });
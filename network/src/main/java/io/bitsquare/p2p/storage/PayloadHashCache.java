@@ -0,0 +1,73 @@
+package io.bitsquare.p2p.storage;
+
+import com.google.common.collect.MapMaker;
+import io.bitsquare.common.crypto.Hash;
+import io.bitsquare.p2p.storage.payload.ExpirablePayload;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Memoizes the hash of a payload and the last hash of its DataAndSeqNrPair per payload instance, so a payload gets
+ * serialized only once for the hash instead of at each add, remove, refresh and lookup. The signed hash of data and
+ * sequence number is mostly checked again with the same sequence number (e.g. the entry of an offer we get from
+ * several peers).
+ * <p/>
+ * We keep only the 32 byte hashes, not the serialized payloads.
+ * The payloads are weak keys compared by identity, so an entry is dropped when its payload is not used anymore.
+ * Payloads must not be changed after they got hashed.
+ */
+class PayloadHashCache {
+    private static final class HashOfDataAndSeqNr {
+        private final int sequenceNumber;
+        private final byte[] hash;
+
+        private HashOfDataAndSeqNr(int sequenceNumber, byte[] hash) {
+            this.sequenceNumber = sequenceNumber;
+            this.hash = hash;
+        }
+    }
+
+    private static final class Hashes {
+        private volatile P2PDataStorage.ByteArray hashOfPayload;
+        private volatile HashOfDataAndSeqNr hashOfDataAndSeqNr;
+    }
+
+    private final ConcurrentMap<ExpirablePayload, Hashes> hashesByPayload = new MapMaker().weakKeys().makeMap();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    P2PDataStorage.ByteArray getHashOfPayload(ExpirablePayload payload) {
+        Hashes hashes = getHashes(payload);
+        P2PDataStorage.ByteArray hashOfPayload = hashes.hashOfPayload;
+        if (hashOfPayload == null) {
+            hashOfPayload = new P2PDataStorage.ByteArray(Hash.getHash(payload));
+            hashes.hashOfPayload = hashOfPayload;
+        }
+        return hashOfPayload;
+    }
+
+    // Same result as Hash.getHash(new DataAndSeqNrPair(payload, sequenceNumber))
+    byte[] getHashOfDataAndSeqNr(ExpirablePayload payload, int sequenceNumber) {
+        Hashes hashes = getHashes(payload);
+        HashOfDataAndSeqNr hashOfDataAndSeqNr = hashes.hashOfDataAndSeqNr;
+        if (hashOfDataAndSeqNr == null || hashOfDataAndSeqNr.sequenceNumber != sequenceNumber) {
+            hashOfDataAndSeqNr = new HashOfDataAndSeqNr(sequenceNumber,
+                    Hash.getHash(new P2PDataStorage.DataAndSeqNrPair(payload, sequenceNumber)));
+            hashes.hashOfDataAndSeqNr = hashOfDataAndSeqNr;
+        }
+        // The caller must not change our copy
+        return hashOfDataAndSeqNr.hash.clone();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private Hashes getHashes(ExpirablePayload payload) {
+        return hashesByPayload.computeIfAbsent(payload, k -> new Hashes());
+    }
+}
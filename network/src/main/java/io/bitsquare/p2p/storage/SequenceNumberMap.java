@@ -0,0 +1,218 @@
+package io.bitsquare.p2p.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Sequence numbers and their time stamps by the hash of the payload. The keys are the 32 byte hashes of the
+ * payloads, so we store them inline in one flat array next to the sequence numbers and time stamps (open addressing
+ * with linear probing). A slot costs 45 bytes, compared to about 130 bytes for the ByteArray, byte[], MapValue and
+ * node objects of an entry of a HashMap.
+ * <p/>
+ * Entries are only removed by purgeOlderThan, which rebuilds the table in one pass.
+ * <p/>
+ * Not thread safe. It is used at the UserThread.
+ */
+class SequenceNumberMap {
+    static final int KEY_LENGTH = 32;
+
+    private static final int MIN_CAPACITY = 256;
+    // We grow the table if it gets more than 3/4 full
+    private static final int MAX_LOAD_NUMERATOR = 3;
+    private static final int MAX_LOAD_DENOMINATOR = 4;
+
+    interface EntryConsumer {
+        void accept(byte[] key, int sequenceNr, long timeStamp);
+    }
+
+    // Length is a power of 2
+    private boolean[] used;
+    private byte[] keys;
+    private int[] sequenceNrs;
+    private long[] timeStamps;
+    private int size;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    SequenceNumberMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private SequenceNumberMap(SequenceNumberMap other) {
+        used = other.used.clone();
+        keys = other.keys.clone();
+        sequenceNrs = other.sequenceNrs.clone();
+        timeStamps = other.timeStamps.clone();
+        size = other.size;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(P2PDataStorage.ByteArray key) {
+        return isValidKey(key) && indexOf(key.bytes) >= 0;
+    }
+
+    // Must only be called for a key we contain
+    int getSequenceNr(P2PDataStorage.ByteArray key) {
+        return sequenceNrs[checkedIndexOf(key)];
+    }
+
+    // Must only be called for a key we contain
+    long getTimeStamp(P2PDataStorage.ByteArray key) {
+        return timeStamps[checkedIndexOf(key)];
+    }
+
+    void put(P2PDataStorage.ByteArray key, int sequenceNr, long timeStamp) {
+        checkArgument(isValidKey(key), "Key must have " + KEY_LENGTH + " bytes");
+        int index = indexOf(key.bytes);
+        if (index < 0) {
+            if ((size + 1) * MAX_LOAD_DENOMINATOR > used.length * MAX_LOAD_NUMERATOR) {
+                rebuild(used.length * 2, Long.MIN_VALUE);
+                index = freeSlotFor(key.bytes);
+            } else {
+                index = -index - 1;
+            }
+            used[index] = true;
+            System.arraycopy(key.bytes, 0, keys, index * KEY_LENGTH, KEY_LENGTH);
+            size++;
+        }
+        sequenceNrs[index] = sequenceNr;
+        timeStamps[index] = timeStamp;
+    }
+
+    /**
+     * Removes the entries with a time stamp at or before maxAgeTs in one pass over the table.
+     *
+     * @return The keys of the removed entries
+     */
+    List<P2PDataStorage.ByteArray> purgeOlderThan(long maxAgeTs) {
+        List<P2PDataStorage.ByteArray> removedKeys = new ArrayList<>();
+        for (int i = 0; i < used.length; i++) {
+            if (used[i] && timeStamps[i] <= maxAgeTs)
+                removedKeys.add(new P2PDataStorage.ByteArray(getKey(i)));
+        }
+        if (!removedKeys.isEmpty())
+            rebuild(getCapacityFor(size - removedKeys.size()), maxAgeTs);
+        return removedKeys;
+    }
+
+    // A copy of the arrays, cheap enough to be taken at the UserThread for persisting it at another thread
+    SequenceNumberMap copy() {
+        return new SequenceNumberMap(this);
+    }
+
+    void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < used.length; i++) {
+            if (used[i])
+                consumer.accept(getKey(i), sequenceNrs[i], timeStamps[i]);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static boolean isValidKey(P2PDataStorage.ByteArray key) {
+        return key != null && key.bytes != null && key.bytes.length == KEY_LENGTH;
+    }
+
+    private void allocate(int capacity) {
+        used = new boolean[capacity];
+        keys = new byte[capacity * KEY_LENGTH];
+        sequenceNrs = new int[capacity];
+        timeStamps = new long[capacity];
+    }
+
+    private static int getCapacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (size * MAX_LOAD_DENOMINATOR > capacity * MAX_LOAD_NUMERATOR)
+            capacity *= 2;
+        return capacity;
+    }
+
+    // Moves the entries with a time stamp after maxAgeTs to a new table of the given capacity
+    private void rebuild(int capacity, long maxAgeTs) {
+        boolean[] oldUsed = used;
+        byte[] oldKeys = keys;
+        int[] oldSequenceNrs = sequenceNrs;
+        long[] oldTimeStamps = timeStamps;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i] && oldTimeStamps[i] > maxAgeTs)
+                insert(oldKeys, i, oldSequenceNrs[i], oldTimeStamps[i]);
+        }
+    }
+
+    // Inserts the key at index in sourceKeys, which must not be contained already
+    private void insert(byte[] sourceKeys, int sourceIndex, int sequenceNr, long timeStamp) {
+        int mask = used.length - 1;
+        int index = hash(sourceKeys, sourceIndex * KEY_LENGTH) & mask;
+        while (used[index])
+            index = (index + 1) & mask;
+        used[index] = true;
+        System.arraycopy(sourceKeys, sourceIndex * KEY_LENGTH, keys, index * KEY_LENGTH, KEY_LENGTH);
+        sequenceNrs[index] = sequenceNr;
+        timeStamps[index] = timeStamp;
+        size++;
+    }
+
+    // Returns the index of the key or (-(insertion index) - 1) if we don't contain it
+    private int indexOf(byte[] key) {
+        int mask = used.length - 1;
+        int index = hash(key, 0) & mask;
+        while (used[index]) {
+            if (equalsKeyAt(key, index))
+                return index;
+            index = (index + 1) & mask;
+        }
+        return -index - 1;
+    }
+
+    private int freeSlotFor(byte[] key) {
+        int mask = used.length - 1;
+        int index = hash(key, 0) & mask;
+        while (used[index])
+            index = (index + 1) & mask;
+        return index;
+    }
+
+    private int checkedIndexOf(P2PDataStorage.ByteArray key) {
+        int index = isValidKey(key) ? indexOf(key.bytes) : -1;
+        checkArgument(index >= 0, "We don't have an entry for that key. key=%s", key);
+        return index;
+    }
+
+    private boolean equalsKeyAt(byte[] key, int index) {
+        int offset = index * KEY_LENGTH;
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            if (keys[offset + i] != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private byte[] getKey(int index) {
+        return Arrays.copyOfRange(keys, index * KEY_LENGTH, (index + 1) * KEY_LENGTH);
+    }
+
+    // The keys are hashes already, so the first 4 bytes are well distributed
+    private static int hash(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 |
+                (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+}
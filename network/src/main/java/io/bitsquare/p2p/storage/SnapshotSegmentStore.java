@@ -0,0 +1,356 @@
+package io.bitsquare.p2p.storage;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.bitsquare.common.Timer;
+import io.bitsquare.common.UserThread;
+import io.bitsquare.common.util.Utilities;
+import io.bitsquare.p2p.network.wire.MessageCodec;
+import io.bitsquare.p2p.storage.payload.CapabilityRequiringPayload;
+import io.bitsquare.p2p.storage.payload.StoragePayload;
+import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable snapshot segments of the persisted entries of a seed node. The entries are grouped by the period of
+ * their creation date. Once a period is closed (SEALING_DELAY_MS after its end) its entries get encoded and compressed
+ * once and written to a segment file, which is then sent as it is to all peers requesting the data (see
+ * GetDataRequestHandler). So the costs of encoding and compressing the historical data do not grow with the number
+ * of requests.
+ * <p/>
+ * A period is sealed only once. Entries which arrive later for a sealed period are not added to its segments, they
+ * get sent as single entries like the entries of the open periods.
+ * <p/>
+ * A segment is complete as long as all its entries are stored. It gets invalidated when one of its entries gets
+ * removed (see onRemoved), as we must not send removed entries to our peers.
+ * <p/>
+ * A segment file consists of the start of the period, the required capabilities and the keys of its entries, followed
+ * by the data set compressed with MessageCodec.encodeCompressedDataSet. Only the header is kept in memory.
+ * <p/>
+ * The segments are sealed at a background thread, all other calls have to be done at the UserThread.
+ */
+public class SnapshotSegmentStore {
+    private static final Logger log = LoggerFactory.getLogger(SnapshotSegmentStore.class);
+
+    public static final String FILE_SUFFIX = ".segment";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    @VisibleForTesting
+    static final long PERIOD_MS = TimeUnit.DAYS.toMillis(7);
+    // Entries which are broadcast late still get into the segment of their period
+    private static final long SEALING_DELAY_MS = TimeUnit.DAYS.toMillis(1);
+    private static final int MAX_ENTRIES_PER_SEGMENT = 2000;
+    private static final long CHECK_INTERVAL_SEC = TimeUnit.HOURS.toSeconds(1);
+
+    public static final class Segment {
+        public final long periodStart;
+        // Keys (hash of the payload) of the entries of the segment
+        public final Set<P2PDataStorage.ByteArray> keys;
+        // Union of the capabilities required by the payloads of the segment
+        public final Set<Integer> requiredCapabilities;
+        private final File file;
+        private final long dataOffset;
+        private final int dataLength;
+        // Only accessed at the UserThread
+        private boolean complete = true;
+
+        private Segment(long periodStart, Set<P2PDataStorage.ByteArray> keys, Set<Integer> requiredCapabilities,
+                        File file, long dataOffset, int dataLength) {
+            this.periodStart = periodStart;
+            this.keys = Collections.unmodifiableSet(keys);
+            this.requiredCapabilities = Collections.unmodifiableSet(requiredCapabilities);
+            this.file = file;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+
+        // False if one of its entries got removed
+        public boolean isComplete() {
+            return complete;
+        }
+
+        // Reads the compressed data set from disk, we don't keep it in memory
+        public byte[] readCompressedDataSet() throws IOException {
+            byte[] data = new byte[dataLength];
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                randomAccessFile.seek(dataOffset);
+                randomAccessFile.readFully(data);
+            }
+            return data;
+        }
+
+        @Override
+        public String toString() {
+            return "Segment{" +
+                    "periodStart=" + new Date(periodStart) +
+                    ", keys.size()=" + keys.size() +
+                    ", complete=" + complete +
+                    ", file=" + file.getName() +
+                    ", dataLength=" + dataLength +
+                    '}';
+        }
+    }
+
+    private final File dir;
+    private final Supplier<Map<P2PDataStorage.ByteArray, ProtectedStorageEntry>> persistedEntriesSupplier;
+    private final Predicate<P2PDataStorage.ByteArray> isStored;
+    private final ScheduledThreadPoolExecutor executor;
+    // Replaced at the UserThread when new segments got sealed, sorted by periodStart
+    private volatile List<Segment> segments = new ArrayList<>();
+    // Segment of each key of the complete segments, only accessed at the UserThread
+    private final Map<P2PDataStorage.ByteArray, Segment> segmentsByKey = new HashMap<>();
+    // Index of the newest period we have sealed, only accessed at the UserThread
+    private long lastSealedPeriod = Long.MIN_VALUE;
+    private boolean sealing;
+    private Timer checkTimer;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param persistedEntriesSupplier Supplies the persisted entries by their key, called at the UserThread
+     * @param isStored                 Tests if the entry of a key is stored, used to check the completeness of the
+     *                                 segments after loading and sealing them
+     */
+    public SnapshotSegmentStore(File dir,
+                                Supplier<Map<P2PDataStorage.ByteArray, ProtectedStorageEntry>> persistedEntriesSupplier,
+                                Predicate<P2PDataStorage.ByteArray> isStored) {
+        this.dir = dir;
+        this.persistedEntriesSupplier = persistedEntriesSupplier;
+        this.isStored = isStored;
+        executor = Utilities.getScheduledThreadPoolExecutor("SnapshotSegmentStore", 1, 1, 60);
+
+        if (!dir.exists() && !dir.mkdirs())
+            log.warn("make dir failed.\ndir=" + dir.getAbsolutePath());
+
+        loadSegments();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public void start() {
+        sealClosedPeriods();
+        checkTimer = UserThread.runPeriodically(this::sealClosedPeriods, CHECK_INTERVAL_SEC);
+    }
+
+    public void shutDown() {
+        if (checkTimer != null)
+            checkTimer.stop();
+        executor.shutdownNow();
+    }
+
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    // Called at the UserThread after the entry of that key got removed from the storage
+    public void onRemoved(P2PDataStorage.ByteArray key) {
+        Segment segment = segmentsByKey.get(key);
+        if (segment != null)
+            invalidate(segment);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void loadSegments() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(FILE_SUFFIX));
+        if (files == null)
+            return;
+
+        // Left over if we got stopped while writing a segment
+        File[] tempFiles = dir.listFiles((d, name) -> name.endsWith(FILE_SUFFIX + TEMP_FILE_SUFFIX));
+        if (tempFiles != null)
+            Arrays.stream(tempFiles).forEach(File::delete);
+
+        List<Segment> loaded = new ArrayList<>();
+        for (File file : files) {
+            try {
+                Segment segment = readHeader(file);
+                loaded.add(segment);
+                lastSealedPeriod = Math.max(lastSealedPeriod, Math.floorDiv(segment.periodStart, PERIOD_MS));
+            } catch (IOException e) {
+                // Its entries get sent as single entries
+                log.warn("Could not read segment file " + file + ". We delete it. " + e.getMessage());
+                if (!file.delete())
+                    log.warn("Could not delete segment file " + file);
+            }
+        }
+        loaded.sort(Comparator.comparingLong(segment -> segment.periodStart));
+        loaded.stream().forEach(this::addToIndex);
+        segments = loaded;
+        log.info("Loaded {} snapshot segments", loaded.size());
+    }
+
+    private void sealClosedPeriods() {
+        if (sealing)
+            return;
+
+        long newestClosedPeriod = Math.floorDiv(System.currentTimeMillis() - SEALING_DELAY_MS, PERIOD_MS) - 1;
+        if (newestClosedPeriod <= lastSealedPeriod)
+            return;
+
+        // Entries of periods after lastSealedPeriod which are closed by now, by period
+        TreeMap<Long, List<Map.Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>>> entriesByPeriod = new TreeMap<>();
+        persistedEntriesSupplier.get().entrySet().stream()
+                .forEach(e -> {
+                    long period = Math.floorDiv(e.getValue().creationTimeStamp, PERIOD_MS);
+                    if (period > lastSealedPeriod && period <= newestClosedPeriod)
+                        entriesByPeriod.computeIfAbsent(period, k -> new ArrayList<>()).add(e);
+                });
+
+        sealing = true;
+        executor.execute(() -> {
+            List<Segment> sealed = new ArrayList<>();
+            long ts = System.currentTimeMillis();
+            entriesByPeriod.entrySet().stream().forEach(e -> sealed.addAll(writeSegments(e.getKey(), e.getValue())));
+            if (!sealed.isEmpty())
+                log.info("Sealed {} snapshot segments in {} ms", sealed.size(), System.currentTimeMillis() - ts);
+
+            UserThread.execute(() -> {
+                List<Segment> updated = new ArrayList<>(segments);
+                updated.addAll(sealed);
+                updated.sort(Comparator.comparingLong(segment -> segment.periodStart));
+                // Entries might have been removed while we were sealing
+                sealed.stream().forEach(this::addToIndex);
+                segments = updated;
+                lastSealedPeriod = Math.max(lastSealedPeriod, newestClosedPeriod);
+                sealing = false;
+            });
+        });
+    }
+
+    // Checks the segment once, afterwards it gets invalidated by onRemoved
+    private void addToIndex(Segment segment) {
+        if (segment.keys.stream().allMatch(isStored))
+            segment.keys.stream().forEach(key -> segmentsByKey.put(key, segment));
+        else
+            segment.complete = false;
+    }
+
+    private void invalidate(Segment segment) {
+        segment.complete = false;
+        segment.keys.stream().forEach(segmentsByKey::remove);
+        log.debug("Segment is not complete anymore as one of its entries got removed. segment={}", segment);
+    }
+
+    // Runs at the executor
+    private List<Segment> writeSegments(long period,
+                                        List<Map.Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>> entries) {
+        entries.sort(Comparator.comparingLong(e -> e.getValue().creationTimeStamp));
+        List<Segment> written = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i += MAX_ENTRIES_PER_SEGMENT) {
+            List<Map.Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>> part =
+                    entries.subList(i, Math.min(entries.size(), i + MAX_ENTRIES_PER_SEGMENT));
+            writeSegments(period, part, written);
+        }
+        return written;
+    }
+
+    // Splits the entries if they exceed MessageCodec.MAX_SNAPSHOT_SEGMENT_SIZE
+    private void writeSegments(long period, List<Map.Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>> entries,
+                               List<Segment> written) {
+        byte[] data;
+        try {
+            data = MessageCodec.encodeCompressedDataSet(entries.stream()
+                    .map(Map.Entry::getValue)
+                    .collect(Collectors.toList()));
+        } catch (IOException e) {
+            if (entries.size() > 1) {
+                writeSegments(period, entries.subList(0, entries.size() / 2), written);
+                writeSegments(period, entries.subList(entries.size() / 2, entries.size()), written);
+            } else {
+                log.warn("Could not encode entry for snapshot segment. We send it as single entry. " + e.getMessage());
+            }
+            return;
+        }
+
+        Set<P2PDataStorage.ByteArray> keys = new HashSet<>();
+        Set<Integer> requiredCapabilities = new HashSet<>();
+        entries.stream().forEach(e -> {
+            keys.add(e.getKey());
+            StoragePayload storagePayload = e.getValue().getStoragePayload();
+            if (storagePayload instanceof CapabilityRequiringPayload)
+                requiredCapabilities.addAll(((CapabilityRequiringPayload) storagePayload).getRequiredCapabilities());
+        });
+
+        File file = new File(dir, period + "_" + written.size() + FILE_SUFFIX);
+        try {
+            written.add(writeFile(file, period * PERIOD_MS, keys, requiredCapabilities, data));
+        } catch (IOException e) {
+            log.error("Could not write snapshot segment " + file + ". " + e.getMessage());
+        }
+    }
+
+    private static Segment writeFile(File file, long periodStart, Set<P2PDataStorage.ByteArray> keys,
+                                     Set<Integer> requiredCapabilities, byte[] data) throws IOException {
+        File tempFile = new File(file.getParentFile(), file.getName() + TEMP_FILE_SUFFIX);
+        long dataOffset;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeLong(periodStart);
+            out.writeInt(requiredCapabilities.size());
+            for (int capability : requiredCapabilities)
+                out.writeInt(capability);
+            out.writeInt(keys.size());
+            for (P2PDataStorage.ByteArray key : keys) {
+                out.writeInt(key.bytes.length);
+                out.write(key.bytes);
+            }
+            out.writeInt(data.length);
+            dataOffset = out.size();
+            out.write(data);
+        }
+        // The file either exists completely or not at all
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return new Segment(periodStart, keys, requiredCapabilities, file, dataOffset, data.length);
+    }
+
+    private static Segment readHeader(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long fileLength = file.length();
+            long periodStart = in.readLong();
+            int numCapabilities = checkCount(in.readInt(), fileLength);
+            Set<Integer> requiredCapabilities = new HashSet<>();
+            for (int i = 0; i < numCapabilities; i++)
+                requiredCapabilities.add(in.readInt());
+
+            int numKeys = checkCount(in.readInt(), fileLength);
+            Set<P2PDataStorage.ByteArray> keys = new HashSet<>();
+            long position = 8 + 4 + 4 * numCapabilities + 4;
+            for (int i = 0; i < numKeys; i++) {
+                byte[] key = new byte[checkCount(in.readInt(), fileLength)];
+                in.readFully(key);
+                keys.add(new P2PDataStorage.ByteArray(key));
+                position += 4 + key.length;
+            }
+
+            int dataLength = in.readInt();
+            long dataOffset = position + 4;
+            if (dataLength <= 0 || dataOffset + dataLength != fileLength)
+                throw new IOException("Segment file has an invalid length. dataLength=" + dataLength);
+            return new Segment(periodStart, keys, requiredCapabilities, file, dataOffset, dataLength);
+        }
+    }
+
+    private static int checkCount(int count, long fileLength) throws IOException {
+        if (count < 0 || count > fileLength)
+            throw new IOException("Invalid count in segment file. count=" + count);
+        return count;
+    }
+}
@@ -0,0 +1,100 @@
+package io.bitsquare.p2p.storage;
+
+import io.bitsquare.p2p.NodeAddress;
+import io.bitsquare.p2p.storage.payload.RequiresOwnerIsOnlinePayload;
+import io.bitsquare.p2p.storage.payload.StoragePayload;
+import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary indexes of the entries of the P2PDataStorage map by the class of the payload and by the node address of
+ * the owner of a RequiresOwnerIsOnlinePayload. They are updated together with the map, so lookups don't need to
+ * iterate over all entries.
+ * <p/>
+ * The indexes hold the keys of the map (hash of the payload) but not the entries, as the entries of an
+ * OffHeapEntryMap don't live on the heap. The index keys are derived from the payload only, which is the same for
+ * all entries stored with the same hash of the payload.
+ */
+class StorageEntryIndex {
+    private final Map<Class<? extends StoragePayload>, Set<P2PDataStorage.ByteArray>> keysByPayloadClass = new ConcurrentHashMap<>();
+    private final Map<NodeAddress, Set<P2PDataStorage.ByteArray>> keysByOwnerNodeAddress = new ConcurrentHashMap<>();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    void put(P2PDataStorage.ByteArray hashOfPayload, ProtectedStorageEntry protectedStorageEntry) {
+        StoragePayload storagePayload = protectedStorageEntry.getStoragePayload();
+        put(keysByPayloadClass, storagePayload.getClass(), hashOfPayload);
+
+        NodeAddress ownerNodeAddress = getOwnerNodeAddress(storagePayload);
+        if (ownerNodeAddress != null)
+            put(keysByOwnerNodeAddress, ownerNodeAddress, hashOfPayload);
+    }
+
+    void remove(P2PDataStorage.ByteArray hashOfPayload, ProtectedStorageEntry protectedStorageEntry) {
+        StoragePayload storagePayload = protectedStorageEntry.getStoragePayload();
+        remove(keysByPayloadClass, storagePayload.getClass(), hashOfPayload);
+
+        NodeAddress ownerNodeAddress = getOwnerNodeAddress(storagePayload);
+        if (ownerNodeAddress != null)
+            remove(keysByOwnerNodeAddress, ownerNodeAddress, hashOfPayload);
+    }
+
+    // Entries with a payload of the given class, of a subclass or of an implementation of the given interface
+    List<P2PDataStorage.ByteArray> getKeys(Class<? extends StoragePayload> payloadClass) {
+        List<P2PDataStorage.ByteArray> result = new ArrayList<>();
+        // We have only a few payload classes
+        keysByPayloadClass.entrySet().stream()
+                .filter(e -> payloadClass.isAssignableFrom(e.getKey()))
+                .forEach(e -> result.addAll(e.getValue()));
+        return result;
+    }
+
+    List<P2PDataStorage.ByteArray> getKeysByOwner(NodeAddress ownerNodeAddress) {
+        return getKeys(keysByOwnerNodeAddress, ownerNodeAddress);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static NodeAddress getOwnerNodeAddress(StoragePayload storagePayload) {
+        if (storagePayload instanceof RequiresOwnerIsOnlinePayload)
+            return ((RequiresOwnerIsOnlinePayload) storagePayload).getOwnerNodeAddress();
+        else
+            return null;
+    }
+
+    private static <K> void put(Map<K, Set<P2PDataStorage.ByteArray>> index, K key,
+                                P2PDataStorage.ByteArray hashOfPayload) {
+        index.compute(key, (k, keys) -> {
+            if (keys == null)
+                keys = ConcurrentHashMap.newKeySet();
+            keys.add(hashOfPayload);
+            return keys;
+        });
+    }
+
+    private static <K> void remove(Map<K, Set<P2PDataStorage.ByteArray>> index, K key,
+                                   P2PDataStorage.ByteArray hashOfPayload) {
+        // We drop the map of a key when its last entry got removed
+        index.computeIfPresent(key, (k, keys) -> {
+            keys.remove(hashOfPayload);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private static <K> List<P2PDataStorage.ByteArray> getKeys(Map<K, Set<P2PDataStorage.ByteArray>> index, K key) {
+        Set<P2PDataStorage.ByteArray> keys = index.get(key);
+        return keys != null ? new ArrayList<>(keys) : Collections.emptyList();
+    }
+}
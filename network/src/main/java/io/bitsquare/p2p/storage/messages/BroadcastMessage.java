@@ -2,11 +2,32 @@ package io.bitsquare.p2p.storage.messages;
 
 import io.bitsquare.app.Version;
 import io.bitsquare.p2p.Message;
+import io.bitsquare.p2p.network.wire.EncodedMessage;
+import org.jetbrains.annotations.Nullable;
 
 public abstract class BroadcastMessage implements Message {
     //TODO add serialVersionUID also in superclasses as changes would break compatibility
     private final int messageVersion = Version.getP2PMessageVersion();
 
+    // The frame we have received the message in, so we can relay it without encoding it again. Not sent over the wire.
+    @Nullable
+    private transient EncodedMessage receivedEncodedMessage;
+
+    public void setReceivedEncodedMessage(EncodedMessage receivedEncodedMessage) {
+        this.receivedEncodedMessage = receivedEncodedMessage;
+    }
+
+    @Nullable
+    public EncodedMessage getReceivedEncodedMessage() {
+        return receivedEncodedMessage;
+    }
+
+    // The received frame if we got the message from a peer in a binary frame, otherwise the message gets encoded at
+    // the first send
+    public EncodedMessage getEncodedMessage() {
+        return receivedEncodedMessage != null ? receivedEncodedMessage : new EncodedMessage(this);
+    }
+
     @Override
     public int getMessageVersion() {
         return messageVersion;
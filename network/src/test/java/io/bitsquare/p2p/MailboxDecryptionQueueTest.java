@@ -0,0 +1,157 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p;
+
+import io.bitsquare.common.UserThread;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class MailboxDecryptionQueueTest {
+    private MailboxDecryptionQueue<String, String> queue;
+    // Only accessed at the UserThread
+    private final List<String> delivered = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        UserThread.setExecutor(Executors.newSingleThreadExecutor());
+    }
+
+    @After
+    public void tearDown() {
+        if (queue != null)
+            queue.shutDown();
+    }
+
+    @Test
+    public void testOrderWhenLaterEntriesDecryptFirst() throws InterruptedException {
+        CountDownLatch laterEntriesDecrypted = new CountDownLatch(2);
+        List<String> decryptionOrder = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch allDelivered = createQueue(3, 3, entry -> {
+            if (entry.equals("a"))
+                awaitUninterruptibly(laterEntriesDecrypted);
+            decryptionOrder.add(entry);
+            if (!entry.equals("a"))
+                laterEntriesDecrypted.countDown();
+            return entry.toUpperCase();
+        });
+
+        queue.add("a");
+        queue.add("b");
+        queue.add("c");
+        assertTrue(allDelivered.await(10, TimeUnit.SECONDS));
+
+        assertEquals("a", decryptionOrder.get(2));
+        assertEquals(Arrays.asList("A", "B", "C"), getDelivered());
+    }
+
+    @Test
+    public void testFailedAndForeignEntriesAreSkipped() throws InterruptedException {
+        CountDownLatch allDelivered = createQueue(2, 2, entry -> {
+            if (entry.equals("failing"))
+                throw new RuntimeException("Decryption failed");
+            else if (entry.equals("foreign"))
+                return null;
+            else
+                return entry.toUpperCase();
+        });
+
+        queue.add("failing");
+        queue.add("a");
+        queue.add("foreign");
+        queue.add("b");
+        assertTrue(allDelivered.await(10, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("A", "B"), getDelivered());
+    }
+
+    @Test
+    public void testResultsDroppedAfterShutDown() throws InterruptedException {
+        CountDownLatch decryptionStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch decryptionCompleted = new CountDownLatch(1);
+        createQueue(1, 1, entry -> {
+            decryptionStarted.countDown();
+            awaitUninterruptibly(release);
+            decryptionCompleted.countDown();
+            return entry.toUpperCase();
+        });
+
+        queue.add("a");
+        assertTrue(decryptionStarted.await(10, TimeUnit.SECONDS));
+        queue.shutDown();
+        release.countDown();
+        assertTrue(decryptionCompleted.await(10, TimeUnit.SECONDS));
+
+        // Entries added after shutDown don't get decrypted
+        queue.add("b");
+
+        // Give the result of the pending decryption the time to reach the UserThread
+        Thread.sleep(200);
+        assertTrue(getDelivered().isEmpty());
+    }
+
+    // Returns a latch which gets counted down with each delivered result
+    private CountDownLatch createQueue(int numThreads, int numExpectedResults, Function<String, String> decrypter) {
+        CountDownLatch latch = new CountDownLatch(numExpectedResults);
+        queue = new MailboxDecryptionQueue<>(numThreads, decrypter, (result, entry) -> {
+            assertEquals(entry.toUpperCase(), result);
+            delivered.add(result);
+            latch.countDown();
+        });
+        return latch;
+    }
+
+    private List<String> getDelivered() throws InterruptedException {
+        List<String> result = new ArrayList<>();
+        CountDownLatch read = new CountDownLatch(1);
+        UserThread.execute(() -> {
+            result.addAll(delivered);
+            read.countDown();
+        });
+        assertTrue(read.await(10, TimeUnit.SECONDS));
+        return result;
+    }
+
+    // The queue interrupts the decryptions at shutDown, we want to complete them anyway
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
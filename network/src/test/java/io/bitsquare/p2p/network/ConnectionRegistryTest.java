@@ -0,0 +1,203 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.network;
+
+import io.bitsquare.common.UserThread;
+import io.bitsquare.p2p.NodeAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ConnectionRegistryTest {
+    private final NodeAddress peer1 = new NodeAddress("localhost:1001");
+    private final NodeAddress peer2 = new NodeAddress("localhost:1002");
+
+    private final SeenMessageCache seenMessageCache = new SeenMessageCache(64);
+    private final List<Connection> connections = new ArrayList<>();
+    private final List<Socket> peerSockets = new ArrayList<>();
+    private ConnectionRegistry registry;
+
+    @Before
+    public void setup() {
+        UserThread.setExecutor(Executors.newSingleThreadExecutor());
+        registry = new ConnectionRegistry();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Connection connection : connections)
+            connection.shutDown(CloseConnectionReason.APP_SHUT_DOWN);
+        for (Socket socket : peerSockets)
+            socket.close();
+    }
+
+    @Test
+    public void testAddUnconfirmed() throws IOException {
+        Connection connection = createInboundConnection();
+        registry.add(connection);
+
+        assertTrue(registry.getAllConnections().contains(connection));
+        assertTrue(registry.getConfirmedConnections().isEmpty());
+        assertTrue(registry.getConfirmedConnectionsExcept(null).isEmpty());
+    }
+
+    @Test
+    public void testConfirmAtAddressChange() throws IOException {
+        Connection connection = createInboundConnection();
+        registry.add(connection);
+        connection.setPeersNodeAddress(peer1);
+
+        assertTrue(registry.getConfirmedConnections().contains(connection));
+        assertSame(connection, registry.getInboundConnection(peer1));
+        assertNull(registry.getOutboundConnection(peer1));
+
+        // Address changed, the index must follow
+        connection.setPeersNodeAddress(peer2);
+        assertNull(registry.getInboundConnection(peer1));
+        assertSame(connection, registry.getInboundConnection(peer2));
+        assertEquals(1, registry.getConfirmedConnections().size());
+    }
+
+    @Test
+    public void testAddConfirmed() throws IOException {
+        Connection connection = createOutboundConnection(peer1);
+        registry.add(connection);
+
+        assertTrue(registry.getConfirmedConnections().contains(connection));
+        assertSame(connection, registry.getOutboundConnection(peer1));
+        assertNull(registry.getInboundConnection(peer1));
+    }
+
+    @Test
+    public void testRemove() throws IOException {
+        Connection connection = createOutboundConnection(peer1);
+        registry.add(connection);
+        registry.remove(connection);
+
+        assertTrue(registry.getAllConnections().isEmpty());
+        assertTrue(registry.getConfirmedConnections().isEmpty());
+        assertNull(registry.getOutboundConnection(peer1));
+
+        // We don't listen to the address anymore after the connection got removed
+        connection.setPeersNodeAddress(peer2);
+        assertTrue(registry.getConfirmedConnections().isEmpty());
+        assertNull(registry.getOutboundConnection(peer2));
+    }
+
+    @Test
+    public void testViewsReflectChanges() throws IOException {
+        Connection connection = createOutboundConnection(peer1);
+        registry.add(connection);
+        List<Connection> copy = registry.getConfirmedConnectionsExcept(null);
+
+        registry.remove(connection);
+        assertTrue(registry.getAllConnections().isEmpty());
+        assertTrue(registry.getConfirmedConnections().isEmpty());
+        assertEquals(1, copy.size());
+    }
+
+    @Test
+    public void testTwoConnectionsInSameDirection() throws IOException {
+        Connection older = createOutboundConnection(peer1);
+        Connection newer = createOutboundConnection(peer1);
+        registry.add(older);
+        registry.add(newer);
+
+        assertSame(newer, registry.getOutboundConnection(peer1));
+        assertEquals(2, registry.getConfirmedConnections().size());
+
+        // We fall back to the older one if the newer one got removed
+        registry.remove(newer);
+        assertSame(older, registry.getOutboundConnection(peer1));
+
+        registry.remove(older);
+        assertNull(registry.getOutboundConnection(peer1));
+    }
+
+    @Test
+    public void testGetConfirmedConnectionsExcept() throws IOException {
+        Connection inbound = createInboundConnection();
+        Connection outbound = createOutboundConnection(peer1);
+        Connection other = createOutboundConnection(peer2);
+        registry.add(inbound);
+        registry.add(outbound);
+        registry.add(other);
+        inbound.setPeersNodeAddress(peer1);
+
+        List<Connection> connections = registry.getConfirmedConnectionsExcept(peer1);
+        assertEquals(1, connections.size());
+        assertSame(other, connections.get(0));
+        assertEquals(3, registry.getConfirmedConnectionsExcept(null).size());
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Utils
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private Connection createInboundConnection() throws IOException {
+        return add(new InboundConnection(connectSocket(), (message, connection) -> {
+        }, new NoOpConnectionListener(), null, seenMessageCache));
+    }
+
+    private Connection createOutboundConnection(NodeAddress peersNodeAddress) throws IOException {
+        return add(new OutboundConnection(connectSocket(), (message, connection) -> {
+        }, new NoOpConnectionListener(), peersNodeAddress, null, seenMessageCache));
+    }
+
+    private Connection add(Connection connection) {
+        connections.add(connection);
+        return connection;
+    }
+
+    // Returns our side of a loopback socket pair. The connection reads the stream header of the peer at construction.
+    private Socket connectSocket() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Socket peerSocket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+            peerSockets.add(peerSocket);
+            new ObjectOutputStream(peerSocket.getOutputStream()).flush();
+            return serverSocket.accept();
+        }
+    }
+
+    private static class NoOpConnectionListener implements ConnectionListener {
+        @Override
+        public void onConnection(Connection connection) {
+        }
+
+        @Override
+        public void onDisconnect(CloseConnectionReason closeConnectionReason, Connection connection) {
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package io.bitsquare.p2p.network;
+
+import io.bitsquare.p2p.Message;
+import io.bitsquare.p2p.peers.keepalive.messages.KeepAliveMessage;
+import io.bitsquare.p2p.peers.keepalive.messages.Ping;
+import io.bitsquare.p2p.peers.keepalive.messages.Pong;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageDispatcherTest {
+
+    @Test
+    public void testDispatchByType() {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        List<Message> pingMessages = new ArrayList<>();
+        List<Message> keepAliveMessages = new ArrayList<>();
+        List<Message> allMessages = new ArrayList<>();
+        dispatcher.add((message, connection) -> pingMessages.add(message), Ping.class);
+        dispatcher.add((message, connection) -> keepAliveMessages.add(message), KeepAliveMessage.class);
+        dispatcher.add((message, connection) -> allMessages.add(message));
+
+        dispatcher.dispatch(new Ping(1, 0), null);
+        dispatcher.dispatch(new Pong(1), null);
+
+        assertEquals(1, pingMessages.size());
+        assertEquals(2, keepAliveMessages.size());
+        assertEquals(2, allMessages.size());
+    }
+
+    @Test
+    public void testListenerCalledOnceAndRemoved() {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        List<Message> messages = new ArrayList<>();
+        MessageListener listener = (message, connection) -> messages.add(message);
+        assertTrue(dispatcher.add(listener, Ping.class));
+        assertTrue(dispatcher.add(listener, KeepAliveMessage.class));
+        assertTrue(dispatcher.add(listener));
+        assertFalse(dispatcher.add(listener, Ping.class));
+
+        dispatcher.dispatch(new Ping(1, 0), null);
+        assertEquals(1, messages.size());
+
+        assertTrue(dispatcher.remove(listener));
+        assertFalse(dispatcher.remove(listener));
+        dispatcher.dispatch(new Ping(1, 0), null);
+        assertEquals(1, messages.size());
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package io.bitsquare.p2p.network;
+
+import io.bitsquare.p2p.network.wire.EncodedMessage;
+import io.bitsquare.p2p.network.wire.MessageCodec;
+import io.bitsquare.p2p.storage.messages.RefreshTTLMessage;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeenMessageCacheTest {
+
+    @Test
+    public void testContainsReceivedMessage() throws IOException {
+        SeenMessageCache cache = new SeenMessageCache(16);
+        RefreshTTLMessage message = getReceivedMessage(1);
+        byte[] frame = message.getEncodedMessage().getFrame();
+        assertFalse(cache.contains(frame));
+
+        cache.add(message);
+        assertTrue(cache.contains(frame));
+        // Another sequence number is another frame
+        assertFalse(cache.contains(getReceivedMessage(2).getEncodedMessage().getFrame()));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        // Messages we have not received as frame are not added
+        cache.add(new RefreshTTLMessage(new byte[]{1}, new byte[]{2}, new byte[]{3}, 3));
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void testBoundedSize() throws IOException {
+        SeenMessageCache cache = new SeenMessageCache(16);
+        for (int i = 0; i < 1000; i++) {
+            cache.add(getReceivedMessage(i));
+        }
+        assertTrue(cache.getSize() <= 16);
+        // The most recently added message is never evicted
+        assertTrue(cache.contains(getReceivedMessage(999).getEncodedMessage().getFrame()));
+    }
+
+    private static RefreshTTLMessage getReceivedMessage(int sequenceNumber) throws IOException {
+        RefreshTTLMessage message = new RefreshTTLMessage(new byte[]{1}, new byte[]{2}, new byte[]{3}, sequenceNumber);
+        byte[] frame = MessageCodec.encode(message);
+        message.setReceivedEncodedMessage(new EncodedMessage(message, frame, null));
+        return message;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class SelectorTransportTest {
+    private static final int SOCKET_TIMEOUT = 10_000;
+
+    private SelectorTransport selectorTransport;
+    private ServerSocketChannel serverSocketChannel;
+    private SocketChannel socketChannel;
+    // Blocking socket of the other side
+    private Socket peerSocket;
+    private SelectorChannel selectorChannel;
+
+    @Before
+    public void setup() throws IOException {
+        selectorTransport = new SelectorTransport("SelectorTransportTest");
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        socketChannel = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        peerSocket = serverSocketChannel.accept().socket();
+        peerSocket.setSoTimeout(SOCKET_TIMEOUT);
+        selectorChannel = selectorTransport.register(socketChannel, SOCKET_TIMEOUT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        selectorChannel.close();
+        peerSocket.close();
+        serverSocketChannel.close();
+        selectorTransport.shutDown();
+    }
+
+    @Test
+    public void testPartialReads() throws IOException, InterruptedException {
+        byte[] bytes = randomBytes(1000);
+        OutputStream peerOutputStream = peerSocket.getOutputStream();
+        for (int i = 0; i < bytes.length; i += 100) {
+            peerOutputStream.write(bytes, i, 100);
+            peerOutputStream.flush();
+            Thread.sleep(5);
+        }
+
+        byte[] read = new byte[bytes.length];
+        new DataInputStream(selectorChannel.getInputStream()).readFully(read);
+        assertArrayEquals(bytes, read);
+
+        peerSocket.shutdownOutput();
+        assertEquals(-1, selectorChannel.getInputStream().read());
+    }
+
+    @Test
+    public void testPartialWrites() throws Exception {
+        // Larger than the socket buffers, so the selector thread needs several writes
+        byte[] bytes = randomBytes(4 * 1024 * 1024);
+        Future<byte[]> peerRead = Executors.newSingleThreadExecutor().submit(() -> {
+            byte[] read = new byte[bytes.length];
+            new DataInputStream(peerSocket.getInputStream()).readFully(read);
+            return read;
+        });
+
+        OutputStream outputStream = selectorChannel.getOutputStream();
+        outputStream.write(bytes, 0, 1000);
+        outputStream.write(bytes, 1000, bytes.length - 1000);
+        outputStream.flush();
+        assertArrayEquals(bytes, peerRead.get(SOCKET_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testFramesSplitAcrossBuffers() throws IOException, InterruptedException {
+        RecordingFrameListener frameListener = new RecordingFrameListener();
+        selectorChannel.switchToFrames(frameListener);
+
+        // The last frame is larger than the read buffer of the selector thread
+        byte[][] frames = {randomBytes(10), randomBytes(1000), randomBytes(200 * 1024)};
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            new DataOutputStream(bos).writeInt(frame.length);
+            bos.write(frame);
+        }
+        byte[] stream = bos.toByteArray();
+
+        // We split the stream inside the length prefix and inside the payload of the frames
+        OutputStream peerOutputStream = peerSocket.getOutputStream();
+        int[] splits = {2, 7, 16, 500, stream.length};
+        int position = 0;
+        for (int split : splits) {
+            peerOutputStream.write(stream, position, split - position);
+            peerOutputStream.flush();
+            position = split;
+            Thread.sleep(10);
+        }
+
+        for (byte[] frame : frames) {
+            assertArrayEquals(frame, frameListener.frames.poll(SOCKET_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        assertTrue(frameListener.errors.isEmpty());
+    }
+
+    @Test
+    public void testBufferedBytesBeforeSwitchToFrames() throws IOException, InterruptedException {
+        byte[] frame = randomBytes(100);
+        DataOutputStream peerOutputStream = new DataOutputStream(peerSocket.getOutputStream());
+        peerOutputStream.writeByte(42);
+        peerOutputStream.writeInt(frame.length);
+        peerOutputStream.write(frame);
+        peerOutputStream.flush();
+
+        // The last byte of the legacy stream gets consumed by the InputHandler, the rest is the first frame
+        assertEquals(42, selectorChannel.getInputStream().read());
+        RecordingFrameListener frameListener = new RecordingFrameListener();
+        selectorChannel.switchToFrames(frameListener);
+        assertArrayEquals(frame, frameListener.frames.poll(SOCKET_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testOversizedFrame() throws IOException, InterruptedException {
+        RecordingFrameListener frameListener = new RecordingFrameListener();
+        selectorChannel.switchToFrames(frameListener);
+
+        DataOutputStream peerOutputStream = new DataOutputStream(peerSocket.getOutputStream());
+        peerOutputStream.writeInt(Connection.MAX_MSG_SIZE_GET_DATA + 1);
+        peerOutputStream.flush();
+
+        assertTrue(frameListener.errors.poll(SOCKET_TIMEOUT, TimeUnit.MILLISECONDS) instanceof StreamCorruptedException);
+        assertTrue(frameListener.frames.isEmpty());
+        try {
+            selectorChannel.getOutputStream().write(1);
+            fail("Write after a failure must throw");
+        } catch (StreamCorruptedException expected) {
+        }
+    }
+
+    @Test
+    public void testCloseWhileWritesArePending() throws Exception {
+        RecordingFrameListener frameListener = new RecordingFrameListener();
+        selectorChannel.switchToFrames(frameListener);
+
+        // The peer does not read, so the flush blocks once more than the outbound limit is queued and the socket
+        // buffers are full
+        byte[] bytes = new byte[Connection.MAX_MSG_SIZE_GET_DATA + 16 * 1024 * 1024];
+        OutputStream outputStream = selectorChannel.getOutputStream();
+        outputStream.write(bytes);
+        Future<?> flush = Executors.newSingleThreadExecutor().submit(() -> {
+            outputStream.flush();
+            return null;
+        });
+        Thread.sleep(200);
+        assertFalse(flush.isDone());
+
+        selectorChannel.close();
+        try {
+            flush.get(SOCKET_TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Pending flush must fail at close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketException);
+        }
+        try {
+            outputStream.write(1);
+            fail("Write after close must throw");
+        } catch (SocketException expected) {
+        }
+
+        // Failures caused by our own close are not reported
+        Thread.sleep(200);
+        assertTrue(frameListener.errors.isEmpty());
+    }
+
+    @Test
+    public void testFallbackToBlockingSockets() throws IOException {
+        assertTrue(SelectorTransport.canServe(socketChannel.socket()));
+        try (Socket socket = new Socket()) {
+            assertFalse(SelectorTransport.canServe(socket));
+        }
+
+        selectorTransport.shutDown();
+        try (SocketChannel channel = SocketChannel.open()) {
+            selectorTransport.register(channel, SOCKET_TIMEOUT);
+            fail("Register after shutDown must throw, so the connection uses the blocking streams");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+
+    private static class RecordingFrameListener implements SelectorChannel.FrameListener {
+        final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onFrame(byte[] frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        public void onFrameError(Throwable throwable) {
+            errors.add(throwable);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.network;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.bitsquare.common.UserThread;
+import io.bitsquare.common.crypto.SealedAndSigned;
+import io.bitsquare.common.crypto.Sig;
+import io.bitsquare.p2p.Message;
+import io.bitsquare.p2p.NodeAddress;
+import io.bitsquare.p2p.messaging.PrefixedSealedAndSignedMessage;
+import io.bitsquare.p2p.network.wire.EncodedMessage;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponseChunk;
+import io.bitsquare.p2p.peers.keepalive.messages.Ping;
+import io.bitsquare.p2p.storage.messages.RefreshTTLMessage;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.Security;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class SendQueueTest {
+    private SendQueue sendQueue;
+    private TokenBucket unlimitedPacer;
+    private SealedAndSigned sealedAndSigned;
+
+    @Before
+    public void setup() {
+        Security.addProvider(new BouncyCastleProvider());
+        UserThread.setExecutor(MoreExecutors.directExecutor());
+        sendQueue = new SendQueue();
+        unlimitedPacer = new TokenBucket(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        sealedAndSigned = new SealedAndSigned(new byte[]{1}, new byte[]{2}, new byte[]{3}, Sig.generateKeyPair().getPublic());
+    }
+
+    @Test
+    public void testPriorityOrder() {
+        Message bulk = add(bulk(1));
+        Message gossip1 = add(gossip(1));
+        Message gossip2 = add(gossip(2));
+        Message direct = add(direct());
+        Message control = add(control(1));
+
+        assertEquals(1, sendQueue.getDepth(SendQueue.Lane.BULK));
+        assertEquals(2, sendQueue.getDepth(SendQueue.Lane.GOSSIP));
+        assertSame(control, poll(unlimitedPacer));
+        assertSame(direct, poll(unlimitedPacer));
+        assertSame(gossip1, poll(unlimitedPacer));
+        assertSame(gossip2, poll(unlimitedPacer));
+        assertSame(bulk, poll(unlimitedPacer));
+        assertTrue(sendQueue.isEmpty());
+        assertNull(sendQueue.poll(unlimitedPacer));
+    }
+
+    @Test
+    public void testControlIsNotPaced() {
+        TokenBucket pacer = new TokenBucket(1, 1, new AtomicLong()::get);
+        assertTrue(pacer.tryConsume());
+
+        Message gossip = add(gossip(1));
+        assertNull(sendQueue.poll(pacer));
+        assertTrue(sendQueue.getNanosUntilNextToken(pacer) > 0);
+
+        Message control = add(control(1));
+        assertEquals(0, sendQueue.getNanosUntilNextToken(pacer));
+        assertSame(control, poll(pacer));
+        assertNull(sendQueue.poll(pacer));
+        assertEquals(1, sendQueue.getDepth(SendQueue.Lane.GOSSIP));
+        assertSame(gossip, sendQueue.poll(unlimitedPacer).getMessage());
+    }
+
+    @Test
+    public void testGossipLeavesReservedTokensForDirect() {
+        AtomicLong now = new AtomicLong();
+        TokenBucket pacer = new TokenBucket(SendQueue.RESERVED_TOKENS + 2, 1, now::get);
+        for (int i = 0; i < 10; i++) {
+            add(gossip(i));
+        }
+
+        assertNotNull(sendQueue.poll(pacer));
+        assertNotNull(sendQueue.poll(pacer));
+        // Only the reserved tokens are left
+        assertNull(sendQueue.poll(pacer));
+        assertEquals(8, sendQueue.getDepth(SendQueue.Lane.GOSSIP));
+
+        for (int i = 0; i < SendQueue.RESERVED_TOKENS; i++) {
+            Message direct = add(direct());
+            assertSame(direct, poll(pacer));
+        }
+        assertNull(sendQueue.poll(pacer));
+    }
+
+    @Test
+    public void testBulkGetsMinimumShare() {
+        for (int i = 0; i < 10; i++) {
+            add(gossip(i));
+        }
+        Message bulk1 = add(bulk(1));
+        Message bulk2 = add(bulk(2));
+
+        int numBulk = 0;
+        for (int i = 0; i < 12; i++) {
+            Message message = poll(unlimitedPacer);
+            if (message instanceof GetDataResponseChunk)
+                numBulk++;
+            // Never more than BULK_SHARE_INTERVAL higher lane messages in a row while bulk messages are waiting
+            if (i == SendQueue.BULK_SHARE_INTERVAL)
+                assertSame(bulk1, message);
+            if (i == 2 * SendQueue.BULK_SHARE_INTERVAL + 1)
+                assertSame(bulk2, message);
+        }
+        assertEquals(2, numBulk);
+        assertTrue(sendQueue.isEmpty());
+    }
+
+    @Test
+    public void testControlPreemptsBulkShare() {
+        for (int i = 0; i < SendQueue.BULK_SHARE_INTERVAL; i++) {
+            add(gossip(i));
+        }
+        Message bulk = add(bulk(1));
+        for (int i = 0; i < SendQueue.BULK_SHARE_INTERVAL; i++) {
+            poll(unlimitedPacer);
+        }
+
+        Message control = add(control(1));
+        assertSame(control, poll(unlimitedPacer));
+        assertSame(bulk, poll(unlimitedPacer));
+    }
+
+    @Test
+    public void testClear() {
+        add(control(1));
+        add(direct());
+        add(gossip(1));
+        add(bulk(1));
+        assertFalse(sendQueue.isEmpty());
+
+        sendQueue.clear();
+        assertTrue(sendQueue.isEmpty());
+        for (SendQueue.Lane lane : SendQueue.Lane.values()) {
+            assertEquals(0, sendQueue.getDepth(lane));
+            assertEquals(0, sendQueue.getCurrentWaitTime(lane));
+        }
+        assertNull(sendQueue.poll(unlimitedPacer));
+    }
+
+    @Test
+    public void testRunWhenDrained() {
+        AtomicInteger numCalls = new AtomicInteger();
+        sendQueue.runWhenDrained(SendQueue.Lane.BULK, numCalls::incrementAndGet);
+        assertEquals(1, numCalls.get());
+
+        add(bulk(1));
+        add(bulk(2));
+        add(gossip(1));
+        sendQueue.runWhenDrained(SendQueue.Lane.BULK, numCalls::incrementAndGet);
+        poll(unlimitedPacer);
+        poll(unlimitedPacer);
+        assertEquals(1, numCalls.get());
+        // The last bulk message got taken for sending
+        poll(unlimitedPacer);
+        assertEquals(2, numCalls.get());
+        assertTrue(sendQueue.isEmpty());
+    }
+
+    @Test
+    public void testClearNotifiesDrainListeners() {
+        AtomicInteger numCalls = new AtomicInteger();
+        add(bulk(1));
+        sendQueue.runWhenDrained(SendQueue.Lane.BULK, numCalls::incrementAndGet);
+        sendQueue.clear();
+        assertEquals(1, numCalls.get());
+
+        // Listeners are called only once
+        sendQueue.clear();
+        assertEquals(1, numCalls.get());
+    }
+
+    private Message add(Message message) {
+        sendQueue.add(new EncodedMessage(message));
+        return message;
+    }
+
+    private Message poll(TokenBucket pacer) {
+        EncodedMessage encodedMessage = sendQueue.poll(pacer);
+        assertNotNull(encodedMessage);
+        return encodedMessage.getMessage();
+    }
+
+    private static Message control(int nonce) {
+        return new Ping(nonce, 0);
+    }
+
+    private Message direct() {
+        return new PrefixedSealedAndSignedMessage(new NodeAddress("localhost:8001"), sealedAndSigned, new byte[]{1});
+    }
+
+    private static Message gossip(int sequenceNumber) {
+        return new RefreshTTLMessage(new byte[]{1}, new byte[]{2}, new byte[]{3}, sequenceNumber);
+    }
+
+    private static Message bulk(int requestNonce) {
+        return new GetDataResponseChunk(new HashSet<>(), requestNonce, false, 0, true);
+    }
+}
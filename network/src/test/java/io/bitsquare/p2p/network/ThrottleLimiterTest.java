@@ -0,0 +1,53 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.network;
+
+import io.bitsquare.p2p.peers.keepalive.messages.Ping;
+import io.bitsquare.p2p.storage.messages.RefreshTTLMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThrottleLimiterTest {
+
+    @Test
+    public void testPerSecLimit() {
+        ThrottleLimiter throttleLimiter = new ThrottleLimiter();
+        for (int i = 0; i < Connection.MSG_THROTTLE_PER_SEC; i++) {
+            assertFalse(throttleLimiter.violatesThrottleLimit(Ping.class, 1000));
+        }
+        assertTrue(throttleLimiter.violatesThrottleLimit(Ping.class, 1999));
+        // The oldest message is outside of the window
+        assertFalse(throttleLimiter.violatesThrottleLimit(Ping.class, 2000));
+    }
+
+    @Test
+    public void testQuotaPerMessageClass() {
+        ThrottleLimiter throttleLimiter = new ThrottleLimiter();
+        int quota = Connection.MSG_THROTTLE_PER_10_SEC / 2;
+        // We stay below the global limits with 1 message each 10 ms
+        for (int i = 0; i < quota; i++) {
+            assertFalse(throttleLimiter.violatesThrottleLimit(RefreshTTLMessage.class, i * 10));
+        }
+        assertTrue(throttleLimiter.violatesThrottleLimit(RefreshTTLMessage.class, quota * 10));
+        // Other messages are only limited by the global limits
+        assertFalse(throttleLimiter.violatesThrottleLimit(Ping.class, quota * 10));
+    }
+}
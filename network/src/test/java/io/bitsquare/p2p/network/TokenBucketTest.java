@@ -0,0 +1,69 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.network;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testBurstAndRefill() {
+        AtomicLong now = new AtomicLong();
+        TokenBucket tokenBucket = new TokenBucket(3, 10, now::get);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(tokenBucket.tryConsume());
+        }
+        assertFalse(tokenBucket.tryConsume());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), tokenBucket.getNanosUntilNextToken());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, tokenBucket.getNanosUntilNextToken());
+        assertTrue(tokenBucket.tryConsume());
+        assertFalse(tokenBucket.tryConsume());
+    }
+
+    @Test
+    public void testCapacityIsNotExceeded() {
+        AtomicLong now = new AtomicLong();
+        TokenBucket tokenBucket = new TokenBucket(2, 10, now::get);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertTrue(tokenBucket.tryConsume());
+        assertTrue(tokenBucket.tryConsume());
+        assertFalse(tokenBucket.tryConsume());
+    }
+
+    @Test
+    public void testReservedTokens() {
+        AtomicLong now = new AtomicLong();
+        TokenBucket tokenBucket = new TokenBucket(3, 10, now::get);
+
+        assertTrue(tokenBucket.tryConsume(2));
+        assertFalse(tokenBucket.tryConsume(2));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), tokenBucket.getNanosUntilNextToken(2));
+        assertEquals(0, tokenBucket.getNanosUntilNextToken());
+        assertTrue(tokenBucket.tryConsume());
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.p2p.network.wire;
+
+import io.bitsquare.app.Version;
+import io.bitsquare.common.crypto.SealedAndSigned;
+import io.bitsquare.common.crypto.Sig;
+import io.bitsquare.p2p.NodeAddress;
+import io.bitsquare.p2p.messaging.PrefixedSealedAndSignedMessage;
+import io.bitsquare.p2p.network.messages.CloseConnectionMessage;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponse;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponseChunk;
+import io.bitsquare.p2p.peers.getdata.messages.KeysBloomFilter;
+import io.bitsquare.p2p.peers.getdata.messages.PreliminaryGetDataRequest;
+import io.bitsquare.p2p.peers.getdata.messages.SnapshotSegment;
+import io.bitsquare.p2p.peers.keepalive.messages.Ping;
+import io.bitsquare.p2p.peers.keepalive.messages.Pong;
+import io.bitsquare.p2p.storage.messages.AddDataMessage;
+import io.bitsquare.p2p.storage.messages.RefreshTTLMessage;
+import io.bitsquare.p2p.storage.mocks.MockData;
+import io.bitsquare.p2p.storage.payload.MailboxStoragePayload;
+import io.bitsquare.p2p.storage.storageentry.ProtectedMailboxStorageEntry;
+import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MessageCodecTest {
+    private KeyPair keyPair;
+
+    @Before
+    public void setup() {
+        Security.addProvider(new BouncyCastleProvider());
+        keyPair = Sig.generateKeyPair();
+    }
+
+    @Test
+    public void testKeepAliveMessages() throws IOException, ClassNotFoundException {
+        Ping ping = (Ping) MessageCodec.decode(MessageCodec.encode(new Ping(42, 300)));
+        assertEquals(42, ping.nonce);
+        assertEquals(300, ping.lastRoundTripTime);
+
+        Pong pong = (Pong) MessageCodec.decode(MessageCodec.encode(new Pong(42)));
+        assertEquals(42, pong.requestNonce);
+    }
+
+    @Test
+    public void testRefreshTTLMessage() throws IOException, ClassNotFoundException {
+        RefreshTTLMessage message = new RefreshTTLMessage(new byte[]{1, 2, 3}, new byte[]{4, 5}, new byte[]{6}, 7);
+        RefreshTTLMessage decoded = (RefreshTTLMessage) MessageCodec.decode(MessageCodec.encode(message));
+        assertArrayEquals(message.hashOfDataAndSeqNr, decoded.hashOfDataAndSeqNr);
+        assertArrayEquals(message.signature, decoded.signature);
+        assertArrayEquals(message.hashOfPayload, decoded.hashOfPayload);
+        assertEquals(message.sequenceNumber, decoded.sequenceNumber);
+    }
+
+    @Test
+    public void testAddDataMessage() throws IOException, ClassNotFoundException {
+        ProtectedStorageEntry entry = createEntry();
+        ProtectedStorageEntry decoded = ((AddDataMessage) MessageCodec.decode(MessageCodec.encode(new AddDataMessage(entry)))).protectedStorageEntry;
+        assertFalse(decoded instanceof ProtectedMailboxStorageEntry);
+        assertEquals(entry.getStoragePayload(), decoded.getStoragePayload());
+        assertEntryEquals(entry, decoded);
+    }
+
+    @Test
+    public void testAddDataMessageWithMailboxEntry() throws IOException, ClassNotFoundException {
+        ProtectedMailboxStorageEntry entry = createMailboxEntry();
+        ProtectedStorageEntry decoded = ((AddDataMessage) MessageCodec.decode(MessageCodec.encode(new AddDataMessage(entry)))).protectedStorageEntry;
+        assertTrue(decoded instanceof ProtectedMailboxStorageEntry);
+        assertEntryEquals(entry, decoded);
+        assertEquals(entry.receiversPubKey, ((ProtectedMailboxStorageEntry) decoded).receiversPubKey);
+
+        MailboxStoragePayload payload = entry.getMailboxStoragePayload();
+        MailboxStoragePayload decodedPayload = ((ProtectedMailboxStorageEntry) decoded).getMailboxStoragePayload();
+        assertEquals(payload.senderPubKeyForAddOperation, decodedPayload.senderPubKeyForAddOperation);
+        assertEquals(payload.receiverPubKeyForRemoveOperation, decodedPayload.receiverPubKeyForRemoveOperation);
+        assertMessageEquals(payload.prefixedSealedAndSignedMessage, decodedPayload.prefixedSealedAndSignedMessage);
+    }
+
+    @Test
+    public void testGetDataResponse() throws IOException, ClassNotFoundException {
+        HashSet<ProtectedStorageEntry> dataSet = new HashSet<>(Arrays.asList(createEntry(), createMailboxEntry()));
+        GetDataResponse message = new GetDataResponse(dataSet, 5, true);
+        GetDataResponse decoded = (GetDataResponse) MessageCodec.decode(MessageCodec.encode(message));
+        assertEquals(5, decoded.requestNonce);
+        assertTrue(decoded.isGetUpdatedDataResponse);
+        assertEquals(message.getSupportedCapabilities(), decoded.getSupportedCapabilities());
+        assertEquals(2, decoded.dataSet.size());
+        assertEquals(1, decoded.dataSet.stream().filter(e -> e instanceof ProtectedMailboxStorageEntry).count());
+    }
+
+    @Test
+    public void testPrefixedSealedAndSignedMessage() throws IOException, ClassNotFoundException {
+        PrefixedSealedAndSignedMessage message = createPrefixedSealedAndSignedMessage();
+        PrefixedSealedAndSignedMessage decoded = (PrefixedSealedAndSignedMessage) MessageCodec.decode(MessageCodec.encode(message));
+        assertMessageEquals(message, decoded);
+    }
+
+    @Test
+    public void testGetDataResponseChunk() throws IOException, ClassNotFoundException {
+        GetDataResponseChunk message = new GetDataResponseChunk(new HashSet<>(), 5, true, 3, true);
+        GetDataResponseChunk decoded = (GetDataResponseChunk) MessageCodec.decode(MessageCodec.encode(message));
+        assertTrue(decoded.dataSet.isEmpty());
+        assertEquals(5, decoded.requestNonce);
+        assertTrue(decoded.isGetUpdatedDataResponse);
+        assertEquals(3, decoded.continuationToken);
+        assertTrue(decoded.isLastChunk);
+        assertEquals(message.getSupportedCapabilities(), decoded.getSupportedCapabilities());
+    }
+
+    @Test
+    public void testSnapshotSegment() throws IOException, ClassNotFoundException {
+        byte[] compressedDataSet = MessageCodec.encodeCompressedDataSet(new HashSet<>());
+        SnapshotSegment message = new SnapshotSegment(5, 1000, compressedDataSet);
+        byte[] frame = MessageCodec.encode(message);
+        // The data is compressed already
+        assertSame(frame, MessageCodec.compress(frame));
+
+        SnapshotSegment decoded = (SnapshotSegment) MessageCodec.decode(frame);
+        assertEquals(5, decoded.requestNonce);
+        assertEquals(1000, decoded.periodStart);
+        assertArrayEquals(compressedDataSet, decoded.compressedDataSet);
+        assertTrue(decoded.getDataSet().isEmpty());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testCompressedDataSetExceedsMaxSize() throws IOException, ClassNotFoundException {
+        byte[] compressedDataSet = MessageCodec.encodeCompressedDataSet(new HashSet<>());
+        compressedDataSet[0] = 1;
+        MessageCodec.decodeCompressedDataSet(compressedDataSet);
+    }
+
+    @Test
+    public void testGetDataRequestWithFilter() throws IOException, ClassNotFoundException {
+        Set<byte[]> keys = new HashSet<>(Arrays.asList(new byte[]{1, 2}, new byte[]{3, 4}));
+        PreliminaryGetDataRequest message = new PreliminaryGetDataRequest(5, KeysBloomFilter.create(keys, 5));
+        PreliminaryGetDataRequest decoded = (PreliminaryGetDataRequest) MessageCodec.decode(MessageCodec.encode(message));
+        assertEquals(5, decoded.getNonce());
+        assertTrue(decoded.getExcludedKeys().isEmpty());
+        assertEquals(5, decoded.getExcludedKeysFilter().getSalt());
+        assertArrayEquals(message.getExcludedKeysFilter().getBits(), decoded.getExcludedKeysFilter().getBits());
+        assertTrue(decoded.getExcludedKeysFilter().mightContain(new byte[]{3, 4}));
+        assertEquals(message.getSupportedCapabilities(), decoded.getSupportedCapabilities());
+
+        // Without filter we use the old frame type
+        decoded = (PreliminaryGetDataRequest) MessageCodec.decode(MessageCodec.encode(new PreliminaryGetDataRequest(5, keys)));
+        assertNull(decoded.getExcludedKeysFilter());
+        assertEquals(2, decoded.getExcludedKeys().size());
+    }
+
+    @Test
+    public void testSerializedFallback() throws IOException, ClassNotFoundException {
+        byte[] frame = MessageCodec.encode(new CloseConnectionMessage("test"));
+        assertEquals(Version.getP2PMessageVersion(), MessageCodec.getMessageVersion(frame));
+        assertEquals("test", ((CloseConnectionMessage) MessageCodec.decode(frame)).reason);
+    }
+
+    @Test
+    public void testFrameRoundTrip() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        FrameCodec.writeFrame(out, MessageCodec.encode(new Ping(1, 0)));
+        FrameCodec.writeFrame(out, MessageCodec.encode(new Pong(1)));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        assertTrue(MessageCodec.decode(FrameCodec.readFrame(in, 1024)) instanceof Ping);
+        assertTrue(MessageCodec.decode(FrameCodec.readFrame(in, 1024)) instanceof Pong);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testFrameExceedsMaxSize() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        FrameCodec.writeFrame(new DataOutputStream(bos), MessageCodec.encode(new Ping(1, 0)));
+        FrameCodec.readFrame(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())), MessageCodec.HEADER_SIZE);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testTrailingData() throws IOException, ClassNotFoundException {
+        byte[] frame = MessageCodec.encode(new Pong(1));
+        byte[] corrupted = new byte[frame.length + 1];
+        System.arraycopy(frame, 0, corrupted, 0, frame.length);
+        MessageCodec.decode(corrupted);
+    }
+
+    @Test
+    public void testCompression() throws IOException, ClassNotFoundException {
+        RefreshTTLMessage message = new RefreshTTLMessage(new byte[32], new byte[10 * 1024], new byte[32], 1);
+        byte[] frame = MessageCodec.encode(message);
+        byte[] compressed = MessageCodec.compress(frame);
+        assertTrue(MessageCodec.isCompressed(compressed));
+        assertTrue(compressed.length < frame.length);
+        assertEquals(MessageCodec.getMessageVersion(frame), MessageCodec.getMessageVersion(compressed));
+
+        byte[] decompressed = MessageCodec.decompress(compressed, frame.length);
+        assertArrayEquals(frame, decompressed);
+        assertEquals(1, ((RefreshTTLMessage) MessageCodec.decode(decompressed)).sequenceNumber);
+
+        // Small frames are not compressed
+        byte[] pingFrame = MessageCodec.encode(new Ping(1, 0));
+        assertSame(pingFrame, MessageCodec.compress(pingFrame));
+        assertSame(pingFrame, MessageCodec.decompress(pingFrame, 1024));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testCompressedFrameExceedsMaxSize() throws IOException {
+        byte[] frame = MessageCodec.encode(new RefreshTTLMessage(new byte[32], new byte[10 * 1024], new byte[32], 1));
+        MessageCodec.decompress(MessageCodec.compress(frame), frame.length - 1);
+    }
+
+    @Test
+    public void testRelayReceivedFrame() throws IOException, ClassNotFoundException {
+        byte[] frame = MessageCodec.encode(new RefreshTTLMessage(new byte[32], new byte[10 * 1024], new byte[32], 1));
+        byte[] compressed = MessageCodec.compress(frame);
+        RefreshTTLMessage received = (RefreshTTLMessage) MessageCodec.decode(MessageCodec.decompress(compressed, frame.length));
+        assertNotSame(received.getEncodedMessage(), received.getEncodedMessage());
+
+        received.setReceivedEncodedMessage(new EncodedMessage(received, frame, compressed));
+        EncodedMessage encodedMessage = received.getEncodedMessage();
+        assertSame(frame, encodedMessage.getFrame());
+        assertSame(compressed, encodedMessage.getCompressedFrame());
+    }
+
+    private ProtectedStorageEntry createEntry() {
+        // Keys are not on the white list of the Java deserialization, so the payload must not contain one
+        return new ProtectedStorageEntry(new MockData("mockData", null), keyPair.getPublic(), 1, new byte[]{1, 2, 3});
+    }
+
+    private ProtectedMailboxStorageEntry createMailboxEntry() {
+        MailboxStoragePayload payload = new MailboxStoragePayload(createPrefixedSealedAndSignedMessage(),
+                keyPair.getPublic(), keyPair.getPublic());
+        return new ProtectedMailboxStorageEntry(payload, keyPair.getPublic(), 2, new byte[]{4, 5}, keyPair.getPublic());
+    }
+
+    private PrefixedSealedAndSignedMessage createPrefixedSealedAndSignedMessage() {
+        SealedAndSigned sealedAndSigned = new SealedAndSigned(new byte[]{1}, new byte[]{2, 3}, new byte[]{4}, keyPair.getPublic());
+        return new PrefixedSealedAndSignedMessage(new NodeAddress("localhost:8001"), sealedAndSigned, new byte[]{5, 6});
+    }
+
+    private static void assertEntryEquals(ProtectedStorageEntry expected, ProtectedStorageEntry actual) {
+        assertEquals(expected.ownerPubKey, actual.ownerPubKey);
+        assertEquals(expected.sequenceNumber, actual.sequenceNumber);
+        assertArrayEquals(expected.signature, actual.signature);
+        assertEquals(expected.creationTimeStamp, actual.creationTimeStamp);
+    }
+
+    private static void assertMessageEquals(PrefixedSealedAndSignedMessage expected, PrefixedSealedAndSignedMessage actual) {
+        assertEquals(expected.getSenderNodeAddress(), actual.getSenderNodeAddress());
+        assertEquals(expected.getUID(), actual.getUID());
+        assertEquals(expected.sealedAndSigned, actual.sealedAndSigned);
+        assertEquals(expected.sealedAndSigned.sigPublicKey, actual.sealedAndSigned.sigPublicKey);
+        assertArrayEquals(expected.addressPrefixHash, actual.addressPrefixHash);
+    }
+}
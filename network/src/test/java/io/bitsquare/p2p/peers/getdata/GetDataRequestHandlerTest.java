@@ -0,0 +1,277 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.peers.getdata;
+
+import io.bitsquare.app.Capabilities;
+import io.bitsquare.common.UserThread;
+import io.bitsquare.common.crypto.CryptoException;
+import io.bitsquare.common.crypto.Sig;
+import io.bitsquare.p2p.network.*;
+import io.bitsquare.p2p.peers.Broadcaster;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponse;
+import io.bitsquare.p2p.peers.getdata.messages.GetDataResponseChunk;
+import io.bitsquare.p2p.peers.getdata.messages.GetFilteredDataRequest;
+import io.bitsquare.p2p.peers.getdata.messages.KeysBloomFilter;
+import io.bitsquare.p2p.peers.getdata.messages.PreliminaryGetDataRequest;
+import io.bitsquare.p2p.storage.P2PDataStorage;
+import io.bitsquare.p2p.storage.mocks.MockData;
+import io.bitsquare.p2p.storage.mocks.MockPersistedData;
+import io.bitsquare.p2p.storage.payload.PersistedStoragePayload;
+import io.bitsquare.storage.FileUtil;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class GetDataRequestHandlerTest {
+    private static final int NUM_ENTRIES = 600;
+    // Large entries, so the chunks don't fit into the socket buffers and the handler has to wait for the peer
+    private static final int PAYLOAD_SIZE = 40 * 1024;
+    private static final int NUM_PERSISTED_ENTRIES = 20;
+
+    private File dir;
+    private NetworkNode networkNode;
+    private P2PDataStorage dataStorage;
+    private Socket peerSocket;
+    private ObjectOutputStream peerOutputStream;
+    private Connection connection;
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private final CountDownLatch failed = new CountDownLatch(1);
+
+    @Before
+    public void setup() throws IOException, CryptoException {
+        Security.addProvider(new BouncyCastleProvider());
+        UserThread.setExecutor(Executors.newSingleThreadExecutor());
+        dir = File.createTempFile("temp_tests", "");
+        dir.delete();
+        dir.mkdir();
+
+        // We don't connect to the node, it only sends the responses to our connection
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            networkNode = new LocalhostNetworkNode(serverSocket.getLocalPort());
+        }
+        networkNode.start(null);
+        dataStorage = new P2PDataStorage(new Broadcaster(networkNode, null), networkNode, dir);
+        KeyPair keyPair = Sig.generateKeyPair();
+        char[] padding = new char[PAYLOAD_SIZE];
+        Arrays.fill(padding, 'x');
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            MockData mockData = new MockData(i + new String(padding), keyPair.getPublic());
+            mockData.ttl = TimeUnit.DAYS.toMillis(1);
+            assertTrue(dataStorage.add(dataStorage.getProtectedData(mockData, keyPair), null, null, false, false));
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            peerSocket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+            // The connection reads the stream header of the peer at construction
+            peerOutputStream = new ObjectOutputStream(peerSocket.getOutputStream());
+            peerOutputStream.flush();
+            connection = new InboundConnection(serverSocket.accept(), (message, connection) -> {
+            }, new ConnectionListener() {
+                @Override
+                public void onConnection(Connection connection) {
+                }
+
+                @Override
+                public void onDisconnect(CloseConnectionReason closeConnectionReason, Connection connection) {
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+            }, null, networkNode.getSeenMessageCache());
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        connection.shutDown(CloseConnectionReason.APP_SHUT_DOWN);
+        peerSocket.close();
+        networkNode.shutDown(null);
+        dataStorage.shutDown();
+        FileUtil.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testChunkedResponse() throws Exception {
+        ObjectInputStream peerInputStream = requestData();
+
+        Set<String> received = new HashSet<>();
+        GetDataResponseChunk chunk;
+        int continuationToken = 0;
+        do {
+            chunk = readChunk(peerInputStream);
+            assertEquals(42, chunk.requestNonce);
+            assertEquals(continuationToken++, chunk.continuationToken);
+            assertTrue(chunk.dataSet.size() <= 50);
+            chunk.dataSet.stream().forEach(e -> received.add(((MockData) e.getStoragePayload()).msg));
+        } while (!chunk.isLastChunk);
+
+        assertEquals(NUM_ENTRIES, received.size());
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, failed.getCount());
+    }
+
+    @Test
+    public void testPeerDisconnectsMidStream() throws Exception {
+        ObjectInputStream peerInputStream = requestData();
+        GetDataResponseChunk chunk = readChunk(peerInputStream);
+        assertEquals(0, chunk.continuationToken);
+        assertFalse(chunk.isLastChunk);
+
+        peerSocket.close();
+        assertTrue(failed.await(30, TimeUnit.SECONDS));
+        assertEquals(1, completed.getCount());
+        assertTrue(connection.isStopped());
+    }
+
+    @Test
+    public void testFilteredDataRequest() throws Exception {
+        KeyPair keyPair = Sig.generateKeyPair();
+        for (int i = 0; i < NUM_PERSISTED_ENTRIES; i++) {
+            MockPersistedData mockData = new MockPersistedData("persisted" + i, keyPair.getPublic());
+            mockData.ttl = TimeUnit.DAYS.toMillis(1);
+            assertTrue(dataStorage.add(dataStorage.getProtectedData(mockData, keyPair), null, null, false, false));
+        }
+
+        // We have the first half of the persisted entries. We put one more key into our filter to get a false
+        // positive. The keys of the other entries in the filter must be ignored, as only persisted entries are
+        // filtered.
+        List<P2PDataStorage.ByteArray> persistedKeys = dataStorage.getKeys(PersistedStoragePayload.class);
+        List<byte[]> keysInFilter = new ArrayList<>();
+        for (int i = 0; i < NUM_PERSISTED_ENTRIES / 2; i++) {
+            keysInFilter.add(persistedKeys.get(i).bytes);
+        }
+        byte[] falsePositiveKey = persistedKeys.get(NUM_PERSISTED_ENTRIES / 2).bytes;
+        keysInFilter.add(falsePositiveKey);
+        dataStorage.getMap().keySet().stream()
+                .filter(key -> !persistedKeys.contains(key))
+                .limit(10)
+                .forEach(key -> keysInFilter.add(key.bytes));
+        KeysBloomFilter filter = KeysBloomFilter.create(keysInFilter, 42);
+
+        ArrayList<Integer> capabilities = new ArrayList<>(Arrays.asList(
+                Capabilities.Capability.CHUNKED_DATA_RESPONSE.ordinal(),
+                Capabilities.Capability.FILTERED_DATA_REQUEST.ordinal()));
+        ObjectInputStream peerInputStream = requestData(new PreliminaryGetDataRequest(42, new HashSet<>(), filter,
+                capabilities));
+
+        int numReceivedEntries = 0;
+        int numReceivedPersistedEntries = 0;
+        GetDataResponseChunk chunk;
+        do {
+            chunk = readChunk(peerInputStream);
+            numReceivedEntries += chunk.dataSet.size();
+            numReceivedPersistedEntries += chunk.dataSet.stream()
+                    .filter(e -> e.getStoragePayload() instanceof PersistedStoragePayload)
+                    .count();
+        } while (!chunk.isLastChunk);
+
+        int numFilteredEntries = NUM_PERSISTED_ENTRIES / 2 + 1;
+        assertEquals(NUM_ENTRIES + NUM_PERSISTED_ENTRIES - numFilteredEntries, numReceivedEntries);
+        assertEquals(NUM_PERSISTED_ENTRIES - numFilteredEntries, numReceivedPersistedEntries);
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+
+        // Second round, our filter contains all persisted keys except the false positive of the first filter
+        List<byte[]> knownKeys = persistedKeys.stream()
+                .map(key -> key.bytes)
+                .filter(key -> key != falsePositiveKey)
+                .collect(Collectors.toList());
+        GetFilteredDataRequest getFilteredDataRequest = new GetFilteredDataRequest(43, false,
+                KeysBloomFilter.create(knownKeys, 43, KeysBloomFilter.FILTERED_DATA_RATE));
+        peerOutputStream.writeObject(getFilteredDataRequest);
+        peerOutputStream.flush();
+        GetDataRequestHandler handler = createHandler();
+        UserThread.execute(() -> handler.handle(getFilteredDataRequest, connection));
+
+        Object object;
+        do {
+            object = peerInputStream.readObject();
+        } while (!(object instanceof GetDataResponse));
+        GetDataResponse getDataResponse = (GetDataResponse) object;
+        assertEquals(43, getDataResponse.requestNonce);
+        assertEquals(1, getDataResponse.dataSet.size());
+        assertEquals(dataStorage.getMap().get(new P2PDataStorage.ByteArray(falsePositiveKey)).getStoragePayload(),
+                getDataResponse.dataSet.iterator().next().getStoragePayload());
+        assertEquals(1, failed.getCount());
+    }
+
+    private ObjectInputStream requestData() throws IOException, InterruptedException {
+        // We announce chunked responses but not binary frames, so the responses arrive as Java serialized objects
+        ArrayList<Integer> capabilities = new ArrayList<>(Collections.singletonList(
+                Capabilities.Capability.CHUNKED_DATA_RESPONSE.ordinal()));
+        return requestData(new PreliminaryGetDataRequest(42, new HashSet<>(), null, capabilities));
+    }
+
+    private ObjectInputStream requestData(PreliminaryGetDataRequest request) throws IOException, InterruptedException {
+        ObjectInputStream peerInputStream = new ObjectInputStream(peerSocket.getInputStream());
+        peerOutputStream.writeObject(request);
+        peerOutputStream.flush();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (connection.getSupportedCapabilities() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(request.getSupportedCapabilities(), connection.getSupportedCapabilities());
+
+        GetDataRequestHandler handler = createHandler();
+        UserThread.execute(() -> handler.handle(request, connection));
+        return peerInputStream;
+    }
+
+    private GetDataRequestHandler createHandler() {
+        return new GetDataRequestHandler(networkNode, dataStorage,
+                new GetDataRequestHandler.Listener() {
+                    @Override
+                    public void onComplete() {
+                        completed.countDown();
+                    }
+
+                    @Override
+                    public void onFault(String errorMessage, Connection connection) {
+                        failed.countDown();
+                    }
+                });
+    }
+
+    private static GetDataResponseChunk readChunk(ObjectInputStream peerInputStream) throws IOException, ClassNotFoundException {
+        Object object;
+        do {
+            object = peerInputStream.readObject();
+        } while (!(object instanceof GetDataResponseChunk));
+        return (GetDataResponseChunk) object;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.peers.getdata.messages;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KeysBloomFilterTest {
+    // Keys are hashes, so random bytes are a good model
+    private final Random random = new Random(1);
+
+    @Test
+    public void testFalsePositiveRate() {
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            keys.add(newKey());
+        }
+        KeysBloomFilter keysBloomFilter = KeysBloomFilter.create(keys, 42);
+        assertTrue(keysBloomFilter.getBits().length < 10000 * 2);
+        keys.stream().forEach(key -> assertTrue(keysBloomFilter.mightContain(key)));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (keysBloomFilter.mightContain(newKey()))
+                falsePositives++;
+        }
+        assertTrue("falsePositives=" + falsePositives, falsePositives < 100000 * KeysBloomFilter.FALSE_POSITIVE_RATE * 2);
+    }
+
+    @Test
+    public void testFilteredDataRate() {
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            keys.add(newKey());
+        }
+        KeysBloomFilter keysBloomFilter = KeysBloomFilter.create(keys, 42, KeysBloomFilter.FILTERED_DATA_RATE);
+        // About 1 byte per key
+        assertTrue(keysBloomFilter.getBits().length < 10000 + 10000 / 4);
+        keys.stream().forEach(key -> assertTrue(keysBloomFilter.mightContain(key)));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (keysBloomFilter.mightContain(newKey()))
+                falsePositives++;
+        }
+        assertTrue("falsePositives=" + falsePositives, falsePositives < 100000 * KeysBloomFilter.FILTERED_DATA_RATE * 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFalsePositiveRate() {
+        KeysBloomFilter.create(new ArrayList<>(), 42, 1);
+    }
+
+    @Test
+    public void testSaltChangesFalsePositives() {
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add(newKey());
+        }
+        KeysBloomFilter filter1 = KeysBloomFilter.create(keys, 1);
+        KeysBloomFilter filter2 = KeysBloomFilter.create(keys, 2);
+        int falsePositivesOfBoth = 0;
+        for (int i = 0; i < 100000; i++) {
+            byte[] key = newKey();
+            if (filter1.mightContain(key) && filter2.mightContain(key))
+                falsePositivesOfBoth++;
+        }
+        assertTrue("falsePositivesOfBoth=" + falsePositivesOfBoth, falsePositivesOfBoth < 5);
+    }
+
+    private byte[] newKey() {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        return key;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.storage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiryQueueTest {
+    private static final P2PDataStorage.ByteArray KEY_1 = new P2PDataStorage.ByteArray(new byte[]{1});
+    private static final P2PDataStorage.ByteArray KEY_2 = new P2PDataStorage.ByteArray(new byte[]{2});
+    private static final P2PDataStorage.ByteArray KEY_3 = new P2PDataStorage.ByteArray(new byte[]{3});
+
+    @Test
+    public void testPollDue() {
+        ExpiryQueue expiryQueue = new ExpiryQueue(1000);
+        expiryQueue.schedule(KEY_1, 1500);
+        expiryQueue.schedule(KEY_2, 2500);
+        expiryQueue.schedule(KEY_3, 10000);
+
+        // Only buckets with all expiry times before now are due
+        assertTrue(expiryQueue.pollDue(1999).isEmpty());
+        assertEquals(Collections.singletonList(KEY_1), expiryQueue.pollDue(2000));
+        assertTrue(expiryQueue.pollDue(2000).isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList(KEY_2, KEY_3)), new HashSet<>(expiryQueue.pollDue(20000)));
+        assertEquals(0, expiryQueue.size());
+    }
+
+    @Test
+    public void testSchedule() {
+        ExpiryQueue expiryQueue = new ExpiryQueue(1000);
+        expiryQueue.schedule(KEY_1, 5500);
+        // A later expiry time does not move the key, an earlier one does
+        expiryQueue.schedule(KEY_1, 9500);
+        assertEquals(Collections.singletonList(KEY_1), expiryQueue.pollDue(6000));
+
+        expiryQueue.schedule(KEY_2, 5500);
+        expiryQueue.schedule(KEY_2, 1500);
+        assertEquals(Collections.singletonList(KEY_2), expiryQueue.pollDue(2000));
+
+        expiryQueue.schedule(KEY_3, 1500);
+        expiryQueue.unschedule(KEY_3);
+        assertTrue(expiryQueue.pollDue(20000).isEmpty());
+        assertEquals(0, expiryQueue.size());
+    }
+}
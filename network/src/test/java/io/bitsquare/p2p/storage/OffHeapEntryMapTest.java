@@ -0,0 +1,196 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.storage;
+
+import io.bitsquare.common.crypto.Sig;
+import io.bitsquare.p2p.storage.payload.StoragePayload;
+import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.PublicKey;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class OffHeapEntryMapTest {
+    private PublicKey publicKey;
+
+    // The payload gets Java serialized, so it must not contain the public key
+    private static class TestPayload implements StoragePayload {
+        private final String msg;
+
+        public TestPayload(String msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        public long getTTL() {
+            return 1000;
+        }
+
+        @Override
+        public PublicKey getOwnerPubKey() {
+            return null;
+        }
+    }
+
+    // The payload cannot be Java serialized, so the entry cannot be encoded
+    private static class UnencodablePayload extends TestPayload {
+        private final Object notSerializable = new Object();
+
+        public UnencodablePayload(String msg) {
+            super(msg);
+        }
+    }
+
+    @Before
+    public void setup() {
+        Security.addProvider(new BouncyCastleProvider());
+        publicKey = Sig.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        OffHeapEntryMap map = new OffHeapEntryMap();
+        assertNull(map.put(getKey(1), getEntry("data1", 0)));
+        assertNull(map.put(getKey(2), getEntry("data2", 0)));
+        assertEquals(2, map.size());
+        assertTrue(map.containsKey(getKey(1)));
+
+        ProtectedStorageEntry entry = map.get(getKey(1));
+        assertEquals("data1", ((TestPayload) entry.getStoragePayload()).msg);
+        assertEquals(publicKey, entry.ownerPubKey);
+
+        ProtectedStorageEntry previous = map.put(getKey(1), getEntry("data1", 5));
+        assertEquals(0, previous.sequenceNumber);
+        assertEquals(5, map.get(getKey(1)).sequenceNumber);
+
+        assertEquals(5, map.remove(getKey(1)).sequenceNumber);
+        assertNull(map.get(getKey(1)));
+        assertNull(map.remove(getKey(1)));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testPutRejectsUnencodableEntry() {
+        OffHeapEntryMap map = new OffHeapEntryMap();
+        map.put(getKey(1), getEntry("data1", 0));
+        long liveBytes = map.getLiveBytes();
+        try {
+            map.put(getKey(1), new ProtectedStorageEntry(new UnencodablePayload("data1"), publicKey, 1, new byte[]{1}));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignore) {
+        }
+
+        // The map is not changed
+        assertEquals(1, map.size());
+        assertEquals(0, map.get(getKey(1)).sequenceNumber);
+        assertEquals(liveBytes, map.getLiveBytes());
+    }
+
+    @Test
+    public void testCompaction() {
+        OffHeapEntryMap map = new OffHeapEntryMap(4096);
+        for (int i = 0; i < 100; i++) {
+            map.put(getKey(i), getEntry("data" + i, 0));
+        }
+        long liveBytes = map.getLiveBytes();
+        for (int i = 0; i < 90; i++) {
+            map.remove(getKey(i));
+        }
+
+        assertEquals(10, map.size());
+        assertTrue(map.getLiveBytes() < liveBytes);
+        assertTrue(map.getGarbageBytes() <= map.getLiveBytes() || map.getGarbageBytes() < 4096);
+        for (int i = 90; i < 100; i++) {
+            assertEquals("data" + i, ((TestPayload) map.get(getKey(i)).getStoragePayload()).msg);
+        }
+    }
+
+    @Test
+    public void testEntryLargerThanSegment() {
+        OffHeapEntryMap map = new OffHeapEntryMap(64);
+        map.put(getKey(1), getEntry("data1", 0));
+        map.put(getKey(2), getEntry("data2", 0));
+        assertEquals("data1", ((TestPayload) map.get(getKey(1)).getStoragePayload()).msg);
+        assertEquals("data2", ((TestPayload) map.get(getKey(2)).getStoragePayload()).msg);
+    }
+
+    @Test
+    public void testIterationOnSnapshot() {
+        OffHeapEntryMap map = new OffHeapEntryMap(4096);
+        for (int i = 0; i < 10; i++) {
+            map.put(getKey(i), getEntry("data" + i, 0));
+        }
+
+        Iterator<Map.Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>> iterator = map.entrySet().iterator();
+        Map.Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry> first = iterator.next();
+        // Entries removed after the iteration started are still readable from the snapshot
+        for (int i = 0; i < 10; i++) {
+            map.remove(getKey(i));
+        }
+        assertNotNull(first.getValue());
+        int count = 1;
+        while (iterator.hasNext()) {
+            assertNotNull(iterator.next().getValue());
+            count++;
+        }
+        assertEquals(10, count);
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testSnapshotSource() {
+        OffHeapEntryMap map = new OffHeapEntryMap(4096);
+        for (int i = 0; i < 10; i++) {
+            map.put(getKey(i), getEntry("data" + i, 0));
+        }
+
+        Supplier<Iterator<Map.Entry<P2PDataStorage.ByteArray, ProtectedStorageEntry>>> snapshot = map.getSnapshot();
+        // Changes after taking the snapshot are not part of it
+        for (int i = 0; i < 5; i++) {
+            map.remove(getKey(i));
+        }
+        map.put(getKey(5), getEntry("data5", 1));
+        map.put(getKey(10), getEntry("data10", 0));
+
+        Map<P2PDataStorage.ByteArray, ProtectedStorageEntry> entries = new HashMap<>();
+        snapshot.get().forEachRemaining(e -> entries.put(e.getKey(), e.getValue()));
+        assertEquals(10, entries.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("data" + i, ((TestPayload) entries.get(getKey(i)).getStoragePayload()).msg);
+        }
+        assertEquals(0, entries.get(getKey(5)).sequenceNumber);
+        assertEquals(6, map.size());
+    }
+
+    private ProtectedStorageEntry getEntry(String msg, int sequenceNumber) {
+        return new ProtectedStorageEntry(new TestPayload(msg), publicKey, sequenceNumber, new byte[]{1, 2, 3});
+    }
+
+    private static P2PDataStorage.ByteArray getKey(int key) {
+        return new P2PDataStorage.ByteArray(new byte[]{(byte) key});
+    }
+}
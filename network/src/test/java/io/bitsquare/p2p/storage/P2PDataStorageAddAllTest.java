@@ -0,0 +1,173 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.storage;
+
+import io.bitsquare.common.UserThread;
+import io.bitsquare.common.crypto.CryptoException;
+import io.bitsquare.common.crypto.Sig;
+import io.bitsquare.p2p.network.LocalhostNetworkNode;
+import io.bitsquare.p2p.network.NetworkNode;
+import io.bitsquare.p2p.peers.Broadcaster;
+import io.bitsquare.p2p.storage.mocks.MockData;
+import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
+import io.bitsquare.storage.FileUtil;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class P2PDataStorageAddAllTest {
+    private File dir;
+    private NetworkNode networkNode;
+    private P2PDataStorage dataStorage;
+    private KeyPair keyPair;
+    // Only accessed at the UserThread
+    private final List<String> addedMessages = new ArrayList<>();
+
+    @Before
+    public void setup() throws IOException, CryptoException {
+        Security.addProvider(new BouncyCastleProvider());
+        UserThread.setExecutor(Executors.newSingleThreadExecutor());
+        dir = File.createTempFile("temp_tests", "");
+        dir.delete();
+        dir.mkdir();
+
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            networkNode = new LocalhostNetworkNode(serverSocket.getLocalPort());
+        }
+        dataStorage = new P2PDataStorage(new Broadcaster(networkNode, null), networkNode, dir);
+        dataStorage.addHashMapChangedListener(new HashMapChangedListener() {
+            @Override
+            public void onAdded(ProtectedStorageEntry data) {
+                addedMessages.add(((MockData) data.getStoragePayload()).msg);
+            }
+
+            @Override
+            public void onRemoved(ProtectedStorageEntry data) {
+            }
+        });
+        keyPair = Sig.generateKeyPair();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dataStorage.shutDown();
+        FileUtil.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testOrderOfConsecutiveCalls() throws Exception {
+        // Several batches per call, the second call has less entries to verify, so it is ready first
+        List<ProtectedStorageEntry> first = createEntries("first", 180);
+        List<ProtectedStorageEntry> second = createEntries("second", 20);
+        List<Integer> numAddedAtCompletion = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch completed = new CountDownLatch(2);
+
+        dataStorage.addAll(first, null, () -> {
+            numAddedAtCompletion.add(addedMessages.size());
+            completed.countDown();
+        });
+        dataStorage.addAll(second, null, () -> {
+            numAddedAtCompletion.add(addedMessages.size());
+            completed.countDown();
+        });
+        assertTrue(completed.await(30, TimeUnit.SECONDS));
+
+        // The result handlers get called after all entries of their call have been added
+        assertEquals(2, numAddedAtCompletion.size());
+        assertEquals(180, (int) numAddedAtCompletion.get(0));
+        assertEquals(200, (int) numAddedAtCompletion.get(1));
+
+        CountDownLatch read = new CountDownLatch(1);
+        List<String> messages = new ArrayList<>();
+        UserThread.execute(() -> {
+            messages.addAll(addedMessages);
+            read.countDown();
+        });
+        assertTrue(read.await(10, TimeUnit.SECONDS));
+        assertEquals(200, messages.size());
+        for (int i = 0; i < 180; i++) {
+            assertEquals("first" + i, messages.get(i));
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals("second" + i, messages.get(180 + i));
+        }
+    }
+
+    @Test
+    public void testEmptyCall() throws Exception {
+        CountDownLatch completed = new CountDownLatch(2);
+        dataStorage.addAll(new ArrayList<>(), null, completed::countDown);
+        dataStorage.addAll(createEntries("entry", 5), null, completed::countDown);
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(5, dataStorage.getMap().size());
+    }
+
+    @Test
+    public void testThrowingVerification() throws Exception {
+        List<ProtectedStorageEntry> entries = createEntries("entry", 10);
+        MockData throwingData = new MockData("throwing", keyPair.getPublic()) {
+            @Override
+            public PublicKey getOwnerPubKey() {
+                throw new IllegalStateException("test");
+            }
+        };
+        entries.add(5, new ProtectedStorageEntry(throwingData, keyPair.getPublic(), 0, new byte[]{1}));
+
+        // The other entries of the call get added
+        CountDownLatch completed = new CountDownLatch(1);
+        dataStorage.addAll(entries, null, completed::countDown);
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(10, dataStorage.getMap().size());
+    }
+
+    @Test
+    public void testCallAfterShutDown() throws Exception {
+        dataStorage.shutDown();
+        CountDownLatch completed = new CountDownLatch(1);
+        dataStorage.addAll(createEntries("entry", 5), null, completed::countDown);
+        assertFalse(completed.await(1, TimeUnit.SECONDS));
+        assertTrue(dataStorage.getMap().isEmpty());
+    }
+
+    private List<ProtectedStorageEntry> createEntries(String prefix, int numEntries) throws CryptoException {
+        List<ProtectedStorageEntry> entries = new ArrayList<>();
+        for (int i = 0; i < numEntries; i++) {
+            MockData mockData = new MockData(prefix + i, keyPair.getPublic());
+            mockData.ttl = TimeUnit.DAYS.toMillis(1);
+            entries.add(dataStorage.getProtectedData(mockData, keyPair));
+        }
+        return entries;
+    }
+}
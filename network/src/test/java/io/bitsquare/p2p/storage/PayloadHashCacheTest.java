@@ -0,0 +1,67 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.storage;
+
+import io.bitsquare.common.crypto.Hash;
+import io.bitsquare.p2p.mocks.MockPayload;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.Security;
+
+import static org.junit.Assert.*;
+
+public class PayloadHashCacheTest {
+    private PayloadHashCache payloadHashCache;
+
+    @Before
+    public void setup() {
+        Security.addProvider(new BouncyCastleProvider());
+        payloadHashCache = new PayloadHashCache();
+    }
+
+    @Test
+    public void testHashOfPayload() {
+        MockPayload payload = new MockPayload("payload");
+        P2PDataStorage.ByteArray hashOfPayload = payloadHashCache.getHashOfPayload(payload);
+        assertArrayEquals(Hash.getHash(payload), hashOfPayload.bytes);
+        assertSame(hashOfPayload, payloadHashCache.getHashOfPayload(payload));
+    }
+
+    @Test
+    public void testHashOfDataAndSeqNr() {
+        MockPayload payload = new MockPayload("payload");
+        for (int sequenceNumber : new int[]{0, 1, 255, 256, Integer.MAX_VALUE}) {
+            byte[] expected = Hash.getHash(new P2PDataStorage.DataAndSeqNrPair(payload, sequenceNumber));
+            assertArrayEquals(expected, payloadHashCache.getHashOfDataAndSeqNr(payload, sequenceNumber));
+            // From the cache
+            assertArrayEquals(expected, payloadHashCache.getHashOfDataAndSeqNr(payload, sequenceNumber));
+        }
+    }
+
+    @Test
+    public void testCachedHashCannotBeChanged() {
+        MockPayload payload = new MockPayload("payload");
+        byte[] hash = payloadHashCache.getHashOfDataAndSeqNr(payload, 1);
+        byte[] expected = hash.clone();
+        hash[0]++;
+        assertArrayEquals(expected, payloadHashCache.getHashOfDataAndSeqNr(payload, 1));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.storage;
+
+import io.bitsquare.common.crypto.Hash;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SequenceNumberMapTest {
+
+    @Test
+    public void testPutAndGet() {
+        SequenceNumberMap map = new SequenceNumberMap();
+        map.put(getKey(1), 1, 100);
+        map.put(getKey(2), 2, 200);
+        assertEquals(2, map.size());
+        assertTrue(map.containsKey(getKey(1)));
+        assertFalse(map.containsKey(getKey(3)));
+        assertFalse(map.containsKey(new P2PDataStorage.ByteArray(new byte[]{1})));
+
+        map.put(getKey(1), 5, 300);
+        assertEquals(2, map.size());
+        assertEquals(5, map.getSequenceNr(getKey(1)));
+        assertEquals(300, map.getTimeStamp(getKey(1)));
+        assertEquals(2, map.getSequenceNr(getKey(2)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetMissingKey() {
+        new SequenceNumberMap().getSequenceNr(getKey(1));
+    }
+
+    @Test
+    public void testGrowAndPurge() {
+        SequenceNumberMap map = new SequenceNumberMap();
+        Map<P2PDataStorage.ByteArray, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            map.put(getKey(i), i, i);
+            expected.put(getKey(i), i);
+        }
+        assertEquals(10000, map.size());
+        expected.entrySet().stream().forEach(e -> assertEquals((int) e.getValue(), map.getSequenceNr(e.getKey())));
+
+        List<P2PDataStorage.ByteArray> removedKeys = map.purgeOlderThan(4999);
+        assertEquals(5000, removedKeys.size());
+        assertEquals(5000, map.size());
+        removedKeys.stream().forEach(key -> assertTrue(expected.get(key) <= 4999));
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i > 4999, map.containsKey(getKey(i)));
+        }
+        assertTrue(map.purgeOlderThan(4999).isEmpty());
+    }
+
+    @Test
+    public void testCopy() {
+        SequenceNumberMap map = new SequenceNumberMap();
+        map.put(getKey(1), 1, 100);
+        SequenceNumberMap copy = map.copy();
+        map.put(getKey(1), 2, 200);
+        map.put(getKey(2), 1, 200);
+
+        assertEquals(1, copy.size());
+        assertEquals(1, copy.getSequenceNr(getKey(1)));
+        Map<P2PDataStorage.ByteArray, Integer> entries = new HashMap<>();
+        copy.forEach((key, sequenceNr, timeStamp) -> entries.put(new P2PDataStorage.ByteArray(key), sequenceNr));
+        assertEquals(1, entries.size());
+        assertEquals(1, (int) entries.get(getKey(1)));
+    }
+
+    private static P2PDataStorage.ByteArray getKey(int i) {
+        return new P2PDataStorage.ByteArray(Hash.getHash(Integer.toString(i)));
+    }
+}
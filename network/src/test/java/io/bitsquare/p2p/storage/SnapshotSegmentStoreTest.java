@@ -0,0 +1,235 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.storage;
+
+import io.bitsquare.common.UserThread;
+import io.bitsquare.common.crypto.Sig;
+import io.bitsquare.p2p.network.wire.MessageCodec;
+import io.bitsquare.p2p.storage.mocks.MockData;
+import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
+import io.bitsquare.storage.FileUtil;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class SnapshotSegmentStoreTest {
+    private File dir;
+    private KeyPair keyPair;
+    private Map<P2PDataStorage.ByteArray, ProtectedStorageEntry> entries;
+    private SnapshotSegmentStore store;
+    // Newest period which is closed for sealing
+    private long closedPeriod;
+
+    @Before
+    public void setup() throws IOException {
+        Security.addProvider(new BouncyCastleProvider());
+        UserThread.setExecutor(Executors.newSingleThreadExecutor());
+        dir = File.createTempFile("temp_tests", "");
+        dir.delete();
+        dir.mkdir();
+        keyPair = Sig.generateKeyPair();
+        entries = new HashMap<>();
+        closedPeriod = Math.floorDiv(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1),
+                SnapshotSegmentStore.PERIOD_MS) - 1;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (store != null)
+            store.shutDown();
+        FileUtil.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testSealing() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            addEntry("closed" + i, closedPeriod, "");
+        }
+        // Entries of the open period don't get sealed
+        addEntry("open", closedPeriod + 2, "");
+
+        store = createStore();
+        assertTrue(store.getSegments().isEmpty());
+        store.start();
+        waitForSegments(store);
+
+        assertEquals(1, store.getSegments().size());
+        SnapshotSegmentStore.Segment segment = store.getSegments().get(0);
+        assertEquals(closedPeriod * SnapshotSegmentStore.PERIOD_MS, segment.periodStart);
+        assertEquals(10, segment.keys.size());
+        assertFalse(segment.keys.contains(getKey("open")));
+        assertTrue(segment.requiredCapabilities.isEmpty());
+        assertTrue(segment.isComplete());
+        assertEquals(getMessages(segment.keys), getMessages(segment));
+    }
+
+    @Test
+    public void testLoadSegments() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            addEntry("closed" + i, closedPeriod - 1, "");
+            addEntry("newer" + i, closedPeriod, "");
+        }
+        store = createStore();
+        store.start();
+        waitForSegments(store);
+        List<SnapshotSegmentStore.Segment> sealed = store.getSegments();
+        assertEquals(2, sealed.size());
+        store.shutDown();
+
+        // Left over from an interrupted sealing
+        File tempFile = new File(dir, "0_0" + SnapshotSegmentStore.FILE_SUFFIX + ".tmp");
+        assertTrue(tempFile.createNewFile());
+
+        store = createStore();
+        List<SnapshotSegmentStore.Segment> loaded = store.getSegments();
+        assertEquals(2, loaded.size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(sealed.get(i).periodStart, loaded.get(i).periodStart);
+            assertEquals(sealed.get(i).keys, loaded.get(i).keys);
+            assertEquals(sealed.get(i).requiredCapabilities, loaded.get(i).requiredCapabilities);
+            assertArrayEquals(sealed.get(i).readCompressedDataSet(), loaded.get(i).readCompressedDataSet());
+            assertTrue(loaded.get(i).isComplete());
+        }
+        assertTrue(loaded.get(0).periodStart < loaded.get(1).periodStart);
+        assertFalse(tempFile.exists());
+    }
+
+    @Test
+    public void testInvalidSegmentFileGetsDeleted() throws Exception {
+        addEntry("closed", closedPeriod, "");
+        store = createStore();
+        store.start();
+        waitForSegments(store);
+        store.shutDown();
+
+        File file = new File(dir, closedPeriod + "_0" + SnapshotSegmentStore.FILE_SUFFIX);
+        assertTrue(file.exists());
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(file.length() - 1);
+        }
+
+        store = createStore();
+        assertTrue(store.getSegments().isEmpty());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testRemovedEntryInvalidatesSegment() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            addEntry("closed" + i, closedPeriod - 1, "");
+            addEntry("newer" + i, closedPeriod, "");
+        }
+        store = createStore();
+        store.start();
+        waitForSegments(store);
+        SnapshotSegmentStore.Segment older = store.getSegments().get(0);
+        SnapshotSegmentStore.Segment newer = store.getSegments().get(1);
+
+        // A key which is not part of a segment
+        store.onRemoved(getKey("unknown"));
+        assertTrue(older.isComplete());
+
+        entries.remove(getKey("closed3"));
+        store.onRemoved(getKey("closed3"));
+        assertFalse(older.isComplete());
+        assertTrue(newer.isComplete());
+        store.shutDown();
+
+        // Entries removed while we were offline
+        entries.remove(getKey("newer5"));
+        store = createStore();
+        assertEquals(2, store.getSegments().size());
+        assertFalse(store.getSegments().get(0).isComplete());
+        assertFalse(store.getSegments().get(1).isComplete());
+    }
+
+    @Test
+    public void testSplitOfLargeSegment() throws Exception {
+        // Each entry has about 1/10 of MAX_SNAPSHOT_SEGMENT_SIZE
+        char[] padding = new char[MessageCodec.MAX_SNAPSHOT_SEGMENT_SIZE / 10];
+        Arrays.fill(padding, 'x');
+        for (int i = 0; i < 16; i++) {
+            addEntry("large" + i, closedPeriod, new String(padding));
+        }
+
+        store = createStore();
+        store.start();
+        waitForSegments(store);
+
+        List<SnapshotSegmentStore.Segment> segments = store.getSegments();
+        assertTrue(segments.size() > 1);
+        Set<P2PDataStorage.ByteArray> keys = new HashSet<>();
+        for (SnapshotSegmentStore.Segment segment : segments) {
+            assertEquals(closedPeriod * SnapshotSegmentStore.PERIOD_MS, segment.periodStart);
+            assertEquals(getMessages(segment.keys), getMessages(segment));
+            keys.addAll(segment.keys);
+        }
+        assertEquals(entries.keySet(), keys);
+    }
+
+    private SnapshotSegmentStore createStore() {
+        return new SnapshotSegmentStore(dir, () -> new HashMap<>(entries), entries::containsKey);
+    }
+
+    private void addEntry(String msg, long period, String padding) {
+        // The payload gets Java serialized in the data set, so it must not contain the public key
+        ProtectedStorageEntry entry = new ProtectedStorageEntry(new MockData(msg + padding, null),
+                keyPair.getPublic(), 0, new byte[]{1, 2, 3});
+        entry.creationTimeStamp = period * SnapshotSegmentStore.PERIOD_MS + 1000;
+        entries.put(getKey(msg), entry);
+    }
+
+    private static P2PDataStorage.ByteArray getKey(String msg) {
+        return new P2PDataStorage.ByteArray(msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Set<String> getMessages(Set<P2PDataStorage.ByteArray> keys) {
+        return keys.stream()
+                .map(key -> ((MockData) entries.get(key).getStoragePayload()).msg)
+                .collect(Collectors.toSet());
+    }
+
+    private static Set<String> getMessages(SnapshotSegmentStore.Segment segment)
+            throws IOException, ClassNotFoundException {
+        return MessageCodec.decodeCompressedDataSet(segment.readCompressedDataSet()).stream()
+                .map(entry -> ((MockData) entry.getStoragePayload()).msg)
+                .collect(Collectors.toSet());
+    }
+
+    private static void waitForSegments(SnapshotSegmentStore store) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (store.getSegments().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
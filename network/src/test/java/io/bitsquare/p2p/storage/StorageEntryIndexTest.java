@@ -0,0 +1,103 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.bitsquare.p2p.storage;
+
+import io.bitsquare.common.crypto.Sig;
+import io.bitsquare.p2p.NodeAddress;
+import io.bitsquare.p2p.storage.mocks.MockData;
+import io.bitsquare.p2p.storage.payload.RequiresOwnerIsOnlinePayload;
+import io.bitsquare.p2p.storage.payload.StoragePayload;
+import io.bitsquare.p2p.storage.storageentry.ProtectedStorageEntry;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.PublicKey;
+import java.security.Security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StorageEntryIndexTest {
+    private StorageEntryIndex index;
+    private PublicKey publicKey1, publicKey2;
+
+    private static class MockOwnerIsOnlineData extends MockData implements RequiresOwnerIsOnlinePayload {
+        private final NodeAddress ownerNodeAddress;
+
+        public MockOwnerIsOnlineData(String msg, PublicKey publicKey, NodeAddress ownerNodeAddress) {
+            super(msg, publicKey);
+            this.ownerNodeAddress = ownerNodeAddress;
+        }
+
+        @Override
+        public NodeAddress getOwnerNodeAddress() {
+            return ownerNodeAddress;
+        }
+    }
+
+    @Before
+    public void setup() {
+        Security.addProvider(new BouncyCastleProvider());
+        index = new StorageEntryIndex();
+        publicKey1 = Sig.generateKeyPair().getPublic();
+        publicKey2 = Sig.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void testLookups() {
+        NodeAddress owner = new NodeAddress("localhost:1000");
+        put(1, new MockData("data", publicKey1));
+        ProtectedStorageEntry offer1 = put(2, new MockOwnerIsOnlineData("offer1", publicKey1, owner));
+        ProtectedStorageEntry offer2 = put(3, new MockOwnerIsOnlineData("offer2", publicKey2, owner));
+
+        assertEquals(3, index.getKeys(MockData.class).size());
+        assertEquals(3, index.getKeys(StoragePayload.class).size());
+        assertEquals(2, index.getKeys(MockOwnerIsOnlineData.class).size());
+        assertEquals(2, index.getKeysByOwner(owner).size());
+        assertTrue(index.getKeysByOwner(new NodeAddress("localhost:2000")).isEmpty());
+
+        index.remove(getKey(2), offer1);
+        assertEquals(1, index.getKeys(MockOwnerIsOnlineData.class).size());
+        assertTrue(index.getKeysByOwner(owner).contains(getKey(3)));
+
+        index.remove(getKey(3), offer2);
+        assertTrue(index.getKeys(MockOwnerIsOnlineData.class).isEmpty());
+        assertTrue(index.getKeysByOwner(owner).isEmpty());
+    }
+
+    @Test
+    public void testReplaceEntry() {
+        MockData payload = new MockData("data", publicKey1);
+        put(1, payload);
+        index.put(getKey(1), new ProtectedStorageEntry(payload, publicKey1, 1, new byte[0]));
+
+        assertEquals(1, index.getKeys(MockData.class).size());
+    }
+
+    private ProtectedStorageEntry put(int key, StoragePayload payload) {
+        ProtectedStorageEntry entry = new ProtectedStorageEntry(payload, payload.getOwnerPubKey(), 0, new byte[0]);
+        index.put(getKey(key), entry);
+        return entry;
+    }
+
+    private static P2PDataStorage.ByteArray getKey(int key) {
+        return new P2PDataStorage.ByteArray(new byte[]{(byte) key});
+    }
+}
@@ -0,0 +1,18 @@
+package io.bitsquare.p2p.storage.mocks;
+
+import io.bitsquare.p2p.storage.payload.PersistedStoragePayload;
+
+import java.security.PublicKey;
+
+public class MockPersistedData extends MockData implements PersistedStoragePayload {
+    public MockPersistedData(String msg, PublicKey publicKey) {
+        super(msg, publicKey);
+    }
+
+    @Override
+    public String toString() {
+        return "MockPersistedData{" +
+                "msg='" + msg + '\'' +
+                '}';
+    }
+}
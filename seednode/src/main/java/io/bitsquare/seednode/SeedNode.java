@@ -14,8 +14,12 @@ import io.bitsquare.common.UserThread;
 import io.bitsquare.common.handlers.ResultHandler;
 import io.bitsquare.common.util.LimitedKeyStrengthException;
 import io.bitsquare.common.util.Utilities;
+import io.bitsquare.network.NetworkOptionKeys;
 import io.bitsquare.p2p.BootstrapListener;
 import io.bitsquare.p2p.P2PService;
+import io.bitsquare.p2p.network.NetworkNode;
+import io.bitsquare.p2p.network.StatisticExporter;
+import io.bitsquare.p2p.storage.P2PDataStorage;
 import io.bitsquare.trade.offer.OpenOfferManager;
 import io.bitsquare.trade.statistics.TradeStatisticsManager;
 import org.apache.commons.lang3.exception.ExceptionUtils;
@@ -37,6 +41,7 @@ public class SeedNode {
     private final TradeStatisticsManager tradeStatisticsManager;
 
     private P2PService p2pService;
+    private StatisticExporter statisticExporter;
 
     public static void setEnvironment(Environment env) {
         SeedNode.env = env;
@@ -79,6 +84,9 @@ public class SeedNode {
         seedNodeModule = new SeedNodeModule(env);
         injector = Guice.createInjector(seedNodeModule);
         Version.setBtcNetworkId(injector.getInstance(BitsquareEnvironment.class).getBitcoinNetwork().ordinal());
+        NetworkNode.setUseSelectorTransport(env.getProperty(NetworkOptionKeys.USE_SELECTOR_TRANSPORT, boolean.class, false));
+        P2PDataStorage.setUseOffHeapStorage(env.getProperty(NetworkOptionKeys.OFF_HEAP_STORAGE, boolean.class, false));
+        P2PDataStorage.setUseSnapshotSegments(env.getProperty(NetworkOptionKeys.SNAPSHOT_SEGMENTS, boolean.class, false));
         p2pService = injector.getInstance(P2PService.class);
         p2pService.start(new BootstrapListener() {
             @Override
@@ -86,6 +94,14 @@ public class SeedNode {
             }
         });
 
+        long statisticExportInterval = env.getProperty(NetworkOptionKeys.STATISTIC_EXPORT_INTERVAL, long.class, 0L);
+        if (statisticExportInterval > 0) {
+            statisticExporter = new StatisticExporter(p2pService.getNetworkNode(),
+                    Paths.get(env.getProperty(AppOptionKeys.APP_DATA_DIR_KEY), "network_statistic.txt").toFile(),
+                    statisticExportInterval);
+            statisticExporter.start();
+        }
+
         // We want to persist trade statistics so we need to instantiate the tradeStatisticsManager
         tradeStatisticsManager = injector.getInstance(TradeStatisticsManager.class);
     }
@@ -100,6 +116,9 @@ public class SeedNode {
     public void gracefulShutDown(ResultHandler resultHandler) {
         log.debug("gracefulShutDown");
         try {
+            if (statisticExporter != null)
+                statisticExporter.shutDown();
+
             if (injector != null) {
                 injector.getInstance(ArbitratorManager.class).shutDown();
                 injector.getInstance(OpenOfferManager.class).shutDown(() -> {